@@ -0,0 +1,149 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.util.Arrays;
+
+/**
+ * read counts per position over a region of a chromosome, for building
+ * one feature at a time.
+ *
+ * Positions are genome coordinates. The buffer starts at the position it
+ * was last reset to and grows (in either direction) to hold whatever is
+ * added, so a cluster can be any length.
+ *
+ * A reset doesn't clear anything: each cell is stamped with the epoch it
+ * was written in, and a reset just starts a new epoch, so cells from an
+ * earlier feature read as zero. The arrays are kept between features, so
+ * after the first few features nothing is allocated either.
+ *
+ * @author sr
+ */
+public class CoverageBuffer {
+
+    private static final int            INITIAL_CAPACITY            = 256;
+
+    private int[]                       counts                      = new int[INITIAL_CAPACITY];
+    private int[]                       stamps                      = new int[INITIAL_CAPACITY];
+    private int                         origin                      = 0;        // genome position of cell 0
+    private int                         end                         = 0;        // after the last position added since the reset
+    private int                         epoch                       = 1;
+
+
+
+    /**
+     * forget the current counts and start again at origin
+     *
+     * @param origin    the first position expected to be added
+     */
+    public void reset(int origin){
+        if(epoch == Integer.MAX_VALUE){
+            Arrays.fill(stamps, 0);
+            epoch = 0;
+        }
+        epoch++;
+        this.origin = origin;
+        this.end = origin;
+    }
+
+
+
+    /**
+     * add counts to positions from..to-1
+     *
+     * @param from
+     * @param to        exclusive
+     * @param count
+     */
+    public void add(int from, int to, int count){
+        if(to <= from) return;
+        this.ensureCapacity(from, to);
+        end = Math.max(end, to);
+        for(int i = from - origin; i < to - origin; i++){
+            if(stamps[i] != epoch){
+                stamps[i] = epoch;
+                counts[i] = 0;
+            }
+            counts[i] += count;
+        }
+    }
+
+
+
+    /**
+     * @param position
+     * @return the count at the position, 0 if nothing was added there since the last reset
+     */
+    public int get(int position){
+        int i = position - origin;
+        if(i < 0 || i >= counts.length || stamps[i] != epoch)
+            return 0;
+        return counts[i];
+    }
+
+
+
+    /**
+     * @param from
+     * @param to        exclusive
+     * @return the sum of the counts at positions from..to-1
+     */
+    public long sum(int from, int to){
+        long total = 0;
+        for(int p = from; p < to; p++)
+            total += this.get(p);
+        return total;
+    }
+
+
+
+    /**
+     * make room for positions from..to-1, moving the origin down if from
+     * is before it. Only the cells added since the reset are kept. When
+     * the arrays have to grow they at least double, so adding a long
+     * cluster read by read is amortised linear
+     *
+     * @param from
+     * @param to
+     */
+    private void ensureCapacity(int from, int to){
+        if(from >= origin && (long) to - origin <= counts.length)
+            return;
+
+        int newOrigin = Math.min(origin, from);
+        long needed = (long) Math.max(end, to) - newOrigin;
+        if(needed > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("coverage region " + from + "-" + to + " is too long");
+
+        int shift = origin - newOrigin;
+        int live = end - origin;
+        if(needed <= counts.length){
+            System.arraycopy(counts, 0, counts, shift, live);
+            System.arraycopy(stamps, 0, stamps, shift, live);
+            Arrays.fill(stamps, 0, Math.min(shift, counts.length), 0);
+        }
+        else{
+            int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, 2L * counts.length));
+            int[] newCounts = new int[capacity];
+            int[] newStamps = new int[capacity];
+            System.arraycopy(counts, 0, newCounts, shift, live);
+            System.arraycopy(stamps, 0, newStamps, shift, live);
+            counts = newCounts;
+            stamps = newStamps;
+        }
+        origin = newOrigin;
+    }
+
+
+
+    /**
+     * @return the number of cells allocated
+     */
+    public int getCapacity() {
+        return counts.length;
+    }
+
+}
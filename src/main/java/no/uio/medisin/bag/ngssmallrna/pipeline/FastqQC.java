@@ -0,0 +1,177 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * collects FastqQCStats for a FASTQ file in a single pass.
+ *
+ * The reads are split into chunks and handed to a set of workers through
+ * a bounded queue. Each worker adds its chunks to its own FastqQCStats,
+ * so the workers don't share anything, and the workers' statistics are
+ * merged at the end.
+ *
+ * @author sr
+ */
+public class FastqQC {
+
+    static Logger                       logger                      = LogManager.getLogger();
+
+    private static final int            CHUNK_SIZE                  = 16384;    // reads
+    private static final long           QUEUE_TIMEOUT               = 100;      // milliseconds
+    private static final ArrayList<FastqRecord>     END_OF_FILE     = new ArrayList<>();
+
+    private final int                   noOfThreads;
+    private long                        maxNoOfReads                = 0;
+    private int                         maxNoOfSequences            = 10000;
+
+
+
+    /**
+     *
+     * @param noOfThreads   the number of workers
+     */
+    public FastqQC(int noOfThreads){
+        this.noOfThreads = Math.max(1, noOfThreads);
+    }
+
+
+
+    /**
+     * read the file and collect the statistics
+     *
+     * @param fastqFile     plain or gzipped FASTQ
+     * @return
+     * @throws IOException
+     */
+    public FastqQCStats analyze(String fastqFile) throws IOException{
+
+        logger.info("QC of <" + fastqFile + "> with " + noOfThreads + " workers");
+        long startTime = System.nanoTime();
+
+        final BlockingQueue<ArrayList<FastqRecord>> chunks = new ArrayBlockingQueue<>(2 * noOfThreads);
+        ExecutorService workers = Executors.newFixedThreadPool(noOfThreads, ProcessRunner.daemonThreads("fastq-qc"));
+        ArrayList<Future<FastqQCStats>> workerStats = new ArrayList<>();
+        try{
+            for(int w=0; w<noOfThreads; w++){
+                workerStats.add(workers.submit(new Callable<FastqQCStats>(){
+                    @Override
+                    public FastqQCStats call() throws InterruptedException{
+                        FastqQCStats stats = new FastqQCStats(maxNoOfSequences);
+                        ArrayList<FastqRecord> chunk;
+                        while((chunk = chunks.take()) != END_OF_FILE){
+                            for(FastqRecord fastqRecord: chunk)
+                                stats.add(fastqRecord);
+                        }
+                        return stats;
+                    }
+                }));
+            }
+
+            long noOfReads = 0;
+            try(FastqReader fastqReader = new FastqReader(fastqFile, noOfThreads)){
+                ArrayList<FastqRecord> chunk = new ArrayList<>(CHUNK_SIZE);
+                FastqRecord fastqRecord;
+                while((maxNoOfReads == 0 || noOfReads < maxNoOfReads) && (fastqRecord = fastqReader.next()) != null){
+                    chunk.add(fastqRecord);
+                    noOfReads++;
+                    if(chunk.size() == CHUNK_SIZE){
+                        this.putChunk(chunks, chunk, workerStats);
+                        chunk = new ArrayList<>(CHUNK_SIZE);
+                    }
+                }
+                if(chunk.isEmpty() == false)
+                    this.putChunk(chunks, chunk, workerStats);
+            }
+            for(int w=0; w<noOfThreads; w++)
+                this.putChunk(chunks, END_OF_FILE, workerStats);
+
+            FastqQCStats stats = workerStats.get(0).get();
+            for(int w=1; w<noOfThreads; w++)
+                stats.merge(workerStats.get(w).get());
+
+            logger.info("QC of " + stats.getNoOfReads() + " reads took "
+                    + String.format("%.1f", (System.nanoTime() - startTime) / 1e9) + "s");
+            return stats;
+        }
+        catch(InterruptedException exIE){
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted during QC of <" + fastqFile + ">");
+        }
+        catch(ExecutionException exEx){
+            logger.error("error during QC of <" + fastqFile + ">: " + exEx.getCause());
+            throw new IOException("error during QC of <" + fastqFile + ">", exEx.getCause());
+        }
+        finally{
+            workers.shutdownNow();
+        }
+
+    }
+
+
+
+    /**
+     * queue a chunk, checking the workers are still running while waiting
+     * for space so a failed worker can't leave the reader blocked
+     *
+     * @throws InterruptedException
+     * @throws ExecutionException  if a worker failed
+     */
+    private void putChunk(BlockingQueue<ArrayList<FastqRecord>> chunks, ArrayList<FastqRecord> chunk,
+            ArrayList<Future<FastqQCStats>> workerStats) throws InterruptedException, ExecutionException{
+
+        while(chunks.offer(chunk, QUEUE_TIMEOUT, TimeUnit.MILLISECONDS) == false){
+            for(Future<FastqQCStats> worker: workerStats){
+                if(worker.isDone())
+                    worker.get();
+            }
+        }
+
+    }
+
+
+
+    /**
+     * @return the maximum number of reads to analyze, 0 means all of them
+     */
+    public long getMaxNoOfReads() {
+        return maxNoOfReads;
+    }
+
+    /**
+     * @param maxNoOfReads the maximum number of reads to analyze, 0 means all of them
+     */
+    public void setMaxNoOfReads(long maxNoOfReads) {
+        this.maxNoOfReads = maxNoOfReads;
+    }
+
+    /**
+     * @return the number of candidate overrepresented sequences kept by each worker
+     */
+    public int getMaxNoOfSequences() {
+        return maxNoOfSequences;
+    }
+
+    /**
+     * @param maxNoOfSequences the maxNoOfSequences to set
+     */
+    public void setMaxNoOfSequences(int maxNoOfSequences) {
+        this.maxNoOfSequences = maxNoOfSequences;
+    }
+
+}
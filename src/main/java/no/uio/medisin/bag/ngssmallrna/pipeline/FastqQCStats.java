@@ -0,0 +1,494 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * quality statistics for a set of FASTQ reads.
+ *
+ * Everything is held as counts, so statistics collected from different
+ * parts of a file can be added together with merge(), and the memory used
+ * doesn't grow with the number of reads:
+ *
+ *  - quality score distribution at each position
+ *  - read length distribution
+ *  - base composition and N content at each position
+ *  - mean read quality and read GC content distributions
+ *  - k-mer counts for the whole file
+ *  - overrepresented sequences, found with the Misra-Gries algorithm, which
+ *    keeps at most a fixed number of candidate sequences. The counts it
+ *    reports can be low by at most the error bound in the report, so any
+ *    sequence that is really overrepresented is found
+ *
+ * Quality characters are stored as Phred+33 and the encoding is worked out
+ * from the lowest character seen when the report is written.
+ *
+ * @author sr
+ */
+public class FastqQCStats {
+
+    private static final int            MAX_QUALITY                 = 94;
+    private static final int            NO_OF_BASE_CODES            = 5;        // A, C, G, T, N
+    private static final char[]         BASES                       = {'A', 'C', 'G', 'T', 'N'};
+    private static final int            KMER_SIZE                   = 7;
+    private static final int            KMER_MASK                   = (1 << (2 * KMER_SIZE)) - 1;
+    private static final int            OVERREPRESENTED_LENGTH      = 50;
+    private static final double         OVERREPRESENTED_FRACTION    = 0.001;
+    private static final int            NO_OF_KMERS_REPORTED        = 20;
+    private static final int            MIN_KMER_COUNT              = 10;
+
+    private static final byte[]         BASE_CODES                  = new byte[128];
+    static{
+        Arrays.fill(BASE_CODES, (byte) 4);
+        BASE_CODES['A'] = 0;    BASE_CODES['a'] = 0;
+        BASE_CODES['C'] = 1;    BASE_CODES['c'] = 1;
+        BASE_CODES['G'] = 2;    BASE_CODES['g'] = 2;
+        BASE_CODES['T'] = 3;    BASE_CODES['t'] = 3;
+    }
+
+    private final int                   maxNoOfSequences;
+
+    private long                        noOfReads                   = 0;
+    private long                        noOfBases                   = 0;
+    private long                        noOfGCBases                 = 0;
+    private int                         minQualityChar              = Integer.MAX_VALUE;
+    private long[][]                    qualityCounts               = new long[0][];    // position, quality
+    private long[][]                    baseCounts                  = new long[0][];    // position, base
+    private long[]                      lengthCounts                = new long[0];
+    private final long[]                meanQualityCounts           = new long[MAX_QUALITY];
+    private final long[]                gcContentCounts             = new long[101];
+    private final long[]                kmerCounts                  = new long[KMER_MASK + 1];
+    private long                        noOfKmers                   = 0;
+
+    /* Misra-Gries candidates: sequence -> count, and how far any count can be too low */
+    private final HashMap<String, long[]>   sequenceCounts          = new HashMap<>();
+    private long                        sequenceCountError          = 0;
+
+
+
+    /**
+     *
+     * @param maxNoOfSequences  the number of candidate overrepresented
+     *                          sequences that are kept
+     */
+    public FastqQCStats(int maxNoOfSequences){
+        this.maxNoOfSequences = maxNoOfSequences;
+    }
+
+
+
+    /**
+     * add a read
+     *
+     * @param fastqRecord
+     */
+    public void add(FastqRecord fastqRecord){
+
+        String sequence = fastqRecord.getSequence();
+        String quality = fastqRecord.getQuality();
+        int length = sequence.length();
+        this.ensureLength(length);
+
+        noOfReads++;
+        noOfBases += length;
+        lengthCounts[length]++;
+
+        long qualitySum = 0;
+        int gcBases = 0;
+        int kmer = 0;
+        int validBases = 0;
+        for(int b=0; b<length; b++){
+            char base = sequence.charAt(b);
+            int code = base < 128 ? BASE_CODES[base] : 4;
+            baseCounts[b][code]++;
+            if(code == 1 || code == 2)
+                gcBases++;
+
+            if(code < 4){
+                kmer = ((kmer << 2) | code) & KMER_MASK;
+                if(++validBases >= KMER_SIZE){
+                    kmerCounts[kmer]++;
+                    noOfKmers++;
+                }
+            }
+            else{
+                validBases = 0;
+            }
+
+            if(b < quality.length()){
+                int q = quality.charAt(b);
+                if(q < minQualityChar)
+                    minQualityChar = q;
+                q = Math.min(Math.max(q - 33, 0), MAX_QUALITY - 1);
+                qualityCounts[b][q]++;
+                qualitySum += q;
+            }
+        }
+
+        if(length > 0){
+            meanQualityCounts[(int) (qualitySum / length)]++;
+            gcContentCounts[(int) Math.round(100.0 * gcBases / length)]++;
+        }
+        noOfGCBases += gcBases;
+
+        this.countSequence(length > OVERREPRESENTED_LENGTH ? sequence.substring(0, OVERREPRESENTED_LENGTH) : sequence);
+
+    }
+
+
+
+    /**
+     * Misra-Gries update. If the sequence isn't a candidate and there is
+     * no room for it, every candidate count is reduced by one instead
+     *
+     * @param sequence
+     */
+    private void countSequence(String sequence){
+
+        long[] count = sequenceCounts.get(sequence);
+        if(count != null){
+            count[0]++;
+            return;
+        }
+        if(sequenceCounts.size() < maxNoOfSequences){
+            sequenceCounts.put(sequence, new long[]{1});
+            return;
+        }
+        Iterator<long[]> itCount = sequenceCounts.values().iterator();
+        while(itCount.hasNext()){
+            if(--itCount.next()[0] == 0)
+                itCount.remove();
+        }
+        sequenceCountError++;
+
+    }
+
+
+
+    /**
+     * add the statistics from another set of reads to these
+     *
+     * @param other
+     */
+    public void merge(FastqQCStats other){
+
+        this.ensureLength(other.lengthCounts.length - 1);
+        noOfReads += other.noOfReads;
+        noOfBases += other.noOfBases;
+        noOfGCBases += other.noOfGCBases;
+        minQualityChar = Math.min(minQualityChar, other.minQualityChar);
+        for(int p=0; p<other.lengthCounts.length; p++){
+            lengthCounts[p] += other.lengthCounts[p];
+            for(int q=0; q<MAX_QUALITY; q++)
+                qualityCounts[p][q] += other.qualityCounts[p][q];
+            for(int b=0; b<NO_OF_BASE_CODES; b++)
+                baseCounts[p][b] += other.baseCounts[p][b];
+        }
+        for(int q=0; q<MAX_QUALITY; q++)
+            meanQualityCounts[q] += other.meanQualityCounts[q];
+        for(int gc=0; gc<gcContentCounts.length; gc++)
+            gcContentCounts[gc] += other.gcContentCounts[gc];
+        for(int k=0; k<kmerCounts.length; k++)
+            kmerCounts[k] += other.kmerCounts[k];
+        noOfKmers += other.noOfKmers;
+
+        /* add the candidates, then if there are too many, take the count
+           of the first one that doesn't fit off all of them */
+        for(Map.Entry<String, long[]> entry: other.sequenceCounts.entrySet()){
+            long[] count = sequenceCounts.get(entry.getKey());
+            if(count == null)
+                sequenceCounts.put(entry.getKey(), new long[]{entry.getValue()[0]});
+            else
+                count[0] += entry.getValue()[0];
+        }
+        sequenceCountError += other.sequenceCountError;
+        if(sequenceCounts.size() > maxNoOfSequences){
+            long[] counts = new long[sequenceCounts.size()];
+            int i = 0;
+            for(long[] count: sequenceCounts.values())
+                counts[i++] = count[0];
+            Arrays.sort(counts);
+            long cutoff = counts[counts.length - 1 - maxNoOfSequences];
+            Iterator<long[]> itCount = sequenceCounts.values().iterator();
+            while(itCount.hasNext()){
+                long[] count = itCount.next();
+                count[0] -= cutoff;
+                if(count[0] <= 0)
+                    itCount.remove();
+            }
+            sequenceCountError += cutoff;
+        }
+
+    }
+
+
+
+    /**
+     * make sure there are counts for reads of this length
+     *
+     * @param length
+     */
+    private void ensureLength(int length){
+
+        int oldLength = lengthCounts.length;
+        if(length < oldLength)
+            return;
+        int newLength = length + 1;
+        lengthCounts = Arrays.copyOf(lengthCounts, newLength);
+        qualityCounts = Arrays.copyOf(qualityCounts, newLength);
+        baseCounts = Arrays.copyOf(baseCounts, newLength);
+        for(int p=oldLength; p<newLength; p++){
+            qualityCounts[p] = new long[MAX_QUALITY];
+            baseCounts[p] = new long[NO_OF_BASE_CODES];
+        }
+
+    }
+
+
+
+    /**
+     * @return 33 or 64, guessed from the lowest quality character
+     */
+    public int getPhredOffset(){
+        return minQualityChar >= 64 && minQualityChar != Integer.MAX_VALUE ? 64 : 33;
+    }
+
+
+
+    /**
+     * write the report as a set of tab delimited sections, each starting
+     * with >>section name and ending with >>END_MODULE
+     *
+     * @param writer
+     * @param fastqFile     the name used in the report
+     * @throws IOException
+     */
+    public void writeReport(Writer writer, String fastqFile) throws IOException{
+
+        int shift = this.getPhredOffset() - 33;
+        int maxLength = lengthCounts.length - 1;
+        int minLength = 0;
+        while(minLength < maxLength && lengthCounts[minLength] == 0)
+            minLength++;
+
+        writer.write(">>Basic Statistics\n");
+        writer.write("#Measure\tValue\n");
+        writer.write("Filename\t" + fastqFile + "\n");
+        writer.write("Encoding\tPhred+" + this.getPhredOffset() + "\n");
+        writer.write("Total Sequences\t" + noOfReads + "\n");
+        writer.write("Total Bases\t" + noOfBases + "\n");
+        writer.write("Sequence length\t" + (minLength == maxLength ? maxLength : minLength + "-" + maxLength) + "\n");
+        writer.write("%GC\t" + (noOfBases == 0 ? 0 : Math.round(100.0 * noOfGCBases / noOfBases)) + "\n");
+        writer.write(">>END_MODULE\n");
+
+        writer.write(">>Per base sequence quality\n");
+        writer.write("#Base\tMean\tMedian\tLower Quartile\tUpper Quartile\t10th Percentile\t90th Percentile\n");
+        for(int p=0; p<maxLength; p++){
+            long[] counts = qualityCounts[p];
+            long total = 0;
+            double sum = 0;
+            for(int q=0; q<MAX_QUALITY; q++){
+                total += counts[q];
+                sum += (double) q * counts[q];
+            }
+            if(total == 0) continue;
+            writer.write((p + 1) + "\t" + String.format("%.2f", sum / total - shift)
+                    + "\t" + (percentile(counts, total, 0.5) - shift)
+                    + "\t" + (percentile(counts, total, 0.25) - shift)
+                    + "\t" + (percentile(counts, total, 0.75) - shift)
+                    + "\t" + (percentile(counts, total, 0.1) - shift)
+                    + "\t" + (percentile(counts, total, 0.9) - shift) + "\n");
+        }
+        writer.write(">>END_MODULE\n");
+
+        writer.write(">>Per sequence quality scores\n");
+        writer.write("#Quality\tCount\n");
+        for(int q=0; q<MAX_QUALITY; q++){
+            if(meanQualityCounts[q] > 0)
+                writer.write((q - shift) + "\t" + meanQualityCounts[q] + "\n");
+        }
+        writer.write(">>END_MODULE\n");
+
+        writer.write(">>Per base sequence content\n");
+        writer.write("#Base\tG\tA\tT\tC\n");
+        for(int p=0; p<maxLength; p++){
+            long[] counts = baseCounts[p];
+            long acgt = counts[0] + counts[1] + counts[2] + counts[3];
+            if(acgt == 0) continue;
+            writer.write((p + 1) + "\t" + percent(counts[2], acgt) + "\t" + percent(counts[0], acgt)
+                    + "\t" + percent(counts[3], acgt) + "\t" + percent(counts[1], acgt) + "\n");
+        }
+        writer.write(">>END_MODULE\n");
+
+        writer.write(">>Per sequence GC content\n");
+        writer.write("#GC Content\tCount\n");
+        for(int gc=0; gc<gcContentCounts.length; gc++){
+            writer.write(gc + "\t" + gcContentCounts[gc] + "\n");
+        }
+        writer.write(">>END_MODULE\n");
+
+        writer.write(">>Per base N content\n");
+        writer.write("#Base\tN-Count\n");
+        for(int p=0; p<maxLength; p++){
+            long total = 0;
+            for(int b=0; b<NO_OF_BASE_CODES; b++)
+                total += baseCounts[p][b];
+            if(total == 0) continue;
+            writer.write((p + 1) + "\t" + percent(baseCounts[p][4], total) + "\n");
+        }
+        writer.write(">>END_MODULE\n");
+
+        writer.write(">>Sequence Length Distribution\n");
+        writer.write("#Length\tCount\n");
+        for(int l=minLength; l<=maxLength; l++){
+            if(lengthCounts[l] > 0)
+                writer.write(l + "\t" + lengthCounts[l] + "\n");
+        }
+        writer.write(">>END_MODULE\n");
+
+        writer.write(">>Overrepresented sequences\n");
+        writer.write("#Sequence\tCount\tPercentage\tMax count error\n");
+        for(Map.Entry<String, long[]> entry: this.getOverrepresentedSequences()){
+            writer.write(entry.getKey() + "\t" + entry.getValue()[0] + "\t" + percent(entry.getValue()[0], noOfReads)
+                    + "\t" + sequenceCountError + "\n");
+        }
+        writer.write(">>END_MODULE\n");
+
+        writer.write(">>Kmer Content\n");
+        writer.write("#Sequence\tCount\tObs/Exp Overall\n");
+        this.writeKmers(writer);
+        writer.write(">>END_MODULE\n");
+
+    }
+
+
+
+    /**
+     * @return the candidate sequences that make up at least 0.1% of the
+     *         reads, most frequent first
+     */
+    public ArrayList<Map.Entry<String, long[]>> getOverrepresentedSequences(){
+
+        ArrayList<Map.Entry<String, long[]>> overrepresented = new ArrayList<>();
+        for(Map.Entry<String, long[]> entry: sequenceCounts.entrySet()){
+            if(entry.getValue()[0] + sequenceCountError >= OVERREPRESENTED_FRACTION * noOfReads
+                    && entry.getValue()[0] > 1)
+                overrepresented.add(entry);
+        }
+        Collections.sort(overrepresented, new Comparator<Map.Entry<String, long[]>>(){
+            @Override
+            public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b){
+                return Long.compare(b.getValue()[0], a.getValue()[0]);
+            }
+        });
+        return overrepresented;
+
+    }
+
+
+
+    /**
+     * write the k-mers that are most enriched compared to what the base
+     * composition of the file would predict
+     *
+     * @param writer
+     * @throws IOException
+     */
+    private void writeKmers(Writer writer) throws IOException{
+
+        double[] baseFractions = new double[4];
+        long acgt = 0;
+        for(int p=0; p<lengthCounts.length; p++){
+            for(int b=0; b<4; b++){
+                baseFractions[b] += baseCounts[p][b];
+                acgt += baseCounts[p][b];
+            }
+        }
+        if(acgt == 0 || noOfKmers == 0)
+            return;
+        for(int b=0; b<4; b++)
+            baseFractions[b] /= acgt;
+
+        final double[] enrichment = new double[kmerCounts.length];
+        ArrayList<Integer> candidates = new ArrayList<>();
+        long minCount = Math.max(MIN_KMER_COUNT, noOfKmers / 10000);
+        for(int k=0; k<kmerCounts.length; k++){
+            if(kmerCounts[k] < minCount) continue;
+            double expected = noOfKmers;
+            for(int b=0; b<KMER_SIZE; b++)
+                expected *= baseFractions[(k >>> (2 * b)) & 3];
+            enrichment[k] = kmerCounts[k] / expected;
+            candidates.add(k);
+        }
+        Collections.sort(candidates, new Comparator<Integer>(){
+            @Override
+            public int compare(Integer a, Integer b){
+                return Double.compare(enrichment[b], enrichment[a]);
+            }
+        });
+
+        for(int i=0; i<Math.min(NO_OF_KMERS_REPORTED, candidates.size()); i++){
+            int k = candidates.get(i);
+            char[] kmer = new char[KMER_SIZE];
+            for(int b=0; b<KMER_SIZE; b++)
+                kmer[KMER_SIZE - 1 - b] = BASES[(k >>> (2 * b)) & 3];
+            writer.write(new String(kmer) + "\t" + kmerCounts[k] + "\t" + String.format("%.2f", enrichment[k]) + "\n");
+        }
+
+    }
+
+
+
+    private static int percentile(long[] counts, long total, double fraction){
+        long target = (long) Math.ceil(total * fraction);
+        long cumulative = 0;
+        for(int q=0; q<counts.length; q++){
+            cumulative += counts[q];
+            if(cumulative >= target && cumulative > 0)
+                return q;
+        }
+        return counts.length - 1;
+    }
+
+
+
+    private static String percent(long count, long total){
+        return String.format("%.2f", total == 0 ? 0.0 : 100.0 * count / total);
+    }
+
+
+
+    /**
+     * @return the number of reads
+     */
+    public long getNoOfReads() {
+        return noOfReads;
+    }
+
+    /**
+     * @return the number of bases
+     */
+    public long getNoOfBases() {
+        return noOfBases;
+    }
+
+    /**
+     * @return how far the overrepresented sequence counts can be too low
+     */
+    public long getSequenceCountError() {
+        return sequenceCountError;
+    }
+
+}
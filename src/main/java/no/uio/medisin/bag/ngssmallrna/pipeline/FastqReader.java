@@ -0,0 +1,590 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * reads FASTQ records from a plain or gzipped file.
+ *
+ * A background thread cuts the (decompressed) file into blocks of whole
+ * records, only looking for the line ends, and a pool of threads parses
+ * the blocks into records. The parsed batches are handed over in file
+ * order through a bounded queue, so reading, decompression, parsing and
+ * whatever the caller does with the records all run at the same time, and
+ * the reader can never get more than a few batches ahead of the caller.
+ *
+ * BGZF files (gzip files made of independent blocks, as written by bgzip)
+ * are decompressed in parallel: one thread reads the compressed blocks,
+ * a pool of threads inflates them, and the parser reads the inflated
+ * blocks back in order. Other gzip files, including ones made of several
+ * concatenated members, are decompressed on the parser thread, since the
+ * member boundaries can't be found without decompressing.
+ *
+ * Not thread safe, next() should only be called from one thread.
+ *
+ * @author sr
+ */
+public class FastqReader implements Closeable {
+
+    static Logger                       logger                      = LogManager.getLogger();
+
+    private static final int            BATCH_SIZE                  = 4096;     // records
+    private static final int            QUEUE_CAPACITY              = 8;        // batches
+    private static final int            BUFFER_SIZE                 = 1024 * 1024;
+    private static final int            BGZF_HEADER_SIZE            = 18;
+    private static final long           QUEUE_TIMEOUT               = 100;      // milliseconds
+
+    private static final ArrayList<FastqRecord>     END_OF_FILE     = new ArrayList<>();
+
+    private final String                fastqFile;
+    private final int                   noOfThreads;
+    private final BlockingQueue<Future<ArrayList<FastqRecord>>>     batches;
+    private final ExecutorService       readerThreads;
+    private final ExecutorService       parserThreads;
+    private ExecutorService             inflaterThreads             = null;
+    private volatile Boolean            closed                      = false;
+    private volatile Throwable          readError                   = null;
+
+    private ArrayList<FastqRecord>      currentBatch                = new ArrayList<>();
+    private int                         currentRecord               = 0;
+    private long                        noOfRecords                 = 0;
+
+
+
+    /**
+     * read the file using a single decompression thread
+     *
+     * @param fastqFile
+     * @throws IOException
+     */
+    public FastqReader(String fastqFile) throws IOException{
+        this(fastqFile, 1);
+    }
+
+
+
+    /**
+     *
+     * @param fastqFile     plain FASTQ, or gzip/BGZF compressed FASTQ
+     * @param noOfThreads   threads used to parse records, and to inflate BGZF blocks
+     * @throws IOException  if the file can't be opened
+     */
+    public FastqReader(String fastqFile, int noOfThreads) throws IOException{
+
+        this.fastqFile = fastqFile;
+        this.noOfThreads = Math.max(1, noOfThreads);
+        if(new File(fastqFile).isFile() == false){
+            logger.error("FASTQ file <" + fastqFile + "> does not exist");
+            throw new IOException("FASTQ file <" + fastqFile + "> does not exist");
+        }
+
+        batches = new ArrayBlockingQueue<>(Math.max(QUEUE_CAPACITY, 2 * this.noOfThreads));
+        readerThreads = Executors.newFixedThreadPool(2, ProcessRunner.daemonThreads("fastq-reader"));
+        parserThreads = Executors.newFixedThreadPool(this.noOfThreads, ProcessRunner.daemonThreads("fastq-parser"));
+        final InputStream fastqStream;
+        try{
+            fastqStream = this.openStream();
+        }
+        catch(IOException exIO){
+            this.close();
+            throw exIO;
+        }
+        readerThreads.submit(new Runnable(){
+            @Override
+            public void run(){
+                splitRecords(fastqStream);
+            }
+        });
+
+    }
+
+
+
+    /**
+     *
+     * @return the next record, or null at the end of the file
+     * @throws IOException if the file couldn't be read or isn't valid FASTQ
+     */
+    public FastqRecord next() throws IOException{
+
+        if(currentRecord == currentBatch.size()){
+            if(currentBatch == END_OF_FILE)
+                return null;
+            try{
+                currentBatch = batches.take().get();
+            }
+            catch(InterruptedException exIE){
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while reading <" + fastqFile + ">");
+            }
+            catch(ExecutionException exEx){
+                currentBatch = END_OF_FILE;
+                throw new IOException("error reading <" + fastqFile + ">: " + exEx.getCause().getMessage(), exEx.getCause());
+            }
+            currentRecord = 0;
+            if(currentBatch == END_OF_FILE){
+                if(readError != null){
+                    throw new IOException("error reading <" + fastqFile + ">: " + readError, readError);
+                }
+                return null;
+            }
+        }
+        noOfRecords++;
+        return currentBatch.get(currentRecord++);
+
+    }
+
+
+
+    /**
+     * stop the background threads. Safe to call more than once
+     */
+    @Override
+    public void close(){
+        closed = true;
+        readerThreads.shutdownNow();
+        parserThreads.shutdownNow();
+        if(inflaterThreads != null)
+            inflaterThreads.shutdownNow();
+        batches.clear();
+    }
+
+
+
+    /**
+     * open the file, decompressing it if it starts with the gzip magic number
+     *
+     * @return
+     * @throws IOException
+     */
+    private InputStream openStream() throws IOException{
+
+        byte[] header = new byte[BGZF_HEADER_SIZE];
+        int headerLength = 0;
+        try(InputStream isFQ = new FileInputStream(fastqFile)){
+            int bytesRead;
+            while(headerLength < header.length && (bytesRead = isFQ.read(header, headerLength, header.length - headerLength)) > 0)
+                headerLength += bytesRead;
+        }
+
+        Boolean gzipped = headerLength >= 2 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b;
+        if(gzipped == false){
+            return new BufferedInputStream(new FileInputStream(fastqFile), BUFFER_SIZE);
+        }
+        if(headerLength == BGZF_HEADER_SIZE && isBGZFHeader(header)){
+            logger.info("reading BGZF file <" + fastqFile + "> with " + noOfThreads + " inflater threads");
+            return this.openBGZFStream();
+        }
+        logger.info("reading gzip file <" + fastqFile + ">");
+        return new GZIPInputStream(new FileInputStream(fastqFile), BUFFER_SIZE);
+
+    }
+
+
+
+    /**
+     * a BGZF block header is a gzip header with an extra field holding
+     * a single BC subfield with the block size
+     *
+     * @param header
+     * @return
+     */
+    private static Boolean isBGZFHeader(byte[] header){
+        return (header[2] & 0xff) == 8 && (header[3] & 0x04) != 0
+                && (header[10] & 0xff) == 6 && header[11] == 0
+                && header[12] == 'B' && header[13] == 'C'
+                && (header[14] & 0xff) == 2 && header[15] == 0;
+    }
+
+
+
+    /**
+     * start reading and inflating the BGZF blocks in the background
+     *
+     * @return a stream of the inflated blocks, in order
+     */
+    private InputStream openBGZFStream(){
+
+        final BlockingQueue<Future<byte[]>> blocks = new ArrayBlockingQueue<>(4 * noOfThreads);
+        inflaterThreads = Executors.newFixedThreadPool(noOfThreads, ProcessRunner.daemonThreads("fastq-inflater"));
+        readerThreads.submit(new Runnable(){
+            @Override
+            public void run(){
+                readBlocks(blocks);
+            }
+        });
+        return new BlockStream(blocks);
+
+    }
+
+
+
+    /**
+     * read the compressed blocks and queue them for inflating. A null
+     * block marks the end of the file
+     *
+     * @param blocks
+     */
+    private void readBlocks(BlockingQueue<Future<byte[]>> blocks){
+
+        try(DataInputStream disFQ = new DataInputStream(new BufferedInputStream(new FileInputStream(fastqFile), BUFFER_SIZE))){
+            byte[] header = new byte[BGZF_HEADER_SIZE];
+            while(closed == false){
+                try{
+                    disFQ.readFully(header);
+                }
+                catch(EOFException exEOF){
+                    break;
+                }
+                if(isBGZFHeader(header) == false){
+                    throw new IOException("<" + fastqFile + "> has a block that isn't BGZF");
+                }
+                int blockSize = ((header[16] & 0xff) | (header[17] & 0xff) << 8) + 1;
+                final byte[] block = new byte[blockSize - BGZF_HEADER_SIZE];
+                disFQ.readFully(block);
+                putInQueue(blocks, inflaterThreads.submit(new Callable<byte[]>(){
+                    @Override
+                    public byte[] call() throws IOException{
+                        return inflateBlock(block);
+                    }
+                }));
+            }
+        }
+        catch(IOException | InterruptedException | RuntimeException ex){
+            this.setReadError(ex);
+        }
+        finally{
+            FutureTask<byte[]> endOfFile = new FutureTask<>(new Callable<byte[]>(){
+                @Override
+                public byte[] call(){
+                    return null;
+                }
+            });
+            endOfFile.run();
+            try{
+                putInQueue(blocks, endOfFile);
+            }
+            catch(InterruptedException exIE){
+                // closed
+            }
+        }
+
+    }
+
+
+
+    /**
+     * inflate a BGZF block. The block is everything after the 18 byte
+     * header: the deflated data, then the CRC32 and the inflated size
+     *
+     * @param block
+     * @return the inflated data
+     * @throws IOException
+     */
+    private byte[] inflateBlock(byte[] block) throws IOException{
+
+        int trailer = block.length - 8;
+        int crc = (block[trailer] & 0xff) | (block[trailer + 1] & 0xff) << 8
+                | (block[trailer + 2] & 0xff) << 16 | (block[trailer + 3] & 0xff) << 24;
+        int inflatedSize = (block[trailer + 4] & 0xff) | (block[trailer + 5] & 0xff) << 8
+                | (block[trailer + 6] & 0xff) << 16 | (block[trailer + 7] & 0xff) << 24;
+
+        byte[] inflated = new byte[inflatedSize];
+        Inflater inflater = new Inflater(true);
+        try{
+            inflater.setInput(block, 0, trailer);
+            int length = 0;
+            while(length < inflatedSize){
+                int n = inflater.inflate(inflated, length, inflatedSize - length);
+                if(n == 0 && (inflater.finished() || inflater.needsInput()))
+                    break;
+                length += n;
+            }
+            if(length != inflatedSize){
+                throw new IOException("BGZF block in <" + fastqFile + "> is truncated");
+            }
+        }
+        catch(DataFormatException exDF){
+            throw new IOException("BGZF block in <" + fastqFile + "> is corrupt: " + exDF.getMessage());
+        }
+        finally{
+            inflater.end();
+        }
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(inflated);
+        if((int) crc32.getValue() != crc){
+            throw new IOException("BGZF block in <" + fastqFile + "> fails the CRC check");
+        }
+        return inflated;
+
+    }
+
+
+
+    /**
+     * serves the inflated BGZF blocks as a single stream, in file order
+     */
+    private class BlockStream extends InputStream{
+
+        private final BlockingQueue<Future<byte[]>>     blocks;
+        private byte[]                  block                       = new byte[0];
+        private int                     position                    = 0;
+        private Boolean                 endOfFile                   = false;
+
+        BlockStream(BlockingQueue<Future<byte[]>> blocks){
+            this.blocks = blocks;
+        }
+
+        @Override
+        public int read() throws IOException{
+            byte[] oneByte = new byte[1];
+            return this.read(oneByte, 0, 1) < 0 ? -1 : oneByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException{
+            while(position == block.length){
+                if(endOfFile)
+                    return -1;
+                try{
+                    byte[] nextBlock = blocks.take().get();
+                    if(nextBlock == null)
+                        endOfFile = true;
+                    else
+                        block = nextBlock;
+                    position = 0;
+                }
+                catch(InterruptedException exIE){
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while reading <" + fastqFile + ">");
+                }
+                catch(ExecutionException exEx){
+                    throw new IOException(exEx.getCause().getMessage(), exEx.getCause());
+                }
+            }
+            int n = Math.min(length, block.length - position);
+            System.arraycopy(block, position, buffer, offset, n);
+            position += n;
+            return n;
+        }
+    }
+
+
+
+    /**
+     * cut the stream into blocks of BATCH_SIZE records and queue them to be
+     * parsed, ending with END_OF_FILE. Only the line ends are looked at 
+     * here, a record is four lines and empty lines between records are 
+     * skipped. Whatever is left at the end of the file goes in the last 
+     * block, so a truncated record is reported by the parser
+     *
+     * @param fastqStream
+     */
+    private void splitRecords(InputStream fastqStream){
+
+        try(InputStream isFQ = fastqStream){
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int blockStart = 0;         // start of the block being cut
+            int lineStart = 0;          // start of the line being scanned
+            int position = 0;           // next byte to scan
+            int length = 0;             // bytes in the buffer
+            int lineInRecord = 0;
+            int noOfRecords = 0;
+            long blockLineNo = 1;       // line number of the start of the block
+            long lineNo = 1;            // line number of the line being scanned
+            Boolean endOfStream = false;
+            while(closed == false){
+                if(position == length){
+                    if(endOfStream)
+                        break;
+                    if(blockStart > 0){
+                        System.arraycopy(buffer, blockStart, buffer, 0, length - blockStart);
+                        length -= blockStart;
+                        position -= blockStart;
+                        lineStart -= blockStart;
+                        blockStart = 0;
+                    }
+                    if(length == buffer.length)
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    int bytesRead = isFQ.read(buffer, length, buffer.length - length);
+                    if(bytesRead < 0)
+                        endOfStream = true;
+                    else
+                        length += bytesRead;
+                    continue;
+                }
+                if(buffer[position++] != '\n')
+                    continue;
+                
+                if(lineInRecord > 0 || position - lineStart > 1 && (position - lineStart > 2 || buffer[lineStart] != '\r'))
+                    lineInRecord++;
+                lineStart = position;
+                lineNo++;
+                if(lineInRecord < 4)
+                    continue;
+                lineInRecord = 0;
+                if(++noOfRecords < BATCH_SIZE)
+                    continue;
+                
+                this.queueBlock(Arrays.copyOfRange(buffer, blockStart, position), blockLineNo);
+                blockStart = position;
+                blockLineNo = lineNo;
+                noOfRecords = 0;
+            }
+            if(closed == false && length > blockStart)
+                this.queueBlock(Arrays.copyOfRange(buffer, blockStart, length), blockLineNo);
+        }
+        catch(IOException | InterruptedException | RuntimeException ex){
+            this.setReadError(ex);
+        }
+        finally{
+            FutureTask<ArrayList<FastqRecord>> endOfFile = new FutureTask<>(new Callable<ArrayList<FastqRecord>>(){
+                @Override
+                public ArrayList<FastqRecord> call(){
+                    return END_OF_FILE;
+                }
+            });
+            endOfFile.run();
+            try{
+                putInQueue(batches, endOfFile);
+            }
+            catch(InterruptedException exIE){
+                // closed
+            }
+        }
+
+    }
+
+
+
+    /**
+     * parse a block of records on the parser pool
+     *
+     * @param block
+     * @param firstLineNo   line number of the start of the block, for errors
+     * @throws InterruptedException
+     */
+    private void queueBlock(final byte[] block, final long firstLineNo) throws InterruptedException{
+        putInQueue(batches, parserThreads.submit(new Callable<ArrayList<FastqRecord>>(){
+            @Override
+            public ArrayList<FastqRecord> call() throws IOException{
+                return parseRecords(block, firstLineNo);
+            }
+        }));
+    }
+
+
+
+    /**
+     * parse a block of whole records
+     *
+     * @param block
+     * @param firstLineNo
+     * @return the records
+     * @throws IOException if the block isn't valid FASTQ
+     */
+    private ArrayList<FastqRecord> parseRecords(byte[] block, long firstLineNo) throws IOException{
+
+        ArrayList<FastqRecord> records = new ArrayList<>(BATCH_SIZE);
+        String[] lines = new String[4];
+        int lineInRecord = 0;
+        long lineNo = firstLineNo - 1;
+        int lineStart = 0;
+        while(lineStart < block.length){
+            int lineEnd = lineStart;
+            while(lineEnd < block.length && block[lineEnd] != '\n')
+                lineEnd++;
+            int nextLine = lineEnd + 1;
+            if(lineEnd > lineStart && block[lineEnd - 1] == '\r')
+                lineEnd--;
+            lineNo++;
+            if(lineInRecord > 0 || lineEnd > lineStart){
+                lines[lineInRecord++] = new String(block, lineStart, lineEnd - lineStart, StandardCharsets.US_ASCII);
+                if(lineInRecord == 4){
+                    if(lines[0].charAt(0) != '@' || lines[2].startsWith("+") == false){
+                        throw new IOException("<" + fastqFile + "> is not valid FASTQ near line " + lineNo);
+                    }
+                    records.add(new FastqRecord(lines[0], lines[1], lines[3]));
+                    lineInRecord = 0;
+                }
+            }
+            lineStart = nextLine;
+        }
+        if(lineInRecord > 0){
+            throw new IOException("<" + fastqFile + "> is not valid FASTQ near line " + (lineNo + 4 - lineInRecord));
+        }
+        return records;
+
+    }
+
+
+
+    /**
+     * put an item in a bounded queue, giving up if the reader is closed
+     *
+     * @throws InterruptedException
+     */
+    private <T> void putInQueue(BlockingQueue<T> queue, T item) throws InterruptedException{
+        while(queue.offer(item, QUEUE_TIMEOUT, TimeUnit.MILLISECONDS) == false){
+            if(closed)
+                throw new InterruptedException("reader closed");
+        }
+    }
+
+
+
+    private void setReadError(Throwable error){
+        if(closed) return;
+        if(readError == null){
+            logger.error("error reading <" + fastqFile + ">: " + error);
+            readError = error;
+        }
+    }
+
+
+
+    /**
+     * @return the fastqFile
+     */
+    public String getFastqFile() {
+        return fastqFile;
+    }
+
+    /**
+     * @return the number of records returned so far
+     */
+    public long getNoOfRecords() {
+        return noOfRecords;
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+/**
+ * a single FASTQ record
+ *
+ * @author sr
+ */
+public class FastqRecord {
+
+    private final String                header;
+    private final String                sequence;
+    private final String                quality;
+
+
+
+    /**
+     *
+     * @param header    the header line, including the @
+     * @param sequence
+     * @param quality
+     */
+    public FastqRecord(String header, String sequence, String quality){
+        this.header = header;
+        this.sequence = sequence;
+        this.quality = quality;
+    }
+
+
+
+    /**
+     * @return the header line, including the @
+     */
+    public String getHeader() {
+        return header;
+    }
+
+    /**
+     * @return the sequence
+     */
+    public String getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the quality string
+     */
+    public String getQuality() {
+        return quality;
+    }
+
+}
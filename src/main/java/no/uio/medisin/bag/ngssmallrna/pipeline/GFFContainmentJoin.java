@@ -0,0 +1,213 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import no.uio.medisin.bag.core.GFFEntry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * finds every pair of (annotation entry, feature) where the annotation
+ * entry contains the feature, i.e. they are on the same chromosome and
+ * strand and entry start <= feature start and entry stop >= feature stop.
+ *
+ * Each chromosome and strand is joined with a sweep over both lists
+ * sorted by start: annotation entries become active when the sweep
+ * reaches their start and are dropped once the sweep passes their stop,
+ * so each feature is only compared with the entries that cover its start.
+ * Chromosomes are joined in parallel.
+ *
+ * The pairs are returned in the order of a nested loop over the
+ * annotation list and then the feature list.
+ *
+ * @author sr
+ */
+public class GFFContainmentJoin {
+
+    static Logger                       logger                      = LogManager.getLogger();
+
+    private final List<GFFEntry>        gffEntries;
+    private final List<GFFEntry>        features;
+    private final int                   noOfThreads;
+
+
+
+    /**
+     *
+     * @param gffEntries
+     * @param features
+     * @param noOfThreads
+     */
+    public GFFContainmentJoin(List<GFFEntry> gffEntries, List<GFFEntry> features, int noOfThreads){
+        this.gffEntries = gffEntries;
+        this.features = features;
+        this.noOfThreads = Math.max(1, noOfThreads);
+    }
+
+
+
+    /**
+     * run the join
+     *
+     * @return each pair as {annotation position, feature position}, in nested loop order
+     * @throws IOException
+     */
+    public ArrayList<int[]> join() throws IOException{
+
+        final HashMap<String, ArrayList<Integer>> gffGroups = groupByChromosomeAndStrand(gffEntries);
+        final HashMap<String, ArrayList<Integer>> featureGroups = groupByChromosomeAndStrand(features);
+
+        ArrayList<long[]> groupPairs = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(noOfThreads);
+        try{
+            ArrayList<Future<long[]>> groupResults = new ArrayList<>();
+            for(final Map.Entry<String, ArrayList<Integer>> gffGroup: gffGroups.entrySet()){
+                final ArrayList<Integer> featureGroup = featureGroups.get(gffGroup.getKey());
+                if(featureGroup == null)
+                    continue;
+                groupResults.add(pool.submit(new Callable<long[]>(){
+                    @Override
+                    public long[] call(){
+                        return sweep(gffGroup.getValue(), featureGroup);
+                    }
+                }));
+            }
+            for(Future<long[]> groupResult: groupResults){
+                groupPairs.add(groupResult.get());
+            }
+        }
+        catch(InterruptedException exIE){
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while joining features to annotation");
+        }
+        catch(ExecutionException exEx){
+            throw new IOException("error joining features to annotation", exEx.getCause());
+        }
+        finally{
+            pool.shutdownNow();
+        }
+
+        int noOfPairs = 0;
+        for(long[] pairs: groupPairs)
+            noOfPairs += pairs.length;
+        long[] allPairs = new long[noOfPairs];
+        int p = 0;
+        for(long[] pairs: groupPairs){
+            System.arraycopy(pairs, 0, allPairs, p, pairs.length);
+            p += pairs.length;
+        }
+        Arrays.sort(allPairs);
+
+        ArrayList<int[]> joined = new ArrayList<>(noOfPairs);
+        for(long pair: allPairs){
+            joined.add(new int[]{(int) (pair >>> 32), (int) pair});
+        }
+        logger.info("found " + joined.size() + " features contained in annotation entries");
+        return joined;
+
+    }
+
+
+
+    /**
+     * join one chromosome and strand
+     *
+     * @param gffGroup      positions in the annotation list
+     * @param featureGroup  positions in the feature list
+     * @return the pairs as annotation position << 32 | feature position
+     */
+    private long[] sweep(ArrayList<Integer> gffGroup, ArrayList<Integer> featureGroup){
+
+        int[] gffOrder = sortByStart(gffEntries, gffGroup);
+        int[] featureOrder = sortByStart(features, featureGroup);
+
+        /* active annotation entries, the one that ends first at the head */
+        PriorityQueue<long[]> active = new PriorityQueue<>(16, new Comparator<long[]>(){
+            @Override
+            public int compare(long[] a, long[] b){
+                return Long.compare(a[0], b[0]);
+            }
+        });
+
+        long[] pairs = new long[16];
+        int noOfPairs = 0;
+        int g = 0;
+        for(int f: featureOrder){
+            GFFEntry feature = features.get(f);
+            while(g < gffOrder.length && gffEntries.get(gffOrder[g]).getStart() <= feature.getStart()){
+                active.add(new long[]{gffEntries.get(gffOrder[g]).getStop(), gffOrder[g]});
+                g++;
+            }
+            while(active.isEmpty() == false && active.peek()[0] < feature.getStart()){
+                active.poll();
+            }
+            for(long[] gffEntry: active){
+                if(gffEntry[0] >= feature.getStop()){
+                    if(noOfPairs == pairs.length)
+                        pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                    pairs[noOfPairs++] = (gffEntry[1] << 32) | f;
+                }
+            }
+        }
+        return Arrays.copyOf(pairs, noOfPairs);
+
+    }
+
+
+
+    /**
+     * @param entries
+     * @return the positions in the list, grouped by chromosome and strand
+     */
+    private static HashMap<String, ArrayList<Integer>> groupByChromosomeAndStrand(List<GFFEntry> entries){
+
+        HashMap<String, ArrayList<Integer>> groups = new HashMap<>();
+        for(int e=0; e<entries.size(); e++){
+            GFFEntry gffEntry = entries.get(e);
+            String key = gffEntry.getSeqID() + "\t" + GFFIntervalIndex.getStrandKey(gffEntry.getStrand());
+            ArrayList<Integer> group = groups.get(key);
+            if(group == null){
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(e);
+        }
+        return groups;
+
+    }
+
+
+
+    /**
+     * @return the positions sorted by the start of their entry
+     */
+    private static int[] sortByStart(List<GFFEntry> entries, ArrayList<Integer> group){
+
+        long[] keys = new long[group.size()];
+        for(int i=0; i<keys.length; i++){
+            keys[i] = ((long) entries.get(group.get(i)).getStart() << 32) | group.get(i);
+        }
+        Arrays.sort(keys);
+        int[] order = new int[keys.length];
+        for(int i=0; i<keys.length; i++)
+            order[i] = (int) keys[i];
+        return order;
+
+    }
+
+}
@@ -0,0 +1,385 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import no.uio.medisin.bag.core.GFFEntry;
+import no.uio.medisin.bag.core.Strand;
+
+/**
+ * finds the GFF entries that contain, overlap or lie inside a region
+ * without scanning the whole annotation.
+ *
+ * The entries are grouped by type, chromosome and strand. The entries
+ * given to the constructor are sorted by start and stored as an implicit
+ * interval tree (each node also holds the largest end below it), so a
+ * lookup is logarithmic in the size of the group plus the number of
+ * entries that overlap the region. Entries added later with addEntry
+ * (e.g. features found while the reads are parsed) are kept in a sorted
+ * map and searched from the start of the longest added entry.
+ *
+ * If several entries match, the one that comes first in the entry list is
+ * returned, which is the entry a scan of the list would find.
+ * Coordinates are 1-based and inclusive, and chromosome names are
+ * compared exactly.
+ *
+ * Lookups can run on several threads, but addEntry must not run at the
+ * same time as anything else.
+ *
+ * @author sr
+ */
+public class GFFIntervalIndex {
+
+    private static final int            BRUTE_FORCE_LEVEL           = 3;        // scan subtrees this small
+    private static final int            STACK_SIZE                  = 64;
+
+    private final ArrayList<GFFEntry>   entries                     = new ArrayList<>();
+
+    /* type -> chromosome -> strand -> entries */
+    private final HashMap<String, HashMap<String, HashMap<String, Intervals>>>  intervals   = new HashMap<>();
+
+
+
+    /**
+     * the entries of one type on one chromosome and strand
+     */
+    private static class Intervals{
+        int[]                           starts                      = new int[0];
+        int[]                           ends                        = new int[0];
+        int[]                           maxEnds                     = new int[0];   // largest end in the subtree
+        int[]                           entryIndexes                = new int[0];   // position in the entry list
+        int                             maxLevel                    = -1;
+
+        /* entries added after the tree was built, keyed by start << 32 | position */
+        final TreeMap<Long, Integer>    added                       = new TreeMap<>();
+        int                             longestAdded                = 0;
+    }
+
+
+
+    /**
+     *
+     * @param gffEntries    the entries, in the order a scan would check them
+     */
+    public GFFIntervalIndex(List<GFFEntry> gffEntries){
+
+        HashMap<String, HashMap<String, HashMap<String, ArrayList<Integer>>>> groups = new HashMap<>();
+        for(GFFEntry gffEntry: gffEntries){
+            int e = entries.size();
+            entries.add(gffEntry);
+            HashMap<String, HashMap<String, ArrayList<Integer>>> chromosomes = groups.get(gffEntry.getType());
+            if(chromosomes == null){
+                chromosomes = new HashMap<>();
+                groups.put(gffEntry.getType(), chromosomes);
+            }
+            HashMap<String, ArrayList<Integer>> strands = chromosomes.get(gffEntry.getSeqID());
+            if(strands == null){
+                strands = new HashMap<>();
+                chromosomes.put(gffEntry.getSeqID(), strands);
+            }
+            String strand = getStrandKey(gffEntry.getStrand());
+            ArrayList<Integer> group = strands.get(strand);
+            if(group == null){
+                group = new ArrayList<>();
+                strands.put(strand, group);
+            }
+            group.add(e);
+        }
+
+        for(Map.Entry<String, HashMap<String, HashMap<String, ArrayList<Integer>>>> type: groups.entrySet()){
+            for(Map.Entry<String, HashMap<String, ArrayList<Integer>>> chromosome: type.getValue().entrySet()){
+                for(Map.Entry<String, ArrayList<Integer>> strand: chromosome.getValue().entrySet()){
+                    Intervals strandIntervals = this.getIntervals(type.getKey(), chromosome.getKey(), strand.getKey(), true);
+                    this.buildIntervals(strandIntervals, strand.getValue());
+                }
+            }
+        }
+
+    }
+
+
+
+    /**
+     * sort a group of entries by start and work out the largest end under
+     * each node of the implicit tree. Node i is at the level given by the
+     * number of trailing 1 bits in i; its children are i -/+ 2^(level-1)
+     *
+     * @param strandIntervals
+     * @param group
+     */
+    private void buildIntervals(Intervals strandIntervals, ArrayList<Integer> group){
+
+        int n = group.size();
+        long[] keys = new long[n];
+        for(int i=0; i<n; i++){
+            keys[i] = ((long) entries.get(group.get(i)).getStart() << 32) | group.get(i);
+        }
+        Arrays.sort(keys);
+
+        strandIntervals.starts = new int[n];
+        strandIntervals.ends = new int[n];
+        strandIntervals.maxEnds = new int[n];
+        strandIntervals.entryIndexes = new int[n];
+        for(int i=0; i<n; i++){
+            int e = (int) keys[i];
+            strandIntervals.starts[i] = (int) (keys[i] >> 32);
+            strandIntervals.ends[i] = entries.get(e).getStop();
+            strandIntervals.entryIndexes[i] = e;
+        }
+        if(n == 0)
+            return;
+
+        int[] ends = strandIntervals.ends;
+        int[] maxEnds = strandIntervals.maxEnds;
+        long lastI = 0;
+        int last = 0;
+        for(int i=0; i<n; i+=2){
+            lastI = i;
+            last = maxEnds[i] = ends[i];
+        }
+        int k;
+        for(k=1; (1L << k) <= n; k++){
+            long x = 1L << (k - 1);
+            for(long i=(x << 1) - 1; i<n; i+=x << 2){
+                int endLeft = maxEnds[(int) (i - x)];
+                int endRight = i + x < n ? maxEnds[(int) (i + x)] : last;
+                maxEnds[(int) i] = Math.max(ends[(int) i], Math.max(endLeft, endRight));
+            }
+            // move to the parent of the last node, which may be past the end of the array
+            lastI = ((lastI >> k) & 1) != 0 ? lastI - x : lastI + x;
+            if(lastI < n)
+                last = Math.max(last, maxEnds[(int) lastI]);
+        }
+        strandIntervals.maxLevel = k - 1;
+
+    }
+
+
+
+    /**
+     * add an entry after the index was built. It comes after all the
+     * other entries in the list
+     *
+     * @param gffEntry
+     */
+    public void addEntry(GFFEntry gffEntry){
+
+        int e = entries.size();
+        entries.add(gffEntry);
+        Intervals strandIntervals = this.getIntervals(gffEntry.getType(), gffEntry.getSeqID(), getStrandKey(gffEntry.getStrand()), true);
+        strandIntervals.added.put(((long) gffEntry.getStart() << 32) | e, e);
+        strandIntervals.longestAdded = Math.max(strandIntervals.longestAdded, gffEntry.getStop() - gffEntry.getStart());
+
+    }
+
+
+
+    /**
+     * find an entry of this type that contains the whole region
+     *
+     * @param featureType
+     * @param chr
+     * @param strand
+     * @param start
+     * @param stop
+     * @return the first entry with start <= region start and stop >= region stop, or null
+     */
+    public GFFEntry findFeatureContainingRegion(String featureType, String chr, Strand strand, int start, int stop){
+
+        Intervals strandIntervals = this.getIntervals(featureType, chr, getStrandKey(strand), false);
+        if(strandIntervals == null)
+            return null;
+        // an entry overlapping [stop, start] has start <= region start and stop >= region stop
+        int best = this.search(strandIntervals, stop, start, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        return best == Integer.MAX_VALUE ? null : entries.get(best);
+
+    }
+
+
+
+    /**
+     * find an entry of this type that overlaps the region, allowing bleed
+     * either side
+     *
+     * @param featureType
+     * @param chr
+     * @param strand
+     * @param start
+     * @param stop
+     * @param bleed
+     * @return the first entry that overlaps [start - bleed, stop + bleed], or null
+     */
+    public GFFEntry findFeatureOverlappingRegion(String featureType, String chr, Strand strand, int start, int stop, int bleed){
+
+        Intervals strandIntervals = this.getIntervals(featureType, chr, getStrandKey(strand), false);
+        if(strandIntervals == null)
+            return null;
+        int best = this.search(strandIntervals, start - bleed, stop + bleed, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        return best == Integer.MAX_VALUE ? null : entries.get(best);
+
+    }
+
+
+
+    /**
+     * is there an entry of any type inside the region, allowing bleed
+     * either side
+     *
+     * @param start
+     * @param stop
+     * @param strand
+     * @param chr
+     * @param bleed
+     * @return true if an entry lies within [start - bleed, stop + bleed]
+     */
+    public Boolean doesRegionContainFeature(int start, int stop, Strand strand, String chr, int bleed){
+
+        String strandKey = getStrandKey(strand);
+        for(String featureType: intervals.keySet()){
+            Intervals strandIntervals = this.getIntervals(featureType, chr, strandKey, false);
+            if(strandIntervals == null)
+                continue;
+            if(this.search(strandIntervals, start - bleed, stop + bleed, start - bleed, stop + bleed) != Integer.MAX_VALUE)
+                return true;
+        }
+        return false;
+
+    }
+
+
+
+    /**
+     * find the entries that overlap [queryStart, queryStop] and lie within
+     * [minStart, maxStop]
+     *
+     * @return the smallest list position of a matching entry, or Integer.MAX_VALUE
+     */
+    private int search(Intervals strandIntervals, int queryStart, int queryStop, int minStart, int maxStop){
+
+        int best = Integer.MAX_VALUE;
+        int[] starts = strandIntervals.starts;
+        int[] ends = strandIntervals.ends;
+        int n = starts.length;
+
+        if(n > 0){
+            long[] stackNode = new long[STACK_SIZE];
+            int[] stackLevel = new int[STACK_SIZE];
+            boolean[] stackLeftDone = new boolean[STACK_SIZE];
+            int t = 0;
+            stackNode[t] = (1L << strandIntervals.maxLevel) - 1;
+            stackLevel[t] = strandIntervals.maxLevel;
+            stackLeftDone[t++] = false;
+            while(t > 0){
+                t--;
+                long node = stackNode[t];
+                int level = stackLevel[t];
+                if(level <= BRUTE_FORCE_LEVEL){
+                    long first = node >> level << level;
+                    long end = Math.min(first + (1L << (level + 1)) - 1, n);
+                    for(int i=(int) first; i<end && starts[i]<=queryStop; i++){
+                        if(ends[i] >= queryStart && starts[i] >= minStart && ends[i] <= maxStop)
+                            best = Math.min(best, strandIntervals.entryIndexes[i]);
+                    }
+                }
+                else if(stackLeftDone[t] == false){
+                    long left = node - (1L << (level - 1));
+                    stackLeftDone[t++] = true;
+                    if(left >= n || strandIntervals.maxEnds[(int) left] >= queryStart){
+                        stackNode[t] = left;
+                        stackLevel[t] = level - 1;
+                        stackLeftDone[t++] = false;
+                    }
+                }
+                else if(node < n && starts[(int) node] <= queryStop){
+                    int i = (int) node;
+                    if(ends[i] >= queryStart && starts[i] >= minStart && ends[i] <= maxStop)
+                        best = Math.min(best, strandIntervals.entryIndexes[i]);
+                    stackNode[t] = node + (1L << (level - 1));
+                    stackLevel[t] = level - 1;
+                    stackLeftDone[t++] = false;
+                }
+            }
+        }
+
+        if(strandIntervals.added.isEmpty() == false){
+            long fromKey = (long) (queryStart - strandIntervals.longestAdded) << 32;
+            long toKey = ((long) queryStop << 32) | 0xffffffffL;
+            for(int e: strandIntervals.added.subMap(fromKey, true, toKey, true).values()){
+                GFFEntry gffEntry = entries.get(e);
+                if(gffEntry.getStop() >= queryStart && gffEntry.getStart() >= minStart && gffEntry.getStop() <= maxStop)
+                    best = Math.min(best, e);
+            }
+        }
+        return best;
+
+    }
+
+
+
+    /**
+     *
+     * @param featureType
+     * @param chr
+     * @param strand
+     * @param create    add the group if it isn't there
+     * @return the group, or null if it isn't there and create is false
+     */
+    private Intervals getIntervals(String featureType, String chr, String strand, Boolean create){
+
+        HashMap<String, HashMap<String, Intervals>> chromosomes = intervals.get(featureType);
+        if(chromosomes == null){
+            if(create == false) return null;
+            chromosomes = new HashMap<>();
+            intervals.put(featureType, chromosomes);
+        }
+        HashMap<String, Intervals> strands = chromosomes.get(chr);
+        if(strands == null){
+            if(create == false) return null;
+            strands = new HashMap<>();
+            chromosomes.put(chr, strands);
+        }
+        Intervals strandIntervals = strands.get(strand);
+        if(strandIntervals == null && create){
+            strandIntervals = new Intervals();
+            strands.put(strand, strandIntervals);
+        }
+        return strandIntervals;
+
+    }
+
+
+
+    /**
+     * the strand can be given as a Strand, a char or a String, and as
+     * +/- or PLUS/MINUS
+     *
+     * @param strand
+     * @return "+", "-" or "."
+     */
+    static String getStrandKey(Object strand){
+        String strandString = String.valueOf(strand).trim();
+        if(strandString.equals("+") || strandString.equalsIgnoreCase(Strand.PLUS.name()))
+            return "+";
+        if(strandString.equals("-") || strandString.equalsIgnoreCase(Strand.MINUS.name()))
+            return "-";
+        return ".";
+    }
+
+
+
+    /**
+     * @return the number of entries in the index
+     */
+    public int getNoOfEntries() {
+        return entries.size();
+    }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import no.uio.medisin.bag.core.Strand;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * random access to a genome FASTA file without reading it into memory.
+ *
+ * The file is indexed with a samtools style .fai index
+ *
+ *   name    length    offset    bases per line    bytes per line
+ *
+ * which is read from genome.fa.fai if it exists (iGenomes ships one) and
+ * otherwise built with one pass over the file and written next to it.
+ * A chromosome is memory mapped the first time a sequence is asked for
+ * from it, so only the pages that are read are loaded, and they are
+ * shared between threads and left to the OS to page out.
+ *
+ * Coordinates are 1-based and inclusive, as in SAM and GFF. The sequence
+ * is returned as it is in the file (no case change), and it is not
+ * complemented for the minus strand.
+ *
+ * @author sr
+ */
+public class IndexedGenomeSeq {
+
+    static Logger                       logger                      = LogManager.getLogger();
+
+    public static final String          INDEX_EXTENSION             = ".fai";
+
+    private static final long           SEGMENT_SIZE                = 1L << 30;     // a mapped region has to be < 2GB
+
+    private final String                fastaFile;
+    private final LinkedHashMap<String, Chromosome>  chromosomes    = new LinkedHashMap<>();
+
+
+
+    /**
+     * one .fai entry
+     */
+    private static class Chromosome{
+        final String                    name;
+        final long                      length;
+        final long                      offset;
+        final int                       lineBases;
+        final int                       lineWidth;
+        MappedByteBuffer[]              segments                    = null;
+
+        Chromosome(String name, long length, long offset, int lineBases, int lineWidth){
+            this.name = name;
+            this.length = length;
+            this.offset = offset;
+            this.lineBases = lineBases;
+            this.lineWidth = lineWidth;
+        }
+
+        /**
+         * @return the number of bytes the sequence takes up in the file
+         */
+        long getNoOfBytes(){
+            if(length == 0) return 0;
+            long fullLines = (length - 1) / lineBases;
+            return fullLines * lineWidth + (length - fullLines * lineBases);
+        }
+    }
+
+
+
+    /**
+     * read or build the index. No sequence is read until it is asked for
+     *
+     * @param fastaFile
+     * @throws IOException
+     */
+    public IndexedGenomeSeq(String fastaFile) throws IOException{
+
+        this.fastaFile = fastaFile;
+        File indexFile = new File(fastaFile + INDEX_EXTENSION);
+        if(indexFile.exists() && indexFile.lastModified() >= new File(fastaFile).lastModified()){
+            this.readIndex(indexFile);
+            logger.info("read index <" + indexFile + "> for " + chromosomes.size() + " sequences");
+            return;
+        }
+
+        logger.info("indexing <" + fastaFile + ">");
+        this.buildIndex();
+        try{
+            this.writeIndex(indexFile);
+            logger.info("wrote index <" + indexFile + ">");
+        }
+        catch(IOException exIO){
+            logger.warn("couldn't write index <" + indexFile + ">, the genome will be indexed again next time: " + exIO);
+        }
+
+    }
+
+
+
+    /**
+     * @param indexFile
+     * @throws IOException
+     */
+    private void readIndex(File indexFile) throws IOException{
+
+        String indexLine = "";
+        try(BufferedReader brFai = new BufferedReader(new FileReader(indexFile))){
+            while((indexLine = brFai.readLine()) != null){
+                if(indexLine.trim().isEmpty()) continue;
+                String[] fields = indexLine.split("\t");
+                chromosomes.put(fields[0], new Chromosome(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        Integer.parseInt(fields[3]), Integer.parseInt(fields[4])));
+            }
+        }
+        catch(NumberFormatException | ArrayIndexOutOfBoundsException exFmt){
+            logger.error("error parsing line <" + indexLine + "> in index <" + indexFile + ">");
+            throw new IOException("error parsing line <" + indexLine + "> in index <" + indexFile + ">");
+        }
+
+    }
+
+
+
+    /**
+     * one pass over the FASTA file, recording where each sequence starts
+     * and how its lines are laid out. Every line of a sequence except the
+     * last must be the same length
+     *
+     * @throws IOException if the lines of a sequence aren't the same length
+     */
+    private void buildIndex() throws IOException{
+
+        try(InputStream in = new BufferedInputStream(new FileInputStream(fastaFile), 1 << 20)){
+            long position = 0;
+            String name = null;
+            long length = 0;
+            long offset = 0;
+            int lineBases = -1;
+            int lineWidth = -1;
+            Boolean shortLineSeen = false;
+
+            StringBuilder header = new StringBuilder();
+            int lineStartBases;
+            int c = in.read();
+            while(c != -1){
+                long lineStart = position;
+                if(c == '>'){
+                    if(name != null)
+                        chromosomes.put(name, new Chromosome(name, length, offset, Math.max(lineBases, 0), Math.max(lineWidth, 0)));
+                    header.setLength(0);
+                    while((c = in.read()) != -1 && c != '\n'){
+                        position++;
+                        header.append((char) c);
+                    }
+                    position += c == -1 ? 1 : 2;
+                    name = header.toString().trim().split("\\s+")[0];
+                    length = 0;
+                    offset = position;
+                    lineBases = -1;
+                    lineWidth = -1;
+                    shortLineSeen = false;
+                    c = in.read();
+                    continue;
+                }
+
+                lineStartBases = 0;
+                int lineBytes = 0;
+                while(c != -1 && c != '\n'){
+                    if(c != '\r') lineStartBases++;
+                    lineBytes++;
+                    c = in.read();
+                }
+                if(c == '\n'){
+                    lineBytes++;
+                    c = in.read();
+                }
+                position = lineStart + lineBytes;
+
+                if(name == null || lineStartBases == 0) continue;
+                if(shortLineSeen){
+                    logger.error("sequence <" + name + "> in <" + fastaFile + "> has lines of different lengths and can't be indexed");
+                    throw new IOException("sequence <" + name + "> in <" + fastaFile + "> has lines of different lengths and can't be indexed");
+                }
+                if(lineBases == -1){
+                    lineBases = lineStartBases;
+                    lineWidth = lineBytes;
+                }
+                else if(lineStartBases != lineBases || lineBytes != lineWidth){
+                    if(lineStartBases > lineBases){
+                        logger.error("sequence <" + name + "> in <" + fastaFile + "> has lines of different lengths and can't be indexed");
+                        throw new IOException("sequence <" + name + "> in <" + fastaFile + "> has lines of different lengths and can't be indexed");
+                    }
+                    shortLineSeen = true;
+                }
+                length += lineStartBases;
+            }
+            if(name != null)
+                chromosomes.put(name, new Chromosome(name, length, offset, Math.max(lineBases, 0), Math.max(lineWidth, 0)));
+        }
+
+    }
+
+
+
+    /**
+     * @param indexFile
+     * @throws IOException
+     */
+    private void writeIndex(File indexFile) throws IOException{
+
+        File tmpIndex = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getAbsoluteFile().getParentFile());
+        try(BufferedWriter bwFai = new BufferedWriter(new FileWriter(tmpIndex))){
+            for(Chromosome chromosome: chromosomes.values()){
+                bwFai.write(chromosome.name + "\t" + chromosome.length + "\t" + chromosome.offset + "\t"
+                        + chromosome.lineBases + "\t" + chromosome.lineWidth + "\n");
+            }
+        }
+        if(tmpIndex.renameTo(indexFile) == false){
+            tmpIndex.delete();
+            throw new IOException("couldn't rename <" + tmpIndex + "> to <" + indexFile + ">");
+        }
+
+    }
+
+
+
+    /**
+     * get part of a chromosome
+     *
+     * @param chr
+     * @param strand    not used, the sequence is always from the + strand
+     * @param start     1-based
+     * @param stop      1-based, inclusive
+     * @return the sequence
+     * @throws IOException if the chromosome can't be mapped
+     * @throws IllegalArgumentException if the chromosome isn't in the genome or the region is outside it
+     */
+    public String getSubSeq(String chr, Strand strand, int start, int stop) throws IOException{
+
+        Chromosome chromosome = chromosomes.get(chr);
+        if(chromosome == null){
+            logger.error("chromosome <" + chr + "> is not in <" + fastaFile + ">");
+            throw new IllegalArgumentException("chromosome <" + chr + "> is not in <" + fastaFile + ">");
+        }
+        if(start < 1 || stop > chromosome.length || stop < start - 1){
+            throw new IllegalArgumentException("region " + chr + ":" + start + "-" + stop + " is outside <" + chr
+                    + "> (length " + chromosome.length + ")");
+        }
+
+        MappedByteBuffer[] segments = this.getSegments(chromosome);
+        byte[] bases = new byte[stop - start + 1];
+        for(int b=0; b<bases.length; b++){
+            long base = (long) start - 1 + b;
+            long position = (base / chromosome.lineBases) * chromosome.lineWidth + base % chromosome.lineBases;
+            bases[b] = segments[(int) (position / SEGMENT_SIZE)].get((int) (position % SEGMENT_SIZE));
+        }
+        return new String(bases, StandardCharsets.ISO_8859_1);
+
+    }
+
+
+
+    /**
+     * map a chromosome the first time it is used
+     *
+     * @param chromosome
+     * @return the mapped segments
+     * @throws IOException
+     */
+    private MappedByteBuffer[] getSegments(Chromosome chromosome) throws IOException{
+
+        synchronized(chromosome){
+            if(chromosome.segments != null)
+                return chromosome.segments;
+
+            long noOfBytes = chromosome.getNoOfBytes();
+            ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+            try(FileChannel fastaChannel = new RandomAccessFile(fastaFile, "r").getChannel()){
+                for(long segmentStart=0; segmentStart<noOfBytes; segmentStart+=SEGMENT_SIZE){
+                    segments.add(fastaChannel.map(FileChannel.MapMode.READ_ONLY, chromosome.offset + segmentStart,
+                            Math.min(SEGMENT_SIZE, noOfBytes - segmentStart)));
+                }
+            }
+            logger.debug("mapped <" + chromosome.name + "> (" + noOfBytes + " bytes)");
+            chromosome.segments = segments.toArray(new MappedByteBuffer[segments.size()]);
+            return chromosome.segments;
+        }
+
+    }
+
+
+
+    /**
+     * @param chr
+     * @return the length of the chromosome, -1 if it isn't in the genome
+     */
+    public long getChrLength(String chr){
+        Chromosome chromosome = chromosomes.get(chr);
+        return chromosome == null ? -1 : chromosome.length;
+    }
+
+
+
+    /**
+     * @return the number of bases in the genome
+     */
+    public long getNoOfBases(){
+        long noOfBases = 0;
+        for(Chromosome chromosome: chromosomes.values())
+            noOfBases += chromosome.length;
+        return noOfBases;
+    }
+
+
+
+    /**
+     * @return the number of chromosomes
+     */
+    public int getNoOfChr(){
+        return chromosomes.size();
+    }
+
+}
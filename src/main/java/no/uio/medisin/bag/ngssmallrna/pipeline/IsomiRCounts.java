@@ -0,0 +1,213 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import no.uio.medisin.bag.core.MiRNAFeature;
+
+/**
+ * counts the reads that hit each miRNA, grouped into isomiRs.
+ *
+ * A read is reduced to its isomiR: the 5' and 3' offsets from the miRBase
+ * entry and the MD string. Reads with the same isomiR are added to one
+ * count, so memory depends on the number of distinct isomiRs in a sample
+ * rather than on the number of reads. The sequence isn't part of the key,
+ * the isomiR keeps the sequence of the first read seen.
+ *
+ * miRNAs and isomiRs are kept in the order they were first seen. When the
+ * counts from the chunks of a SAM file are merged in file order, the order
+ * is the same as reading the file in one pass.
+ *
+ * The isomiR reports are still written by MiRNAFeature, so getMiRNAFeature
+ * builds a feature with one addIsomiR per isomiR, named
+ * <first read>-<total count>.
+ *
+ * @author sr
+ */
+public class IsomiRCounts {
+
+    /* MIMAT ID -> counts for that miRNA */
+    private final LinkedHashMap<String, MiRNACounts>       miRNACounts         = new LinkedHashMap<>();
+
+
+
+    /**
+     * the isomiRs of one miRNA
+     */
+    private static class MiRNACounts{
+        final MiRNAFeature                                  miRBaseEntry;
+        int                                                 totalCounts         = 0;
+        final LinkedHashMap<IsomiR, IsomiR>                 isomiRs             = new LinkedHashMap<>();
+
+        MiRNACounts(MiRNAFeature miRBaseEntry){
+            this.miRBaseEntry = miRBaseEntry;
+        }
+    }
+
+
+
+    /**
+     * one isomiR. equals and hashCode only use the offsets and MD string
+     */
+    private static class IsomiR{
+        final int                                           offset5;
+        final int                                           offset3;
+        final String                                        mdString;
+        final String                                        sequence;       // the first read's sequence
+        final String                                        readID;         // the first read, without its count
+        int                                                 count           = 0;
+
+        IsomiR(int offset5, int offset3, String mdString, String sequence, String readID){
+            this.offset5 = offset5;
+            this.offset3 = offset3;
+            this.mdString = mdString;
+            this.sequence = sequence;
+            this.readID = readID;
+        }
+
+        @Override
+        public int hashCode(){
+            int hash = 31 * offset5 + offset3;
+            return 31 * hash + mdString.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object object){
+            if(object instanceof IsomiR == false)
+                return false;
+            IsomiR other = (IsomiR) object;
+            return offset5 == other.offset5 && offset3 == other.offset3
+                    && mdString.equals(other.mdString);
+        }
+    }
+
+
+
+    /**
+     * add a read that hits a miRBase entry
+     *
+     * @param miRBaseEntry
+     * @param readName      name-count, as written by the collapse step
+     * @param readCount
+     * @param startPos
+     * @param endPos
+     * @param mdString
+     * @param sequence
+     */
+    public void add(MiRNAFeature miRBaseEntry, String readName, int readCount, int startPos, int endPos, String mdString, String sequence){
+
+        MiRNACounts counts = miRNACounts.get(miRBaseEntry.getMimatID());
+        if(counts == null){
+            counts = new MiRNACounts(miRBaseEntry);
+            miRNACounts.put(miRBaseEntry.getMimatID(), counts);
+        }
+
+        int dash = readName.lastIndexOf('-');
+        IsomiR read = new IsomiR(startPos - miRBaseEntry.getStartPos(), endPos - miRBaseEntry.getEndPos(),
+                mdString, sequence, dash < 0 ? readName : readName.substring(0, dash));
+        IsomiR isomiR = counts.isomiRs.get(read);
+        if(isomiR == null){
+            isomiR = read;
+            counts.isomiRs.put(isomiR, isomiR);
+        }
+        isomiR.count += readCount;
+        counts.totalCounts += readCount;
+
+    }
+
+
+
+    /**
+     * add the counts from a later part of the file
+     *
+     * @param other
+     */
+    public void merge(IsomiRCounts other){
+
+        for(Map.Entry<String, MiRNACounts> otherEntry: other.miRNACounts.entrySet()){
+            MiRNACounts otherCounts = otherEntry.getValue();
+            MiRNACounts counts = miRNACounts.get(otherEntry.getKey());
+            if(counts == null){
+                miRNACounts.put(otherEntry.getKey(), otherCounts);
+                continue;
+            }
+            for(IsomiR otherIsomiR: otherCounts.isomiRs.values()){
+                IsomiR isomiR = counts.isomiRs.get(otherIsomiR);
+                if(isomiR == null)
+                    counts.isomiRs.put(otherIsomiR, otherIsomiR);
+                else
+                    isomiR.count += otherIsomiR.count;
+            }
+            counts.totalCounts += otherCounts.totalCounts;
+        }
+
+    }
+
+
+
+    /**
+     *
+     * @param mimatID
+     * @return the number of reads that hit this miRNA, 0 if there were none
+     */
+    public int getTotalCounts(String mimatID){
+        MiRNACounts counts = miRNACounts.get(mimatID);
+        return counts == null ? 0 : counts.totalCounts;
+    }
+
+
+
+    /**
+     *
+     * @return the MIMAT IDs of the miRNAs that were hit, in the order they were first hit
+     */
+    public ArrayList<String> getMimatIDs(){
+        return new ArrayList<>(miRNACounts.keySet());
+    }
+
+
+
+    /**
+     * build a MiRNAFeature holding this miRNA's isomiRs, so the isomiR
+     * reports can be written
+     *
+     * @param mimatID
+     * @return the feature, or null if the miRNA wasn't hit
+     */
+    public MiRNAFeature getMiRNAFeature(String mimatID){
+
+        MiRNACounts counts = miRNACounts.get(mimatID);
+        if(counts == null)
+            return null;
+
+        MiRNAFeature miRNAFeature = new MiRNAFeature(counts.miRBaseEntry);
+        int miRStart = counts.miRBaseEntry.getStartPos();
+        int miREnd = counts.miRBaseEntry.getEndPos();
+        for(IsomiR isomiR: counts.isomiRs.values()){
+            int startPos = miRStart + isomiR.offset5;
+            int endPos = miREnd + isomiR.offset3;
+            miRNAFeature.addIsomiR(isomiR.readID + "-" + isomiR.count, startPos, String.valueOf(endPos - startPos),
+                    isomiR.mdString, isomiR.sequence);
+        }
+        return miRNAFeature;
+
+    }
+
+
+
+    /**
+     * @return the number of distinct isomiRs
+     */
+    public int getNoOfIsomiRs(){
+        int noOfIsomiRs = 0;
+        for(MiRNACounts counts: miRNACounts.values())
+            noOfIsomiRs += counts.isomiRs.size();
+        return noOfIsomiRs;
+    }
+
+}
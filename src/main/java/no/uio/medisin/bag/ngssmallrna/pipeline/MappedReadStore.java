@@ -0,0 +1,565 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import no.uio.medisin.bag.core.MappedRead;
+import no.uio.medisin.bag.core.Strand;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * holds mapped reads as columns of ints rather than as MappedRead objects,
+ * and returns them sorted by chromosome, strand, start, end and count.
+ *
+ * Chromosome names are stored once and each read holds an ID for its
+ * chromosome packed with the strand, so a read takes 16 bytes. Reads are
+ * sorted with an LSD radix sort on an index array, one column at a time;
+ * byte positions that are the same for every read are skipped.
+ * Chromosomes are ordered by name.
+ *
+ * If a memory budget is set and the reads don't fit in it, the reads
+ * collected so far are sorted and written to a run in the scratch folder,
+ * and the sorted reader merges the runs with the reads still in memory.
+ * Call clear() when the reads are no longer needed to remove the runs.
+ *
+ * @author sr
+ */
+public class MappedReadStore {
+
+    static Logger                       logger                      = LogManager.getLogger();
+
+    private static final int            RECORD_SIZE                 = 16;       // bytes per read in the columns
+    private static final int            SORT_SIZE                   = 12;       // extra bytes per read while sorting
+    private static final int            RUN_BUFFER_SIZE             = 256 * 1024;
+    private static final int            INITIAL_CAPACITY            = 1024;
+
+    private static final int            STRAND_PLUS                 = 0;
+    private static final int            STRAND_MINUS                = 1;
+    private static final int            STRAND_UNKNOWN              = 2;
+
+    private final HashMap<String, Integer>  chrIDs                  = new HashMap<>();
+    private final ArrayList<String>     chrNames                    = new ArrayList<>();
+
+    private int[]                       chrStrands                  = new int[INITIAL_CAPACITY];    // chromosome ID << 2 | strand
+    private int[]                       starts                      = new int[INITIAL_CAPACITY];
+    private int[]                       ends                        = new int[INITIAL_CAPACITY];
+    private int[]                       counts                      = new int[INITIAL_CAPACITY];
+    private int                         size                        = 0;
+
+    private long                        memoryBudget                = 0;        // bytes, 0 is no limit
+    private String                      scratchFolder               = System.getProperty("java.io.tmpdir");
+    private String                      runName                     = "reads";
+    private final ArrayList<File>       runs                        = new ArrayList<>();
+    private long                        noOfReads                   = 0;
+
+
+
+    /**
+     * add a read
+     *
+     * @param chr
+     * @param strand
+     * @param start
+     * @param end
+     * @param count
+     * @throws IOException if the reads had to be written to a run and it failed
+     */
+    public void add(String chr, Strand strand, int start, int end, int count) throws IOException{
+        this.add(this.getChrID(chr), getStrandCode(strand), start, end, count);
+    }
+
+
+
+    /**
+     * add the reads from another store, e.g. one filled from a chunk of a
+     * SAM file
+     *
+     * @param other
+     * @throws IOException
+     */
+    public void addAll(MappedReadStore other) throws IOException{
+
+        if(other.runs.isEmpty() == false){
+            throw new IllegalArgumentException("can't add a store that has been written to runs");
+        }
+        int[] otherChrIDs = new int[other.chrNames.size()];
+        for(int c=0; c<otherChrIDs.length; c++)
+            otherChrIDs[c] = this.getChrID(other.chrNames.get(c));
+        for(int r=0; r<other.size; r++){
+            this.add(otherChrIDs[other.chrStrands[r] >>> 2], other.chrStrands[r] & 3, other.starts[r], other.ends[r], other.counts[r]);
+        }
+
+    }
+
+
+
+    /**
+     * @throws IOException
+     */
+    private void add(int chrID, int strandCode, int start, int end, int count) throws IOException{
+
+        if(size == starts.length){
+            if(memoryBudget > 0 && (long) (RECORD_SIZE + SORT_SIZE) * (size + 1) > memoryBudget && size > 0){
+                this.spill();
+            }
+            else{
+                int capacity = size * 2;
+                if(memoryBudget > 0)
+                    capacity = (int) Math.max(size + 1, Math.min(capacity, memoryBudget / (RECORD_SIZE + SORT_SIZE)));
+                chrStrands = Arrays.copyOf(chrStrands, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+            }
+        }
+        chrStrands[size] = chrID << 2 | strandCode;
+        starts[size] = start;
+        ends[size] = end;
+        counts[size] = count;
+        size++;
+        noOfReads++;
+
+    }
+
+
+
+    /**
+     * sort the reads in memory, write them to a new run and empty the columns
+     *
+     * @throws IOException
+     */
+    private void spill() throws IOException{
+
+        File folder = new File(scratchFolder);
+        if(folder.exists() == false && folder.mkdirs() == false){
+            logger.error("couldn't create scratch folder <" + scratchFolder + ">");
+            throw new IOException("couldn't create scratch folder <" + scratchFolder + ">");
+        }
+        File runFile = File.createTempFile(runName + ".run" + (runs.size() + 1) + ".", ".tmp", folder);
+        runs.add(runFile);
+        logger.info("memory budget of " + memoryBudget / (1024 * 1024) + "MB reached, writing "
+                + size + " reads to <" + runFile + ">");
+
+        int[] order = this.sortOrder();
+        try(DataOutputStream dosRun = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), RUN_BUFFER_SIZE))){
+            for(int r: order){
+                dosRun.writeInt(chrStrands[r]);
+                dosRun.writeInt(starts[r]);
+                dosRun.writeInt(ends[r]);
+                dosRun.writeInt(counts[r]);
+            }
+        }
+        size = 0;
+
+    }
+
+
+
+    /**
+     * radix sort the reads in memory
+     *
+     * @return the read positions in sorted order
+     */
+    private int[] sortOrder(){
+
+        int[] chrRanks = this.getChrRanks();
+        int[] order = new int[size];
+        for(int r=0; r<size; r++)
+            order[r] = r;
+        int[] buffer = new int[size];
+        int[] keys = new int[size];
+        int[] histogram = new int[256];
+
+        /* least significant column first: count, end, start, chromosome and strand */
+        for(int column=0; column<4; column++){
+            for(int r=0; r<size; r++){
+                switch(column){
+                    case 0:  keys[r] = counts[r] ^ Integer.MIN_VALUE; break;
+                    case 1:  keys[r] = ends[r] ^ Integer.MIN_VALUE; break;
+                    case 2:  keys[r] = starts[r] ^ Integer.MIN_VALUE; break;
+                    default: keys[r] = chrRanks[chrStrands[r] >>> 2] << 2 | (chrStrands[r] & 3); break;
+                }
+            }
+            for(int shift=0; shift<32; shift+=8){
+                Arrays.fill(histogram, 0);
+                for(int r=0; r<size; r++)
+                    histogram[(keys[r] >>> shift) & 0xff]++;
+                if(size == 0 || histogram[(keys[0] >>> shift) & 0xff] == size)
+                    continue;
+                int total = 0;
+                for(int b=0; b<256; b++){
+                    int bucket = histogram[b];
+                    histogram[b] = total;
+                    total += bucket;
+                }
+                for(int i=0; i<size; i++){
+                    int r = order[i];
+                    buffer[histogram[(keys[r] >>> shift) & 0xff]++] = r;
+                }
+                int[] swap = order;
+                order = buffer;
+                buffer = swap;
+            }
+        }
+        return order;
+
+    }
+
+
+
+    /**
+     * @return the rank of each chromosome ID when the names are sorted
+     */
+    private int[] getChrRanks(){
+
+        Integer[] byName = new Integer[chrNames.size()];
+        for(int c=0; c<byName.length; c++)
+            byName[c] = c;
+        Arrays.sort(byName, new Comparator<Integer>(){
+            @Override
+            public int compare(Integer a, Integer b){
+                return chrNames.get(a).compareTo(chrNames.get(b));
+            }
+        });
+        int[] chrRanks = new int[byName.length];
+        for(int r=0; r<byName.length; r++)
+            chrRanks[byName[r]] = r;
+        return chrRanks;
+
+    }
+
+
+
+    /**
+     * get a reader that returns all the reads, in memory and in runs, in
+     * sorted order. Don't add reads while it is open
+     *
+     * @return the reader
+     * @throws IOException
+     */
+    public Reader getSortedReader() throws IOException{
+        return new Reader();
+    }
+
+
+
+    /**
+     * remove all reads and delete the runs
+     */
+    public void clear(){
+
+        for(File runFile: runs){
+            if(runFile.exists() && runFile.delete() == false)
+                logger.warn("couldn't delete scratch file <" + runFile + ">");
+        }
+        runs.clear();
+        size = 0;
+        noOfReads = 0;
+
+    }
+
+
+
+    /**
+     * returns the reads in sorted order, merging the runs and the reads in
+     * memory
+     */
+    public class Reader implements Closeable{
+
+        private final int[]                     chrRanks            = getChrRanks();
+        private final PriorityQueue<Source>     sources;
+        private Source                          current             = null;
+
+
+
+        private Reader() throws IOException{
+
+            sources = new PriorityQueue<>(runs.size() + 1, new Comparator<Source>(){
+                @Override
+                public int compare(Source a, Source b){
+                    int diff = Integer.compare(chrRanks[a.chrStrand >>> 2], chrRanks[b.chrStrand >>> 2]);
+                    if(diff == 0) diff = Integer.compare(a.chrStrand & 3, b.chrStrand & 3);
+                    if(diff == 0) diff = Integer.compare(a.start, b.start);
+                    if(diff == 0) diff = Integer.compare(a.end, b.end);
+                    if(diff == 0) diff = Integer.compare(a.count, b.count);
+                    return diff;
+                }
+            });
+            try{
+                for(File runFile: runs){
+                    this.addSource(new RunSource(runFile));
+                }
+                this.addSource(new MemorySource(sortOrder()));
+            }
+            catch(IOException exIO){
+                this.close();
+                throw exIO;
+            }
+
+        }
+
+
+
+        private void addSource(Source source) throws IOException{
+            if(source.next())
+                sources.add(source);
+            else
+                source.close();
+        }
+
+
+
+        /**
+         * move to the next read
+         *
+         * @return false if there are no more reads
+         * @throws IOException
+         */
+        public boolean next() throws IOException{
+
+            if(current != null)
+                this.addSource(current);
+            current = sources.poll();
+            return current != null;
+
+        }
+
+
+
+        /**
+         * @return the chromosome of the current read
+         */
+        public String getChr(){
+            return chrNames.get(current.chrStrand >>> 2);
+        }
+
+        /**
+         * @return the strand of the current read
+         */
+        public Strand getStrand(){
+            switch(current.chrStrand & 3){
+                case STRAND_PLUS:   return Strand.PLUS;
+                case STRAND_MINUS:  return Strand.MINUS;
+                default:            return Strand.UNKNOWN;
+            }
+        }
+
+        /**
+         * @return the start of the current read
+         */
+        public int getStartPos(){
+            return current.start;
+        }
+
+        /**
+         * @return the end of the current read
+         */
+        public int getEndPos(){
+            return current.end;
+        }
+
+        /**
+         * @return the count of the current read
+         */
+        public int getCount(){
+            return current.count;
+        }
+
+        /**
+         * @return the current read as a MappedRead
+         */
+        public MappedRead getMappedRead(){
+            return new MappedRead(current.start, current.end, this.getChr(), this.getStrand(), current.count);
+        }
+
+
+
+        @Override
+        public void close() throws IOException{
+            if(current != null)
+                current.close();
+            for(Source source: sources)
+                source.close();
+            sources.clear();
+            current = null;
+        }
+
+    }
+
+
+
+    /**
+     * a sorted stream of reads
+     */
+    private static abstract class Source implements Closeable{
+        int                             chrStrand;
+        int                             start;
+        int                             end;
+        int                             count;
+
+        abstract boolean next() throws IOException;
+
+        @Override
+        public void close() throws IOException{
+        }
+    }
+
+
+
+    /**
+     * the reads in memory, in sorted order
+     */
+    private class MemorySource extends Source{
+        private final int[]             order;
+        private int                     position                    = 0;
+
+        MemorySource(int[] order){
+            this.order = order;
+        }
+
+        @Override
+        boolean next(){
+            if(position == order.length)
+                return false;
+            int r = order[position++];
+            chrStrand = chrStrands[r];
+            start = starts[r];
+            end = ends[r];
+            count = counts[r];
+            return true;
+        }
+    }
+
+
+
+    /**
+     * the reads in a run file
+     */
+    private static class RunSource extends Source{
+        private final DataInputStream   disRun;
+
+        RunSource(File runFile) throws IOException{
+            disRun = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), RUN_BUFFER_SIZE));
+        }
+
+        @Override
+        boolean next() throws IOException{
+            try{
+                chrStrand = disRun.readInt();
+            }
+            catch(EOFException exEOF){
+                return false;
+            }
+            start = disRun.readInt();
+            end = disRun.readInt();
+            count = disRun.readInt();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException{
+            disRun.close();
+        }
+    }
+
+
+
+    /**
+     * @param chr
+     * @return the ID for this chromosome name, adding it if it is new
+     */
+    private int getChrID(String chr){
+        Integer chrID = chrIDs.get(chr);
+        if(chrID == null){
+            chrID = chrNames.size();
+            chrIDs.put(chr, chrID);
+            chrNames.add(chr);
+        }
+        return chrID;
+    }
+
+
+
+    /**
+     * @param strand
+     * @return the 2 bit code for the strand
+     */
+    private static int getStrandCode(Strand strand){
+        if(strand == Strand.PLUS)
+            return STRAND_PLUS;
+        if(strand == Strand.MINUS)
+            return STRAND_MINUS;
+        return STRAND_UNKNOWN;
+    }
+
+
+
+
+    /**
+     * @return the number of reads, including those written to runs
+     */
+    public long getNoOfReads() {
+        return noOfReads;
+    }
+
+    /**
+     * @return the number of runs written to the scratch folder
+     */
+    public int getNoOfRuns() {
+        return runs.size();
+    }
+
+    /**
+     * @return the memory budget in bytes, 0 means no limit
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @param memoryBudget the memory budget in bytes, 0 means no limit
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return the folder where runs are written when the budget is exceeded
+     */
+    public String getScratchFolder() {
+        return scratchFolder;
+    }
+
+    /**
+     * @param scratchFolder the folder where runs are written when the budget is exceeded
+     */
+    public void setScratchFolder(String scratchFolder) {
+        this.scratchFolder = scratchFolder;
+    }
+
+    /**
+     * @param runName the prefix for run file names
+     */
+    public void setRunName(String runName) {
+        this.runName = runName;
+    }
+
+}
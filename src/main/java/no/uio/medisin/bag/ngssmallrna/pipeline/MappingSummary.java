@@ -0,0 +1,249 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * read counts and read length distributions for the stages of mapping a
+ * sample: the input reads, the reads that map to abundant sequences, the
+ * reads that map to the genome and the reads that don't map.
+ *
+ * The input counts are taken from the collapsed FASTA the sample was
+ * mapped from (see addCollapsedFasta, or UniqueSequenceDictionary for
+ * project sequences), since bowtie skips reads that are too short to map.
+ * The other counts are collected from bowtie's SAM output while bowtie
+ * writes it (see SAMWriter), so none of the mapping output has to be read
+ * again: the abundant mapping gives the abundant counts and the genome
+ * mapping gives the mapped and unmapped counts.
+ *
+ * @author sr
+ */
+public class MappingSummary {
+
+    static Logger                       logger                      = LogManager.getLogger();
+
+    public static final int             INPUT                       = 0;
+    public static final int             ABUNDANT                    = 1;
+    public static final int             MAPPED                      = 2;
+    public static final int             UNMAPPED                    = 3;
+    private static final String[]       CATEGORY_NAMES              = {"input", "abundant", "mapped", "unmapped"};
+
+    private final long[]                totals                      = new long[CATEGORY_NAMES.length];
+    private long[][]                    lengthCounts                = new long[CATEGORY_NAMES.length][0];
+
+
+
+    /**
+     * add reads
+     *
+     * @param category  INPUT, ABUNDANT, MAPPED or UNMAPPED
+     * @param length    read length
+     * @param count     number of reads
+     */
+    public void add(int category, int length, long count){
+
+        totals[category] += count;
+        if(length >= lengthCounts[category].length){
+            lengthCounts[category] = Arrays.copyOf(lengthCounts[category], length + 1);
+        }
+        lengthCounts[category][length] += count;
+
+    }
+
+
+
+    /**
+     * add every read in a collapsed FASTA file (name-count headers) as input
+     *
+     * @param collapsedFasta
+     * @throws IOException
+     */
+    public void addCollapsedFasta(String collapsedFasta) throws IOException{
+
+        try(BufferedReader brFA = new BufferedReader(new FileReader(new File(collapsedFasta)), 1024 * 1024)){
+            String headerLine;
+            while((headerLine = brFA.readLine()) != null){
+                if(headerLine.isEmpty()) continue;
+                String sequence = brFA.readLine();
+                if(headerLine.charAt(0) != '>' || sequence == null){
+                    logger.error("error reading collapsed FASTA <" + collapsedFasta + "> at <" + headerLine + ">");
+                    throw new IOException("error reading collapsed FASTA <" + collapsedFasta + "> at <" + headerLine + ">");
+                }
+                try{
+                    this.add(INPUT, sequence.trim().length(), Long.parseLong(headerLine.substring(headerLine.lastIndexOf('-') + 1).trim()));
+                }
+                catch(NumberFormatException exNF){
+                    logger.error("header <" + headerLine + "> in <" + collapsedFasta + "> is not in name-count format");
+                    throw new IOException("header <" + headerLine + "> in <" + collapsedFasta + "> is not in name-count format");
+                }
+            }
+        }
+
+    }
+
+
+
+    /**
+     * write the totals, then the read length distribution of each category
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void write(Writer writer) throws IOException{
+
+        writer.write("total input reads = " + totals[INPUT] + "\n");
+        writer.write("total mapped reads = " + totals[MAPPED] + "\n");
+        writer.write("total abundant reads = " + totals[ABUNDANT] + "\n");
+        writer.write("total unmapped reads = " + totals[UNMAPPED] + "\n");
+
+        int maxLength = 0;
+        for(long[] counts: lengthCounts)
+            maxLength = Math.max(maxLength, counts.length);
+
+        writer.write("\nlength");
+        for(String categoryName: CATEGORY_NAMES)
+            writer.write("\t" + categoryName);
+        writer.write("\n");
+        for(int length=0; length<maxLength; length++){
+            StringBuilder line = new StringBuilder().append(length);
+            long lineTotal = 0;
+            for(long[] counts: lengthCounts){
+                long count = length < counts.length ? counts[length] : 0;
+                line.append('\t').append(count);
+                lineTotal += count;
+            }
+            if(lineTotal > 0)
+                writer.write(line.append('\n').toString());
+        }
+
+    }
+
+
+
+    /**
+     * @param category
+     * @return the number of reads in this category
+     */
+    public long getTotal(int category){
+        return totals[category];
+    }
+
+
+
+    /**
+     * @param category
+     * @return the number of reads of each length in this category
+     */
+    public long[] getLengthCounts(int category){
+        return Arrays.copyOf(lengthCounts[category], lengthCounts[category].length);
+    }
+
+
+
+    /**
+     * writes bowtie's SAM output (read from stdout) to a file and adds each
+     * read to the summary as it goes past. Aligned reads go to
+     * mappedCategory and unaligned reads to unmappedCategory.
+     *
+     * Reads are named name-count. For a single sample the count in the
+     * name is used. For project sequences, give the UniqueSequenceDictionary
+     * and one summary per sample, and each read is added to the samples
+     * that contain it with the sample's count.
+     */
+    public static class SAMWriter implements ProcessRunner.OutputHandler, Closeable{
+
+        private final BufferedWriter            samWriter;
+        private final MappingSummary[]          summaries;
+        private final UniqueSequenceDictionary  sequenceDictionary;
+        private final int                       mappedCategory;
+        private final int                       unmappedCategory;
+        private String                          lastReadName        = "";
+
+        /**
+         *
+         * @param samFile
+         * @param summaries             one summary, or one per sample if there is a dictionary
+         * @param sequenceDictionary    null for a single sample
+         * @param mappedCategory
+         * @param unmappedCategory      -1 if unaligned reads aren't counted
+         * @throws IOException
+         */
+        public SAMWriter(String samFile, MappingSummary[] summaries, UniqueSequenceDictionary sequenceDictionary,
+                int mappedCategory, int unmappedCategory) throws IOException{
+            this.samWriter = new BufferedWriter(new FileWriter(new File(samFile)), 1024 * 1024);
+            this.summaries = summaries;
+            this.sequenceDictionary = sequenceDictionary;
+            this.mappedCategory = mappedCategory;
+            this.unmappedCategory = unmappedCategory;
+        }
+
+        @Override
+        public void handleLine(String samLine) throws IOException{
+
+            samWriter.write(samLine);
+            samWriter.write('\n');
+            if(samLine.isEmpty() || samLine.charAt(0) == '@')
+                return;
+
+            /* QNAME FLAG RNAME POS MAPQ CIGAR RNEXT PNEXT TLEN SEQ ... */
+            int nameEnd = samLine.indexOf('\t');
+            int flagEnd = nameEnd < 0 ? -1 : samLine.indexOf('\t', nameEnd + 1);
+            if(flagEnd < 0){
+                logger.error("can't parse SAM line <" + samLine + ">");
+                throw new IOException("can't parse SAM line <" + samLine + ">");
+            }
+            String readName = samLine.substring(0, nameEnd);
+            if(readName.equals(lastReadName))      // further alignments of the same read
+                return;
+            lastReadName = readName;
+
+            int flag = Integer.parseInt(samLine.substring(nameEnd + 1, flagEnd));
+            int seqStart = flagEnd;
+            for(int field=2; field<9 && seqStart >= 0; field++)
+                seqStart = samLine.indexOf('\t', seqStart + 1);
+            int seqEnd = seqStart < 0 ? -1 : samLine.indexOf('\t', seqStart + 1);
+            int length = seqStart < 0 ? 0 : (seqEnd < 0 ? samLine.length() : seqEnd) - seqStart - 1;
+            if(length == 1 && samLine.charAt(seqStart + 1) == '*')
+                length = 0;
+
+            int category = (flag & 4) == 0 ? mappedCategory : unmappedCategory;
+            if(category >= 0)
+                this.countRead(readName, category, length);
+
+        }
+
+        private void countRead(String readName, int category, int length) throws IOException{
+            if(sequenceDictionary != null){
+                sequenceDictionary.countRead(readName, category, length, summaries);
+                return;
+            }
+            try{
+                summaries[0].add(category, length, Long.parseLong(readName.substring(readName.lastIndexOf('-') + 1)));
+            }
+            catch(NumberFormatException exNF){
+                logger.error("read <" + readName + "> is not in name-count format");
+                throw new IOException("read <" + readName + "> is not in name-count format");
+            }
+        }
+
+        @Override
+        public void close() throws IOException{
+            samWriter.close();
+        }
+    }
+
+}
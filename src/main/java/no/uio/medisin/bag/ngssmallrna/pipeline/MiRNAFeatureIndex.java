@@ -0,0 +1,206 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import no.uio.medisin.bag.core.MiRNAFeature;
+
+/**
+ * finds the miRBase entry a mapped read belongs to without scanning the
+ * whole miRBase list.
+ *
+ * The entries are grouped by chromosome and strand and sorted by start
+ * position, so the entries whose start is within bleed of the read start
+ * are found with a binary search. A read matches an entry if both its
+ * start and its end are within bleed of the entry's; if several entries
+ * match, the one that comes first in the miRBase list is returned, which
+ * is the entry a scan of the list would find.
+ *
+ * Read chromosome names are matched to entries with
+ * MiRNAFeature.chromosomeMatch, so names are compared exactly as before.
+ * The match is worked out once for each read chromosome name and cached.
+ *
+ * Once built the index is only read, so it can be shared between samples
+ * running at the same time.
+ *
+ * @author sr
+ */
+public class MiRNAFeatureIndex {
+
+    private final List<MiRNAFeature>                            features;
+
+    /* chromosome, as given in miRBase -> strand -> entries */
+    private final HashMap<String, HashMap<String, Intervals>>   intervals           = new HashMap<>();
+
+    /* read chromosome -> the miRBase chromosomes that match it */
+    private final ConcurrentHashMap<String, String[]>           chromosomeMatches   = new ConcurrentHashMap<>();
+
+
+
+    /**
+     * the entries on one chromosome and strand, sorted by start
+     */
+    private static class Intervals{
+        int[]                           starts;
+        int[]                           ends;
+        int[]                           featureIndexes;             // position in the miRBase list
+    }
+
+
+
+    /**
+     *
+     * @param features  the miRBase entries, in the order a scan would check them
+     */
+    public MiRNAFeatureIndex(List<MiRNAFeature> features){
+
+        this.features = features;
+
+        HashMap<String, HashMap<String, ArrayList<Integer>>> groups = new HashMap<>();
+        for(int f=0; f<features.size(); f++){
+            MiRNAFeature feature = features.get(f);
+            HashMap<String, ArrayList<Integer>> strands = groups.get(feature.getChromosome());
+            if(strands == null){
+                strands = new HashMap<>();
+                groups.put(feature.getChromosome(), strands);
+            }
+            ArrayList<Integer> group = strands.get(feature.getStrand());
+            if(group == null){
+                group = new ArrayList<>();
+                strands.put(feature.getStrand(), group);
+            }
+            group.add(f);
+        }
+
+        for(Map.Entry<String, HashMap<String, ArrayList<Integer>>> chromosome: groups.entrySet()){
+            HashMap<String, Intervals> strandIntervals = new HashMap<>();
+            for(Map.Entry<String, ArrayList<Integer>> strand: chromosome.getValue().entrySet()){
+                strandIntervals.put(strand.getKey(), this.buildIntervals(strand.getValue()));
+            }
+            intervals.put(chromosome.getKey(), strandIntervals);
+        }
+
+    }
+
+
+
+    /**
+     * sort a group of entries by start. The start is in the high 32 bits
+     * and the list position in the low bits, so entries with the same
+     * start stay in list order
+     *
+     * @param group
+     * @return
+     */
+    private Intervals buildIntervals(ArrayList<Integer> group){
+
+        long[] keys = new long[group.size()];
+        for(int i=0; i<keys.length; i++){
+            keys[i] = ((long) features.get(group.get(i)).getStartPos() << 32) | group.get(i);
+        }
+        Arrays.sort(keys);
+
+        Intervals entries = new Intervals();
+        entries.starts = new int[keys.length];
+        entries.ends = new int[keys.length];
+        entries.featureIndexes = new int[keys.length];
+        for(int i=0; i<keys.length; i++){
+            int f = (int) keys[i];
+            entries.starts[i] = (int) (keys[i] >> 32);
+            entries.ends[i] = features.get(f).getEndPos();
+            entries.featureIndexes[i] = f;
+        }
+        return entries;
+
+    }
+
+
+
+    /**
+     * find the entry whose start and end are both within bleed of the read
+     *
+     * @param start
+     * @param stop
+     * @param chr
+     * @param strand
+     * @param bleed
+     * @return the first matching entry in the miRBase list, or null
+     */
+    public MiRNAFeature findOverlappingFeature(int start, int stop, String chr, String strand, int bleed){
+
+        int best = Integer.MAX_VALUE;
+        for(String chromosome: this.getMatchingChromosomes(chr)){
+            Intervals entries = intervals.get(chromosome).get(strand);
+            if(entries == null) continue;
+
+            int lastStart = start + bleed;
+            for(int i=lowerBound(entries.starts, start - bleed); i<entries.starts.length && entries.starts[i] <= lastStart; i++){
+                if(Math.abs(stop - entries.ends[i]) <= bleed && entries.featureIndexes[i] < best)
+                    best = entries.featureIndexes[i];
+            }
+        }
+        return best == Integer.MAX_VALUE ? null : features.get(best);
+
+    }
+
+
+
+    /**
+     *
+     * @param chr   chromosome name from the read
+     * @return the miRBase chromosomes that match it
+     */
+    private String[] getMatchingChromosomes(String chr){
+
+        String[] matches = chromosomeMatches.get(chr);
+        if(matches != null)
+            return matches;
+
+        ArrayList<String> matchList = new ArrayList<>();
+        for(Map.Entry<String, HashMap<String, Intervals>> chromosome: intervals.entrySet()){
+            Intervals firstEntries = chromosome.getValue().values().iterator().next();
+            if(features.get(firstEntries.featureIndexes[0]).chromosomeMatch(chr))
+                matchList.add(chromosome.getKey());
+        }
+        matches = matchList.toArray(new String[matchList.size()]);
+        chromosomeMatches.put(chr, matches);
+        return matches;
+
+    }
+
+
+
+    /**
+     * @return the index of the first value >= key
+     */
+    private static int lowerBound(int[] values, int key){
+        int low = 0;
+        int high = values.length;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(values[mid] < key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+
+
+    /**
+     * @return the number of entries in the index
+     */
+    public int getNoOfFeatures() {
+        return features.size();
+    }
+
+}
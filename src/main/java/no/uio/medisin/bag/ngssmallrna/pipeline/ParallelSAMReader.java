@@ -0,0 +1,283 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * reads a SAM file on several threads.
+ *
+ * The file is split into chunks that start and end on line boundaries.
+ * Each chunk is memory mapped and read into its own accumulator on a
+ * fork-join pool, and the accumulators are returned in file order. If the
+ * caller merges them in that order, the result is the same as reading
+ * the file from start to end on one thread.
+ *
+ * Header lines are passed to the task like any other line, so use
+ * SAMRecord.isHeader() to skip them.
+ *
+ * @author sr
+ */
+public class ParallelSAMReader {
+
+    static Logger                       logger                      = LogManager.getLogger();
+
+    private static final long           MAX_CHUNK_SIZE              = 1024L * 1024 * 1024;     // a mapped region has to be < 2GB
+    private static final int            CHUNKS_PER_THREAD           = 4;
+    private static final int            SCAN_SIZE                   = 64 * 1024;
+
+    private final String                samFile;
+    private final int                   noOfThreads;
+    private long                        minChunkSize                = 16L * 1024 * 1024;
+
+
+
+    /**
+     * what to do with the lines of a chunk
+     *
+     * @param <T> the accumulator type
+     */
+    public interface ChunkTask<T>{
+
+        /**
+         * @return an empty accumulator for a chunk
+         */
+        T newAccumulator();
+
+        /**
+         * add a line to the chunk's accumulator. The record is only valid
+         * during the call
+         *
+         * @param accumulator
+         * @param samRecord
+         * @throws IOException
+         */
+        void addRecord(T accumulator, SAMRecord samRecord) throws IOException;
+    }
+
+
+
+    /**
+     *
+     * @param samFile
+     * @param noOfThreads
+     */
+    public ParallelSAMReader(String samFile, int noOfThreads){
+        this.samFile = samFile;
+        this.noOfThreads = Math.max(1, noOfThreads);
+    }
+
+
+
+    /**
+     * read the file
+     *
+     * @param <T>
+     * @param task
+     * @return an accumulator for each chunk, in file order
+     * @throws IOException
+     */
+    public <T> ArrayList<T> process(final ChunkTask<T> task) throws IOException{
+
+        try(final FileChannel samChannel = FileChannel.open(Paths.get(samFile), StandardOpenOption.READ)){
+            long[] boundaries = this.findChunkBoundaries(samChannel);
+            int noOfChunks = boundaries.length - 1;
+            logger.info("reading <" + samFile + "> in " + noOfChunks + " chunks on " + noOfThreads + " threads");
+
+            if(noOfChunks == 1 || noOfThreads == 1){
+                ArrayList<T> accumulators = new ArrayList<>();
+                for(int c=0; c<noOfChunks; c++){
+                    accumulators.add(this.processChunk(samChannel, boundaries[c], boundaries[c + 1], task));
+                }
+                return accumulators;
+            }
+
+            ForkJoinPool pool = new ForkJoinPool(noOfThreads);
+            try{
+                ArrayList<Future<T>> chunkResults = new ArrayList<>();
+                for(int c=0; c<noOfChunks; c++){
+                    final long start = boundaries[c];
+                    final long end = boundaries[c + 1];
+                    chunkResults.add(pool.submit(new Callable<T>(){
+                        @Override
+                        public T call() throws IOException{
+                            return processChunk(samChannel, start, end, task);
+                        }
+                    }));
+                }
+
+                ArrayList<T> accumulators = new ArrayList<>();
+                for(Future<T> chunkResult: chunkResults){
+                    accumulators.add(chunkResult.get());
+                }
+                return accumulators;
+            }
+            catch(InterruptedException exIE){
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while reading <" + samFile + ">");
+            }
+            catch(ExecutionException exEx){
+                if(exEx.getCause() instanceof IOException)
+                    throw (IOException) exEx.getCause();
+                throw new IOException("error reading <" + samFile + ">", exEx.getCause());
+            }
+            finally{
+                pool.shutdownNow();
+            }
+        }
+
+    }
+
+
+
+    /**
+     * read one chunk into a new accumulator
+     *
+     * @throws IOException if a line can't be read or parsed
+     */
+    private <T> T processChunk(FileChannel samChannel, long start, long end, ChunkTask<T> task) throws IOException{
+
+        T accumulator = task.newAccumulator();
+        if(end == start)
+            return accumulator;
+
+        SAMRecord samRecord = new SAMRecord();
+        ByteBuffer region = samChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        try(SAMRecordReader samReader = new SAMRecordReader(new ByteBufferInputStream(region))){
+            while(samReader.next(samRecord)){
+                try{
+                    task.addRecord(accumulator, samRecord);
+                }
+                catch(RuntimeException exRT){
+                    logger.error("error parsing line <" + samRecord + "> in <" + samFile + ">: " + exRT);
+                    throw new IOException("error parsing line <" + samRecord + "> in <" + samFile + ">", exRT);
+                }
+            }
+        }
+        return accumulator;
+
+    }
+
+
+
+    /**
+     * split the file into chunks of roughly equal size, moving each
+     * boundary to the start of the next line
+     *
+     * @param samChannel
+     * @return the chunk start positions, followed by the file size
+     * @throws IOException
+     */
+    private long[] findChunkBoundaries(FileChannel samChannel) throws IOException{
+
+        long fileSize = samChannel.size();
+        long chunkSize = Math.max(minChunkSize, fileSize / ((long) noOfThreads * CHUNKS_PER_THREAD) + 1);
+        chunkSize = Math.min(chunkSize, MAX_CHUNK_SIZE);
+
+        ArrayList<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        ByteBuffer scanBuffer = ByteBuffer.allocate(SCAN_SIZE);
+        long boundary = chunkSize;
+        while(boundary < fileSize){
+            long lineStart = this.findNextLine(samChannel, boundary, scanBuffer);
+            if(lineStart >= fileSize)
+                break;
+            if(lineStart - boundaries.get(boundaries.size() - 1) > MAX_CHUNK_SIZE){
+                throw new IOException("line at " + boundary + " in <" + samFile + "> is too long to be a SAM line");
+            }
+            boundaries.add(lineStart);
+            boundary = lineStart + chunkSize;
+        }
+        boundaries.add(fileSize);
+
+        long[] chunkBoundaries = new long[boundaries.size()];
+        for(int b=0; b<chunkBoundaries.length; b++)
+            chunkBoundaries[b] = boundaries.get(b);
+        return chunkBoundaries;
+
+    }
+
+
+
+    /**
+     * @return the position after the first line break at or after position,
+     *         or the file size if there isn't one
+     */
+    private long findNextLine(FileChannel samChannel, long position, ByteBuffer scanBuffer) throws IOException{
+
+        long scanPosition = position;
+        while(true){
+            scanBuffer.clear();
+            int noOfBytes = samChannel.read(scanBuffer, scanPosition);
+            if(noOfBytes <= 0)
+                return samChannel.size();
+            for(int b=0; b<noOfBytes; b++){
+                if(scanBuffer.get(b) == '\n')
+                    return scanPosition + b + 1;
+            }
+            scanPosition += noOfBytes;
+        }
+
+    }
+
+
+
+    /**
+     * reads a mapped region as a stream
+     */
+    private static class ByteBufferInputStream extends InputStream{
+
+        private final ByteBuffer        buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer){
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(){
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length){
+            if(buffer.hasRemaining() == false)
+                return -1;
+            int noOfBytes = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, noOfBytes);
+            return noOfBytes;
+        }
+    }
+
+
+
+
+    /**
+     * @return the smallest chunk, in bytes
+     */
+    public long getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    /**
+     * @param minChunkSize the minChunkSize to set
+     */
+    public void setMinChunkSize(long minChunkSize) {
+        this.minChunkSize = Math.max(1, minChunkSize);
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * what happened when an external program was run by a ProcessRunner
+ *
+ * @author sr
+ */
+public class ProcessResult {
+
+    private final String                name;
+    private final List<String>          command;
+    private final int                   exitCode;
+    private final ArrayList<String>     stdout;
+    private final ArrayList<String>     stderr;
+    private final int                   noOfFilteredLines;
+    private final long                  wallTime;
+    private final long                  cpuTime;
+    private final Boolean               timedOut;
+
+
+
+    /**
+     *
+     * @param name      the name used in log messages
+     * @param command
+     * @param exitCode
+     * @param stdout
+     * @param stderr
+     * @param noOfFilteredLines lines removed by the LineFilter
+     * @param wallTime  milliseconds
+     * @param cpuTime   milliseconds, -1 if it couldn't be measured
+     * @param timedOut
+     */
+    public ProcessResult(String name, List<String> command, int exitCode, ArrayList<String> stdout, ArrayList<String> stderr,
+            int noOfFilteredLines, long wallTime, long cpuTime, Boolean timedOut){
+        this.name = name;
+        this.command = command;
+        this.exitCode = exitCode;
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.noOfFilteredLines = noOfFilteredLines;
+        this.wallTime = wallTime;
+        this.cpuTime = cpuTime;
+        this.timedOut = timedOut;
+    }
+
+
+
+    /**
+     *
+     * @return a one line summary for the log
+     */
+    @Override
+    public String toString(){
+        return name + ": exit code " + exitCode
+                + ", wall time " + String.format("%.1f", wallTime / 1000.0) + "s"
+                + ", cpu time " + (cpuTime < 0 ? "n/a" : String.format("%.1f", cpuTime / 1000.0) + "s")
+                + (timedOut ? ", TIMED OUT" : "");
+    }
+
+
+
+    /**
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the command as a single string
+     */
+    public String getCommandString() {
+        return StringUtils.join(command, " ");
+    }
+
+    /**
+     * @return the exitCode
+     */
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * @return the lines written to stdout
+     */
+    public ArrayList<String> getStdout() {
+        return stdout;
+    }
+
+    /**
+     * @return the lines written to stderr
+     */
+    public ArrayList<String> getStderr() {
+        return stderr;
+    }
+
+    /**
+     * @return the number of lines removed by the LineFilter
+     */
+    public int getNoOfFilteredLines() {
+        return noOfFilteredLines;
+    }
+
+    /**
+     * @return the wall time in milliseconds
+     */
+    public long getWallTime() {
+        return wallTime;
+    }
+
+    /**
+     * @return the cpu time in milliseconds, or -1 if it couldn't be measured
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * @return true if the process was killed because it ran for too long
+     */
+    public Boolean getTimedOut() {
+        return timedOut;
+    }
+
+}
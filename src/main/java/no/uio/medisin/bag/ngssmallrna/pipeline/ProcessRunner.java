@@ -0,0 +1,488 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * runs an external program.
+ *
+ * The command is passed as an argument list, so file names are never split
+ * or reinterpreted by a shell. stdout and stderr are read on their own
+ * threads while the program runs, so a program that writes a lot to
+ * either stream can't block. Every line is logged, but only the last
+ * maxOutputLines of each stream are kept in the ProcessResult. 
+ *
+ * If a timeout is set the program is stopped when it runs over, and if it
+ * hasn't exited KILL_GRACE_PERIOD later it is killed forcibly.
+ *
+ * Wall time, exit code and (on Linux) CPU time are returned in a
+ * ProcessResult. CPU time is sampled from /proc while the program runs,
+ * so it can miss the last fraction of a second.
+ *
+ * stdout can be given to an OutputHandler instead, for programs such as
+ * bowtie that write their results to stdout.
+ *
+ * Several ProcessRunners can be used at the same time from different
+ * threads.
+ *
+ * @author sr
+ */
+public class ProcessRunner {
+
+    static Logger                       logger                      = LogManager.getLogger();
+
+    private static final long           CPU_SAMPLE_INTERVAL         = 200;   // milliseconds
+    private static final long           CLOCK_TICKS_PER_SECOND      = 100;
+    private static final long           KILL_GRACE_PERIOD           = 10000; // milliseconds
+    private static final int            DEFAULT_MAX_OUTPUT_LINES    = 10000;
+
+    private static final ExecutorService            streamPumps     = Executors.newCachedThreadPool(daemonThreads("process-stream"));
+    private static final ScheduledExecutorService   processMonitor  = Executors.newSingleThreadScheduledExecutor(daemonThreads("process-monitor"));
+
+    private final String                name;
+    private final ArrayList<String>     command;
+    private long                        timeout                     = 0;
+    private int                         maxOutputLines              = DEFAULT_MAX_OUTPUT_LINES;
+    private File                        workingDirectory            = null;
+    private LineFilter                  lineFilter                  = null;
+    private OutputHandler               outputHandler               = null;
+
+
+
+    /**
+     * decides which output lines are kept. Lines that aren't kept are
+     * counted but not logged or stored, which is useful for programs that
+     * write a warning for every read
+     */
+    public interface LineFilter{
+        Boolean keepLine(String line);
+    }
+
+
+
+    /**
+     * takes each stdout line in place of the log. It is called on the
+     * thread reading stdout, and run() doesn't return until every line has
+     * been handled
+     */
+    public interface OutputHandler{
+        void handleLine(String line) throws IOException;
+    }
+
+
+
+    /**
+     *
+     * @param name      used to identify the program in the log
+     * @param command   the program followed by its arguments
+     */
+    public ProcessRunner(String name, List<String> command){
+        this.name = name;
+        this.command = new ArrayList<>(command);
+    }
+
+
+
+    /**
+     * start the program and wait for it to finish
+     *
+     * @return
+     * @throws IOException if the program couldn't be started, timed out or
+     *                     the thread was interrupted
+     */
+    public ProcessResult run() throws IOException{
+
+        logger.info(name + " command:\t" + StringUtils.join(command, " "));
+
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        if(workingDirectory != null)
+            processBuilder.directory(workingDirectory);
+
+        long startTime = System.nanoTime();
+        final Process process = processBuilder.start();
+
+        StreamPump stdoutPump = new StreamPump(process.getInputStream(), name + " <OUTPUT> ", lineFilter, outputHandler, maxOutputLines);
+        StreamPump stderrPump = new StreamPump(process.getErrorStream(), name + " <ERROR> ", lineFilter, null, maxOutputLines);
+        Future<ArrayList<String>> stdout = streamPumps.submit(stdoutPump);
+        Future<ArrayList<String>> stderr = streamPumps.submit(stderrPump);
+
+        final AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> killer = null;
+        if(timeout > 0){
+            killer = processMonitor.schedule(new Runnable(){
+                @Override
+                public void run(){
+                    logger.error(name + " did not finish within " + timeout + " seconds, killing it");
+                    timedOut.set(true);
+                    killProcess(process);
+                }
+            }, timeout, TimeUnit.SECONDS);
+        }
+
+        final AtomicLong cpuTicks = new AtomicLong(-1);
+        ScheduledFuture<?> cpuSampler = null;
+        final int pid = getPid(process);
+        if(pid > 0 && new File("/proc/" + pid + "/stat").exists()){
+            cpuSampler = processMonitor.scheduleAtFixedRate(new Runnable(){
+                @Override
+                public void run(){
+                    long ticks = readCpuTicks(pid);
+                    if(ticks >= 0)
+                        cpuTicks.set(ticks);
+                }
+            }, 0, CPU_SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        int exitCode;
+        ArrayList<String> stdoutLines;
+        ArrayList<String> stderrLines;
+        try{
+            exitCode = process.waitFor();
+            stdoutLines = stdout.get();
+            stderrLines = stderr.get();
+        }
+        catch(InterruptedException exIE){
+            killProcess(process);
+            Thread.currentThread().interrupt();
+            logger.error(name + " was interrupted");
+            throw new IOException(name + " was interrupted");
+        }
+        catch(ExecutionException exEx){
+            logger.error(name + ": error reading program output " + exEx.getCause());
+            throw new IOException(name + ": error reading program output", exEx.getCause());
+        }
+        finally{
+            if(killer != null) killer.cancel(false);
+            if(cpuSampler != null) cpuSampler.cancel(false);
+        }
+
+        if(stdoutPump.getNoOfDroppedLines() + stderrPump.getNoOfDroppedLines() > 0)
+            logger.info(name + ": only the last " + maxOutputLines + " lines of output were kept, " 
+                    + stdoutPump.getNoOfDroppedLines() + " stdout and " + stderrPump.getNoOfDroppedLines() + " stderr lines were dropped");
+        long wallTime = (System.nanoTime() - startTime) / 1000000;
+        long cpuTime = cpuTicks.get() < 0 ? -1 : cpuTicks.get() * 1000 / CLOCK_TICKS_PER_SECOND;
+        ProcessResult processResult = new ProcessResult(name, command, exitCode, stdoutLines, stderrLines,
+                stdoutPump.getNoOfFilteredLines() + stderrPump.getNoOfFilteredLines(), wallTime, cpuTime, timedOut.get());
+        logger.info(processResult.toString());
+
+        if(timedOut.get())
+            throw new IOException(name + " did not finish within " + timeout + " seconds");
+
+        return processResult;
+    }
+
+
+
+    /**
+     * stop the program, and kill it if it is still running after the grace
+     * period. This waits, so it is run on a pump thread rather than the 
+     * monitor thread
+     *
+     * @param process
+     */
+    private void killProcess(final Process process){
+        streamPumps.submit(new Runnable(){
+            @Override
+            public void run(){
+                process.destroy();
+                if(waitForExit(process, KILL_GRACE_PERIOD))
+                    return;
+                logger.error(name + " is still running " + KILL_GRACE_PERIOD / 1000 + " seconds after it was stopped, killing it forcibly");
+                destroyForcibly(process);
+                if(waitForExit(process, KILL_GRACE_PERIOD) == false)
+                    logger.error(name + " could not be killed");
+            }
+        });
+    }
+
+
+
+    /**
+     * Process has no waitFor with a timeout before Java 8, so poll exitValue
+     *
+     * @param process
+     * @param timeout   milliseconds
+     * @return true if the process exited within the timeout
+     */
+    private static Boolean waitForExit(Process process, long timeout){
+        long deadline = System.currentTimeMillis() + timeout;
+        while(true){
+            try{
+                process.exitValue();
+                return true;
+            }
+            catch(IllegalThreadStateException exRunning){
+                if(System.currentTimeMillis() >= deadline)
+                    return false;
+            }
+            try{
+                Thread.sleep(100);
+            }
+            catch(InterruptedException exIE){
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+
+
+    /**
+     * Process has no destroyForcibly before Java 8, so try the Java 8
+     * method and then send SIGKILL to the process id
+     *
+     * @param process
+     */
+    private static void destroyForcibly(Process process){
+        try{
+            Method destroyForciblyMethod = Process.class.getMethod("destroyForcibly");
+            destroyForciblyMethod.invoke(process);
+        }
+        catch(Exception exNoMethod){
+            int pid = getPid(process);
+            if(pid <= 0)
+                return;
+            try{
+                new ProcessBuilder("kill", "-KILL", String.valueOf(pid)).start().waitFor();
+            }
+            catch(IOException | InterruptedException exKill){
+                logger.error("couldn't kill process " + pid + ": " + exKill);
+            }
+        }
+    }
+
+
+
+    /**
+     * reads a stream line by line until it is closed
+     */
+    private static class StreamPump implements Callable<ArrayList<String>>{
+
+        private final InputStream       stream;
+        private final String            prefix;
+        private final LineFilter        lineFilter;
+        private final OutputHandler     outputHandler;
+        private final int               maxLines;
+        private volatile int            noOfFilteredLines           = 0;
+        private volatile long           noOfDroppedLines            = 0;
+
+        StreamPump(InputStream stream, String prefix, LineFilter lineFilter, OutputHandler outputHandler, int maxLines){
+            this.stream = stream;
+            this.prefix = prefix;
+            this.lineFilter = lineFilter;
+            this.outputHandler = outputHandler;
+            this.maxLines = maxLines;
+        }
+
+        /**
+         * @return the last maxLines lines (all of them if maxLines is 0)
+         * @throws IOException 
+         */
+        @Override
+        public ArrayList<String> call() throws IOException{
+            ArrayDeque<String> lines = new ArrayDeque<>();
+            int filteredLines = 0;
+            long droppedLines = 0;
+            try(BufferedReader brStream = new BufferedReader(new InputStreamReader(stream))){
+                String line = null;
+                while((line = brStream.readLine()) != null){
+                    if(outputHandler != null){
+                        outputHandler.handleLine(line);
+                        continue;
+                    }
+                    if(lineFilter != null && lineFilter.keepLine(line) == false){
+                        filteredLines++;
+                        continue;
+                    }
+                    logger.info(prefix + line);
+                    if(maxLines > 0 && lines.size() == maxLines){
+                        lines.pollFirst();
+                        droppedLines++;
+                    }
+                    lines.add(line);
+                }
+            }
+            noOfFilteredLines = filteredLines;
+            noOfDroppedLines = droppedLines;
+            return new ArrayList<>(lines);
+        }
+
+        int getNoOfFilteredLines(){
+            return noOfFilteredLines;
+        }
+
+        long getNoOfDroppedLines(){
+            return noOfDroppedLines;
+        }
+    }
+
+
+
+    /**
+     * Process has no public pid before Java 9, so try the Java 9 method
+     * and then the field in the Unix implementation
+     *
+     * @param process
+     * @return the process id, or -1 if it can't be found
+     */
+    private static int getPid(Process process){
+        try{
+            Method pidMethod = Process.class.getMethod("pid");
+            return ((Long) pidMethod.invoke(process)).intValue();
+        }
+        catch(Exception exNoMethod){
+            try{
+                Field pidField = process.getClass().getDeclaredField("pid");
+                pidField.setAccessible(true);
+                return pidField.getInt(process);
+            }
+            catch(Exception exNoField){
+                return -1;
+            }
+        }
+    }
+
+
+
+    /**
+     * user + system time of the process and the children it has waited
+     * for, from fields 14-17 of /proc/[pid]/stat
+     *
+     * @param pid
+     * @return clock ticks, or -1 if the process has gone
+     */
+    private static long readCpuTicks(int pid){
+        try{
+            String stat = new String(Files.readAllBytes(new File("/proc/" + pid + "/stat").toPath()), StandardCharsets.US_ASCII);
+            // the command name (field 2) can contain spaces, so start after it
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return Long.parseLong(fields[11]) + Long.parseLong(fields[12])
+                    + Long.parseLong(fields[13]) + Long.parseLong(fields[14]);
+        }
+        catch(IOException | RuntimeException ex){
+            return -1;
+        }
+    }
+
+
+
+    /**
+     *
+     * @param namePrefix
+     * @return a thread factory for daemon threads, so the JVM can exit if a
+     *         program (or a reader) is left running
+     */
+    static ThreadFactory daemonThreads(final String namePrefix){
+        return new ThreadFactory(){
+            private int threadCount = 0;
+            @Override
+            public synchronized Thread newThread(Runnable runnable){
+                Thread thread = new Thread(runnable, namePrefix + "-" + (++threadCount));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+
+
+    /**
+     * @return the timeout in seconds, 0 means no limit
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout the timeout in seconds, 0 means no limit
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return the number of lines of each stream kept in the result, 0 means all
+     */
+    public int getMaxOutputLines() {
+        return maxOutputLines;
+    }
+
+    /**
+     * @param maxOutputLines the number of lines of each stream kept in the result, 0 means all
+     */
+    public void setMaxOutputLines(int maxOutputLines) {
+        this.maxOutputLines = maxOutputLines;
+    }
+
+    /**
+     * @return the lineFilter
+     */
+    public LineFilter getLineFilter() {
+        return lineFilter;
+    }
+
+    /**
+     * @param lineFilter applied to both stdout and stderr
+     */
+    public void setLineFilter(LineFilter lineFilter) {
+        this.lineFilter = lineFilter;
+    }
+
+    /**
+     * @return the outputHandler
+     */
+    public OutputHandler getOutputHandler() {
+        return outputHandler;
+    }
+
+    /**
+     * @param outputHandler takes the stdout lines, null means log them
+     */
+    public void setOutputHandler(OutputHandler outputHandler) {
+        this.outputHandler = outputHandler;
+    }
+
+    /**
+     * @return the workingDirectory
+     */
+    public File getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    /**
+     * @param workingDirectory the workingDirectory to set
+     */
+    public void setWorkingDirectory(File workingDirectory) {
+        this.workingDirectory = workingDirectory;
+    }
+
+}
@@ -0,0 +1,431 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * collapses a FASTQ file into a FASTA file of unique sequences.
+ *
+ * This does the same job as running fastq_to_fasta followed by
+ * fastx_collapser, but reads the FASTQ file once and doesn't write
+ * the intermediate FASTA file. The output has the same format, i.e.
+ * each sequence is named rank-count
+ *
+ *  >1-3452
+ *  TGAGGTAGTAGGTTGTATAGTT
+ *
+ * Reads containing an N are discarded, as fastq_to_fasta does by default.
+ * The FASTQ file can be gzipped (see FastqReader).
+ *
+ * If a memory budget is set and the unique sequences don't fit in it,
+ * the counts collected so far are written to a sorted run in the scratch
+ * folder and counting starts again. At the end the runs are merged to get
+ * the exact count for each sequence, sorted again by count (spilling to
+ * the scratch folder if needed) and merged into the collapsed FASTA.
+ *
+ * @author sr
+ */
+public class ReadCollapser {
+
+    static Logger                       logger                      = LogManager.getLogger();
+
+    private static final int            BUFFER_SIZE                 = 1024 * 1024;
+    private static final int            RUN_BUFFER_SIZE             = 256 * 1024;
+    private static final int            MEMORY_CHECK_INTERVAL       = 65536;     // reads
+
+    private long                        memoryBudget                = 0;        // bytes, 0 is no limit
+    private String                      scratchFolder               = System.getProperty("java.io.tmpdir");
+    private int                         noOfReaderThreads           = 1;
+
+    private long                        noOfReads                   = 0;
+    private long                        noOfDiscardedReads          = 0;
+    private long                        noOfUniqueReads             = 0;
+    private int                         noOfRuns                    = 0;
+
+
+
+    /**
+     * collapse the reads in fastqFile and write them to fastaFile
+     *
+     * @param fastqFile
+     * @param fastaFile
+     * @throws IOException
+     */
+    public void collapse(String fastqFile, String fastaFile) throws IOException{
+
+        logger.info("collapsing reads in <" + fastqFile + ">");
+        SequenceCounter sequenceCounter = new SequenceCounter();
+        ArrayList<File> sequenceRuns = new ArrayList<>();
+        ArrayList<File> countRuns = new ArrayList<>();
+        noOfReads = 0;
+        noOfDiscardedReads = 0;
+        noOfUniqueReads = 0;
+        noOfRuns = 0;
+
+        try{
+            try(FastqReader fastqReader = new FastqReader(fastqFile, noOfReaderThreads)){
+                FastqRecord fastqRecord;
+                while((fastqRecord = fastqReader.next()) != null){
+                    if(sequenceCounter.add(fastqRecord.getSequence()) == false)
+                        noOfDiscardedReads++;
+                    noOfReads++;
+
+                    if(memoryBudget > 0 && noOfReads % MEMORY_CHECK_INTERVAL == 0
+                            && sequenceCounter.getMemoryUsage() > memoryBudget){
+                        sequenceRuns.add(this.spillCounts(sequenceCounter, fastaFile));
+                    }
+                }
+            }
+
+            if(sequenceRuns.isEmpty()){
+                noOfUniqueReads = sequenceCounter.getNoOfUniqueSequences();
+                try(BufferedWriter bwFA = new BufferedWriter(new FileWriter(new File(fastaFile)), BUFFER_SIZE)){
+                    sequenceCounter.writeCollapsedFasta(bwFA);
+                }
+            }
+            else{
+                if(sequenceCounter.getNoOfUniqueSequences() > 0)
+                    sequenceRuns.add(this.spillCounts(sequenceCounter, fastaFile));
+                sequenceCounter = null;
+                this.mergeSequenceRuns(sequenceRuns, countRuns, fastaFile);
+                this.mergeCountRuns(countRuns, fastaFile);
+            }
+        }
+        finally{
+            sequenceRuns.addAll(countRuns);
+            for(File runFile: sequenceRuns){
+                if(runFile.exists() && runFile.delete() == false)
+                    logger.warn("couldn't delete scratch file <" + runFile + ">");
+            }
+        }
+
+        logger.info("read " + noOfReads + " reads, discarded " + noOfDiscardedReads
+                + ", wrote " + noOfUniqueReads + " unique sequences to <" + fastaFile + ">"
+                + (noOfRuns > 0 ? " using " + noOfRuns + " scratch runs" : ""));
+
+    }
+
+
+
+    /**
+     * write the counts to a new run sorted by sequence and empty the counter
+     *
+     * @param sequenceCounter
+     * @param fastaFile
+     * @return the run file
+     * @throws IOException
+     */
+    private File spillCounts(SequenceCounter sequenceCounter, String fastaFile) throws IOException{
+
+        File runFile = this.createRunFile(fastaFile);
+        logger.info("memory budget of " + memoryBudget / (1024 * 1024) + "MB reached after " + noOfReads
+                + " reads, writing " + sequenceCounter.getNoOfUniqueSequences() + " sequences to <" + runFile + ">");
+        try(DataOutputStream dosRun = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), RUN_BUFFER_SIZE))){
+            sequenceCounter.writeSortedRun(dosRun);
+        }
+        sequenceCounter.clear();
+        return runFile;
+
+    }
+
+
+
+    /**
+     * merge the runs sorted by sequence, adding up the counts for each
+     * sequence, and write the result to new runs sorted by count
+     *
+     * @param sequenceRuns
+     * @param countRuns     the runs sorted by count are added to this
+     * @param fastaFile
+     * @throws IOException
+     */
+    private void mergeSequenceRuns(ArrayList<File> sequenceRuns, ArrayList<File> countRuns, String fastaFile) throws IOException{
+
+        logger.info("merging " + sequenceRuns.size() + " runs");
+        CountBuffer countBuffer = new CountBuffer();
+        PriorityQueue<SequenceRun.Reader> readers = new PriorityQueue<>(sequenceRuns.size(), new Comparator<SequenceRun.Reader>(){
+            @Override
+            public int compare(SequenceRun.Reader a, SequenceRun.Reader b){
+                return SequenceRun.compareSequences(a.length, a.words, 0, b.length, b.words, 0);
+            }
+        });
+
+        try{
+            for(File runFile: sequenceRuns){
+                SequenceRun.Reader reader = new SequenceRun.Reader(runFile);
+                if(reader.next())
+                    readers.add(reader);
+                else
+                    reader.close();
+            }
+
+            long[] words = new long[4];
+            while(readers.isEmpty() == false){
+                SequenceRun.Reader reader = readers.poll();
+                int length = reader.length;
+                if(words.length < reader.words.length)
+                    words = new long[reader.words.length];
+                System.arraycopy(reader.words, 0, words, 0, SequenceRun.noOfWords(length));
+                long count = 0;
+                while(true){
+                    count += reader.count;
+                    if(reader.next())
+                        readers.add(reader);
+                    else
+                        reader.close();
+                    reader = readers.peek();
+                    if(reader == null || SequenceRun.compareSequences(length, words, 0, reader.length, reader.words, 0) != 0)
+                        break;
+                    readers.poll();
+                }
+                if(count > Integer.MAX_VALUE){
+                    throw new IOException("count for sequence <" + SequenceCounter.decode(length, words, 0) + "> is too large <" + count + ">");
+                }
+
+                countBuffer.add(length, (int) count, words);
+                noOfUniqueReads++;
+                if(countBuffer.getMemoryUsage() > memoryBudget){
+                    countRuns.add(this.spillCountBuffer(countBuffer, fastaFile));
+                }
+            }
+            if(countBuffer.size() > 0)
+                countRuns.add(this.spillCountBuffer(countBuffer, fastaFile));
+        }
+        finally{
+            for(SequenceRun.Reader reader: readers){
+                reader.close();
+            }
+        }
+
+    }
+
+
+
+    /**
+     * merge the runs sorted by count into the collapsed FASTA file
+     *
+     * @param countRuns
+     * @param fastaFile
+     * @throws IOException
+     */
+    private void mergeCountRuns(ArrayList<File> countRuns, String fastaFile) throws IOException{
+
+        PriorityQueue<SequenceRun.Reader> readers = new PriorityQueue<>(Math.max(1, countRuns.size()), new Comparator<SequenceRun.Reader>(){
+            @Override
+            public int compare(SequenceRun.Reader a, SequenceRun.Reader b){
+                return SequenceRun.compareCounts(a.count, a.length, a.words, 0, b.count, b.length, b.words, 0);
+            }
+        });
+
+        try(BufferedWriter bwFA = new BufferedWriter(new FileWriter(new File(fastaFile)), BUFFER_SIZE)){
+            for(File runFile: countRuns){
+                SequenceRun.Reader reader = new SequenceRun.Reader(runFile);
+                if(reader.next())
+                    readers.add(reader);
+                else
+                    reader.close();
+            }
+
+            long rank = 0;
+            while(readers.isEmpty() == false){
+                SequenceRun.Reader reader = readers.poll();
+                rank++;
+                bwFA.write(">" + rank + "-" + reader.count + "\n");
+                bwFA.write(SequenceCounter.decode(reader.length, reader.words, 0) + "\n");
+                if(reader.next())
+                    readers.add(reader);
+                else
+                    reader.close();
+            }
+        }
+        finally{
+            for(SequenceRun.Reader reader: readers){
+                reader.close();
+            }
+        }
+
+    }
+
+
+
+    /**
+     * sort the buffer by count, write it to a new run and empty it
+     *
+     * @param countBuffer
+     * @param fastaFile
+     * @return the run file
+     * @throws IOException
+     */
+    private File spillCountBuffer(CountBuffer countBuffer, String fastaFile) throws IOException{
+
+        File runFile = this.createRunFile(fastaFile);
+        try(DataOutputStream dosRun = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), RUN_BUFFER_SIZE))){
+            countBuffer.writeSortedRun(dosRun);
+        }
+        countBuffer.clear();
+        return runFile;
+
+    }
+
+
+
+    /**
+     *
+     * @param fastaFile
+     * @return a new scratch file named after the output file
+     * @throws IOException
+     */
+    private File createRunFile(String fastaFile) throws IOException{
+        noOfRuns++;
+        File folder = new File(scratchFolder);
+        if(folder.exists() == false && folder.mkdirs() == false){
+            logger.error("couldn't create scratch folder <" + scratchFolder + ">");
+            throw new IOException("couldn't create scratch folder <" + scratchFolder + ">");
+        }
+        return File.createTempFile(new File(fastaFile).getName() + ".run" + noOfRuns + ".", ".tmp", folder);
+    }
+
+
+
+    /**
+     * packed sequences and counts held in a single long array, so that
+     * they can be sorted by count without an object per sequence.
+     *
+     * Each entry is count << 32 | length followed by the packed words
+     */
+    private static class CountBuffer{
+
+        private long[]                  data                        = new long[1 << 16];
+        private int[]                   offsets                     = new int[1 << 14];
+        private int                     dataSize                    = 0;
+        private int                     noOfEntries                 = 0;
+
+        void add(int length, int count, long[] words){
+            int noOfWords = SequenceRun.noOfWords(length);
+            if(dataSize + 1 + noOfWords > data.length)
+                data = Arrays.copyOf(data, data.length * 2);
+            if(noOfEntries == offsets.length)
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            offsets[noOfEntries++] = dataSize;
+            data[dataSize] = ((long) count << 32) | length;
+            System.arraycopy(words, 0, data, dataSize + 1, noOfWords);
+            dataSize += 1 + noOfWords;
+        }
+
+        void writeSortedRun(DataOutputStream dosRun) throws IOException{
+            SequenceRun.sortIndexes(offsets, 0, noOfEntries, new SequenceRun.IndexComparator(){
+                @Override
+                public int compare(int a, int b){
+                    return SequenceRun.compareCounts((int) (data[a] >>> 32), (int) data[a], data, a + 1,
+                            (int) (data[b] >>> 32), (int) data[b], data, b + 1);
+                }
+            });
+            for(int i=0; i<noOfEntries; i++){
+                int offset = offsets[i];
+                SequenceRun.write(dosRun, (int) data[offset], (int) (data[offset] >>> 32), data, offset + 1);
+            }
+        }
+
+        void clear(){
+            dataSize = 0;
+            noOfEntries = 0;
+        }
+
+        int size(){
+            return noOfEntries;
+        }
+
+        long getMemoryUsage(){
+            return 8L * dataSize + 4L * noOfEntries;
+        }
+    }
+
+
+
+    /**
+     * @return the memory budget in bytes, 0 means no limit
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @param memoryBudget the memory budget in bytes, 0 means no limit
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return the folder where runs are written when the budget is exceeded
+     */
+    public String getScratchFolder() {
+        return scratchFolder;
+    }
+
+    /**
+     * @param scratchFolder the scratchFolder to set
+     */
+    public void setScratchFolder(String scratchFolder) {
+        this.scratchFolder = scratchFolder;
+    }
+
+    /**
+     * @return the number of threads used to decompress BGZF input
+     */
+    public int getNoOfReaderThreads() {
+        return noOfReaderThreads;
+    }
+
+    /**
+     * @param noOfReaderThreads the noOfReaderThreads to set
+     */
+    public void setNoOfReaderThreads(int noOfReaderThreads) {
+        this.noOfReaderThreads = noOfReaderThreads;
+    }
+
+    /**
+     * @return the number of reads in the last FASTQ file
+     */
+    public long getNoOfReads() {
+        return noOfReads;
+    }
+
+    /**
+     * @return the number of reads that were discarded because they contain an N
+     */
+    public long getNoOfDiscardedReads() {
+        return noOfDiscardedReads;
+    }
+
+    /**
+     * @return the number of unique sequences written
+     */
+    public long getNoOfUniqueReads() {
+        return noOfUniqueReads;
+    }
+
+    /**
+     * @return the number of scratch runs written for the last FASTQ file
+     */
+    public int getNoOfRuns() {
+        return noOfRuns;
+    }
+
+}
@@ -24,6 +24,7 @@ public class ReferenceDataLocations {
     public final static     String ID_GENOME_FOLDER                = "genomeRootFolder";
     public final static     String ID_MIRBASE_FOLDER               = "mirbaseFolder";
     public final static     String ID_TARGETSCAN_FOLDER            = "targetscanFolder";
+    public final static     String ID_SNAPSHOT_FOLDER              = "snapshotFolder";     // optional
     
     public final static     String ID_REL_BOWTIE_PATH              = "Sequence/BowtieIndex/genome";
     public final static     String ID_REL_ABUN_DATA_PATH           = "/Sequence/AbundantSequences/abundant";
@@ -40,6 +41,7 @@ public class ReferenceDataLocations {
     private                 String genomeRootFolder;
     private                 String mirbaseFolder;
     private                 String targetscanFolder;
+    private                 String snapshotFolder;
 
     
     public ReferenceDataLocations(){
@@ -52,6 +54,7 @@ public class ReferenceDataLocations {
         genomeRootFolder    = (String) options.get(ReferenceDataLocations.ID_GENOME_FOLDER);
         mirbaseFolder       = (String)options.get(ReferenceDataLocations.ID_MIRBASE_FOLDER);
         targetscanFolder    = (String)options.get(ReferenceDataLocations.ID_TARGETSCAN_FOLDER);
+        snapshotFolder      = (String)options.get(ReferenceDataLocations.ID_SNAPSHOT_FOLDER);
     }
     /**
      * in this method we are simply checking that the configuration file 
@@ -158,5 +161,20 @@ public class ReferenceDataLocations {
     public void setTargetscanFolder(String targetbaseFolder) {
         this.targetscanFolder = targetbaseFolder;
     }
+
+    /**
+     * @return the shared folder for reference snapshots, null if the
+     *         snapshots are kept next to the reference files
+     */
+    public String getSnapshotFolder() {
+        return snapshotFolder == null || snapshotFolder.isEmpty() ? null : snapshotFolder;
+    }
+
+    /**
+     * @param snapshotFolder the snapshotFolder to set
+     */
+    public void setSnapshotFolder(String snapshotFolder) {
+        this.snapshotFolder = snapshotFolder;
+    }
     
 }
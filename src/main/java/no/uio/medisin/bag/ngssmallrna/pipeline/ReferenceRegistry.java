@@ -0,0 +1,307 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import no.uio.medisin.bag.core.GFFSet;
+import no.uio.medisin.bag.core.MirFeatureSet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * holds the reference data (miRBase, genome sequence, GFF annotation) that
+ * the steps in a pipeline run load, so each reference is only read once
+ * per run.
+ *
+ * References are keyed by type, host, release and path. The first step to
+ * ask for a reference loads it and any step asking for the same reference
+ * while it is loading waits for it, while different references can be
+ * loaded at the same time. The data is shared, so steps must only read it.
+ *
+ * Before the run, each step reserves the references it will use (see
+ * NGSStep.getReferenceKeys) and releases them when it finishes. When the
+ * last step that reserved a reference has finished the reference is
+ * dropped, so e.g. the genome sequence isn't held for the rest of the run.
+ * Steps clear their own fields first (NGSStep.dropReferences), otherwise
+ * the finished step would still hold the data.
+ * References that were never reserved are kept until the end of the run.
+ *
+ * @author sr
+ */
+public class ReferenceRegistry {
+
+    static Logger                       logger                      = LogManager.getLogger();
+
+    public static final String          TYPE_MIRBASE                = "miRBase";
+    public static final String          TYPE_GENOME                 = "genome";
+    public static final String          TYPE_GFF                    = "GFF";
+    public static final String          TYPE_GFF_INDEX              = "GFFIndex";
+
+    private final HashMap<String, Reference>    references          = new HashMap<>();
+
+
+
+    /**
+     * reads a reference from disk
+     *
+     * @param <T>
+     */
+    public interface Loader<T>{
+        T load() throws IOException;
+    }
+
+
+
+    /**
+     * a reference and the number of steps that still need it
+     */
+    private static class Reference{
+        Object                          data                        = null;
+        int                             pendingUses                 = 0;
+        Boolean                         reserved                    = false;
+    }
+
+
+
+    /**
+     *
+     * @param type
+     * @param host
+     * @param release   empty if the reference isn't versioned
+     * @param path
+     * @return the registry key for a reference
+     */
+    public static String getKey(String type, String host, String release, String path){
+        return type + "|" + host + "|" + release + "|" + path;
+    }
+
+
+
+    /**
+     * @return the key for a miRBase release
+     */
+    public static String getMiRBaseKey(String host, int release, String gffFile){
+        return getKey(TYPE_MIRBASE, host, String.valueOf(release), gffFile);
+    }
+
+
+
+    /**
+     * @return the key for a genome sequence
+     */
+    public static String getGenomeKey(String host, String fastaFile){
+        return getKey(TYPE_GENOME, host, "", fastaFile);
+    }
+
+
+
+    /**
+     * @return the key for a GFF annotation
+     */
+    public static String getGFFKey(String host, String gffFile){
+        return getKey(TYPE_GFF, host, "", gffFile);
+    }
+
+
+
+    /**
+     * @return the key for the interval index of a GFF annotation
+     */
+    public static String getGFFIndexKey(String host, String gffFile){
+        return getKey(TYPE_GFF_INDEX, host, "", gffFile);
+    }
+
+
+
+    /**
+     * get a reference, loading it if no step has loaded it yet
+     *
+     * @param <T>
+     * @param key
+     * @param loader
+     * @return the reference
+     * @throws IOException if the reference can't be loaded
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String key, Loader<T> loader) throws IOException{
+
+        Reference reference;
+        synchronized(references){
+            reference = references.get(key);
+            if(reference == null){
+                reference = new Reference();
+                references.put(key, reference);
+            }
+        }
+
+        synchronized(reference){
+            if(reference.data == null){
+                logger.info("loading reference <" + key + ">");
+                reference.data = loader.load();
+            }
+            else{
+                logger.info("reusing reference <" + key + ">");
+            }
+            return (T) reference.data;
+        }
+
+    }
+
+
+
+    /**
+     *
+     * @param host
+     * @param release
+     * @param gffFile
+     * @param faFile
+     * @return the miRBase entries for this host and release
+     * @throws IOException
+     */
+    public MirFeatureSet getMiRBaseData(final String host, int release, final String gffFile, final String faFile) throws IOException{
+
+        return this.get(getMiRBaseKey(host, release, gffFile), new Loader<MirFeatureSet>(){
+            @Override
+            public MirFeatureSet load() throws IOException{
+                MirFeatureSet mirBaseSet = new MirFeatureSet();
+                mirBaseSet.loadMiRBaseData(host, gffFile, faFile);
+                return mirBaseSet;
+            }
+        });
+
+    }
+
+
+
+    /**
+     *
+     * @param host
+     * @param fastaFile
+     * @return the indexed genome sequence. Only the index is held, the
+     *         sequence is memory mapped as it is used
+     * @throws IOException
+     */
+    public IndexedGenomeSeq getGenome(String host, final String fastaFile) throws IOException{
+
+        return this.get(getGenomeKey(host, fastaFile), new Loader<IndexedGenomeSeq>(){
+            @Override
+            public IndexedGenomeSeq load() throws IOException{
+                return new IndexedGenomeSeq(fastaFile);
+            }
+        });
+
+    }
+
+
+
+    /**
+     *
+     * @param host
+     * @param gffFile
+     * @return the annotation
+     * @throws IOException
+     */
+    public GFFSet getGFFSet(String host, final String gffFile) throws IOException{
+
+        return this.get(getGFFKey(host, gffFile), new Loader<GFFSet>(){
+            @Override
+            public GFFSet load() throws IOException{
+                GFFSet gffSet = new GFFSet();
+                gffSet.readGFF(gffFile);
+                return gffSet;
+            }
+        });
+
+    }
+
+
+
+    /**
+     *
+     * @param host
+     * @param gffFile
+     * @return an interval index over the annotation, built from the shared GFFSet
+     * @throws IOException
+     */
+    public GFFIntervalIndex getGFFIndex(final String host, final String gffFile) throws IOException{
+
+        return this.get(getGFFIndexKey(host, gffFile), new Loader<GFFIntervalIndex>(){
+            @Override
+            public GFFIntervalIndex load() throws IOException{
+                return new GFFIntervalIndex(getGFFSet(host, gffFile).getGFFEntries());
+            }
+        });
+
+    }
+
+
+
+    /**
+     * record that a step will use these references
+     *
+     * @param keys
+     */
+    public void reserve(ArrayList<String> keys){
+
+        synchronized(references){
+            for(String key: keys){
+                Reference reference = references.get(key);
+                if(reference == null){
+                    reference = new Reference();
+                    references.put(key, reference);
+                }
+                reference.reserved = true;
+                reference.pendingUses++;
+            }
+        }
+
+    }
+
+
+
+    /**
+     * record that a step has finished with these references, and drop any
+     * reference no other step needs
+     *
+     * @param keys
+     */
+    public void release(ArrayList<String> keys){
+
+        synchronized(references){
+            for(String key: keys){
+                Reference reference = references.get(key);
+                if(reference == null || reference.reserved == false)
+                    continue;
+                reference.pendingUses--;
+                if(reference.pendingUses <= 0){
+                    references.remove(key);
+                    if(reference.data != null)
+                        logger.info("no remaining step needs reference <" + key + ">, releasing it");
+                }
+            }
+        }
+
+    }
+
+
+
+    /**
+     * @return the number of references currently held
+     */
+    public int getNoOfReferences(){
+        synchronized(references){
+            int noOfReferences = 0;
+            for(Reference reference: references.values()){
+                if(reference.data != null)
+                    noOfReferences++;
+            }
+            return noOfReferences;
+        }
+    }
+
+}
@@ -0,0 +1,339 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * a binary copy of a tab delimited reference table (e.g. the TargetScan
+ * files), stored as <source name>.snapshot next to the source or in a
+ * shared snapshot folder (see ReferenceDataLocations), so it is built
+ * once and reused by every project. The source itself is only read.
+ *
+ * The first time a table is loaded it is parsed from text and written to
+ * the snapshot by column (see ReferenceTable): integer columns as ints,
+ * the other columns as indexes into the distinct strings. Later loads 
+ * memory map the snapshot and read each column in one go, so nothing is 
+ * split or parsed and each distinct string is only decoded once. The 
+ * snapshot records the size, modification time and SHA-256 hash of the 
+ * source:
+ *
+ *   - if the size differs, the snapshot is rebuilt
+ *   - if the size and time match, the snapshot is used
+ *   - if only the time differs (e.g. the reference folder was copied), the
+ *     source is hashed, and the snapshot is used if the hash matches. The
+ *     new time is written to the snapshot so the source isn't hashed again
+ *
+ * If the snapshot can't be written (e.g. the reference folder is read
+ * only) the table is still returned, it is just parsed again next time.
+ * The snapshot is written to a temporary file and moved into place, so
+ * projects loading the same table at the same time don't see a partly
+ * written snapshot.
+ *
+ * Rows are the fields from line.split("\t"), trimmed, so a table read
+ * from a snapshot is the same as one parsed from the text. The first
+ * (header) line is skipped.
+ *
+ * @author sr
+ */
+public class ReferenceSnapshot {
+
+    static Logger                       logger                      = LogManager.getLogger();
+
+    public static final String          SNAPSHOT_EXTENSION          = ".snapshot";
+
+    private static final int            MAGIC                       = 0x53524e50;       // SRNP
+    private static final int            VERSION                     = 2;
+    private static final int            HASH_LENGTH                 = 32;
+    private static final int            MTIME_OFFSET                = 16;               // after magic, version and size
+    private static final int            HEADER_LENGTH               = 4 + 4 + 8 + 8 + HASH_LENGTH + 4;
+
+    private final String                sourceFile;
+    private final String                snapshotFile;
+
+
+
+    /**
+     *
+     * @param sourceFile        the text table
+     * @param snapshotFolder    where the snapshot is kept, null for the
+     *                          source's own folder
+     */
+    public ReferenceSnapshot(String sourceFile, String snapshotFolder){
+        this.sourceFile = sourceFile;
+        this.snapshotFile = snapshotFolder == null ? sourceFile + SNAPSHOT_EXTENSION
+                : new File(snapshotFolder, new File(sourceFile).getName() + SNAPSHOT_EXTENSION).getPath();
+    }
+
+
+
+    /**
+     * load the table from the snapshot, building the snapshot first if it
+     * is missing or out of date
+     *
+     * @return the lines after the header
+     * @throws IOException if the source can't be read
+     */
+    public ReferenceTable loadTable() throws IOException{
+
+        File source = new File(sourceFile);
+        if(this.isSnapshotValid(source)){
+            try{
+                ReferenceTable table = this.readSnapshot();
+                logger.info("read " + table.getNoOfRows() + " rows from snapshot <" + snapshotFile + ">");
+                return table;
+            }
+            catch(IOException | RuntimeException exSnap){
+                logger.warn("snapshot <" + snapshotFile + "> can't be read, it will be rebuilt: " + exSnap);
+            }
+        }
+
+        ReferenceTable table = ReferenceTable.fromRows(this.parseSource());
+        try{
+            this.writeSnapshot(source, table);
+            logger.info("wrote snapshot <" + snapshotFile + ">");
+        }
+        catch(IOException exIO){
+            logger.warn("couldn't write snapshot <" + snapshotFile + ">, the table will be parsed again next time: " + exIO);
+        }
+        return table;
+
+    }
+
+
+
+    /**
+     * @param source
+     * @return true if the snapshot was built from the current source
+     */
+    private Boolean isSnapshotValid(File source){
+
+        File snapshot = new File(snapshotFile);
+        if(snapshot.exists() == false || snapshot.length() < HEADER_LENGTH)
+            return false;
+
+        byte[] hash = new byte[HASH_LENGTH];
+        try(RandomAccessFile raf = new RandomAccessFile(snapshot, "r")){
+            if(raf.readInt() != MAGIC || raf.readInt() != VERSION)
+                return false;
+            if(raf.readLong() != source.length())
+                return false;
+            if(raf.readLong() == source.lastModified())
+                return true;
+            raf.readFully(hash);
+        }
+        catch(IOException exIO){
+            logger.warn("couldn't check snapshot <" + snapshotFile + ">: " + exIO);
+            return false;
+        }
+
+        try{
+            if(Arrays.equals(hash, hashFile(source)) == false)
+                return false;
+        }
+        catch(IOException exIO){
+            logger.warn("couldn't hash <" + sourceFile + ">: " + exIO);
+            return false;
+        }
+
+        logger.info("<" + sourceFile + "> has a new time but the same content, keeping snapshot");
+        try(RandomAccessFile raf = new RandomAccessFile(snapshot, "rw")){
+            raf.seek(MTIME_OFFSET);
+            raf.writeLong(source.lastModified());
+        }
+        catch(IOException exIO){
+            logger.warn("couldn't update the time in snapshot <" + snapshotFile + ">: " + exIO);
+        }
+        return true;
+
+    }
+
+
+
+    /**
+     * @return the rows, read from the text file
+     * @throws IOException
+     */
+    private ArrayList<String[]> parseSource() throws IOException{
+
+        ArrayList<String[]> rows = new ArrayList<>();
+        try(BufferedReader brTable = new BufferedReader(new FileReader(new File(sourceFile)))){
+            brTable.readLine();
+            String line;
+            while((line = brTable.readLine()) != null){
+                String[] fields = line.split("\t");
+                for(int f=0; f<fields.length; f++)
+                    fields[f] = fields[f].trim();
+                rows.add(fields);
+            }
+        }
+        return rows;
+
+    }
+
+
+
+    /**
+     * write the table to a temporary file and move it into place, so a
+     * reader never sees a partial snapshot
+     *
+     *   int     magic
+     *   int     version
+     *   long    source size
+     *   long    source modification time
+     *   byte[32] source SHA-256
+     *   int     number of rows
+     *   int     number of columns
+     *   byte    type of each column
+     *   int     number of fields in each row
+     *   int     number of strings, then each string as int length + UTF-8
+     *   for each column: an int per row, the value or the string index
+     *
+     * @param source
+     * @param table
+     * @throws IOException
+     */
+    private void writeSnapshot(File source, ReferenceTable table) throws IOException{
+
+        File snapshot = new File(snapshotFile);
+        File snapshotFolder = snapshot.getAbsoluteFile().getParentFile();
+        if(snapshotFolder.isDirectory() == false && snapshotFolder.mkdirs() == false)
+            throw new IOException("couldn't create folder <" + snapshotFolder + ">");
+        File tmpSnapshot = File.createTempFile(snapshot.getName(), ".tmp", snapshotFolder);
+        try{
+            try(DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpSnapshot), 1 << 16))){
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeLong(source.length());
+                dos.writeLong(source.lastModified());
+                dos.write(hashFile(source));
+                dos.writeInt(table.getNoOfRows());
+                dos.writeInt(table.getNoOfColumns());
+                for(int c=0; c<table.getNoOfColumns(); c++)
+                    dos.writeByte(table.getColumnType(c));
+                for(int rowLength: table.getRowLengths())
+                    dos.writeInt(rowLength);
+                dos.writeInt(table.getStrings().length);
+                for(String string: table.getStrings()){
+                    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                    dos.writeInt(bytes.length);
+                    dos.write(bytes);
+                }
+                for(int c=0; c<table.getNoOfColumns(); c++){
+                    for(int value: table.getColumn(c))
+                        dos.writeInt(value);
+                }
+            }
+            Files.move(tmpSnapshot.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally{
+            if(tmpSnapshot.exists())
+                tmpSnapshot.delete();
+        }
+
+    }
+
+
+
+    /**
+     * @return the table, read from the memory mapped snapshot
+     * @throws IOException
+     */
+    private ReferenceTable readSnapshot() throws IOException{
+
+        try(FileChannel snapshotChannel = new RandomAccessFile(snapshotFile, "r").getChannel()){
+            MappedByteBuffer snapshot = snapshotChannel.map(FileChannel.MapMode.READ_ONLY, 0, snapshotChannel.size());
+            snapshot.position(HEADER_LENGTH - 4);
+            int noOfRows = snapshot.getInt();
+            byte[] columnTypes = new byte[snapshot.getInt()];
+            snapshot.get(columnTypes);
+            int[] rowLengths = readInts(snapshot, noOfRows);
+            
+            String[] strings = new String[snapshot.getInt()];
+            byte[] bytes = new byte[256];
+            for(int s=0; s<strings.length; s++){
+                int length = snapshot.getInt();
+                if(length > bytes.length)
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                snapshot.get(bytes, 0, length);
+                strings[s] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            
+            int[][] columns = new int[columnTypes.length][];
+            for(int c=0; c<columnTypes.length; c++)
+                columns[c] = readInts(snapshot, noOfRows);
+            return new ReferenceTable(rowLengths, columnTypes, columns, strings);
+        }
+
+    }
+
+
+
+    /**
+     * @param snapshot
+     * @param noOfInts
+     * @return the next noOfInts ints, read in one go
+     */
+    private static int[] readInts(MappedByteBuffer snapshot, int noOfInts){
+        int[] values = new int[noOfInts];
+        snapshot.asIntBuffer().get(values);
+        snapshot.position(snapshot.position() + 4 * noOfInts);
+        return values;
+    }
+
+
+
+    /**
+     * @param file
+     * @return the SHA-256 hash of the file
+     * @throws IOException
+     */
+    private static byte[] hashFile(File file) throws IOException{
+
+        try(InputStream in = new FileInputStream(file)){
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 20];
+            int noOfBytes;
+            while((noOfBytes = in.read(buffer)) > 0)
+                digest.update(buffer, 0, noOfBytes);
+            return digest.digest();
+        }
+        catch(NoSuchAlgorithmException exNS){
+            throw new IOException("SHA-256 is not available", exNS);
+        }
+
+    }
+
+
+
+    /**
+     * @return the snapshot file
+     */
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+}
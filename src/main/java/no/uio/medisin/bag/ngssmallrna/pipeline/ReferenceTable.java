@@ -0,0 +1,216 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * a tab delimited reference table held by column, as loaded through a
+ * ReferenceSnapshot.
+ *
+ * A column where every row has a plain integer is stored as ints, so it
+ * doesn't have to be parsed again. Every other column is stored as
+ * indexes into one list of distinct strings, since the same gene, family
+ * and transcript IDs come up many times in a table.
+ *
+ * Rows can have different numbers of fields (line.split("\t") drops empty
+ * fields at the end of a line). Asking for a row or field the table
+ * doesn't have throws an IllegalArgumentException naming both.
+ *
+ * @author sr
+ */
+public class ReferenceTable {
+
+    public static final byte            STRING_COLUMN               = 0;
+    public static final byte            INT_COLUMN                  = 1;
+
+    private static final int            MISSING                     = -1;
+
+    private final int                   noOfRows;
+    private final int[]                 rowLengths;
+    private final byte[]                columnTypes;
+    private final int[][]               columns;        // the value, or the index in strings
+    private final String[]              strings;
+
+
+
+    /**
+     *
+     * @param rowLengths    the number of fields in each row
+     * @param columnTypes
+     * @param columns       the values of each column, one per row
+     * @param strings       the distinct strings in the string columns
+     */
+    ReferenceTable(int[] rowLengths, byte[] columnTypes, int[][] columns, String[] strings){
+        this.noOfRows = rowLengths.length;
+        this.rowLengths = rowLengths;
+        this.columnTypes = columnTypes;
+        this.columns = columns;
+        this.strings = strings;
+    }
+
+
+
+    /**
+     * build a table from the fields of each row
+     *
+     * @param rows
+     * @return
+     */
+    static ReferenceTable fromRows(ArrayList<String[]> rows){
+
+        int noOfColumns = 0;
+        int[] rowLengths = new int[rows.size()];
+        for(int r=0; r<rows.size(); r++){
+            rowLengths[r] = rows.get(r).length;
+            noOfColumns = Math.max(noOfColumns, rowLengths[r]);
+        }
+
+        byte[] columnTypes = new byte[noOfColumns];
+        int[][] columns = new int[noOfColumns][rows.size()];
+        ArrayList<String> strings = new ArrayList<>();
+        HashMap<String, Integer> stringIndexes = new HashMap<>();
+        for(int c=0; c<noOfColumns; c++){
+            if(isIntColumn(rows, c, columns[c])){
+                columnTypes[c] = INT_COLUMN;
+                continue;
+            }
+            columnTypes[c] = STRING_COLUMN;
+            for(int r=0; r<rows.size(); r++){
+                String[] fields = rows.get(r);
+                if(c >= fields.length){
+                    columns[c][r] = MISSING;
+                    continue;
+                }
+                Integer index = stringIndexes.get(fields[c]);
+                if(index == null){
+                    index = strings.size();
+                    strings.add(fields[c]);
+                    stringIndexes.put(fields[c], index);
+                }
+                columns[c][r] = index;
+            }
+        }
+        return new ReferenceTable(rowLengths, columnTypes, columns, strings.toArray(new String[strings.size()]));
+
+    }
+
+
+
+    /**
+     * a column is stored as ints if every row has the field and it reads
+     * back as the same text
+     *
+     * @param rows
+     * @param column
+     * @param values    filled with the values
+     * @return true if the column holds integers
+     */
+    private static Boolean isIntColumn(ArrayList<String[]> rows, int column, int[] values){
+
+        for(int r=0; r<rows.size(); r++){
+            String[] fields = rows.get(r);
+            if(column >= fields.length || fields[column].isEmpty() || fields[column].length() > 11)
+                return false;
+            try{
+                values[r] = Integer.parseInt(fields[column]);
+            }
+            catch(NumberFormatException exNF){
+                return false;
+            }
+            if(String.valueOf(values[r]).equals(fields[column]) == false)
+                return false;
+        }
+        return true;
+
+    }
+
+
+
+    /**
+     * @param row
+     * @param column
+     * @return the field as it was in the text
+     */
+    public String getString(int row, int column){
+        this.checkField(row, column);
+        if(columnTypes[column] == INT_COLUMN)
+            return String.valueOf(columns[column][row]);
+        return strings[columns[column][row]];
+    }
+
+
+
+    /**
+     * @param row
+     * @param column
+     * @return the field as an int
+     * @throws NumberFormatException if the field isn't an integer
+     */
+    public int getInt(int row, int column){
+        this.checkField(row, column);
+        if(columnTypes[column] == INT_COLUMN)
+            return columns[column][row];
+        return Integer.parseInt(strings[columns[column][row]]);
+    }
+
+
+
+    private void checkField(int row, int column){
+        if(row < 0 || row >= noOfRows)
+            throw new IllegalArgumentException("no row " + row + " (column " + column + "), the table has " + noOfRows + " rows");
+        if(column < 0 || column >= rowLengths[row])
+            throw new IllegalArgumentException("no column " + column + " in row " + row + ", the row has " + rowLengths[row] + " fields");
+    }
+
+
+
+    /**
+     * @param row
+     * @return the number of fields in the row
+     */
+    public int getNoOfFields(int row){
+        return rowLengths[row];
+    }
+
+
+
+    /**
+     * @return the number of rows
+     */
+    public int getNoOfRows() {
+        return noOfRows;
+    }
+
+    /**
+     * @return the most fields in any row
+     */
+    public int getNoOfColumns() {
+        return columnTypes.length;
+    }
+
+    /**
+     * @param column
+     * @return INT_COLUMN or STRING_COLUMN
+     */
+    public byte getColumnType(int column) {
+        return columnTypes[column];
+    }
+
+    int[] getRowLengths() {
+        return rowLengths;
+    }
+
+    int[] getColumn(int column) {
+        return columns[column];
+    }
+
+    String[] getStrings() {
+        return strings;
+    }
+
+}
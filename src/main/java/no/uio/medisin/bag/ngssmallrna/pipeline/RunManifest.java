@@ -0,0 +1,360 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * records what has been produced by each step (and each sample within a
+ * step) so that a pipeline can be restarted after a failure without
+ * repeating work.
+ *
+ * A task (a step, or a sample within a step) is recorded with a fingerprint
+ * of its configuration, software and input files together with a content
+ * hash of each output file. On restart, a task is up to date if the
+ * fingerprint is unchanged and all its outputs are still there and unchanged.
+ *
+ * File contents are hashed (MD5) once and cached against the file size and
+ * modification time, so checking an unchanged project only needs a stat
+ * of each file.
+ *
+ * The manifest is a tab delimited text file that is rewritten after every
+ * change, so it is up to date if the pipeline is killed.
+ *
+ *   FILE   path    size    modified    md5
+ *   TASK   key     fingerprint     output1     md5_1   output2     md5_2 ...
+ *
+ * @author sr
+ */
+public class RunManifest {
+
+    static Logger                       logger                      = LogManager.getLogger();
+
+    private static final String         FILE_LINE                   = "FILE";
+    private static final String         TASK_LINE                   = "TASK";
+    private static final String         MISSING_FILE                = "missing";
+    private static final int            BUFFER_SIZE                 = 8 * 1024 * 1024;
+
+    private final String                manifestFile;
+    private final Boolean               resume;
+
+    /* path -> {size, modified, md5} */
+    private final HashMap<String, String[]>                 fileHashes  = new HashMap<>();
+    /* key -> fingerprint */
+    private final HashMap<String, String>                   taskFingerprints = new HashMap<>();
+    /* key -> output path -> md5 */
+    private final HashMap<String, TreeMap<String, String>>  taskOutputs = new HashMap<>();
+
+
+
+    /**
+     *
+     * @param manifestFile  where the manifest is stored
+     * @param resume        if false, tasks are never reported as up to date
+     *                      but are still recorded
+     */
+    public RunManifest(String manifestFile, Boolean resume){
+        this.manifestFile = manifestFile;
+        this.resume = resume;
+    }
+
+
+
+    /**
+     * load an existing manifest. If there isn't one, start with an empty
+     * manifest
+     *
+     * @throws IOException
+     */
+    public synchronized void load() throws IOException{
+
+        if(new File(manifestFile).exists()==false){
+            logger.info("no run manifest found at <" + manifestFile + ">, all steps will be run");
+            return;
+        }
+
+        logger.info("reading run manifest <" + manifestFile + ">");
+        String line = null;
+        try(BufferedReader brMF = new BufferedReader(new FileReader(new File(manifestFile)))){
+            while((line = brMF.readLine()) != null){
+                if(line.startsWith("#") || line.trim().isEmpty()) continue;
+
+                String[] tokens = line.split("\t");
+                if(tokens[0].equals(FILE_LINE) && tokens.length == 5){
+                    fileHashes.put(tokens[1], new String[]{tokens[2], tokens[3], tokens[4]});
+                }
+                else if(tokens[0].equals(TASK_LINE) && tokens.length >= 3 && tokens.length % 2 == 1){
+                    TreeMap<String, String> outputs = new TreeMap<>();
+                    for(int t=3; t<tokens.length; t+=2){
+                        outputs.put(tokens[t], tokens[t+1]);
+                    }
+                    taskFingerprints.put(tokens[1], tokens[2]);
+                    taskOutputs.put(tokens[1], outputs);
+                }
+                else{
+                    logger.warn("ignoring unrecognised line in run manifest <" + line + ">");
+                }
+            }
+        }
+        logger.info("read " + taskFingerprints.size() + " completed tasks");
+
+    }
+
+
+
+    /**
+     * generate a fingerprint for a task from a set of values (e.g. step name,
+     * reference data) the configuration data and the input files.
+     * Configuration values that name an existing file (e.g. the path to
+     * the software) are fingerprinted as files, so updating the software
+     * invalidates the task
+     *
+     * @param values
+     * @param configData
+     * @param inputFiles
+     * @return
+     * @throws IOException
+     */
+    public String fingerprint(ArrayList<String> values, Map configData, ArrayList<String> inputFiles) throws IOException{
+
+        StringBuilder fingerprintString = new StringBuilder();
+        for(String value: values){
+            fingerprintString.append(value).append("\n");
+        }
+
+        TreeMap<String, String> sortedConfig = new TreeMap<>();
+        if(configData != null){
+            for(Object key: configData.keySet()){
+                sortedConfig.put(String.valueOf(key), String.valueOf(configData.get(key)));
+            }
+        }
+        for(Map.Entry<String, String> configEntry: sortedConfig.entrySet()){
+            fingerprintString.append(configEntry.getKey()).append("=").append(configEntry.getValue());
+            if(new File(configEntry.getValue()).isFile())
+                fingerprintString.append(":").append(this.fingerprintFile(configEntry.getValue()));
+            fingerprintString.append("\n");
+        }
+
+        for(String inputFile: inputFiles){
+            fingerprintString.append(inputFile).append(":").append(this.fingerprintFile(inputFile)).append("\n");
+        }
+
+        return md5(fingerprintString.toString());
+    }
+
+
+
+    /**
+     * is the task recorded with the same fingerprint, and are its outputs
+     * unchanged?
+     *
+     * @param key
+     * @param fingerprint
+     * @return
+     * @throws IOException
+     */
+    public Boolean isUpToDate(String key, String fingerprint) throws IOException{
+
+        if(resume == false)
+            return false;
+
+        TreeMap<String, String> outputs;
+        synchronized(this){
+            if(fingerprint.equals(taskFingerprints.get(key)) == false)
+                return false;
+            outputs = new TreeMap<>(taskOutputs.get(key));
+        }
+
+        for(Map.Entry<String, String> output: outputs.entrySet()){
+            if(this.fingerprintFile(output.getKey()).equals(output.getValue()) == false){
+                logger.info("output file <" + output.getKey() + "> of <" + key + "> is missing or has changed");
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+
+    /**
+     * remove a task before it is rerun, so that a task that fails part way
+     * through is not mistaken for a completed one
+     *
+     * @param key
+     * @throws IOException
+     */
+    public synchronized void invalidate(String key) throws IOException{
+
+        if(taskFingerprints.remove(key) != null){
+            taskOutputs.remove(key);
+            this.save();
+        }
+
+    }
+
+
+
+    /**
+     * record a completed task
+     *
+     * @param key
+     * @param fingerprint
+     * @param outputFiles
+     * @throws IOException
+     */
+    public void record(String key, String fingerprint, ArrayList<String> outputFiles) throws IOException{
+
+        TreeMap<String, String> outputs = new TreeMap<>();
+        for(String outputFile: outputFiles){
+            outputs.put(outputFile, this.fingerprintFile(outputFile));
+        }
+
+        synchronized(this){
+            taskFingerprints.put(key, fingerprint);
+            taskOutputs.put(key, outputs);
+            this.save();
+        }
+
+    }
+
+
+
+    /**
+     * return the MD5 of a file's contents. The hash is only recalculated
+     * if the size or modification time of the file has changed
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public String fingerprintFile(String path) throws IOException{
+
+        File file = new File(path);
+        if(file.isFile() == false)
+            return MISSING_FILE;
+
+        String size = Long.toString(file.length());
+        String modified = Long.toString(file.lastModified());
+        synchronized(this){
+            String[] cached = fileHashes.get(path);
+            if(cached != null && cached[0].equals(size) && cached[1].equals(modified))
+                return cached[2];
+        }
+
+        /* hash outside the lock, large FASTQ files can take a while */
+        logger.info("calculating checksum for <" + path + ">");
+        MessageDigest digest = md5Digest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try(InputStream isFile = new FileInputStream(file)){
+            int bytesRead;
+            while((bytesRead = isFile.read(buffer)) != -1){
+                digest.update(buffer, 0, bytesRead);
+            }
+        }
+        String hash = toHex(digest.digest());
+
+        synchronized(this){
+            fileHashes.put(path, new String[]{size, modified, hash});
+        }
+        return hash;
+    }
+
+
+
+    /**
+     * write the manifest to a temporary file and then move it into place
+     *
+     * @throws IOException
+     */
+    private synchronized void save() throws IOException{
+
+        File tmpFile = new File(manifestFile + ".tmp");
+        try(BufferedWriter bwMF = new BufferedWriter(new FileWriter(tmpFile))){
+            bwMF.write("# pipeline run manifest\n");
+            for(Map.Entry<String, String[]> fileEntry: new TreeMap<>(fileHashes).entrySet()){
+                String[] hash = fileEntry.getValue();
+                bwMF.write(FILE_LINE + "\t" + fileEntry.getKey() + "\t" + hash[0] + "\t" + hash[1] + "\t" + hash[2] + "\n");
+            }
+            for(Map.Entry<String, String> taskEntry: new TreeMap<>(taskFingerprints).entrySet()){
+                bwMF.write(TASK_LINE + "\t" + taskEntry.getKey() + "\t" + taskEntry.getValue());
+                for(Map.Entry<String, String> output: taskOutputs.get(taskEntry.getKey()).entrySet()){
+                    bwMF.write("\t" + output.getKey() + "\t" + output.getValue());
+                }
+                bwMF.write("\n");
+            }
+        }
+        Files.move(tmpFile.toPath(), new File(manifestFile).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+    }
+
+
+
+    /**
+     *
+     * @param value
+     * @return the MD5 of the string as hex
+     */
+    private static String md5(String value){
+        return toHex(md5Digest().digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+
+
+    private static MessageDigest md5Digest(){
+        try{
+            return MessageDigest.getInstance("MD5");
+        }
+        catch(NoSuchAlgorithmException exNA){
+            // every JVM has to provide MD5
+            throw new IllegalStateException("MD5 is not available", exNA);
+        }
+    }
+
+
+
+    private static String toHex(byte[] bytes){
+        StringBuilder hex = new StringBuilder();
+        for(byte b: bytes){
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+
+
+    /**
+     * @return the manifestFile
+     */
+    public String getManifestFile() {
+        return manifestFile;
+    }
+
+    /**
+     * @return the resume
+     */
+    public Boolean getResume() {
+        return resume;
+    }
+
+}
@@ -0,0 +1,348 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import no.uio.medisin.bag.core.Strand;
+
+/**
+ * a view of one SAM line, held as bytes.
+ *
+ * The line is split into fields once, when it is set, and the numeric
+ * fields are parsed straight from the bytes, so reading the flag,
+ * position, CIGAR length or read count doesn't create any objects. Strings
+ * are only made for the fields that are asked for as Strings. The
+ * reference name is cached, since consecutive reads are usually on the
+ * same chromosome.
+ *
+ * A SAMRecord is meant to be reused for every line of a file (see
+ * SAMRecordReader). It points into the reader's buffer, so it is only
+ * valid until the next line is read.
+ *
+ *   1   QNAME	   Query template NAME
+ *   2   FLAG	   bitwise FLAG
+ *   3   RNAME	   Reference sequence NAME
+ *   4   POS	   1-based leftmost mapping POSition
+ *   5   MAPQ	   MAPping Quality
+ *   6   CIGAR	   CIGAR string
+ *   7   RNEXT	   Ref. name of the mate/next read
+ *   8   PNEXT	   Position of the mate/next read
+ *   9   TLEN	   observed Template LENgth
+ *   10  SEQ	   segment SEQuence
+ *   11  QUAL	   ASCII of Phred-scaled base QUALity+33
+ *   12- optional TAG:TYPE:VALUE fields
+ *
+ * @author sr
+ */
+public class SAMRecord {
+
+    public static final int             QNAME                       = 0;
+    public static final int             FLAG                        = 1;
+    public static final int             RNAME                       = 2;
+    public static final int             POS                         = 3;
+    public static final int             MAPQ                        = 4;
+    public static final int             CIGAR                       = 5;
+    public static final int             SEQ                         = 9;
+    public static final int             QUAL                        = 10;
+
+    private static final int            FLAG_UNMAPPED               = 4;
+    private static final int            FLAG_REVERSE                = 16;
+
+    private byte[]                      line                        = new byte[0];
+    private int                         lineStart                   = 0;
+    private int                         lineEnd                     = 0;
+    private int[]                       fieldStarts                 = new int[16];
+    private int[]                       fieldEnds                   = new int[16];
+    private int                         noOfFields                  = 0;
+
+    private byte[]                      cachedRName                 = new byte[0];
+    private String                      cachedRNameString           = "";
+
+
+
+    /**
+     * point the record at a line and split it into fields
+     *
+     * @param buffer
+     * @param start     first byte of the line
+     * @param end       end of the line, not including the line break
+     */
+    public void set(byte[] buffer, int start, int end){
+
+        line = buffer;
+        lineStart = start;
+        lineEnd = end;
+        noOfFields = 0;
+        int fieldStart = start;
+        for(int b=start; b<=end; b++){
+            if(b == end || buffer[b] == '\t'){
+                if(noOfFields == fieldStarts.length){
+                    fieldStarts = Arrays.copyOf(fieldStarts, noOfFields * 2);
+                    fieldEnds = Arrays.copyOf(fieldEnds, noOfFields * 2);
+                }
+                fieldStarts[noOfFields] = fieldStart;
+                fieldEnds[noOfFields] = b;
+                noOfFields++;
+                fieldStart = b + 1;
+            }
+        }
+
+    }
+
+
+
+    /**
+     * @param samLine
+     */
+    public void set(String samLine){
+        byte[] bytes = samLine.getBytes(StandardCharsets.ISO_8859_1);
+        this.set(bytes, 0, bytes.length);
+    }
+
+
+
+    /**
+     * @return true for @ header lines and empty lines
+     */
+    public Boolean isHeader(){
+        return lineEnd == lineStart || line[lineStart] == '@';
+    }
+
+
+
+    /**
+     * @return the number of tab separated fields
+     */
+    public int getNoOfFields(){
+        return noOfFields;
+    }
+
+
+
+    /**
+     * @return the FLAG field
+     */
+    public int getFlags(){
+        return this.parseInt(FLAG);
+    }
+
+
+
+    /**
+     * @return true unless the unmapped flag is set
+     */
+    public Boolean isMapped(){
+        return (this.getFlags() & FLAG_UNMAPPED) == 0;
+    }
+
+
+
+    /**
+     * @return MINUS if the read is reverse complemented, otherwise PLUS
+     */
+    public Strand getStrand(){
+        return (this.getFlags() & FLAG_REVERSE) == 0 ? Strand.PLUS : Strand.MINUS;
+    }
+
+
+
+    /**
+     * @return the 1-based start position
+     */
+    public int getPos(){
+        return this.parseInt(POS);
+    }
+
+
+
+    /**
+     * @return the number of reference bases the CIGAR covers (M, D, N, = and X)
+     */
+    public int getReferenceLength(){
+
+        this.checkField(CIGAR);
+        int length = 0;
+        int number = 0;
+        for(int b=fieldStarts[CIGAR]; b<fieldEnds[CIGAR]; b++){
+            byte c = line[b];
+            if(c >= '0' && c <= '9'){
+                number = number * 10 + (c - '0');
+                continue;
+            }
+            if(c == 'M' || c == 'D' || c == 'N' || c == '=' || c == 'X')
+                length += number;
+            number = 0;
+        }
+        return length;
+
+    }
+
+
+
+    /**
+     * @return POS + the reference length, the same end position the steps
+     *         have always calculated from POS and the CIGAR
+     */
+    public int getEndPos(){
+        return this.getPos() + this.getReferenceLength();
+    }
+
+
+
+    /**
+     * reads are named name-count by the collapse step
+     *
+     * @return the count at the end of the read name
+     * @throws NumberFormatException if the name doesn't end in -count
+     */
+    public int getQNameCount(){
+
+        this.checkField(QNAME);
+        int end = fieldEnds[QNAME];
+        int dash = end - 1;
+        while(dash >= fieldStarts[QNAME] && line[dash] != '-')
+            dash--;
+        if(dash < fieldStarts[QNAME])
+            throw new NumberFormatException("read name <" + this.getQName() + "> is not in name-count format");
+        return this.parseInt(dash + 1, end);
+
+    }
+
+
+
+    /**
+     * @return the length of SEQ, 0 if it is *
+     */
+    public int getSequenceLength(){
+        this.checkField(SEQ);
+        int length = fieldEnds[SEQ] - fieldStarts[SEQ];
+        return length == 1 && line[fieldStarts[SEQ]] == '*' ? 0 : length;
+    }
+
+
+
+    /**
+     * @return the read name
+     */
+    public String getQName(){
+        return this.getField(QNAME);
+    }
+
+
+
+    /**
+     * @return the reference name
+     */
+    public String getRName(){
+
+        this.checkField(RNAME);
+        int start = fieldStarts[RNAME];
+        int length = fieldEnds[RNAME] - start;
+        Boolean same = length == cachedRName.length;
+        for(int b=0; same && b<length; b++){
+            same = line[start + b] == cachedRName[b];
+        }
+        if(same == false){
+            cachedRName = Arrays.copyOfRange(line, start, start + length);
+            cachedRNameString = new String(cachedRName, StandardCharsets.ISO_8859_1).trim();
+        }
+        return cachedRNameString;
+
+    }
+
+
+
+    /**
+     * @return the sequence
+     */
+    public String getSequence(){
+        return this.getField(SEQ);
+    }
+
+
+
+    /**
+     * @param field     0 based field number
+     * @return the field as a String
+     * @throws ArrayIndexOutOfBoundsException if the line doesn't have this field
+     */
+    public String getField(int field){
+        this.checkField(field);
+        return new String(line, fieldStarts[field], fieldEnds[field] - fieldStarts[field], StandardCharsets.ISO_8859_1);
+    }
+
+
+
+    /**
+     * @param tag   e.g. MD
+     * @return the value of the optional field TAG:TYPE:VALUE, or null if
+     *         the line doesn't have it
+     */
+    public String getTagValue(String tag){
+
+        for(int field=QUAL + 1; field<noOfFields; field++){
+            int start = fieldStarts[field];
+            if(fieldEnds[field] - start < tag.length() + 3 || line[start + tag.length()] != ':')
+                continue;
+            Boolean match = true;
+            for(int c=0; match && c<tag.length(); c++){
+                match = line[start + c] == tag.charAt(c);
+            }
+            if(match){
+                int valueStart = start + tag.length() + 3;
+                return new String(line, valueStart, fieldEnds[field] - valueStart, StandardCharsets.ISO_8859_1);
+            }
+        }
+        return null;
+
+    }
+
+
+
+    private int parseInt(int field){
+        this.checkField(field);
+        return this.parseInt(fieldStarts[field], fieldEnds[field]);
+    }
+
+
+
+    private int parseInt(int start, int end){
+
+        Boolean negative = start < end && line[start] == '-';
+        int b = negative ? start + 1 : start;
+        if(b == end)
+            throw new NumberFormatException("empty number in SAM line <" + this + ">");
+        int value = 0;
+        for(; b<end; b++){
+            int digit = line[b] - '0';
+            if(digit < 0 || digit > 9)
+                throw new NumberFormatException("<" + new String(line, start, end - start, StandardCharsets.ISO_8859_1)
+                        + "> is not a number in SAM line <" + this + ">");
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+
+    }
+
+
+
+    private void checkField(int field){
+        if(field >= noOfFields)
+            throw new ArrayIndexOutOfBoundsException("SAM line has " + noOfFields + " fields, field " + (field + 1) + " was requested");
+    }
+
+
+
+    /**
+     * @return the whole line
+     */
+    @Override
+    public String toString(){
+        return new String(line, lineStart, lineEnd - lineStart, StandardCharsets.ISO_8859_1);
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * reads a SAM file line by line into a SAMRecord.
+ *
+ * Lines are found in a byte buffer and the record is pointed at them, so
+ * no String is created for a line unless the caller asks for one.
+ *
+ *   SAMRecord samRecord = new SAMRecord();
+ *   try(SAMRecordReader samReader = new SAMRecordReader(samFile)){
+ *       while(samReader.next(samRecord)){
+ *           ...
+ *       }
+ *   }
+ *
+ * @author sr
+ */
+public class SAMRecordReader implements Closeable {
+
+    private static final int            BUFFER_SIZE                 = 1024 * 1024;
+
+    private final InputStream           samStream;
+    private byte[]                      buffer                      = new byte[BUFFER_SIZE];
+    private int                         position                    = 0;        // start of the next line
+    private int                         limit                       = 0;        // end of the data in the buffer
+    private int                         scanned                     = 0;        // searched for a line break up to here
+    private Boolean                     endOfFile                   = false;
+    private long                        noOfLines                   = 0;
+
+
+
+    /**
+     *
+     * @param samFile
+     * @throws IOException
+     */
+    public SAMRecordReader(String samFile) throws IOException{
+        this(new FileInputStream(samFile));
+    }
+
+
+
+    /**
+     *
+     * @param samStream
+     */
+    public SAMRecordReader(InputStream samStream){
+        this.samStream = samStream;
+    }
+
+
+
+    /**
+     * point the record at the next line
+     *
+     * @param samRecord
+     * @return false at the end of the file
+     * @throws IOException
+     */
+    public Boolean next(SAMRecord samRecord) throws IOException{
+
+        while(true){
+            for(; scanned<limit; scanned++){
+                if(buffer[scanned] == '\n'){
+                    int end = scanned > position && buffer[scanned - 1] == '\r' ? scanned - 1 : scanned;
+                    samRecord.set(buffer, position, end);
+                    position = ++scanned;
+                    noOfLines++;
+                    return true;
+                }
+            }
+            if(endOfFile){
+                if(position == limit)
+                    return false;
+                samRecord.set(buffer, position, limit);
+                position = limit;
+                noOfLines++;
+                return true;
+            }
+            this.fill();
+        }
+
+    }
+
+
+
+    /**
+     * move the partial line to the start of the buffer, growing it if the
+     * line fills the buffer, then read more
+     *
+     * @throws IOException
+     */
+    private void fill() throws IOException{
+
+        if(position > 0){
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            scanned -= position;
+            position = 0;
+        }
+        if(limit == buffer.length)
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        int noOfBytes = samStream.read(buffer, limit, buffer.length - limit);
+        if(noOfBytes < 0)
+            endOfFile = true;
+        else
+            limit += noOfBytes;
+
+    }
+
+
+
+    @Override
+    public void close() throws IOException{
+        samStream.close();
+    }
+
+
+
+    /**
+     * @return the number of lines read so far
+     */
+    public long getNoOfLines() {
+        return noOfLines;
+    }
+
+}
@@ -0,0 +1,471 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * counts identical nucleotide sequences.
+ *
+ * Sequences are packed 2 bits per base (A=0, C=1, G=2, T=3) into longs and
+ * stored in open addressing hash tables, one table per sequence length,
+ * with the counts held in a parallel int array. There is no object per
+ * sequence, so a library with millions of unique reads only needs a few
+ * bytes per base.
+ *
+ * Sequences containing anything other than A, C, G or T (e.g. N) are not
+ * counted, which matches the behaviour of fastq_to_fasta.
+ *
+ * Not thread safe, use one counter per sample.
+ *
+ * @author sr
+ */
+public class SequenceCounter {
+
+    private static final int            BASES_PER_WORD              = 32;
+    private static final int            INITIAL_CAPACITY            = 1 << 12;
+    private static final double         MAX_LOAD                    = 0.7;
+
+    /* base -> 2 bit code, -1 if not ACGT */
+    private static final byte[]         BASE_CODES                  = new byte[128];
+    private static final char[]         CODE_BASES                  = {'A', 'C', 'G', 'T'};
+    static{
+        Arrays.fill(BASE_CODES, (byte) -1);
+        BASE_CODES['A'] = 0;    BASE_CODES['a'] = 0;
+        BASE_CODES['C'] = 1;    BASE_CODES['c'] = 1;
+        BASE_CODES['G'] = 2;    BASE_CODES['g'] = 2;
+        BASE_CODES['T'] = 3;    BASE_CODES['t'] = 3;
+    }
+
+    private final TreeMap<Integer, LengthTable>     lengthTables    = new TreeMap<>();
+    private long[]                      packedSequence              = new long[4];
+    private long                        noOfSequences               = 0;
+    private long                        noOfRejectedSequences       = 0;
+    private int                         noOfUniqueSequences         = 0;
+
+
+
+    /**
+     * called for each stored sequence by visitSequences
+     */
+    interface SequenceVisitor{
+        void visit(int length, long[] packed, int offset, int count) throws IOException;
+    }
+
+
+
+    /**
+     * hash table for sequences of one length
+     */
+    private static class LengthTable{
+
+        final int                       length;
+        final int                       words;
+        long[]                          keys;
+        int[]                           counts;     // 0 means the slot is empty
+        int                             size        = 0;
+
+        LengthTable(int length){
+            this.length = length;
+            this.words = (length + BASES_PER_WORD - 1) / BASES_PER_WORD;
+            this.keys = new long[INITIAL_CAPACITY * words];
+            this.counts = new int[INITIAL_CAPACITY];
+        }
+
+        /**
+         * @return true if this was a new sequence
+         */
+        boolean add(long[] packed, int count){
+            if(size + 1 > counts.length * MAX_LOAD)
+                resize();
+            int slot = findSlot(keys, counts, packed);
+            if(counts[slot] == 0){
+                System.arraycopy(packed, 0, keys, slot * words, words);
+                counts[slot] = count;
+                size++;
+                return true;
+            }
+            counts[slot] += count;
+            return false;
+        }
+
+        /**
+         * @return the existing value, or 0 if the sequence was added with this value
+         */
+        int putIfAbsent(long[] packed, int value){
+            if(size + 1 > counts.length * MAX_LOAD)
+                resize();
+            int slot = findSlot(keys, counts, packed);
+            if(counts[slot] == 0){
+                System.arraycopy(packed, 0, keys, slot * words, words);
+                counts[slot] = value;
+                size++;
+                return 0;
+            }
+            return counts[slot];
+        }
+
+        int findSlot(long[] tableKeys, int[] tableCounts, long[] packed){
+            int mask = tableCounts.length - 1;
+            int slot = hash(packed, 0, words) & mask;
+            while(tableCounts[slot] != 0 && matches(tableKeys, slot, packed) == false){
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        boolean matches(long[] tableKeys, int slot, long[] packed){
+            int offset = slot * words;
+            for(int w=0; w<words; w++){
+                if(tableKeys[offset + w] != packed[w])
+                    return false;
+            }
+            return true;
+        }
+
+        void resize(){
+            long[] newKeys = new long[keys.length * 2];
+            int[] newCounts = new int[counts.length * 2];
+            long[] packed = new long[words];
+            for(int slot=0; slot<counts.length; slot++){
+                if(counts[slot] == 0) continue;
+                System.arraycopy(keys, slot * words, packed, 0, words);
+                int newSlot = findSlot(newKeys, newCounts, packed);
+                System.arraycopy(packed, 0, newKeys, newSlot * words, words);
+                newCounts[newSlot] = counts[slot];
+            }
+            keys = newKeys;
+            counts = newCounts;
+        }
+
+        String decode(int slot){
+            return SequenceCounter.decode(length, keys, slot * words);
+        }
+    }
+
+
+
+    /**
+     * add a single occurrence of a sequence
+     *
+     * @param sequence
+     * @return false if the sequence contains something other than ACGT and
+     *         wasn't counted
+     */
+    public Boolean add(CharSequence sequence){
+        return this.add(sequence, 1);
+    }
+
+
+
+    /**
+     * add a sequence that occurs count times
+     *
+     * @param sequence
+     * @param count
+     * @return false if the sequence contains something other than ACGT and
+     *         wasn't counted
+     */
+    public Boolean add(CharSequence sequence, int count){
+
+        int length = sequence.length();
+        if(length == 0 || pack(sequence, length) == false){
+            noOfRejectedSequences += count;
+            return false;
+        }
+
+        LengthTable lengthTable = lengthTables.get(length);
+        if(lengthTable == null){
+            lengthTable = new LengthTable(length);
+            lengthTables.put(length, lengthTable);
+        }
+        if(lengthTable.add(packedSequence, count))
+            noOfUniqueSequences++;
+        noOfSequences += count;
+        return true;
+    }
+
+
+
+    /**
+     * use the counter as a map from sequence to a positive int value, e.g.
+     * an id, rather than a count. Don't mix this with add()
+     *
+     * @param sequence
+     * @param value     must be greater than 0
+     * @return the value already stored for the sequence, 0 if the sequence
+     *         was added with this value, or -1 if the sequence contains
+     *         something other than ACGT
+     */
+    int putIfAbsent(CharSequence sequence, int value){
+
+        int length = sequence.length();
+        if(length == 0 || pack(sequence, length) == false)
+            return -1;
+
+        LengthTable lengthTable = lengthTables.get(length);
+        if(lengthTable == null){
+            lengthTable = new LengthTable(length);
+            lengthTables.put(length, lengthTable);
+        }
+        int existingValue = lengthTable.putIfAbsent(packedSequence, value);
+        if(existingValue == 0)
+            noOfUniqueSequences++;
+        return existingValue;
+    }
+
+
+
+    /**
+     * call the visitor for every stored sequence, shortest first
+     *
+     * @param visitor
+     * @throws IOException
+     */
+    void visitSequences(SequenceVisitor visitor) throws IOException{
+        for(LengthTable lengthTable: lengthTables.values()){
+            for(int slot=0; slot<lengthTable.counts.length; slot++){
+                if(lengthTable.counts[slot] != 0)
+                    visitor.visit(lengthTable.length, lengthTable.keys, slot * lengthTable.words, lengthTable.counts[slot]);
+            }
+        }
+    }
+
+
+
+    /**
+     * pack the sequence into packedSequence
+     *
+     * @param sequence
+     * @param length
+     * @return false if there is a base that isn't ACGT
+     */
+    private boolean pack(CharSequence sequence, int length){
+
+        int words = (length + BASES_PER_WORD - 1) / BASES_PER_WORD;
+        if(packedSequence.length < words)
+            packedSequence = new long[words];
+        Arrays.fill(packedSequence, 0, words, 0L);
+
+        for(int b=0; b<length; b++){
+            char base = sequence.charAt(b);
+            int code = base < 128 ? BASE_CODES[base] : -1;
+            if(code < 0)
+                return false;
+            packedSequence[b / BASES_PER_WORD] |= ((long) code) << (2 * (b % BASES_PER_WORD));
+        }
+        return true;
+    }
+
+
+
+    /**
+     * unpack a sequence
+     *
+     * @param length    number of bases
+     * @param packed
+     * @param offset    position of the first word in packed
+     * @return
+     */
+    static String decode(int length, long[] packed, int offset){
+        char[] bases = new char[length];
+        for(int b=0; b<length; b++){
+            long word = packed[offset + b / BASES_PER_WORD];
+            bases[b] = CODE_BASES[(int) ((word >>> (2 * (b % BASES_PER_WORD))) & 3)];
+        }
+        return new String(bases);
+    }
+
+
+
+    /**
+     * mix the packed words of a sequence
+     *
+     * @param packed
+     * @param offset
+     * @param words
+     * @return
+     */
+    private static int hash(long[] packed, int offset, int words){
+        long h = 0x9E3779B97F4A7C15L;
+        for(int w=0; w<words; w++){
+            h ^= packed[offset + w];
+            h *= 0xBF58476D1CE4E5B9L;
+            h ^= h >>> 31;
+        }
+        h ^= h >>> 29;
+        h *= 0x94D049BB133111EBL;
+        h ^= h >>> 32;
+        return (int) h;
+    }
+
+
+
+    /**
+     * write the sequences in fastx_collapser format, i.e. ordered by
+     * decreasing count and named rank-count
+     *
+     *  >1-3452
+     *  TGAGGTAGTAGGTTGTATAGTT
+     *
+     * Sequences with the same count are written shortest first, then
+     * in packed sequence order, which is the order ReadCollapser uses when
+     * it merges spilled runs, so the output doesn't depend on the budget.
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void writeCollapsedFasta(Writer writer) throws IOException{
+
+        LengthTable[] tables = lengthTables.values().toArray(new LengthTable[lengthTables.size()]);
+        long[] tableOffsets = new long[tables.length];
+        long totalSlots = 0;
+        for(int t=0; t<tables.length; t++){
+            tableOffsets[t] = totalSlots;
+            totalSlots += tables[t].counts.length;
+        }
+        if(totalSlots > Integer.MAX_VALUE){
+            throw new IOException("too many unique sequences to sort <" + noOfUniqueSequences + ">");
+        }
+
+        /* sort key is (MAX - count) in the high 32 bits and the global slot in the low 32 bits */
+        long[] order = new long[noOfUniqueSequences];
+        int n = 0;
+        for(int t=0; t<tables.length; t++){
+            int[] counts = tables[t].counts;
+            for(int slot=0; slot<counts.length; slot++){
+                if(counts[slot] == 0) continue;
+                order[n++] = ((long) (Integer.MAX_VALUE - counts[slot]) << 32) | (tableOffsets[t] + slot);
+            }
+        }
+        Arrays.sort(order);
+
+        /* 
+            equal counts are sorted by length (the tables are in length order)
+            but then by slot, so sort each group of equal counts and length by 
+            sequence to get the same order as ReadCollapser writes from runs
+        */
+        int t = 0;
+        int rank = 0;
+        int[] slots = new int[16];
+        int i = 0;
+        while(i < n){
+            long globalSlot = order[i] & 0xFFFFFFFFL;
+            while(t + 1 < tables.length && tableOffsets[t + 1] <= globalSlot) t++;
+            while(tableOffsets[t] > globalSlot) t--;
+            final LengthTable table = tables[t];
+            long tableEnd = tableOffsets[t] + table.counts.length;
+            long countKey = order[i] >>> 32;
+
+            int noOfTies = 0;
+            while(i < n && (order[i] >>> 32) == countKey && (order[i] & 0xFFFFFFFFL) < tableEnd){
+                if(noOfTies == slots.length)
+                    slots = Arrays.copyOf(slots, slots.length * 2);
+                slots[noOfTies++] = (int) ((order[i] & 0xFFFFFFFFL) - tableOffsets[t]);
+                i++;
+            }
+            SequenceRun.sortIndexes(slots, 0, noOfTies, new SequenceRun.IndexComparator(){
+                @Override
+                public int compare(int a, int b){
+                    return SequenceRun.compareSequences(table.length, table.keys, a * table.words,
+                            table.length, table.keys, b * table.words);
+                }
+            });
+            for(int s=0; s<noOfTies; s++){
+                rank++;
+                writer.write(">" + rank + "-" + table.counts[slots[s]] + "\n");
+                writer.write(table.decode(slots[s]) + "\n");
+            }
+        }
+
+    }
+
+
+
+    /**
+     * write the sequences and counts as a SequenceRun, sorted by sequence,
+     * so they can be merged with runs from other parts of the same library
+     *
+     * @param dosRun
+     * @throws IOException
+     */
+    void writeSortedRun(DataOutputStream dosRun) throws IOException{
+
+        for(final LengthTable lengthTable: lengthTables.values()){
+            int[] slots = new int[lengthTable.size];
+            int n = 0;
+            for(int slot=0; slot<lengthTable.counts.length; slot++){
+                if(lengthTable.counts[slot] != 0)
+                    slots[n++] = slot;
+            }
+            SequenceRun.sortIndexes(slots, 0, n, new SequenceRun.IndexComparator(){
+                @Override
+                public int compare(int a, int b){
+                    return SequenceRun.compareSequences(lengthTable.length, lengthTable.keys, a * lengthTable.words,
+                            lengthTable.length, lengthTable.keys, b * lengthTable.words);
+                }
+            });
+            for(int i=0; i<n; i++){
+                SequenceRun.write(dosRun, lengthTable.length, lengthTable.counts[slots[i]], lengthTable.keys, slots[i] * lengthTable.words);
+            }
+        }
+
+    }
+
+
+
+    /**
+     * remove all sequences
+     */
+    public void clear(){
+        lengthTables.clear();
+        noOfSequences = 0;
+        noOfRejectedSequences = 0;
+        noOfUniqueSequences = 0;
+    }
+
+
+
+    /**
+     * @return approximate number of bytes used by the hash tables
+     */
+    public long getMemoryUsage(){
+        long bytes = 0;
+        for(LengthTable lengthTable: lengthTables.values()){
+            bytes += 8L * lengthTable.keys.length + 4L * lengthTable.counts.length;
+        }
+        return bytes;
+    }
+
+
+
+    /**
+     * @return the number of sequences that were counted
+     */
+    public long getNoOfSequences() {
+        return noOfSequences;
+    }
+
+    /**
+     * @return the number of sequences that were rejected because they
+     * contained something other than ACGT
+     */
+    public long getNoOfRejectedSequences() {
+        return noOfRejectedSequences;
+    }
+
+    /**
+     * @return the number of different sequences
+     */
+    public int getNoOfUniqueSequences() {
+        return noOfUniqueSequences;
+    }
+
+}
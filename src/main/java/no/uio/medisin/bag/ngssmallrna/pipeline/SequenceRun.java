@@ -0,0 +1,219 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * a sorted run of packed sequences and their counts, spilled to disk while
+ * collapsing a library that doesn't fit in memory.
+ *
+ * Each record is
+ *
+ *   int length, int count, long word_1 ... long word_n
+ *
+ * where the words are the 2 bit packed sequence used by SequenceCounter.
+ * Runs are sorted either by sequence (length, then packed words) or by
+ * decreasing count and then sequence.
+ *
+ * @author sr
+ */
+class SequenceRun {
+
+    static final int                    BASES_PER_WORD              = 32;
+    private static final int            BUFFER_SIZE                 = 256 * 1024;
+    private static final int            INSERTION_SORT_SIZE         = 16;
+
+
+
+    /**
+     * compares two entries by their index
+     */
+    interface IndexComparator{
+        int compare(int a, int b);
+    }
+
+
+
+    /**
+     * @param length
+     * @return the number of longs needed to hold a sequence of this length
+     */
+    static int noOfWords(int length){
+        return (length + BASES_PER_WORD - 1) / BASES_PER_WORD;
+    }
+
+
+
+    /**
+     * write a single record
+     *
+     * @param dosRun
+     * @param length
+     * @param count
+     * @param words
+     * @param offset    position of the first word in words
+     * @throws IOException
+     */
+    static void write(DataOutputStream dosRun, int length, int count, long[] words, int offset) throws IOException{
+        dosRun.writeInt(length);
+        dosRun.writeInt(count);
+        int noOfWords = noOfWords(length);
+        for(int w=0; w<noOfWords; w++){
+            dosRun.writeLong(words[offset + w]);
+        }
+    }
+
+
+
+    /**
+     * order two packed sequences by length and then by their words, compared
+     * as unsigned values. This isn't alphabetical order, but it is the same
+     * in every run, which is all the merge needs
+     *
+     * @return negative, zero or positive as in Comparator
+     */
+    static int compareSequences(int lengthA, long[] wordsA, int offsetA, int lengthB, long[] wordsB, int offsetB){
+        if(lengthA != lengthB)
+            return lengthA < lengthB ? -1 : 1;
+        int noOfWords = noOfWords(lengthA);
+        for(int w=0; w<noOfWords; w++){
+            long a = wordsA[offsetA + w] ^ Long.MIN_VALUE;
+            long b = wordsB[offsetB + w] ^ Long.MIN_VALUE;
+            if(a != b)
+                return a < b ? -1 : 1;
+        }
+        return 0;
+    }
+
+
+
+    /**
+     * order by decreasing count and then by sequence
+     *
+     * @return negative, zero or positive as in Comparator
+     */
+    static int compareCounts(int countA, int lengthA, long[] wordsA, int offsetA,
+            int countB, int lengthB, long[] wordsB, int offsetB){
+        if(countA != countB)
+            return countA > countB ? -1 : 1;
+        return compareSequences(lengthA, wordsA, offsetA, lengthB, wordsB, offsetB);
+    }
+
+
+
+    /**
+     * sort an array of indexes in place without boxing them, so large
+     * tables can be sorted inside the memory budget
+     *
+     * @param indexes
+     * @param from      first position, inclusive
+     * @param to        last position, exclusive
+     * @param comparator
+     */
+    static void sortIndexes(int[] indexes, int from, int to, IndexComparator comparator){
+
+        while(to - from > INSERTION_SORT_SIZE){
+            int mid = (from + to) >>> 1;
+            int pivot = median(indexes[from], indexes[mid], indexes[to - 1], comparator);
+            int i = from;
+            int j = to - 1;
+            while(i <= j){
+                while(comparator.compare(indexes[i], pivot) < 0) i++;
+                while(comparator.compare(indexes[j], pivot) > 0) j--;
+                if(i <= j){
+                    int tmp = indexes[i];
+                    indexes[i] = indexes[j];
+                    indexes[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            // recurse into the smaller half, loop on the larger one
+            if(j + 1 - from < to - i){
+                sortIndexes(indexes, from, j + 1, comparator);
+                from = i;
+            }
+            else{
+                sortIndexes(indexes, i, to, comparator);
+                to = j + 1;
+            }
+        }
+
+        for(int i=from + 1; i<to; i++){
+            int index = indexes[i];
+            int j = i - 1;
+            while(j >= from && comparator.compare(indexes[j], index) > 0){
+                indexes[j + 1] = indexes[j];
+                j--;
+            }
+            indexes[j + 1] = index;
+        }
+
+    }
+
+
+
+    private static int median(int a, int b, int c, IndexComparator comparator){
+        if(comparator.compare(a, b) < 0){
+            if(comparator.compare(b, c) < 0) return b;
+            return comparator.compare(a, c) < 0 ? c : a;
+        }
+        if(comparator.compare(a, c) < 0) return a;
+        return comparator.compare(b, c) < 0 ? c : b;
+    }
+
+
+
+    /**
+     * reads a run one record at a time
+     */
+    static class Reader implements Closeable{
+
+        private final DataInputStream   disRun;
+        int                             length                      = 0;
+        int                             count                       = 0;
+        long[]                          words                       = new long[4];
+
+        Reader(File runFile) throws IOException{
+            disRun = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), BUFFER_SIZE));
+        }
+
+        /**
+         * @return false at the end of the run
+         * @throws IOException
+         */
+        boolean next() throws IOException{
+            try{
+                length = disRun.readInt();
+            }
+            catch(EOFException exEOF){
+                return false;
+            }
+            count = disRun.readInt();
+            int noOfWords = noOfWords(length);
+            if(words.length < noOfWords)
+                words = new long[noOfWords];
+            for(int w=0; w<noOfWords; w++){
+                words[w] = disRun.readLong();
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException{
+            disRun.close();
+        }
+    }
+
+}
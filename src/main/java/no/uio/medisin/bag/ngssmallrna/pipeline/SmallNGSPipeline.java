@@ -27,6 +27,7 @@ import no.uio.medisin.bag.ngssmallrna.steps.StepBSMapCalcMethRatios;
 import no.uio.medisin.bag.ngssmallrna.steps.StepBSMapReads;
 import no.uio.medisin.bag.ngssmallrna.steps.StepBowtieMapPairedReads;
 import no.uio.medisin.bag.ngssmallrna.steps.StepCleanUp;
+import no.uio.medisin.bag.ngssmallrna.steps.StepFastqQC;
 import no.uio.medisin.bag.ngssmallrna.steps.StepInputData;
 import no.uio.medisin.bag.ngssmallrna.steps.StepMatchSmallRNAsBySeedRegions;
 import no.uio.medisin.bag.ngssmallrna.steps.StepUnzipInputFiles;
@@ -47,6 +48,7 @@ public class SmallNGSPipeline {
     
     static Logger                       logger           = LogManager.getLogger();
     static  final String                FILE_SEPARATOR = System.getProperty("file.separator");
+    static  final String                RUN_MANIFEST_EXTENSION = ".run_manifest.tsv";
     
     private String                      configurationFile = "";
     private String                      pipelineFile = "";
@@ -57,6 +59,7 @@ public class SmallNGSPipeline {
     
     private HashMap                     pipelineConfigurationDataHash;    
     private ReferenceDataLocations      refDataLocations;
+    private StepScheduler               stepScheduler   = new StepScheduler();
     
     
     
@@ -119,6 +122,10 @@ public class SmallNGSPipeline {
                     this.addStepUnzipInputFiles(stepData);                    
                     break;
                     
+                case StepFastqQC.STEP_ID_STRING:
+                    this.addStepFastqQC(stepData);
+                    break;
+                    
                 case StepSingleTrimAdapters.STEP_ID_STRING:
                     this.addStepSingleTrimAdapters(stepData);
                     break;
@@ -182,17 +189,29 @@ public class SmallNGSPipeline {
     
     
     /**
-     * execute steps on the stack
+     * execute steps on the stack. Steps that don't depend on each other
+     * can be run concurrently by the StepScheduler. If resume is set, 
+     * completed work is recorded in the run manifest in the project folder 
+     * and skipped the next time. Otherwise there is no manifest and nothing 
+     * is fingerprinted
      * 
      * @throws IOException
      * @throws Exception 
      */
     public void executePipeline() throws IOException, Exception{
         logger.info("executing pipeline");
+        if(stepScheduler.getResume()){
+            String manifestFile = (this.getPipelineData().getProjectRoot() + FILE_SEPARATOR + this.getPipelineData().getProjectID() 
+                    + FILE_SEPARATOR + this.getPipelineData().getProjectID() + RUN_MANIFEST_EXTENSION).replace(FILE_SEPARATOR + FILE_SEPARATOR, FILE_SEPARATOR);
+            RunManifest runManifest = new RunManifest(manifestFile, true);
+            runManifest.load();
+            stepScheduler.setRunManifest(runManifest);
+        }
+        
         for (NGSBase ngsStep: ngsSteps){
-            ngsStep.verifyInputData();
-            ngsStep.execute();
+            stepScheduler.addStep(ngsStep);
         }
+        stepScheduler.execute();
         
     }
     
@@ -209,12 +228,31 @@ public class SmallNGSPipeline {
                  refDataLocations, stepData.getInputFileList(), stepData.getOutputFileList(), this.getSampleData());
         StepUnzipInputFiles ngsUnzipFastqStep = new StepUnzipInputFiles(sidUnzip);        
         ngsUnzipFastqStep.parseConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepUnzipInputFiles.STEP_ID_STRING));   
+        ngsUnzipFastqStep.setConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepUnzipInputFiles.STEP_ID_STRING));
         ngsSteps.add(ngsUnzipFastqStep);
         
     }
 
     
     
+    /**
+     * add step to write a QC report for each FASTQ file
+     * @param stepData 
+     */
+    private void addStepFastqQC(NGSRunStepData stepData) throws IOException, Exception{
+
+        logger.info("loading step " + StepFastqQC.STEP_ID_STRING);
+        StepInputData sidQC = new StepInputData(this.getPipelineData().getProjectID(), this.getPipelineData().getProjectRoot(), 
+                 refDataLocations, stepData.getInputFileList(), stepData.getOutputFileList(), this.getSampleData());
+        StepFastqQC ngsFastqQCStep = new StepFastqQC(sidQC);
+        ngsFastqQCStep.parseConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepFastqQC.STEP_ID_STRING));        
+        ngsFastqQCStep.setConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepFastqQC.STEP_ID_STRING));
+        ngsSteps.add(ngsFastqQCStep);
+        
+    }
+    
+    
+    
     /**
      * add step to trim adapter sequences from single end FASTQ files
      * @param stepData 
@@ -226,6 +264,7 @@ public class SmallNGSPipeline {
                  refDataLocations, stepData.getInputFileList(), stepData.getOutputFileList(), this.getSampleData());
         StepSingleTrimAdapters ngsSingleTrimStep = new StepSingleTrimAdapters(sidTrim);
         ngsSingleTrimStep.parseConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepSingleTrimAdapters.STEP_ID_STRING));        
+        ngsSingleTrimStep.setConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepSingleTrimAdapters.STEP_ID_STRING));
         ngsSteps.add(ngsSingleTrimStep);
         
     }
@@ -245,6 +284,7 @@ public class SmallNGSPipeline {
                  refDataLocations, stepData.getInputFileList(), stepData.getOutputFileList(), this.getSampleData());
         StepCollapseReads ngsCollapseStep = new StepCollapseReads(sidCollapse);
         ngsCollapseStep.parseConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepCollapseReads.STEP_ID_STRING));
+        ngsCollapseStep.setConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepCollapseReads.STEP_ID_STRING));
         ngsSteps.add(ngsCollapseStep);
         
     }
@@ -262,6 +302,7 @@ public class SmallNGSPipeline {
                  refDataLocations, stepData.getInputFileList(), stepData.getOutputFileList(), this.getSampleData());
         StepBowtieMapSingleReads ngsBowtieMapReads = new StepBowtieMapSingleReads(sidMapSR);
         ngsBowtieMapReads.parseConfigurationData((HashMap)pipelineConfigurationDataHash.get(StepBowtieMapSingleReads.STEP_ID_STRING));
+        ngsBowtieMapReads.setConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepBowtieMapSingleReads.STEP_ID_STRING));
         ngsSteps.add(ngsBowtieMapReads);
         
     }
@@ -295,6 +336,7 @@ public class SmallNGSPipeline {
                  refDataLocations, stepData.getInputFileList(), stepData.getOutputFileList(), this.getSampleData());
         StepParseSAMForMiRNAs ngsParseSAMForMiRNAs = new StepParseSAMForMiRNAs(sidSAM);
         ngsParseSAMForMiRNAs.parseConfigurationData((HashMap)pipelineConfigurationDataHash.get(StepParseSAMForMiRNAs.STEP_ID_STRING));
+        ngsParseSAMForMiRNAs.setConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepParseSAMForMiRNAs.STEP_ID_STRING));
         ngsSteps.add(ngsParseSAMForMiRNAs);
        
     }
@@ -313,6 +355,7 @@ public class SmallNGSPipeline {
                  refDataLocations, stepData.getInputFileList(), stepData.getOutputFileList(), this.getSampleData());
         StepAnalyzeSAMforStartPositions ngsAnalyzeSAMStartPos = new StepAnalyzeSAMforStartPositions(sidStart);
         ngsAnalyzeSAMStartPos.parseConfigurationData((HashMap)pipelineConfigurationDataHash.get(StepAnalyzeSAMforStartPositions.STEP_ID_STRING));
+        ngsAnalyzeSAMStartPos.setConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepAnalyzeSAMforStartPositions.STEP_ID_STRING));
         ngsSteps.add(ngsAnalyzeSAMStartPos);
         
     }
@@ -330,6 +373,7 @@ public class SmallNGSPipeline {
                  refDataLocations, stepData.getInputFileList(), stepData.getOutputFileList(), this.getSampleData());
         StepAnalyzeIsomiRDispersion analyzeIsomiRDispersions = new StepAnalyzeIsomiRDispersion(sidIsoDisp);
         analyzeIsomiRDispersions.parseConfigurationData((HashMap)pipelineConfigurationDataHash.get(StepAnalyzeIsomiRDispersion.STEP_ID_STRING));
+        analyzeIsomiRDispersions.setConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepAnalyzeIsomiRDispersion.STEP_ID_STRING));
         ngsSteps.add(analyzeIsomiRDispersions);
         
     }
@@ -349,6 +393,8 @@ public class SmallNGSPipeline {
         StepDEwithEdgeR edgeRDE = new StepDEwithEdgeR(siodDiffExpr);
 
         edgeRDE.parseConfigurationData((HashMap)pipelineConfigurationDataHash.get(StepDEwithEdgeR.STEP_ID_STRING));
+
+        edgeRDE.setConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepDEwithEdgeR.STEP_ID_STRING));
         ngsSteps.add(edgeRDE);
         
     }
@@ -367,6 +413,7 @@ public class SmallNGSPipeline {
                  refDataLocations, stepData.getInputFileList(), stepData.getOutputFileList(), this.getSampleData());
         StepBSMapReads ngsBSMapReads = new StepBSMapReads(sidBSMap);
         ngsBSMapReads.parseConfigurationData((HashMap)pipelineConfigurationDataHash.get(StepBSMapReads.STEP_ID_STRING));
+        ngsBSMapReads.setConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepBSMapReads.STEP_ID_STRING));
         ngsSteps.add(ngsBSMapReads);
         
     }
@@ -385,6 +432,7 @@ public class SmallNGSPipeline {
                  refDataLocations, stepData.getInputFileList(), stepData.getOutputFileList(), this.getSampleData());
         StepBSMapCalcMethRatios ngsStepBSMapMethRatios = new StepBSMapCalcMethRatios(sidBSMap);
         ngsStepBSMapMethRatios.parseConfigurationData((HashMap)pipelineConfigurationDataHash.get(StepBSMapCalcMethRatios.STEP_ID_STRING));
+        ngsStepBSMapMethRatios.setConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepBSMapCalcMethRatios.STEP_ID_STRING));
         ngsSteps.add(ngsStepBSMapMethRatios);
         
     }
@@ -402,6 +450,7 @@ public class SmallNGSPipeline {
                  refDataLocations, stepData.getInputFileList(), stepData.getOutputFileList(), this.getSampleData());
         StepCleanUp cleanUp = new StepCleanUp(sidCleanUp);
         cleanUp.parseConfigurationData((HashMap)pipelineConfigurationDataHash.get(StepCleanUp.STEP_ID_STRING));
+        cleanUp.setConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepCleanUp.STEP_ID_STRING));
         ngsSteps.add(cleanUp);
         
     }
@@ -419,6 +468,7 @@ public class SmallNGSPipeline {
                  refDataLocations, stepData.getInputFileList(), stepData.getOutputFileList(), this.getSampleData());
         StepMatchSmallRNAsBySeedRegions stepMatchSeedRegions = new StepMatchSmallRNAsBySeedRegions(sidMatchSeedRegions);
         stepMatchSeedRegions.parseConfigurationData((HashMap)pipelineConfigurationDataHash.get(StepMatchSmallRNAsBySeedRegions.STEP_ID_STRING));
+        stepMatchSeedRegions.setConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepMatchSmallRNAsBySeedRegions.STEP_ID_STRING));
         ngsSteps.add(stepMatchSeedRegions);
         
     }
@@ -481,7 +531,7 @@ public class SmallNGSPipeline {
      * 
      * @throws IOException 
      */
-    public void readConfigurationFile() throws IOException{
+    public void readConfigurationFile() throws IOException, Exception{
         
         logger.info("read pipeline configuration file <" + getConfigurationFile() + ">");
         
@@ -496,6 +546,8 @@ public class SmallNGSPipeline {
             throw new IOException("failed to load the reference data locations correctly");
         }
         
+        stepScheduler.parseConfigurationData((HashMap) pipelineConfigurationDataHash.get(StepScheduler.ID_CONFIG_ID));
+        
         logger.info("done\n");
         
     }
@@ -521,9 +573,14 @@ public class SmallNGSPipeline {
         ReferenceDataLocations rdl = new ReferenceDataLocations();
         pipelineExampleConfiguration.put(ReferenceDataLocations.ID_CONFIG_ID, rdl.generateExampleConfigurationData());
         
+        pipelineExampleConfiguration.put(StepScheduler.ID_CONFIG_ID, stepScheduler.generateExampleConfigurationData());
+        
         StepUnzipInputFiles stepUnzip = new StepUnzipInputFiles(emptySID);
         pipelineExampleConfiguration.put(StepUnzipInputFiles.STEP_ID_STRING, stepUnzip.generateExampleConfigurationData());
         
+        StepFastqQC stepFastqQC = new StepFastqQC(emptySID);
+        pipelineExampleConfiguration.put(StepFastqQC.STEP_ID_STRING, stepFastqQC.generateExampleConfigurationData());
+        
         StepSingleTrimAdapters stepSingleAdapterTrim = new StepSingleTrimAdapters(emptySID);
         pipelineExampleConfiguration.put(StepSingleTrimAdapters.STEP_ID_STRING, stepSingleAdapterTrim.generateExampleConfigurationData());
         
@@ -0,0 +1,508 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import no.uio.medisin.bag.ngssmallrna.steps.NGSBase;
+import no.uio.medisin.bag.ngssmallrna.steps.NGSStep;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * runs the pipeline steps as a dependency graph rather than a list.
+ *
+ * A step depends on an earlier step if
+ *   1. it reads from the folder the earlier step writes to
+ *   2. it writes to a folder the earlier step reads from or writes to,
+ *      unless the declared file extensions show the two steps can't
+ *      touch the same files
+ *   3. either of them is a barrier step (e.g. CleanUp)
+ *
+ * Steps whose dependencies have all completed are run concurrently,
+ * up to noOfWorkers at a time. With a single worker the steps run in the
+ * order they are listed in the pipeline file.
+ *
+ * Within a step, samples are processed up to noOfSampleWorkers at a time
+ * (see NGSStep.executeSamples)
+ *
+ * When resume is true the pipeline sets a run manifest, every completed
+ * step is recorded in it, and steps whose configuration, inputs and
+ * outputs are unchanged since they were recorded are skipped. Without a
+ * manifest nothing is fingerprinted or recorded.
+ *
+ * External programs run by a step are killed if they run for longer than
+ * processTimeoutMinutes (0, the default, means no limit).
+ *
+ * All steps share one ReferenceRegistry, so reference data is loaded once
+ * per run. Each step reserves its references when it is added and releases
+ * them when it finishes, successfully or not.
+ *
+ * @author sr
+ */
+public class StepScheduler {
+
+    static Logger                       logger                      = LogManager.getLogger();
+
+    public final static     String      ID_CONFIG_ID                = "StepScheduler";
+    public final static     String      ID_WORKERS                  = "noOfWorkers";
+    public final static     String      ID_SAMPLE_WORKERS           = "noOfSampleWorkers";
+    public final static     String      ID_RESUME                   = "resume";
+    public final static     String      ID_PROCESS_TIMEOUT          = "processTimeoutMinutes";
+
+    private int                         noOfWorkers                 = 1;
+    private int                         noOfSampleWorkers           = 1;
+    private Boolean                     resume                      = false;
+    private int                         processTimeoutMinutes       = 0;
+    private RunManifest                 runManifest                 = null;
+    private ReferenceRegistry           referenceRegistry           = new ReferenceRegistry();
+
+    private ArrayList<NGSBase>          steps                       = new ArrayList<>();
+    private ArrayList<ArrayList<Integer>> dependencies              = new ArrayList<>();
+
+
+
+    public StepScheduler(){
+
+    }
+
+
+
+    /**
+     * the scheduler section is optional, if it is missing the steps are
+     * run one at a time
+     *
+     * @param configData
+     * @throws Exception
+     */
+    public void parseConfigurationData(HashMap configData) throws Exception{
+
+        logger.info(ID_CONFIG_ID + ": verify configuration data");
+        if(configData == null){
+            logger.info("no scheduler configuration specified, steps and samples will be run sequentially");
+            return;
+        }
+
+        if(configData.get(ID_SAMPLE_WORKERS)!=null){
+            try{
+                this.setNoOfSampleWorkers((Integer)configData.get(ID_SAMPLE_WORKERS));
+            }
+            catch(ClassCastException exCC){
+                logger.error(ID_SAMPLE_WORKERS + " <" + configData.get(ID_SAMPLE_WORKERS) + "> is not an integer");
+                throw new NumberFormatException(ID_SAMPLE_WORKERS + " <" + configData.get(ID_SAMPLE_WORKERS) + "> is not an integer");
+            }
+            if (this.getNoOfSampleWorkers() <= 0){
+                logger.error(ID_SAMPLE_WORKERS + " <" + configData.get(ID_SAMPLE_WORKERS) + "> must be positive integer");
+                throw new IllegalArgumentException(ID_SAMPLE_WORKERS + " <" + configData.get(ID_SAMPLE_WORKERS) + "> must be positive integer");
+            }
+        }
+
+        if(configData.get(ID_RESUME)!=null){
+            try{
+                this.setResume((Boolean)configData.get(ID_RESUME));
+            }
+            catch(ClassCastException exCC){
+                logger.error(ID_RESUME + " <" + configData.get(ID_RESUME) + "> cannot be cast as Boolean");
+                throw new IllegalArgumentException(ID_RESUME + " <" + configData.get(ID_RESUME) + "> cannot be cast as Boolean");
+            }
+        }
+
+        if(configData.get(ID_PROCESS_TIMEOUT)!=null){
+            try{
+                this.setProcessTimeoutMinutes((Integer)configData.get(ID_PROCESS_TIMEOUT));
+            }
+            catch(ClassCastException exCC){
+                logger.error(ID_PROCESS_TIMEOUT + " <" + configData.get(ID_PROCESS_TIMEOUT) + "> is not an integer");
+                throw new NumberFormatException(ID_PROCESS_TIMEOUT + " <" + configData.get(ID_PROCESS_TIMEOUT) + "> is not an integer");
+            }
+            if (this.getProcessTimeoutMinutes() < 0){
+                logger.error(ID_PROCESS_TIMEOUT + " <" + configData.get(ID_PROCESS_TIMEOUT) + "> must be >= 0");
+                throw new IllegalArgumentException(ID_PROCESS_TIMEOUT + " <" + configData.get(ID_PROCESS_TIMEOUT) + "> must be >= 0");
+            }
+        }
+
+        if(configData.get(ID_WORKERS)==null){
+            logger.info("no <" + ID_WORKERS + "> specified, steps will be run sequentially");
+            return;
+        }
+
+        try{
+            this.setNoOfWorkers((Integer)configData.get(ID_WORKERS));
+        }
+        catch(ClassCastException exCC){
+            logger.error(ID_WORKERS + " <" + configData.get(ID_WORKERS) + "> is not an integer");
+            throw new NumberFormatException(ID_WORKERS + " <" + configData.get(ID_WORKERS) + "> is not an integer");
+        }
+        if (this.getNoOfWorkers() <= 0){
+            logger.error(ID_WORKERS + " <" + configData.get(ID_WORKERS) + "> must be positive integer");
+            throw new IllegalArgumentException(ID_WORKERS + " <" + configData.get(ID_WORKERS) + "> must be positive integer");
+        }
+        logger.info("passed");
+    }
+
+
+
+    /**
+     * generate sample configuration data
+     *
+     * @return
+     */
+    public HashMap generateExampleConfigurationData() {
+
+        HashMap configData = new HashMap();
+        configData.put(ID_WORKERS, 1);
+        configData.put(ID_SAMPLE_WORKERS, 1);
+        configData.put(ID_RESUME, false);
+        configData.put(ID_PROCESS_TIMEOUT, 0);
+
+        return configData;
+    }
+
+
+
+    /**
+     * add a step to the graph. Steps must be added in pipeline order
+     * because a step can only depend on steps added before it.
+     * The configuration data must be parsed, and the run manifest set,
+     * before steps are added
+     *
+     * @param ngsStep
+     */
+    public void addStep(NGSBase ngsStep){
+
+        if(ngsStep instanceof NGSStep){
+            ((NGSStep) ngsStep).setNoOfSampleWorkers(this.getNoOfSampleWorkers());
+            ((NGSStep) ngsStep).setRunManifest(this.getRunManifest());
+            ((NGSStep) ngsStep).setProcessTimeout(60L * this.getProcessTimeoutMinutes());
+            ((NGSStep) ngsStep).setReferenceRegistry(referenceRegistry);
+            referenceRegistry.reserve(((NGSStep) ngsStep).getReferenceKeys());
+        }
+
+        ArrayList<Integer> stepDependencies = new ArrayList<>();
+        for(int i=0; i<steps.size(); i++){
+            if(this.doesStepDependOn(ngsStep, steps.get(i)))
+                stepDependencies.add(i);
+        }
+        steps.add(ngsStep);
+        dependencies.add(stepDependencies);
+
+    }
+
+
+
+    /**
+     * does the later step have to wait for the earlier step?
+     *
+     * @param laterStep
+     * @param earlierStep
+     * @return
+     */
+    private Boolean doesStepDependOn(NGSBase laterStep, NGSBase earlierStep){
+
+        if(laterStep instanceof NGSStep == false || earlierStep instanceof NGSStep == false)
+            return true;
+
+        NGSStep later = (NGSStep) laterStep;
+        NGSStep earlier = (NGSStep) earlierStep;
+
+        if(later.isPipelineBarrier() || earlier.isPipelineBarrier())
+            return true;
+
+        // read after write
+        if(later.getInputFolder().equals(earlier.getOutputFolder()))
+            return true;
+
+        // write after write
+        if(later.getOutputFolder().equals(earlier.getOutputFolder())
+                && this.doExtensionsOverlap(later.getOutputFileExtensions(), earlier.getOutputFileExtensions()))
+            return true;
+
+        // write after read
+        if(later.getOutputFolder().equals(earlier.getInputFolder())
+                && this.doExtensionsOverlap(later.getOutputFileExtensions(), earlier.getInputFileExtensions()))
+            return true;
+
+        return false;
+    }
+
+
+
+    /**
+     * two extension lists overlap if any extension is a suffix of one in
+     * the other list (e.g. ".fastq" and ".trim.fastq"). An undeclared
+     * (empty) list overlaps with everything
+     *
+     * @param extensions1
+     * @param extensions2
+     * @return
+     */
+    private Boolean doExtensionsOverlap(ArrayList<String> extensions1, ArrayList<String> extensions2){
+
+        if(extensions1.isEmpty() || extensions2.isEmpty())
+            return true;
+
+        for(String ext1: extensions1){
+            for(String ext2: extensions2){
+                if(ext1.endsWith(ext2) || ext2.endsWith(ext1))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+
+
+    /**
+     * run the steps. Each ready step is verified and executed on one of the
+     * workers. If a step fails no new steps are started, the running steps
+     * are allowed to finish and the first error is rethrown
+     *
+     * @throws IOException
+     */
+    public void execute() throws IOException{
+
+        int noOfSteps = steps.size();
+        logger.info("scheduling " + noOfSteps + " steps on " + this.getNoOfWorkers() + " worker(s)");
+        for(int s=0; s<noOfSteps; s++){
+            logger.info(" - step " + s + " depends on " + dependencies.get(s));
+        }
+
+        boolean[] started   = new boolean[noOfSteps];
+        boolean[] completed = new boolean[noOfSteps];
+        int noCompleted = 0;
+        int noRunning = 0;
+        IOException firstError = null;
+
+        ExecutorService executor = Executors.newFixedThreadPool(this.getNoOfWorkers());
+        ExecutorCompletionService<Integer> completionService = new ExecutorCompletionService<>(executor);
+        try{
+            while(noCompleted < noOfSteps){
+
+                if(firstError == null){
+                    for(int s=0; s<noOfSteps && noRunning < this.getNoOfWorkers(); s++){
+                        if(started[s] || this.isStepReady(s, completed)==false)
+                            continue;
+                        started[s] = true;
+                        noRunning++;
+                        completionService.submit(this.createStepTask(s));
+                    }
+                }
+
+                if(noRunning == 0)
+                    break;
+
+                Future<Integer> finished = completionService.take();
+                noRunning--;
+                try{
+                    int s = finished.get();
+                    completed[s] = true;
+                    noCompleted++;
+                    logger.info("step " + s + " completed (" + noCompleted + " of " + noOfSteps + ")");
+                }
+                catch(ExecutionException exEx){
+                    logger.error("step failed: " + exEx.getCause());
+                    if(firstError == null){
+                        firstError = exEx.getCause() instanceof IOException ?
+                                (IOException) exEx.getCause() : new IOException(exEx.getCause());
+                    }
+                }
+            }
+        }
+        catch(InterruptedException exIE){
+            logger.error("pipeline execution was interrupted");
+            throw new IOException("pipeline execution was interrupted");
+        }
+        finally{
+            executor.shutdownNow();
+        }
+
+        if(firstError != null)
+            throw firstError;
+
+    }
+
+
+
+    /**
+     *
+     * @param s
+     * @param completed
+     * @return true if all the steps this step depends on have completed
+     */
+    private Boolean isStepReady(int s, boolean[] completed){
+        for(int d: dependencies.get(s)){
+            if(completed[d] == false)
+                return false;
+        }
+        return true;
+    }
+
+
+
+    /**
+     * wrap a step so it can be run by the executor
+     *
+     * @param s
+     * @return
+     */
+    private Callable<Integer> createStepTask(final int s){
+
+        final NGSBase ngsStep = steps.get(s);
+        return new Callable<Integer>(){
+            @Override
+            public Integer call() throws Exception{
+                logger.info("starting step " + s + " <" + ngsStep.getClass().getSimpleName() + ">");
+                try{
+                    if(isStepUpToDate(ngsStep)){
+                        logger.info("step " + s + " is up to date, skipping");
+                        return s;
+                    }
+                    ngsStep.verifyInputData();
+                    ngsStep.execute();
+                    recordStep(ngsStep);
+                    return s;
+                }
+                finally{
+                    if(ngsStep instanceof NGSStep){
+                        ((NGSStep) ngsStep).dropReferences();
+                        referenceRegistry.release(((NGSStep) ngsStep).getReferenceKeys());
+                    }
+                }
+            }
+        };
+    }
+
+
+
+    /**
+     * check the run manifest to see whether the step can be skipped.
+     * If it can't, any previous record of the step is removed
+     *
+     * @param ngsStep
+     * @return
+     * @throws IOException
+     */
+    private Boolean isStepUpToDate(NGSBase ngsStep) throws IOException{
+
+        if(runManifest == null || ngsStep instanceof NGSStep == false || ((NGSStep) ngsStep).isResumable() == false)
+            return false;
+
+        NGSStep step = (NGSStep) ngsStep;
+        if(runManifest.isUpToDate(step.getStepKey(), step.getStepFingerprint()))
+            return true;
+
+        runManifest.invalidate(step.getStepKey());
+        return false;
+    }
+
+
+
+    /**
+     * record a completed step in the run manifest. Steps that didn't write
+     * any of their declared outputs aren't recorded
+     *
+     * @param ngsStep
+     * @throws IOException
+     */
+    private void recordStep(NGSBase ngsStep) throws IOException{
+
+        if(runManifest == null || ngsStep instanceof NGSStep == false || ((NGSStep) ngsStep).isResumable() == false)
+            return;
+
+        NGSStep step = (NGSStep) ngsStep;
+        ArrayList<String> outputFiles = step.getStepOutputFiles();
+        if(outputFiles.isEmpty())
+            return;
+        runManifest.record(step.getStepKey(), step.getStepFingerprint(), outputFiles);
+    }
+
+
+
+    /**
+     * @return the noOfWorkers
+     */
+    public int getNoOfWorkers() {
+        return noOfWorkers;
+    }
+
+    /**
+     * @param noOfWorkers the noOfWorkers to set
+     */
+    public void setNoOfWorkers(int noOfWorkers) {
+        this.noOfWorkers = noOfWorkers;
+    }
+
+    /**
+     * @return the noOfSampleWorkers
+     */
+    public int getNoOfSampleWorkers() {
+        return noOfSampleWorkers;
+    }
+
+    /**
+     * @param noOfSampleWorkers the noOfSampleWorkers to set
+     */
+    public void setNoOfSampleWorkers(int noOfSampleWorkers) {
+        this.noOfSampleWorkers = noOfSampleWorkers;
+    }
+
+    /**
+     * @return the resume
+     */
+    public Boolean getResume() {
+        return resume;
+    }
+
+    /**
+     * @param resume the resume to set
+     */
+    public void setResume(Boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * @return the runManifest
+     */
+    public RunManifest getRunManifest() {
+        return runManifest;
+    }
+
+    /**
+     * @param runManifest the runManifest to set
+     */
+    public void setRunManifest(RunManifest runManifest) {
+        this.runManifest = runManifest;
+    }
+
+    /**
+     * @return the registry shared by the steps
+     */
+    public ReferenceRegistry getReferenceRegistry() {
+        return referenceRegistry;
+    }
+
+    /**
+     * @return the processTimeoutMinutes
+     */
+    public int getProcessTimeoutMinutes() {
+        return processTimeoutMinutes;
+    }
+
+    /**
+     * @param processTimeoutMinutes the processTimeoutMinutes to set
+     */
+    public void setProcessTimeoutMinutes(int processTimeoutMinutes) {
+        this.processTimeoutMinutes = processTimeoutMinutes;
+    }
+
+}
@@ -37,15 +37,45 @@ public class TargetScanMirFamily {
 
     
     public TargetScanMirFamily(String familyLine){
+        this(familyLine.split("\t"));
+    }
+    
+    
+    
+    /**
+     * 
+     * @param fields the tab delimited fields of a miR_Family_Info line
+     */
+    public TargetScanMirFamily(String[] fields){
+        
+        miRFamily           = fields[MIRFAMILY_COL].trim();
+        seedM8              = fields[SEED_COL].trim();
+        speciesID           = fields[SPECIESID_COL].trim();
+        miRBaseID           = fields[MIRBASEID_COL].trim();
+        matureSequence      = fields[SEQ_COL].trim();
+        familyConservation  = fields[CONSERVATION_COL].trim();
+        if (fields.length == 7)
+            miRBaseAccession    = fields[MIRBASEACC_COL].trim();
+        
+    }
+    
+    
+    
+    /**
+     * 
+     * @param familyTable   a miR_Family_Info table
+     * @param row
+     */
+    public TargetScanMirFamily(ReferenceTable familyTable, int row){
         
-        miRFamily           = familyLine.split("\t")[MIRFAMILY_COL].trim();
-        seedM8              = familyLine.split("\t")[SEED_COL].trim();
-        speciesID           = familyLine.split("\t")[SPECIESID_COL].trim();
-        miRBaseID           = familyLine.split("\t")[MIRBASEID_COL].trim();
-        matureSequence      = familyLine.split("\t")[SEQ_COL].trim();
-        familyConservation  = familyLine.split("\t")[CONSERVATION_COL].trim();
-        if (familyLine.split("\t").length == 7)
-            miRBaseAccession    = familyLine.split("\t")[MIRBASEACC_COL].trim();
+        miRFamily           = familyTable.getString(row, MIRFAMILY_COL);
+        seedM8              = familyTable.getString(row, SEED_COL);
+        speciesID           = familyTable.getString(row, SPECIESID_COL);
+        miRBaseID           = familyTable.getString(row, MIRBASEID_COL);
+        matureSequence      = familyTable.getString(row, SEQ_COL);
+        familyConservation  = familyTable.getString(row, CONSERVATION_COL);
+        if (familyTable.getNoOfFields(row) == 7)
+            miRBaseAccession    = familyTable.getString(row, MIRBASEACC_COL);
         
     }
     
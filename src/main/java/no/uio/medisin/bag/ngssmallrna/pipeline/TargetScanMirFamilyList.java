@@ -5,9 +5,6 @@
  */
 package no.uio.medisin.bag.ngssmallrna.pipeline;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import org.apache.logging.log4j.Logger;
@@ -23,31 +20,29 @@ public class TargetScanMirFamilyList {
     private ArrayList<TargetScanMirFamily> targetScanMirFamilies;
     
     /**
+     * the file is read through a ReferenceSnapshot, so it is only parsed 
+     * from text the first time
      * 
      * @param miRFamilyDataFilename
+     * @param snapshotFolder    shared snapshot folder, null to keep the snapshot next to the file
      * @return list size
      * @throws IOException 
      */
-    public int loadConservedFamilyList(String miRFamilyDataFilename) throws IOException{
+    public int loadConservedFamilyList(String miRFamilyDataFilename, String snapshotFolder) throws IOException{
         targetScanMirFamilies = new ArrayList<>();
         
-        String familyLine = "";
-        try(BufferedReader brCF = new BufferedReader(new FileReader(new File(miRFamilyDataFilename)))){
-            brCF.readLine();
-            while((familyLine=brCF.readLine())!=null){
-                logger.debug(familyLine);
-                targetScanMirFamilies.add(new TargetScanMirFamily(familyLine));
+        try{
+            ReferenceTable familyTable = new ReferenceSnapshot(miRFamilyDataFilename, snapshotFolder).loadTable();
+            for(int row=0; row<familyTable.getNoOfRows(); row++){
+                targetScanMirFamilies.add(new TargetScanMirFamily(familyTable, row));
             }
-            brCF.close();   
             return targetScanMirFamilies.size();
         }
         catch(IOException exIO){
             logger.error("error reading <miR_Family_Info> file < " + miRFamilyDataFilename);
-            logger.error("error occurred on this line");
-            logger.error(familyLine);
+            logger.error(exIO);
             
-            throw new IOException("error reading " + "<miR_Family_Info> file < " + miRFamilyDataFilename + ">\n"
-                    + "error occurred on this line\n" + familyLine);
+            throw new IOException("error reading " + "<miR_Family_Info> file < " + miRFamilyDataFilename + ">\n" + exIO);
         }
             
     }
@@ -43,18 +43,51 @@ public class TargetScanPredictedTarget {
     
     
     public TargetScanPredictedTarget(String targetLine){
+        this(targetLine.split("\t"));
+    }
+    
+    
+    
+    /**
+     * 
+     * @param fields the tab delimited fields of a Predicted_Targets_Info line
+     */
+    public TargetScanPredictedTarget(String[] fields){
+        
+        miRFamily       = fields[MIRFAMILY_COL].trim();
+        GeneID          = fields[GENEID_COL].trim();
+        GeneSymbol      = fields[GENESYMB_COL].trim();
+        TranscriptID    = fields[TRANSID_COL].trim();
+        SpeciesID       = Integer.parseInt(fields[SPECIESID_COL].trim());
+        UTRstart        = Integer.parseInt(fields[UTTSTART_COL].trim());
+        UTRend          = Integer.parseInt(fields[UTREND_COL].trim());
+        MSAstart        = Integer.parseInt(fields[MSASTART_COL].trim());
+        MSAend          = Integer.parseInt(fields[MSASTOP_COL].trim());
+        Seedmatch       = fields[SEEDMATCH_COL].trim();
+        PCT             = fields[PCT_COL].trim();
+        
+    }
+    
+    
+    
+    /**
+     * 
+     * @param targetTable   a Predicted_Targets_Info table
+     * @param row
+     */
+    public TargetScanPredictedTarget(ReferenceTable targetTable, int row){
         
-        miRFamily       = targetLine.split("\t")[MIRFAMILY_COL].trim();
-        GeneID          = targetLine.split("\t")[GENEID_COL].trim();
-        GeneSymbol      = targetLine.split("\t")[GENESYMB_COL].trim();
-        TranscriptID    = targetLine.split("\t")[TRANSID_COL].trim();
-        SpeciesID       = Integer.parseInt(targetLine.split("\t")[SPECIESID_COL].trim());
-        UTRstart        = Integer.parseInt(targetLine.split("\t")[UTTSTART_COL].trim());
-        UTRend          = Integer.parseInt(targetLine.split("\t")[UTREND_COL].trim());
-        MSAstart        = Integer.parseInt(targetLine.split("\t")[MSASTART_COL].trim());
-        MSAend          = Integer.parseInt(targetLine.split("\t")[MSASTOP_COL].trim());
-        Seedmatch       = targetLine.split("\t")[SEEDMATCH_COL].trim();
-        PCT             = targetLine.split("\t")[PCT_COL].trim();
+        miRFamily       = targetTable.getString(row, MIRFAMILY_COL);
+        GeneID          = targetTable.getString(row, GENEID_COL);
+        GeneSymbol      = targetTable.getString(row, GENESYMB_COL);
+        TranscriptID    = targetTable.getString(row, TRANSID_COL);
+        SpeciesID       = targetTable.getInt(row, SPECIESID_COL);
+        UTRstart        = targetTable.getInt(row, UTTSTART_COL);
+        UTRend          = targetTable.getInt(row, UTREND_COL);
+        MSAstart        = targetTable.getInt(row, MSASTART_COL);
+        MSAend          = targetTable.getInt(row, MSASTOP_COL);
+        Seedmatch       = targetTable.getString(row, SEEDMATCH_COL);
+        PCT             = targetTable.getString(row, PCT_COL);
         
     }
     
@@ -5,9 +5,6 @@
  */
 package no.uio.medisin.bag.ngssmallrna.pipeline;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import org.apache.logging.log4j.Logger;
@@ -28,29 +25,28 @@ public class TargetScanPredictedTargetList {
     
     
     /**
-     * load target entries from Target Scan 
+     * load target entries from Target Scan. The file is read through a 
+     * ReferenceSnapshot, so it is only parsed from text the first time
+     * 
      * @param predictedTargetInfoFilename
+     * @param snapshotFolder    shared snapshot folder, null to keep the snapshot next to the file
      * @throws IOException 
      */
-    public void loadPredictedTargetInfo(String predictedTargetInfoFilename) throws IOException{
+    public void loadPredictedTargetInfo(String predictedTargetInfoFilename, String snapshotFolder) throws IOException{
         targetScanPredictedTargets = new ArrayList<>();
         
-        String targetLine ="";
-        try(BufferedReader brCF = new BufferedReader(new FileReader(new File(predictedTargetInfoFilename)))){
-            brCF.readLine();
-            while((targetLine=brCF.readLine())!=null){
-                targetScanPredictedTargets.add(new TargetScanPredictedTarget(targetLine));
+        try{
+            ReferenceTable targetTable = new ReferenceSnapshot(predictedTargetInfoFilename, snapshotFolder).loadTable();
+            for(int row=0; row<targetTable.getNoOfRows(); row++){
+                targetScanPredictedTargets.add(new TargetScanPredictedTarget(targetTable, row));
             }
-            brCF.close(); 
         }
         catch(IOException exIO){
             
             logger.error("error reading <Predicted_Targets_Info< file < " + predictedTargetInfoFilename);
-            logger.error("error occurred on this line");
-            logger.error(targetLine);
+            logger.error(exIO);
             
-            throw new IOException("error reading " + "<Predicted_Targets_Info< file < " + predictedTargetInfoFilename + ">\n"
-                    + "error occurred on this line\n" + targetLine);
+            throw new IOException("error reading " + "<Predicted_Targets_Info< file < " + predictedTargetInfoFilename + ">\n" + exIO);
             
         }
         
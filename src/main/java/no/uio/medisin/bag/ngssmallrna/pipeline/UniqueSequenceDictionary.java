@@ -0,0 +1,447 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * the unique sequences across all the samples in a project, with the
+ * count of each sequence in each sample.
+ *
+ * Most small RNA sequences turn up in many samples, so the project has far
+ * fewer unique sequences than the samples have between them. Mapping the
+ * unique sequences once and then splitting the results back out to the
+ * samples saves aligning the same read again for every sample.
+ *
+ * Each sequence gets an id, and is written to the project FASTA as
+ * id-totalcount. The per sample counts are held as a sparse matrix, stored
+ * by id (ids, then the samples that contain each id and their counts), so
+ * a mapped read can be sent to the samples that contain it. When results
+ * are split out, each read is renamed id-samplecount, so the sample files
+ * keep the name-count format used by the rest of the pipeline.
+ *
+ * @author sr
+ */
+public class UniqueSequenceDictionary {
+
+    static Logger                       logger                      = LogManager.getLogger();
+
+    private static final int            BUFFER_SIZE                 = 1024 * 1024;
+
+    /* sequence -> id + 1; sequences that can't be packed (e.g. with an N) go in otherSequenceIds */
+    private final SequenceCounter               sequenceIds         = new SequenceCounter();
+    private final HashMap<String, Integer>      otherSequenceIds    = new HashMap<>();
+    private int                                 noOfSequences       = 0;
+
+    private final ArrayList<String>             sampleNames         = new ArrayList<>();
+    private final ArrayList<SampleCounts>       sampleCounts        = new ArrayList<>();
+
+    /* the sparse matrix by id, built by build() */
+    private int[]                               idStarts            = null;
+    private int[]                               entrySamples        = null;
+    private int[]                               entryCounts         = null;
+    private long[]                              totalCounts         = null;
+
+
+
+    /**
+     * the (id, count) pairs for one sample, in the order they were read
+     */
+    private static class SampleCounts{
+        int[]                           ids                         = new int[1024];
+        int[]                           counts                      = new int[1024];
+        int                             size                        = 0;
+
+        void add(int id, int count){
+            if(size == ids.length){
+                ids = Arrays.copyOf(ids, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            ids[size] = id;
+            counts[size] = count;
+            size++;
+        }
+    }
+
+
+
+    /**
+     * add the sequences from a collapsed FASTA file (name-count headers)
+     *
+     * @param sampleName
+     * @param collapsedFasta
+     * @throws IOException
+     */
+    public void addSample(String sampleName, String collapsedFasta) throws IOException{
+        this.addSample(sampleName, collapsedFasta, null);
+    }
+
+
+
+    /**
+     * add the sequences from a collapsed FASTA file (name-count headers),
+     * counting each read as input in the sample's mapping summary
+     *
+     * @param sampleName
+     * @param collapsedFasta
+     * @param sampleSummary     null if the input isn't counted
+     * @throws IOException
+     */
+    public void addSample(String sampleName, String collapsedFasta, MappingSummary sampleSummary) throws IOException{
+
+        if(idStarts != null){
+            throw new IllegalStateException("can't add sample <" + sampleName + "> after the dictionary has been built");
+        }
+
+        logger.info("adding sequences from <" + collapsedFasta + "> for sample <" + sampleName + ">");
+        SampleCounts counts = new SampleCounts();
+        String headerLine = null;
+        try(BufferedReader brFA = new BufferedReader(new FileReader(new File(collapsedFasta)), BUFFER_SIZE)){
+            while((headerLine = brFA.readLine()) != null){
+                if(headerLine.isEmpty()) continue;
+                String sequence = brFA.readLine();
+                if(headerLine.charAt(0) != '>' || sequence == null){
+                    logger.error("error reading collapsed FASTA <" + collapsedFasta + "> at <" + headerLine + ">");
+                    throw new IOException("error reading collapsed FASTA <" + collapsedFasta + "> at <" + headerLine + ">");
+                }
+                int count;
+                try{
+                    count = Integer.parseInt(headerLine.substring(1).split("-")[1].trim());
+                }
+                catch(NumberFormatException | ArrayIndexOutOfBoundsException exNF){
+                    logger.error("header <" + headerLine + "> in <" + collapsedFasta + "> is not in name-count format");
+                    throw new IOException("header <" + headerLine + "> in <" + collapsedFasta + "> is not in name-count format");
+                }
+                counts.add(this.getId(sequence.trim()), count);
+                if(sampleSummary != null)
+                    sampleSummary.add(MappingSummary.INPUT, sequence.trim().length(), count);
+            }
+        }
+
+        sampleNames.add(sampleName);
+        sampleCounts.add(counts);
+        logger.info(counts.size + " sequences read, " + noOfSequences + " unique sequences in project");
+
+    }
+
+
+
+    /**
+     *
+     * @param sequence
+     * @return the id for the sequence, adding it if it is new
+     */
+    private int getId(String sequence){
+
+        int value = sequenceIds.putIfAbsent(sequence, noOfSequences + 1);
+        if(value > 0)
+            return value - 1;
+        if(value == 0)
+            return noOfSequences++;
+
+        Integer id = otherSequenceIds.get(sequence);
+        if(id == null){
+            id = noOfSequences++;
+            otherSequenceIds.put(sequence, id);
+        }
+        return id;
+    }
+
+
+
+    /**
+     * build the sparse matrix by id. Call this after the last sample has
+     * been added
+     */
+    public void build(){
+
+        idStarts = new int[noOfSequences + 1];
+        totalCounts = new long[noOfSequences];
+        for(SampleCounts counts: sampleCounts){
+            for(int i=0; i<counts.size; i++){
+                idStarts[counts.ids[i] + 1]++;
+            }
+        }
+        for(int id=0; id<noOfSequences; id++){
+            idStarts[id + 1] += idStarts[id];
+        }
+
+        entrySamples = new int[idStarts[noOfSequences]];
+        entryCounts = new int[idStarts[noOfSequences]];
+        int[] nextEntry = Arrays.copyOf(idStarts, noOfSequences);
+        for(int s=0; s<sampleCounts.size(); s++){
+            SampleCounts counts = sampleCounts.get(s);
+            for(int i=0; i<counts.size; i++){
+                int id = counts.ids[i];
+                int entry = nextEntry[id]++;
+                entrySamples[entry] = s;
+                entryCounts[entry] = counts.counts[i];
+                totalCounts[id] += counts.counts[i];
+            }
+        }
+        sampleCounts.clear();
+
+        logger.info(noOfSequences + " unique sequences in " + sampleNames.size() + " samples, "
+                + entrySamples.length + " sample counts");
+    }
+
+
+
+    /**
+     * write every unique sequence once, named id-totalcount
+     *
+     * @param fastaFile
+     * @throws IOException
+     */
+    public void writeUniqueFasta(String fastaFile) throws IOException{
+
+        this.checkBuilt();
+        try(final BufferedWriter bwFA = new BufferedWriter(new FileWriter(new File(fastaFile)), BUFFER_SIZE)){
+            sequenceIds.visitSequences(new SequenceCounter.SequenceVisitor(){
+                @Override
+                public void visit(int length, long[] packed, int offset, int value) throws IOException{
+                    int id = value - 1;
+                    bwFA.write(">" + id + "-" + totalCounts[id] + "\n");
+                    bwFA.write(SequenceCounter.decode(length, packed, offset) + "\n");
+                }
+            });
+            for(Map.Entry<String, Integer> other: otherSequenceIds.entrySet()){
+                bwFA.write(">" + other.getValue() + "-" + totalCounts[other.getValue()] + "\n");
+                bwFA.write(other.getKey() + "\n");
+            }
+        }
+        logger.info("wrote " + noOfSequences + " unique sequences to <" + fastaFile + ">");
+
+    }
+
+
+
+    /**
+     * write the sparse count matrix as
+     *
+     *   id     sample      count
+     *
+     * @param countFile
+     * @throws IOException
+     */
+    public void writeCountMatrix(String countFile) throws IOException{
+
+        this.checkBuilt();
+        try(BufferedWriter bwCM = new BufferedWriter(new FileWriter(new File(countFile)), BUFFER_SIZE)){
+            bwCM.write("id\tsample\tcount\n");
+            for(int id=0; id<noOfSequences; id++){
+                for(int entry=idStarts[id]; entry<idStarts[id + 1]; entry++){
+                    bwCM.write(id + "\t" + sampleNames.get(entrySamples[entry]) + "\t" + entryCounts[entry] + "\n");
+                }
+            }
+        }
+
+    }
+
+
+
+    /**
+     * split a FASTA file of project sequences (e.g. the reads bowtie
+     * aligned) into one file per sample. Each read goes to the samples that
+     * contain it, renamed id-samplecount
+     *
+     * @param projectFasta
+     * @param sampleFiles   one output file per sample, in the order the
+     *                      samples were added
+     * @return the number of reads written for each sample
+     * @throws IOException
+     */
+    public long[] splitFasta(String projectFasta, ArrayList<String> sampleFiles) throws IOException{
+
+        this.checkBuilt();
+        long[] noOfReads = new long[sampleNames.size()];
+        BufferedWriter[] writers = this.openSampleWriters(sampleFiles);
+        try(BufferedReader brFA = new BufferedReader(new FileReader(new File(projectFasta)), BUFFER_SIZE)){
+            String headerLine = null;
+            while((headerLine = brFA.readLine()) != null){
+                if(headerLine.isEmpty()) continue;
+                String sequence = brFA.readLine();
+                int id = this.parseId(headerLine.substring(1), projectFasta);
+                for(int entry=idStarts[id]; entry<idStarts[id + 1]; entry++){
+                    int sample = entrySamples[entry];
+                    writers[sample].write(">" + id + "-" + entryCounts[entry] + "\n" + sequence + "\n");
+                    noOfReads[sample] += entryCounts[entry];
+                }
+            }
+        }
+        finally{
+            this.closeSampleWriters(writers);
+        }
+        return noOfReads;
+
+    }
+
+
+
+    /**
+     * split a SAM file from mapping the project sequences into one file per
+     * sample. The header goes to every sample, and each alignment goes to
+     * the samples that contain the read, with the read renamed
+     * id-samplecount
+     *
+     * @param projectSAM
+     * @param sampleFiles   one output file per sample, in the order the
+     *                      samples were added
+     * @throws IOException
+     */
+    public void splitSAM(String projectSAM, ArrayList<String> sampleFiles) throws IOException{
+
+        this.checkBuilt();
+        BufferedWriter[] writers = this.openSampleWriters(sampleFiles);
+        try(BufferedReader brSAM = new BufferedReader(new FileReader(new File(projectSAM)), BUFFER_SIZE)){
+            String samLine = null;
+            while((samLine = brSAM.readLine()) != null){
+                if(samLine.startsWith("@")){
+                    for(BufferedWriter writer: writers){
+                        writer.write(samLine + "\n");
+                    }
+                    continue;
+                }
+                int tab = samLine.indexOf('\t');
+                if(tab < 0) continue;
+                int id = this.parseId(samLine.substring(0, tab), projectSAM);
+                String alignment = samLine.substring(tab);
+                for(int entry=idStarts[id]; entry<idStarts[id + 1]; entry++){
+                    writers[entrySamples[entry]].write(id + "-" + entryCounts[entry] + alignment + "\n");
+                }
+            }
+        }
+        finally{
+            this.closeSampleWriters(writers);
+        }
+
+    }
+
+
+
+    /**
+     * add a mapped project read to the summary of each sample that
+     * contains it, with that sample's count
+     *
+     * @param readName          id-totalcount
+     * @param category          see MappingSummary
+     * @param length            read length
+     * @param sampleSummaries   one per sample, in the order the samples were added
+     * @throws IOException
+     */
+    public void countRead(String readName, int category, int length, MappingSummary[] sampleSummaries) throws IOException{
+
+        this.checkBuilt();
+        int id = this.parseId(readName, "mapping output");
+        for(int entry=idStarts[id]; entry<idStarts[id + 1]; entry++){
+            sampleSummaries[entrySamples[entry]].add(category, length, entryCounts[entry]);
+        }
+
+    }
+
+
+
+    /**
+     *
+     * @param readName  id-count
+     * @param fileName  for the error message
+     * @return the id
+     * @throws IOException
+     */
+    private int parseId(String readName, String fileName) throws IOException{
+        try{
+            int id = Integer.parseInt(readName.substring(0, readName.indexOf('-')));
+            if(id >= 0 && id < noOfSequences)
+                return id;
+        }
+        catch(NumberFormatException | StringIndexOutOfBoundsException exNF){
+            // reported below
+        }
+        logger.error("read <" + readName + "> in <" + fileName + "> is not a sequence from this project");
+        throw new IOException("read <" + readName + "> in <" + fileName + "> is not a sequence from this project");
+    }
+
+
+
+    private BufferedWriter[] openSampleWriters(ArrayList<String> sampleFiles) throws IOException{
+
+        if(sampleFiles.size() != sampleNames.size()){
+            throw new IllegalArgumentException("expected " + sampleNames.size() + " sample files, got " + sampleFiles.size());
+        }
+        BufferedWriter[] writers = new BufferedWriter[sampleFiles.size()];
+        try{
+            for(int s=0; s<writers.length; s++){
+                writers[s] = new BufferedWriter(new FileWriter(new File(sampleFiles.get(s))));
+            }
+        }
+        catch(IOException exIO){
+            this.closeSampleWriters(writers);
+            throw exIO;
+        }
+        return writers;
+    }
+
+
+
+    private void closeSampleWriters(BufferedWriter[] writers) throws IOException{
+        IOException firstException = null;
+        for(BufferedWriter writer: writers){
+            if(writer == null) continue;
+            try{
+                writer.close();
+            }
+            catch(IOException exIO){
+                if(firstException == null) firstException = exIO;
+            }
+        }
+        if(firstException != null)
+            throw firstException;
+    }
+
+
+
+    private void checkBuilt(){
+        if(idStarts == null){
+            throw new IllegalStateException("the dictionary hasn't been built");
+        }
+    }
+
+
+
+    /**
+     * @return the number of unique sequences in the project
+     */
+    public int getNoOfSequences() {
+        return noOfSequences;
+    }
+
+    /**
+     * @return the sample names, in the order they were added
+     */
+    public ArrayList<String> getSampleNames() {
+        return sampleNames;
+    }
+
+    /**
+     * @return the number of non zero sample counts
+     */
+    public int getNoOfEntries() {
+        this.checkBuilt();
+        return entrySamples.length;
+    }
+
+}
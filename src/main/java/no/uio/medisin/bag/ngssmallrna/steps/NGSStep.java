@@ -6,15 +6,31 @@
 package no.uio.medisin.bag.ngssmallrna.steps;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import no.uio.medisin.bag.ngssmallrna.pipeline.ProcessResult;
+import no.uio.medisin.bag.ngssmallrna.pipeline.ProcessRunner;
+import no.uio.medisin.bag.ngssmallrna.pipeline.ReferenceRegistry;
+import no.uio.medisin.bag.ngssmallrna.pipeline.RunManifest;
+import no.uio.medisin.bag.ngssmallrna.pipeline.SampleDataEntry;
+import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 
 /**
  * THIS CLASS SHOULD NOT BE CHANGED WITHOUT CONSULTING WITH OTHER AUTHORS
+ * 
+ * the per sample executor (SampleExecutor), the process runner 
+ * (ProcessRunner) and the run manifest (RunManifest) are kept in their own 
+ * classes, this class only hands them the step settings
  * @author sr
  */
 abstract public class NGSStep {
     
+    private static Logger               logger          = LogManager.getLogger();
+    
     protected StepInputData             stepInputData   = null;
     protected StepResultData            stepResultData  = null;
     
@@ -22,9 +38,16 @@ abstract public class NGSStep {
     protected               String      outFolder       = null;
     
     protected static final  String      FILESEPARATOR   = System.getProperty("file.separator");
+    protected static final  String      GZIP_EXTENSION  = ".gz";
     protected static final  String      DISCOUNT_PARAMETER_LIMIT     = "NA";
     
     protected static final  String      BOOLEAN_NAME    = Boolean.class.getName();
+    
+    protected               int         noOfSampleWorkers           = 1;
+    protected               RunManifest runManifest                 = null;
+    protected   ReferenceRegistry   referenceRegistry               = new ReferenceRegistry();
+    protected               long        processTimeout              = 0;
+    protected               HashMap     configurationData           = new HashMap();
 
 /*    
     abstract void       verifyInputData() throws IOException, NullPointerException;
@@ -58,10 +81,423 @@ abstract public class NGSStep {
     final String cleanPath(String path){
         return path.replace(FILESEPARATOR + FILESEPARATOR, FILESEPARATOR);
     }
+
+
+
+
+    /**
+     * the processors are shared between the samples that are processed at
+     * the same time, so this is how many threads each sample should use
+     * 
+     * @return 
+     */
+    final int getNoOfThreadsPerSample(){
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, this.getNoOfSampleWorkers()));
+    }
+
+
+
+
+    /**
+     * FASTQ files can be read without unzipping them first, so if the
+     * FASTQ file isn't there, use the gzipped version if there is one
+     * 
+     * @param fastqFile
+     * @return fastqFile, or fastqFile.gz if only that exists
+     */
+    final String findFastqFile(String fastqFile){
+        if(new File(fastqFile).exists()==false && new File(fastqFile + GZIP_EXTENSION).exists())
+            return fastqFile + GZIP_EXTENSION;
+        return fastqFile;
+    }
+
+
+
+
+    /**
+     * the folder (relative to the project folder) this step reads from.
+     * used by the StepScheduler to work out which steps depend on each other
+     *
+     * @return
+     */
+    public String getInputFolder(){
+        return stepInputData.getInputFolder();
+    }
+
+
+
+
+    /**
+     * the folder (relative to the project folder) this step writes to.
+     *
+     * @return
+     */
+    public String getOutputFolder(){
+        return stepInputData.getOutputFolder();
+    }
+
+
+
+
+    /**
+     * file extensions read by this step. An empty list means the step hasn't
+     * declared them and the scheduler will assume it can read anything in
+     * its input folder
+     *
+     * @return
+     */
+    public ArrayList<String> getInputFileExtensions(){
+        return new ArrayList<>();
+    }
+
+
+
+
+    /**
+     * file extensions written by this step. An empty list means the step
+     * hasn't declared them and the scheduler will assume it can write
+     * anything in its output folder
+     *
+     * @return
+     */
+    public ArrayList<String> getOutputFileExtensions(){
+        return new ArrayList<>();
+    }
+
+
+
+
+    /**
+     * a barrier step has to wait for all earlier steps to finish, and
+     * all later steps have to wait for it (e.g. CleanUp, which works on the
+     * whole project folder)
+     *
+     * @return
+     */
+    public Boolean isPipelineBarrier(){
+        return false;
+    }
+
+
+
+
+    /**
+     * run the sample task over every sample in the data file, using up to
+     * noOfSampleWorkers threads (see SampleExecutor)
+     *
+     * @param <T>
+     * @param sampleTask
+     * @return the results of the samples that were processed, in sample order
+     * @throws IOException
+     */
+    protected <T> ArrayList<T> executeSamples(SampleTask<T> sampleTask) throws IOException{
+        return new SampleExecutor(this.getStepKey(), this.getNoOfSampleWorkers(), runManifest, 
+                this.getFingerprintValues(), configurationData).execute(stepInputData.getSampleData(), sampleTask);
+    }
+
+
+
+
+    /**
+     * run an external program, with the process timeout set for the 
+     * pipeline. Each argument has duplicate folder delimiters removed.
+     * 
+     * @param name      identifies the program in the log
+     * @param command   the program followed by its arguments
+     * @return 
+     * @throws IOException  if the program can't be run, times out or 
+     *                      returns a non-zero exit code
+     */
+    protected ProcessResult runProcess(String name, ArrayList<String> command) throws IOException{
+        return this.runProcess(name, command, null);
+    }
+    
+    
+    
+    
+    /**
+     * run an external program, ignoring output lines that are rejected by
+     * the line filter
+     * 
+     * @param name
+     * @param command
+     * @param lineFilter
+     * @return
+     * @throws IOException 
+     */
+    protected ProcessResult runProcess(String name, ArrayList<String> command, ProcessRunner.LineFilter lineFilter) throws IOException{
+        return this.runProcess(name, command, lineFilter, null);
+    }
+    
+    
+    
+    
+    /**
+     * run an external program, passing its stdout to the output handler
+     * 
+     * @param name
+     * @param command
+     * @param lineFilter
+     * @param outputHandler
+     * @return
+     * @throws IOException 
+     */
+    protected ProcessResult runProcess(String name, ArrayList<String> command, ProcessRunner.LineFilter lineFilter, 
+            ProcessRunner.OutputHandler outputHandler) throws IOException{
+        
+        ArrayList<String> cleanCommand = new ArrayList<>();
+        for(String argument: command){
+            cleanCommand.add(this.cleanPath(argument));
+        }
+        
+        ProcessRunner processRunner = new ProcessRunner(name, cleanCommand);
+        processRunner.setTimeout(this.getProcessTimeout());
+        processRunner.setLineFilter(lineFilter);
+        processRunner.setOutputHandler(outputHandler);
+        ProcessResult processResult = processRunner.run();
+        if(processResult.getExitCode() != 0){
+            logger.error(name + " failed with exit code " + processResult.getExitCode() + "\n" 
+                    + "CMD is " + processResult.getCommandString());
+            throw new IOException(name + " failed with exit code " + processResult.getExitCode());
+        }
+        return processResult;
+        
+    }
+    
+    
+    
+    
+    /**
+     * identifies this step in the run manifest
+     * 
+     * @return 
+     */
+    public String getStepKey(){
+        return this.getClass().getSimpleName() + ":" + this.getInputFolder() + ":" + this.getOutputFolder();
+    }
+    
+    
+    
+    
+    /**
+     * a step can be skipped as a whole if it declares the files it reads 
+     * and writes. Barrier steps are always run
+     * 
+     * @return 
+     */
+    public Boolean isResumable(){
+        return this.isPipelineBarrier() == false 
+                && this.getInputFileExtensions().isEmpty() == false
+                && this.getOutputFileExtensions().isEmpty() == false;
+    }
     
     
     
     
+    /**
+     * fingerprint of the step configuration, reference data and every 
+     * file the step could read, based on the declared input extensions.
+     * A FASTQ file that is only there gzipped is fingerprinted as the .gz
+     * file, as that is the one the step reads (see findFastqFile)
+     * 
+     * @return 
+     * @throws IOException 
+     */
+    public String getStepFingerprint() throws IOException{
+        
+        ArrayList<String> inputFiles = new ArrayList<>();
+        for(String inputExtension: this.getInputFileExtensions()){
+            for(String inputFile: this.getProjectFiles(this.getInputFolder(), inputExtension)){
+                inputFiles.add(this.findFastqFile(inputFile));
+            }
+        }
+        return runManifest.fingerprint(this.getFingerprintValues(), configurationData, inputFiles);
+        
+    }
+    
+    
+    
+    
+    /**
+     * 
+     * @return the files written by this step that currently exist, based on
+     * the declared output extensions
+     */
+    public ArrayList<String> getStepOutputFiles(){
+        return this.getStepOutputFiles(this.getOutputFolder());
+    }
+    
+    
+    
+    
+    /**
+     * 
+     * @param folder the folder to look in, relative to the project folder
+     * @return the files written by this step to the folder that currently 
+     * exist, based on the declared output extensions
+     */
+    protected ArrayList<String> getStepOutputFiles(String folder){
+        
+        ArrayList<String> outputFiles = new ArrayList<>();
+        for(String outputExtension: this.getOutputFileExtensions()){
+            for(String outputFile: this.getProjectFiles(folder, outputExtension)){
+                if(new File(outputFile).isFile())
+                    outputFiles.add(outputFile);
+            }
+        }
+        return outputFiles;
+        
+    }
+    
+    
+    
+    
+    /**
+     * the files with the specified extension that could belong to this 
+     * step, i.e. one per sample FASTQ file and one for the project 
+     * 
+     * @param folder
+     * @param extension
+     * @return 
+     */
+    private ArrayList<String> getProjectFiles(String folder, String extension){
+        
+        String projectFolder = stepInputData.getProjectRoot() + FILESEPARATOR + stepInputData.getProjectID();
+        String dataFolder = this.cleanPath(projectFolder + FILESEPARATOR + folder + FILESEPARATOR);
+        
+        ArrayList<String> projectFiles = new ArrayList<>();
+        for(SampleDataEntry sampleData: stepInputData.getSampleData()){
+            projectFiles.add(dataFolder + sampleData.getFastqFile1().replace(".fastq", extension));
+            if(sampleData.getFastqFile2() != null)
+                projectFiles.add(dataFolder + sampleData.getFastqFile2().replace(".fastq", extension));
+        }
+        projectFiles.add(dataFolder + stepInputData.getProjectID() + extension);
+        return projectFiles;
+        
+    }
+    
+    
+    
+    
+    /**
+     * steps that load reference data through the ReferenceRegistry list the
+     * keys here, so the registry can drop a reference once the last step 
+     * that needs it has finished. Called before the step is run
+     * 
+     * @return the registry keys of the references the step will load
+     */
+    public ArrayList<String> getReferenceKeys(){
+        return new ArrayList<>();
+    }
+    
+    
+    
+    
+    /**
+     * steps that keep reference data from the ReferenceRegistry in fields
+     * clear them here. The step objects last for the whole run, so without 
+     * this a reference the registry has released would still be held by 
+     * the step. Called when the step has finished, before its keys are 
+     * released
+     */
+    public void dropReferences(){
+    }
+    
+    
+    
+    
+    /**
+     * 
+     * @return the values that identify the step and the reference data it uses
+     */
+    private ArrayList<String> getFingerprintValues(){
+        
+        ArrayList<String> values = new ArrayList<>();
+        values.add(this.getStepKey());
+        values.add(String.valueOf(stepInputData.getDataLocations().getGenomeRootFolder()));
+        values.add(String.valueOf(stepInputData.getDataLocations().getMirbaseFolder()));
+        values.add(String.valueOf(stepInputData.getDataLocations().getTargetscanFolder()));
+        return values;
+        
+    }
+
+
+
+
+    /**
+     * @return the number of samples that can be processed at the same time
+     */
+    public int getNoOfSampleWorkers() {
+        return noOfSampleWorkers;
+    }
+
+    /**
+     * @param noOfSampleWorkers the number of samples that can be processed at the same time
+     */
+    public void setNoOfSampleWorkers(int noOfSampleWorkers) {
+        this.noOfSampleWorkers = noOfSampleWorkers;
+    }
+
+    /**
+     * @return the time in seconds an external program can run before it
+     * is killed, 0 means no limit
+     */
+    public long getProcessTimeout() {
+        return processTimeout;
+    }
+
+    /**
+     * @param processTimeout time in seconds, 0 means no limit
+     */
+    public void setProcessTimeout(long processTimeout) {
+        this.processTimeout = processTimeout;
+    }
+
+    /**
+     * @return the run manifest, null if there isn't one
+     */
+    public RunManifest getRunManifest() {
+        return runManifest;
+    }
+
+    /**
+     * @param runManifest the run manifest used to skip completed work
+     */
+    public void setRunManifest(RunManifest runManifest) {
+        this.runManifest = runManifest;
+    }
+
+    /**
+     * @return the registry the step loads reference data through
+     */
+    public ReferenceRegistry getReferenceRegistry() {
+        return referenceRegistry;
+    }
+
+    /**
+     * @param referenceRegistry the registry shared by the steps in a run
+     */
+    public void setReferenceRegistry(ReferenceRegistry referenceRegistry) {
+        this.referenceRegistry = referenceRegistry;
+    }
+
+    /**
+     * @return the configuration data passed to parseConfigurationData
+     */
+    public HashMap getConfigurationData() {
+        return configurationData;
+    }
+
+    /**
+     * @param configurationData the configuration data passed to parseConfigurationData
+     */
+    public void setConfigurationData(HashMap configurationData) {
+        this.configurationData = configurationData;
+    }
+
+
+
+
  
     /**
      * Check the specified parameter is valid
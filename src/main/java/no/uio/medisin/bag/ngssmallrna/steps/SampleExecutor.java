@@ -0,0 +1,171 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.steps;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import no.uio.medisin.bag.ngssmallrna.pipeline.RunManifest;
+import no.uio.medisin.bag.ngssmallrna.pipeline.SampleDataEntry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * runs a SampleTask over the samples of a step, using up to noOfWorkers
+ * threads, then passes the results (in sample order) to the merge hook of
+ * the task.
+ *
+ * If there is a run manifest, samples whose outputs are up to date are
+ * skipped. Skipped samples (and samples the task returns null for) are
+ * left out of the results, so the merge hook only sees real results.
+ *
+ * @author sr
+ */
+public class SampleExecutor {
+
+    static Logger                       logger                      = LogManager.getLogger();
+
+    private final String                stepKey;
+    private final int                   noOfWorkers;
+    private final RunManifest           runManifest;
+    private final ArrayList<String>     fingerprintValues;
+    private final HashMap               configurationData;
+
+
+
+    /**
+     *
+     * @param stepKey               identifies the step in the run manifest
+     * @param noOfWorkers           the number of samples processed at the same time
+     * @param runManifest           null if samples are never skipped
+     * @param fingerprintValues     the values that identify the step and its reference data
+     * @param configurationData     the step configuration
+     */
+    public SampleExecutor(String stepKey, int noOfWorkers, RunManifest runManifest,
+            ArrayList<String> fingerprintValues, HashMap configurationData){
+        this.stepKey = stepKey;
+        this.noOfWorkers = noOfWorkers;
+        this.runManifest = runManifest;
+        this.fingerprintValues = fingerprintValues;
+        this.configurationData = configurationData;
+    }
+
+
+
+
+    /**
+     *
+     * @param <T>
+     * @param samples
+     * @param sampleTask
+     * @return the results of the samples that were processed, in sample order
+     * @throws IOException
+     */
+    public <T> ArrayList<T> execute(ArrayList<SampleDataEntry> samples, final SampleTask<T> sampleTask) throws IOException{
+
+        ArrayList<T> sampleResults = new ArrayList<>();
+
+        if(noOfWorkers <= 1 || samples.size() <= 1){
+            for(SampleDataEntry sampleData: samples){
+                sampleResults.add(this.executeSample(sampleTask, sampleData));
+            }
+        }
+        else{
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(noOfWorkers, samples.size()));
+            ArrayList<Future<T>> sampleFutures = new ArrayList<>();
+            try{
+                for(final SampleDataEntry sampleData: samples){
+                    sampleFutures.add(executor.submit(new Callable<T>(){
+                        @Override
+                        public T call() throws Exception{
+                            return executeSample(sampleTask, sampleData);
+                        }
+                    }));
+                }
+                for(Future<T> sampleFuture: sampleFutures){
+                    sampleResults.add(sampleFuture.get());
+                }
+            }
+            catch(InterruptedException exIE){
+                throw new IOException("interrupted while processing samples");
+            }
+            catch(ExecutionException exEx){
+                if(exEx.getCause() instanceof IOException)
+                    throw (IOException) exEx.getCause();
+                throw new IOException(exEx.getCause());
+            }
+            finally{
+                executor.shutdownNow();
+            }
+        }
+
+        ArrayList<T> processedResults = new ArrayList<>();
+        for(T sampleResult: sampleResults){
+            if(sampleResult != null)
+                processedResults.add(sampleResult);
+        }
+        sampleTask.mergeSampleResults(processedResults);
+        return processedResults;
+    }
+
+
+
+
+    /**
+     * process a single sample, unless the run manifest shows it has already
+     * been done with the same configuration and input files. Only tasks
+     * that declare their output files can be skipped
+     *
+     * @param <T>
+     * @param sampleTask
+     * @param sampleData
+     * @return the result, or null if the sample was skipped
+     * @throws IOException
+     */
+    private <T> T executeSample(SampleTask<T> sampleTask, SampleDataEntry sampleData) throws IOException{
+
+        ArrayList<String> outputFiles = sampleTask.getSampleOutputFiles(sampleData);
+        if(runManifest == null || outputFiles.isEmpty())
+            return sampleTask.processSample(sampleData);
+
+        String sampleKey = stepKey + ":" + sampleData.getFastqFile1();
+        if(runManifest.isUpToDate(sampleKey, this.getSampleFingerprint(sampleTask, sampleData))){
+            logger.info("<" + sampleKey + "> is up to date, skipping");
+            return null;
+        }
+        runManifest.invalidate(sampleKey);
+
+        T sampleResult = sampleTask.processSample(sampleData);
+        runManifest.record(sampleKey, this.getSampleFingerprint(sampleTask, sampleData), outputFiles);
+        return sampleResult;
+
+    }
+
+
+
+
+    /**
+     *
+     * @param sampleTask
+     * @param sampleData
+     * @return fingerprint of the configuration and input files for this sample
+     * @throws IOException
+     */
+    private String getSampleFingerprint(SampleTask sampleTask, SampleDataEntry sampleData) throws IOException{
+
+        ArrayList<String> values = new ArrayList<>(fingerprintValues);
+        values.add(sampleData.getFastqFile1());
+        values.add(String.valueOf(sampleData.getFastqFile2()));
+        return runManifest.fingerprint(values, configurationData, sampleTask.getSampleInputFiles(sampleData));
+
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.steps;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import no.uio.medisin.bag.ngssmallrna.pipeline.SampleDataEntry;
+
+/**
+ * the work a step carries out on a single sample.
+ *
+ * processSample may be called concurrently for different samples, so any
+ * state needed while processing a sample should be kept in local variables
+ * and handed back as the result rather than stored in the step.
+ * mergeSampleResults is called once, on a single thread, after all samples
+ * have been processed and receives the results in the same order as the
+ * samples in the data file. This is where project level output (e.g. the
+ * .disp.tsv file) should be written.
+ *
+ * If the task declares its input and output files, samples that are up to
+ * date in the run manifest are skipped and are left out of the results
+ * passed to mergeSampleResults, as are null results.
+ *
+ * @author sr
+ * @param <T> the per sample result
+ */
+public abstract class SampleTask<T> {
+
+
+    /**
+     * process a single sample
+     *
+     * @param sampleData
+     * @return the result for this sample
+     * @throws IOException
+     */
+    public abstract T processSample(SampleDataEntry sampleData) throws IOException;
+
+
+
+    /**
+     * combine the per sample results. Does nothing unless overridden
+     *
+     * @param sampleResults
+     * @throws IOException
+     */
+    public void mergeSampleResults(ArrayList<T> sampleResults) throws IOException{
+
+    }
+
+
+
+    /**
+     * the files read for this sample. Used to decide whether a sample
+     * can be skipped when a pipeline is resumed
+     *
+     * @param sampleData
+     * @return
+     */
+    public ArrayList<String> getSampleInputFiles(SampleDataEntry sampleData){
+        return new ArrayList<>();
+    }
+
+
+
+    /**
+     * the files written for this sample. If none are declared (the default)
+     * the sample is always processed
+     *
+     * @param sampleData
+     * @return
+     */
+    public ArrayList<String> getSampleOutputFiles(SampleDataEntry sampleData){
+        return new ArrayList<>();
+    }
+
+}
@@ -12,6 +12,7 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -21,6 +22,7 @@ import no.uio.medisin.bag.core.MiRNADispAnalysisResult;
 import no.uio.medisin.bag.core.IsomiRSet;
 import no.uio.medisin.bag.core.MiRNAFeature;
 import no.uio.medisin.bag.core.MirFeatureSet;
+import no.uio.medisin.bag.ngssmallrna.pipeline.ReferenceRegistry;
 import no.uio.medisin.bag.ngssmallrna.pipeline.SampleDataEntry;
 import org.apache.commons.lang3.ArrayUtils;
 
@@ -205,9 +207,16 @@ public class StepAnalyzeIsomiRDispersion extends NGSStep implements NGSBase{
         
         logger.info("read " + isomiRList.size() + " entries");
         
-        String gffFileMirBase = stepInputData.getDataLocations().getMirbaseFolder() + FILESEPARATOR + this.getMiRBaseRelease() + this.getReferenceGenome() + ".gff3";
-        String faFileMirBase = gffFileMirBase.replace("gff3", "fasta");
-        mirBaseSet.loadMiRBaseData(gffFileMirBase, faFileMirBase, this.getReferenceGenome());
+        final String gffFileMirBase = this.getMiRBaseGFFFile();
+        final String faFileMirBase = gffFileMirBase.replace("gff3", "fasta");
+        mirBaseSet = this.getReferenceRegistry().get(this.getMiRBaseKey(), new ReferenceRegistry.Loader<MirFeatureSet>(){
+            @Override
+            public MirFeatureSet load() throws IOException{
+                MirFeatureSet releaseSet = new MirFeatureSet();
+                releaseSet.loadMiRBaseData(gffFileMirBase, faFileMirBase, getReferenceGenome());
+                return releaseSet;
+            }
+        });
         
         
         logger.info("testing...\n");
@@ -387,6 +396,71 @@ public class StepAnalyzeIsomiRDispersion extends NGSStep implements NGSBase{
     
     
     
+    /**
+     * @return the miRBase release the step loads
+     */
+    @Override
+    public ArrayList<String> getReferenceKeys(){
+        return new ArrayList<>(Arrays.asList(this.getMiRBaseKey()));
+    }
+
+    
+    
+    
+    /**
+     * let go of the miRBase release
+     */
+    @Override
+    public void dropReferences(){
+        mirBaseSet = new MirFeatureSet();
+    }
+    
+    
+    
+    
+    /**
+     * this step reads the miRBase files from its own location, so it only
+     * shares the release with other steps if the paths are the same
+     * 
+     * @return the registry key for the miRBase release
+     */
+    private String getMiRBaseKey(){
+        return ReferenceRegistry.getMiRBaseKey(this.getReferenceGenome(), this.getMiRBaseRelease(), this.getMiRBaseGFFFile());
+    }
+    
+    
+    
+    
+    /**
+     * @return the miRBase GFF file
+     */
+    private String getMiRBaseGFFFile(){
+        return stepInputData.getDataLocations().getMirbaseFolder() + FILESEPARATOR + this.getMiRBaseRelease() + this.getReferenceGenome() + ".gff3";
+    }
+    
+    
+    
+    
+    /**
+     * @return the file extensions this step reads
+     */
+    @Override
+    public ArrayList<String> getInputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(INFILE_EXTENSION));
+    }
+    
+    
+    
+    /**
+     * @return the file extensions this step writes
+     */
+    @Override
+    public ArrayList<String> getOutputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(DISPERSION_RESULTS_EXTENSION));
+    }
+    
+    
+    
     @Override
     public void verifyOutputData(){
         
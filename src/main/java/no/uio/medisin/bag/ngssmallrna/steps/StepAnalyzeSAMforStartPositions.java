@@ -5,24 +5,34 @@
  */
 package no.uio.medisin.bag.ngssmallrna.steps;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import no.uio.medisin.bag.core.SimpleSeq;
+import no.uio.medisin.bag.ngssmallrna.pipeline.CoverageBuffer;
+import no.uio.medisin.bag.ngssmallrna.pipeline.GFFContainmentJoin;
+import no.uio.medisin.bag.ngssmallrna.pipeline.GFFIntervalIndex;
+import no.uio.medisin.bag.ngssmallrna.pipeline.IndexedGenomeSeq;
+import no.uio.medisin.bag.ngssmallrna.pipeline.MappedReadStore;
 import no.uio.medisin.bag.ngssmallrna.pipeline.ReferenceDataLocations;
+import no.uio.medisin.bag.ngssmallrna.pipeline.ReferenceRegistry;
 import no.uio.medisin.bag.core.GFFEntry;
 import no.uio.medisin.bag.core.GFFSet;
-import no.uio.medisin.bag.core.GenomeSeq;
 import no.uio.medisin.bag.core.MappedRead;
-import no.uio.medisin.bag.core.SAMEntry;
+import no.uio.medisin.bag.ngssmallrna.pipeline.SAMRecord;
+import no.uio.medisin.bag.ngssmallrna.pipeline.SAMRecordReader;
+import no.uio.medisin.bag.ngssmallrna.pipeline.ParallelSAMReader;
 import no.uio.medisin.bag.ngssmallrna.pipeline.SampleDataEntry;
 import no.uio.medisin.bag.core.Strand;
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
@@ -51,13 +61,17 @@ public class StepAnalyzeSAMforStartPositions extends NGSStep implements NGSBase{
     private static final String     ID_MIN_COUNTS       = "minCounts";
     private static final String     ID_SEPARATION       = "featureSeparation";
     private static final String     ID_FEATURE_TYPES    = "featureTypes";
+    private static final String     ID_POOL_SAMPLES     = "poolSamples";
+    private static final String     ID_MEMORY_BUDGET    = "memoryBudgetMB";
+    private static final String     ID_SCRATCH_FOLDER   = "scratchFolder";
+    private static final String     ID_STREAM_SORTED    = "streamSortedInput";
     
     
     private static final String     INFILE_EXTENSION    = ".trim.clp.gen.sam";
     private static final String     POS_FILE_EXT        = ".trim.clp.gen.pos.tsv";
     private static final String     FEAT_FILE_EXT       = ".trim.clp.gen.features.tsv";
 
-    private static final int        COVERAGE_SPAN       = 200;
+    private static final String     FEATURE_HEADER      = "ID\tChr\t \tStart\tStop\tLength\tCoverage\tDispersion\n";
     
     static Logger logger = LogManager.getLogger();
     
@@ -70,18 +84,20 @@ public class StepAnalyzeSAMforStartPositions extends NGSStep implements NGSBase{
     private int                     longestRead         = 0;
     private int                     minCounts           = 0;
     private int                     separation          = 0;
+    private Boolean                 poolSamples         = false;
+    private int                     memoryBudgetMB      = 0;
+    private String                  scratchFolder       = "";
+    private Boolean                 streamSortedInput   = true;
 
     
-    private GenomeSeq               genomeFasta;
+    private IndexedGenomeSeq        genomeFasta;
     private GFFSet                  gffSet              = new GFFSet();    
-    private ArrayList<MappedRead>   mappedReads         = new ArrayList<>();
-    
-    int[]                           coverage5           = new int[COVERAGE_SPAN];    
-    int[]                           coverage3           = new int[COVERAGE_SPAN];
+    private GFFIntervalIndex        gffIndex;
+    private MappedReadStore         readStore           = new MappedReadStore();
     
     private GFFSet                  featureSet          = new GFFSet(); // stores the identified features
+    private GFFIntervalIndex        featureIndex        = new GFFIntervalIndex(new ArrayList<GFFEntry>());
     private ArrayList<String>       featureTypes        = new ArrayList<>();
-    private ArrayList<String>       featureStrings      = new ArrayList<>();
     
 
     public StepAnalyzeSAMforStartPositions(StepInputData sid) {
@@ -179,6 +195,28 @@ public class StepAnalyzeSAMforStartPositions extends NGSStep implements NGSBase{
         }
 
         
+        if(configData.get(ID_POOL_SAMPLES)!=null)
+            this.setPoolSamples((Boolean) configData.get(ID_POOL_SAMPLES));
+        
+        if(configData.get(ID_MEMORY_BUDGET)!=null){
+            try{
+                this.setMemoryBudgetMB((Integer) configData.get(ID_MEMORY_BUDGET));
+            }
+            catch(NumberFormatException|ClassCastException exNm){
+                logger.error(ID_MEMORY_BUDGET + " <" + configData.get(ID_MEMORY_BUDGET) + "> is not an integer");
+                throw new NumberFormatException(ID_MEMORY_BUDGET + " <" + configData.get(ID_MEMORY_BUDGET) + "> is not an integer");
+            }
+            if(this.getMemoryBudgetMB() < 0){
+                logger.error(ID_MEMORY_BUDGET + " <" + configData.get(ID_MEMORY_BUDGET) + "> must be 0 or greater");
+                throw new IllegalArgumentException(ID_MEMORY_BUDGET + " <" + configData.get(ID_MEMORY_BUDGET) + "> must be 0 or greater");
+            }
+        }
+        if(configData.get(ID_SCRATCH_FOLDER)!=null)
+            this.setScratchFolder((String) configData.get(ID_SCRATCH_FOLDER));
+        if(configData.get(ID_STREAM_SORTED)!=null)
+            this.setStreamSortedInput((Boolean) configData.get(ID_STREAM_SORTED));
+
+        
         logger.info("passed");
     }
     
@@ -204,15 +242,12 @@ public class StepAnalyzeSAMforStartPositions extends NGSStep implements NGSBase{
          * read genome fasta
          */
         String hostCode = this.getReferenceGenome();
-        genomeFasta = new GenomeSeq(hostCode);
-        String pathToFasta = stepInputData.getDataLocations().getGenomeRootFolder()
-                + FILESEPARATOR + hostCode + FILESEPARATOR + ReferenceDataLocations.ID_REL_WHOLE_GENSEQ_PATH;
-        String genomeFastaFile = this.cleanPath(pathToFasta + FILESEPARATOR + "genome.fa");
+        String genomeFastaFile = this.getGenomeFastaFile();
         try{
-            logger.info("reading genome file <" + genomeFastaFile + ">");
-            this.genomeFasta.readFastaGenome(genomeFastaFile);
+            logger.info("indexing genome file <" + genomeFastaFile + ">");
+            this.genomeFasta = this.getReferenceRegistry().getGenome(hostCode, genomeFastaFile);
             logger.info("finished ");
-            logger.info("read " + genomeFasta.getNoOfBases() + " bases");
+            logger.info("indexed " + genomeFasta.getNoOfBases() + " bases");
             logger.info("spanning " + genomeFasta.getNoOfChr() + " chromosomes");
         }
         catch(IOException exIO){
@@ -223,18 +258,11 @@ public class StepAnalyzeSAMforStartPositions extends NGSStep implements NGSBase{
         /**
          * read genes.gtf or genes.gff3 file
          */
-        String annotationFile = "";
-        String pathToAnnotation = stepInputData.getDataLocations().getGenomeRootFolder()
-                + FILESEPARATOR + hostCode + ReferenceDataLocations.ID_GENE_ANNOTATION;
-        File f = new File(pathToAnnotation + FILESEPARATOR + "genes.gtf");
-        if (new File(pathToAnnotation + FILESEPARATOR + "genes.gtf").exists()) {
-            annotationFile = pathToAnnotation + FILESEPARATOR + "genes.gtf";
-        } else if (new File(pathToAnnotation + FILESEPARATOR + "genes.gff").exists()) {
-            annotationFile = pathToAnnotation + FILESEPARATOR + "genes.gff";
-        }
+        String annotationFile = this.getAnnotationFile();
         
         try {
-            gffSet.readGFF(annotationFile);
+            gffSet = this.getReferenceRegistry().getGFFSet(hostCode, annotationFile);
+            gffIndex = this.getReferenceRegistry().getGFFIndex(hostCode, annotationFile);
         } catch (IOException exIO) {
             logger.error("Exception trying to read Annotation file ");
             logger.error(exIO);
@@ -252,46 +280,104 @@ public class StepAnalyzeSAMforStartPositions extends NGSStep implements NGSBase{
         if (fA) {
             logger.info("created output folder <" + outFolder + "> for results");
         }
+        /*
+            reads are called into features either one sample at a time, or pooled
+            over all the samples (poolSamples) and called once for the cohort.
+            A coordinate sorted SAM file is called as it is read (streamSortedInput), 
+            anything else goes through the read store and is sorted first
+        */
+        readStore.setMemoryBudget(this.getReadMemoryBudget());
+        readStore.setScratchFolder(this.getScratchFolder().isEmpty() ? outFolder : this.cleanPath(this.getScratchFolder()));
+        readStore.setRunName(stepInputData.getProjectID() + ".reads");
+        readStore.clear();
+        
+        String posFile = outFolder + FILESEPARATOR + stepInputData.getProjectID() + ".pos.tsv";
+        BufferedWriter bwPS;
+        try{
+            String headerString = "";
+            bwPS = new BufferedWriter(new FileWriter(new File(posFile)));
+            for(String featureType: this.getFeatureTypes()){
+                headerString = headerString.concat(featureType + "\tcounts\t");
+            }    
+            bwPS.write(headerString.substring(0, headerString.length()-1) + "\n");
+        }
+        catch(IOException exIO){
+            logger.error("error writing start position file <" + posFile + ">");
+            logger.error(exIO);
+            throw new IOException(STEP_ID_STRING + ": error writing start position file <" + posFile + ">");
+        }
+        
         Iterator itSD = this.stepInputData.getSampleData().iterator();
-                int featureCount = 0;
-        String samLine = null;
-        while (itSD.hasNext()) {
-            SampleDataEntry sampleData = (SampleDataEntry) itSD.next();
+        int featureCount = 0;
+        try{
+            while (itSD.hasNext()) {
+                SampleDataEntry sampleData = (SampleDataEntry) itSD.next();
             
-            String positionFile = this.cleanPath(outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", POS_FILE_EXT));
-            String featureOutFile = this.cleanPath(outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", FEAT_FILE_EXT));
+                String positionFile = this.cleanPath(outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", POS_FILE_EXT));
+                String featureOutFile = this.cleanPath(outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", FEAT_FILE_EXT));
 
-            String samInputFile = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION));
+                String samInputFile = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION));
             
-            logger.info("sam input file is " + samInputFile);
-            logger.info("results will be written to " + positionFile);
+                logger.info("sam input file is " + samInputFile);
+                logger.info("results will be written to " + positionFile);
             
-            samLine = null;
-            int mapCount = 0;
-            try {
-                BufferedReader brSAM = new BufferedReader(new FileReader(new File(samInputFile)));
-                while ((samLine = brSAM.readLine()) != null) {
+                if(this.getPoolSamples() == false && this.getStreamSortedInput() && this.isCoordinateSorted(samInputFile)){
+                    logger.info("<" + samInputFile + "> is coordinate sorted, calling features as it is read");
+                    featureCount = streamSAMReads(samInputFile, featureOutFile, featureCount, bwPS);
+                    logger.info("completed parsing");
+                    continue;
+                }
+                
+                int mapCount = 0;
+                try {
+                    /*
+                        the SAM file is read on the threads this sample has been given
+                        (see getNoOfThreadsPerSample). the chunks are added in file order
+                    */
+                    if(this.getPoolSamples() == false)
+                        readStore.clear();
+                    ParallelSAMReader samReader = new ParallelSAMReader(samInputFile, this.getNoOfThreadsPerSample());
+                    ArrayList<MappedReadStore> chunkReads = samReader.process(new ParallelSAMReader.ChunkTask<MappedReadStore>(){
+                        @Override
+                        public MappedReadStore newAccumulator(){
+                            return new MappedReadStore();
+                        }
                     
-                    SAMEntry samEntry = new SAMEntry(samLine);
-                    if (samEntry.isHeaderLine() == false && samEntry.isMappedRead()) {
-                        mappedReads.add(new MappedRead(samEntry.getStartPos(), samEntry.getEndPos(),
-                                samEntry.getrName(), samEntry.getStrand(), Integer.parseInt(samEntry.getqName().split("-")[1])));
+                        @Override
+                        public void addRecord(MappedReadStore reads, SAMRecord samRecord) throws IOException{
+                            if (samRecord.isHeader() == false && samRecord.isMapped()) {
+                                reads.add(samRecord.getRName(), samRecord.getStrand(), samRecord.getPos(), 
+                                        samRecord.getEndPos(), samRecord.getQNameCount());
+                            }
+                        }
+                    });
+                    for(int c=0; c<chunkReads.size(); c++){
+                        readStore.addAll(chunkReads.get(c));
+                        chunkReads.set(c, null);
                     }
-                    
-                }
-                brSAM.close();
-                logger.debug("read " + mappedReads.size() + " mapped entries");
+                    logger.debug("read " + readStore.getNoOfReads() + " mapped entries");
                 
-            } catch (IOException smIO) {
-                logger.error("error parsing SAM file " + samInputFile);
-                logger.error(samLine);
-                logger.error(smIO);
-                throw new IOException(STEP_ID_STRING + ": error parsing SAM file <" + samInputFile + ">");
-            }
+                } catch (IOException smIO) {
+                    logger.error("error parsing SAM file " + samInputFile);
+                    logger.error(smIO);
+                    throw new IOException(STEP_ID_STRING + ": error parsing SAM file <" + samInputFile + ">", smIO);
+                }
 
             
-            featureCount = processSAMReads(featureOutFile, featureCount);
-            logger.info("completed parsing");
+                if(this.getPoolSamples() == false)
+                    featureCount = processSAMReads(featureOutFile, featureCount, bwPS);
+                logger.info("completed parsing");
+            }
+        
+            if(this.getPoolSamples()){
+                String pooledFeatureFile = this.cleanPath(outFolder + FILESEPARATOR + stepInputData.getProjectID() + ".pooled" + FEAT_FILE_EXT);
+                logger.info("calling features on " + readStore.getNoOfReads() + " reads pooled from all samples");
+                featureCount = processSAMReads(pooledFeatureFile, featureCount, bwPS);
+            }
+        }
+        finally{
+            readStore.clear();
+            bwPS.close();
         }
         
         
@@ -301,15 +387,12 @@ public class StepAnalyzeSAMforStartPositions extends NGSStep implements NGSBase{
         */
         String featVsGFFFile = outFolder + FILESEPARATOR + stepInputData.getProjectID() + ".gff_vs_feat.tsv";
         try{
+            ArrayList<GFFEntry> gffEntries = gffSet.getGFFEntries();
+            ArrayList<GFFEntry> features = featureSet.getGFFEntries();
+            GFFContainmentJoin gffJoin = new GFFContainmentJoin(gffEntries, features, Runtime.getRuntime().availableProcessors());
             BufferedWriter bwFQ = new BufferedWriter(new FileWriter(new File(featVsGFFFile)));
-                for(GFFEntry gffEntry: gffSet.getGFFEntries()){
-                    for(GFFEntry feature: featureSet.getGFFEntries()){
-                        if(gffEntry.doesFeatureContainRegion(feature)){
-                            bwFQ.write("PASS\t" + gffEntry.getType() + "\t" + feature.toGFF3String() + "\n");
-                        }else{
-                            //bwFQ.write("FAIL\t" + gffEntry.getType() + "\t" + feature.toGFF3String() + "\n");
-                        }                            
-                    }
+                for(int[] pair: gffJoin.join()){
+                    bwFQ.write("PASS\t" + gffEntries.get(pair[0]).getType() + "\t" + features.get(pair[1]).toGFF3String() + "\n");
                 }
             bwFQ.close();
         }
@@ -358,309 +441,604 @@ public class StepAnalyzeSAMforStartPositions extends NGSStep implements NGSBase{
             throw new IOException(STEP_ID_STRING + ": error writing fasta feature file <" + fastaFile + ">");
         }
         
-        String posFile = outFolder + FILESEPARATOR + stepInputData.getProjectID() + ".pos.tsv";
-        try{
-            String headerString = "";
-            BufferedWriter bwPS = new BufferedWriter(new FileWriter(new File(posFile)));
-                for(String featureType: this.getFeatureTypes()){
-                    headerString = headerString.concat(featureType + "\tcounts\t");
-                }    
-                bwPS.write(headerString.substring(0, headerString.length()-1) + "\n");
+        
+        logger.info(STEP_ID_STRING + ": completed");
+        
+        
+
+    }
+
+    
+    
+    /**
+     *
+     * call features on the reads in the store. The store is read back in
+     * chromosome, strand and position order (sorted externally if it has 
+     * spilled to disk) and cut into one partition per chromosome and strand.
+     * 
+     * Features in different partitions are independent, so the partitions
+     * are called on a fork join pool. They are written in sorted order, so 
+     * the feature numbers are the same as for a sequential sweep, and only 
+     * a few partitions are queued at a time so the reads aren't all copied 
+     * out of the store
+     * 
+     * @param featureOutFile
+     * @param featureCount
+     * @param bwPS              writer for the per read position rows
+     * @return
+     * @throws IOException 
+     */
+    private int processSAMReads(String featureOutFile, int featureCount, BufferedWriter bwPS) throws IOException{
+        
+        int noOfThreads = this.getNoOfThreadsPerSample();
+        ForkJoinPool pool = new ForkJoinPool(noOfThreads);
+        try (MappedReadStore.Reader readReader = readStore.getSortedReader();
+                BufferedWriter bwFT = new BufferedWriter(new FileWriter(new File(featureOutFile)))) {
+            bwFT.write(FEATURE_HEADER);
+            
+            ArrayDeque<Future<FeaturePartition>> calledPartitions = new ArrayDeque<>();
+            FeaturePartition partition = null;
+            int noOfReads = 0;
+            while (readReader.next()) {
+                MappedRead mappedRead = readReader.getMappedRead();
+                this.writePositionRow(mappedRead, bwPS);
+                noOfReads++;
                 
-                for(String featureString: featureStrings){
-                    bwPS.write(featureString + "\n");
+                if (partition == null || partition.isSamePartition(mappedRead.getChr(), mappedRead.getStrand()) == false) {
+                    if (partition != null)
+                        calledPartitions.add(pool.submit(partition));
+                    while (calledPartitions.size() > 2 * noOfThreads)
+                        featureCount = this.writeFeatures(calledPartitions.poll().get(), featureCount, bwFT);
+                    partition = new FeaturePartition(mappedRead.getChr(), mappedRead.getStrand());
                 }
-            bwPS.close();
+                partition.bufferRead(mappedRead.getStartPos(), mappedRead.getEndPos(), mappedRead.getCount());
+            }
+            if (partition != null)
+                calledPartitions.add(pool.submit(partition));
+            while (calledPartitions.isEmpty() == false)
+                featureCount = this.writeFeatures(calledPartitions.poll().get(), featureCount, bwFT);
+            
+            if(noOfReads == 0)
+                logger.warn("no mapped reads, no features written to <" + featureOutFile + ">");
+            return featureCount;
+        } catch (InterruptedException exIE) {
+            Thread.currentThread().interrupt();
+            throw new IOException(STEP_ID_STRING + ": interrupted while calling features for <" + featureOutFile + ">");
+        } catch (ExecutionException exEx) {
+            logger.error(exEx.getCause());
+            throw new IOException(STEP_ID_STRING + ": error calling features for <" + featureOutFile + ">", exEx.getCause());
+        } catch (IOException exIO) {
+            logger.error(exIO);
+            throw new IOException(STEP_ID_STRING + ": error writing feature details file <" + featureOutFile + ">");
+        } finally {
+            pool.shutdownNow();
         }
-        catch(IOException exIO){
-            logger.error("error writing start position file <" + fastaFile + ">");
+    }
+    
+    
+    
+    
+    /**
+     * call features while reading a coordinate sorted SAM file, without
+     * holding the reads. Only the feature being built on each strand is 
+     * kept in memory, so this is a single sweep: running the chromosomes in 
+     * parallel would mean holding them until the file moves past them.
+     * 
+     * The called features are held until the end of the file and then
+     * written in the same order as processSAMReads (chromosome name, then 
+     * + strand before -) rather than the order of the @SQ lines, so the 
+     * feature IDs are the same whether or not the input is streamed
+     * 
+     * @param samInputFile
+     * @param featureOutFile
+     * @param featureCount
+     * @param bwPS              writer for the per read position rows
+     * @return
+     * @throws IOException 
+     */
+    private int streamSAMReads(String samInputFile, String featureOutFile, int featureCount, BufferedWriter bwPS) throws IOException{
+        
+        try (SAMRecordReader samReader = new SAMRecordReader(samInputFile);
+                BufferedWriter bwFT = new BufferedWriter(new FileWriter(new File(featureOutFile)))) {
+            bwFT.write(FEATURE_HEADER);
+            
+            TreeMap<String, FeaturePartition[]> finishedPartitions = new TreeMap<>();
+            FeaturePartition partition5 = null;
+            FeaturePartition partition3 = null;
+            int noOfReads = 0;
+            SAMRecord samRecord = new SAMRecord();
+            while (samReader.next(samRecord)) {
+                if (samRecord.isHeader() || samRecord.isMapped() == false)
+                    continue;
+                
+                MappedRead mappedRead = new MappedRead(samRecord.getPos(), samRecord.getEndPos(), samRecord.getRName(), 
+                        samRecord.getStrand(), samRecord.getQNameCount());
+                this.writePositionRow(mappedRead, bwPS);
+                noOfReads++;
+                
+                /* reads with no strand never make a feature */
+                if (mappedRead.getStrand() == Strand.PLUS) {
+                    if (partition5 == null || partition5.isSamePartition(mappedRead.getChr(), mappedRead.getStrand()) == false) {
+                        this.finishPartition(partition5, finishedPartitions);
+                        partition5 = new FeaturePartition(mappedRead.getChr(), mappedRead.getStrand());
+                    }
+                    partition5.addRead(mappedRead.getStartPos(), mappedRead.getEndPos(), mappedRead.getCount());
+                } else if (mappedRead.getStrand() == Strand.MINUS) {
+                    if (partition3 == null || partition3.isSamePartition(mappedRead.getChr(), mappedRead.getStrand()) == false) {
+                        this.finishPartition(partition3, finishedPartitions);
+                        partition3 = new FeaturePartition(mappedRead.getChr(), mappedRead.getStrand());
+                    }
+                    partition3.addRead(mappedRead.getStartPos(), mappedRead.getEndPos(), mappedRead.getCount());
+                }
+            }
+            this.finishPartition(partition5, finishedPartitions);
+            this.finishPartition(partition3, finishedPartitions);
+            for (FeaturePartition[] chrPartitions: finishedPartitions.values()) {
+                for (FeaturePartition partition: chrPartitions) {
+                    if (partition != null)
+                        featureCount = this.writeFeatures(partition, featureCount, bwFT);
+                }
+            }
+            logger.debug("streamed " + noOfReads + " mapped entries");
+            if(noOfReads == 0)
+                logger.warn("no mapped reads, no features written to <" + featureOutFile + ">");
+            return featureCount;
+        } catch (IOException exIO) {
+            logger.error("error streaming SAM file " + samInputFile);
             logger.error(exIO);
-            throw new IOException(STEP_ID_STRING + ": error writing fasta position file <" + fastaFile + ">");
+            throw new IOException(STEP_ID_STRING + ": error streaming SAM file <" + samInputFile + "> to <" + featureOutFile + ">");
+        }
+    }
+    
+    
+    
+    
+    /**
+     * check the @HD line of a SAM file for SO:coordinate
+     * 
+     * @param samInputFile
+     * @return true if the header says the file is coordinate sorted
+     * @throws IOException 
+     */
+    private Boolean isCoordinateSorted(String samInputFile) throws IOException{
+        
+        try (SAMRecordReader samReader = new SAMRecordReader(samInputFile)) {
+            SAMRecord samRecord = new SAMRecord();
+            while (samReader.next(samRecord) && samRecord.isHeader()) {
+                String headerLine = samRecord.toString();
+                if (headerLine.startsWith("@HD"))
+                    return Arrays.asList(headerLine.split("\t")).contains("SO:coordinate");
+            }
+        }
+        return false;
+    }
+    
+    
+    
+    
+    /**
+     * write the position row for a read, i.e. where it sits relative to an
+     * annotated feature of each type
+     * 
+     * @param mappedRead
+     * @param bwPS
+     * @throws IOException 
+     */
+    private void writePositionRow(MappedRead mappedRead, BufferedWriter bwPS) throws IOException{
+        
+        String featureString = "";
+        for(String featureType: this.getFeatureTypes()){
+            featureString = featureString.concat(findOverlappingFeature(mappedRead, featureType) + "\t");                    
         }
+        bwPS.write(featureString.substring(0, featureString.length()-1) + "\n");
         
+    }
+    
+    
+    
+    
+    /**
+     * number the features a partition has called since it was last written, 
+     * write them out and add the new ones to the feature set. This runs on 
+     * the calling thread, in partition order
+     * 
+     * @param partition
+     * @param featureCount  the number of the partition's first feature
+     * @param bwFT
+     * @return the number of the next feature
+     * @throws IOException 
+     */
+    private int writeFeatures(FeaturePartition partition, int featureCount, BufferedWriter bwFT) throws IOException{
         
-        logger.info(STEP_ID_STRING + ": completed");
+        String hostCode = this.getReferenceGenome();
+        int bleed = this.getLocationBleed();
+        String chr = partition.getChr();
+        Strand strand = partition.getStrand();
+        for(CalledFeature calledFeature: partition.getCalledFeatures()){
+            int featureNo = featureCount + calledFeature.featureNo;
+            bwFT.write(featureNo + "\t" + chr + "\t" + strand + "\t" + calledFeature.start + "\t" + calledFeature.stop + "\t"
+                    + (calledFeature.stop - calledFeature.start + 1) + "\t" + calledFeature.coverage
+                    + "\t" + calledFeature.dispersion + "\n");
+            if(featureIndex.doesRegionContainFeature(calledFeature.start, calledFeature.stop, strand, chr, bleed)==false){
+                GFFEntry newEntry = new GFFEntry(
+                        chr,
+                        "srp",
+                        "smallRNA",
+                        calledFeature.start, 
+                        calledFeature.stop,
+                        ".",
+                        strand.toString(),
+                        "0",
+                        "ID=" + hostCode + "-" + Integer.toString(featureNo) + (strand == Strand.PLUS ? ":5|" : ":3|") 
+                                + chr + ":" + calledFeature.start + "-" + calledFeature.stop
+                        );
+                String featureSeq;
+                try{
+                    featureSeq = genomeFasta.getSubSeq(chr, strand, calledFeature.start, calledFeature.stop);
+                }
+                catch(IllegalArgumentException exIA){
+                    logger.error("can't get the sequence for feature " + chr + ":" + calledFeature.start + "-" + calledFeature.stop);
+                    logger.error(exIA);
+                    throw new IOException(STEP_ID_STRING + ": can't get the sequence for feature " 
+                            + chr + ":" + calledFeature.start + "-" + calledFeature.stop + " : " + exIA.getMessage());
+                }
+                if (strand != Strand.PLUS)
+                    featureSeq = SimpleSeq.complement(featureSeq);
+                newEntry.setSequence(featureSeq);
+                featureSet.addEntry(newEntry);
+                featureIndex.addEntry(newEntry);
+            }
+        }
+        return featureCount + partition.drainCalledFeatures();
         
+    }
+    
+    
+    
+    
+    /**
+     * call the feature a streamed partition was still building when it ran
+     * out of reads, and keep the partition to be written once the file has
+     * been read
+     * 
+     * @param partition             can be null if the strand hasn't been seen yet
+     * @param finishedPartitions    the + and - strand partition for each chromosome
+     * @throws IOException          if the chromosome and strand have already been seen
+     */
+    private void finishPartition(FeaturePartition partition, TreeMap<String, FeaturePartition[]> finishedPartitions) throws IOException{
+        
+        if (partition == null)
+            return;
+        partition.finish();
+        FeaturePartition[] chrPartitions = finishedPartitions.get(partition.getChr());
+        if (chrPartitions == null) {
+            chrPartitions = new FeaturePartition[2];
+            finishedPartitions.put(partition.getChr(), chrPartitions);
+        }
+        int strandIndex = partition.getStrand() == Strand.PLUS ? 0 : 1;
+        if (chrPartitions[strandIndex] != null) {
+            logger.error("reads for " + partition.getChr() + " " + partition.getStrand() + " are not together, the file isn't coordinate sorted");
+            throw new IOException("reads for " + partition.getChr() + " " + partition.getStrand() + " are not together, the file isn't coordinate sorted");
+        }
+        chrPartitions[strandIndex] = partition;
         
-
     }
-
+    
+    
+    
+    
+    /**
+     * a feature that passed the length and count filters
+     */
+    private static class CalledFeature{
+        final int                   featureNo;          // relative to the partition's first feature
+        final int                   start;
+        final int                   stop;
+        final double                coverage;
+        final double                dispersion;
+        
+        CalledFeature(int featureNo, int start, int stop, double coverage, double dispersion){
+            this.featureNo = featureNo;
+            this.start = start;
+            this.stop = stop;
+            this.coverage = coverage;
+            this.dispersion = dispersion;
+        }
+    }
+    
+    
     
     
     /**
      *
-     * condense overlapping reads into single features, i.e., those
-     * which have start/stop positions that vary by <= ´bleed´. Start a
-     * new feature when the separation between current read and feature
-     * is great than ´separation´.
+     * condense overlapping reads on one chromosome and strand into single 
+     * features, i.e., those which have start/stop positions that vary by 
+     * <= ´bleed´. Start a new feature when the separation between current 
+     * read and feature is great than ´separation´.
      *
      * if a read is going to be used to identify a feature, then it is
      * probably sufficient for it to arise in only one sample, because
      * it won´t be identified in a differential expression analysis
      * anyway
      *
-     * Also need to accommodate the possibility of two features in the same
-     * position but on different strands therefore we sort by strand and
-     * position
+     * Reads must arrive in start order. They are either added one at a 
+     * time (addRead, then finish once the reads run out) or buffered and 
+     * called on a pool thread (call). A 
+     * partition has its own coverage buffer and only records the features 
+     * it calls, the numbering and writing is left to writeFeatures, so 
+     * partitions can run concurrently
      * 
-     * @param featureOutFile
-     * @param featureCount
-     * @return
-     * @throws IOException 
      */
-    private int processSAMReads(String featureOutFile, int featureCount) throws IOException{
+    private class FeaturePartition implements Callable<FeaturePartition>{
         
-        String hostCode = this.getReferenceGenome();
-        int shortestFeature = this.getShortestRead();            
-        int longestFeature  = this.getLongestRead();
+        private final String                    chr;
+        private final Strand                    strand;
+        private final int                       shortestFeature     = getShortestRead();
+        private final int                       longestFeature      = getLongestRead();
         
-        try {
-            Collections.sort(mappedReads);
-
-            int bleed = this.getLocationBleed();
-
-            MappedRead mappedRead = ((MappedRead) mappedReads.get(0));
-            //logger.debug(mappedRead.toString());
-            String currentChr = mappedRead.getChr();
-            Strand currentStrand = mappedRead.getStrand();
-            String featureString = "";
-            for(String featureType: this.getFeatureTypes()){
-                featureString = featureString.concat(findOverlappingFeature(mappedRead, featureType) + "\t");                    
+        private final CoverageBuffer            coverage            = new CoverageBuffer();
+        private Boolean                         started             = false;
+        private int                             start;
+        private int                             stop;
+        
+        private int                             noOfFeatures        = 0;
+        private final ArrayList<CalledFeature>  calledFeatures      = new ArrayList<>();
+        
+        private int[]                           readStarts          = new int[16];
+        private int[]                           readEnds            = new int[16];
+        private int[]                           readCounts          = new int[16];
+        private int                             noOfReads           = 0;
+        
+        
+        
+        FeaturePartition(String chr, Strand strand){
+            this.chr = chr;
+            this.strand = strand;
+        }
+        
+        
+        
+        /**
+         * @param chr
+         * @param strand
+         * @return true if a read on this chromosome and strand belongs to this partition
+         */
+        Boolean isSamePartition(String chr, Strand strand){
+            return this.strand == strand && this.chr.equals(chr);
+        }
+        
+        
+        
+        /**
+         * keep a read to be called later
+         * 
+         * @param readStart
+         * @param readEnd
+         * @param count 
+         */
+        void bufferRead(int readStart, int readEnd, int count){
+            if (noOfReads == readStarts.length) {
+                readStarts = Arrays.copyOf(readStarts, noOfReads * 2);
+                readEnds = Arrays.copyOf(readEnds, noOfReads * 2);
+                readCounts = Arrays.copyOf(readCounts, noOfReads * 2);
             }
-            featureStrings.add(featureString.substring(0, featureString.length()-1));
-
-            /*
-             need to accommodate the possibility of two features in the
-             same position but on different strands
-             */
-            int currentStart5 = 100000000;
-            int currentStop5 = -1;
-            int currentStart3 = -1;
-            int currentStop3 = 100000000;
-
-            /*
-             using an int array might not be the best way to proceed, but try for now
-             */
-            int coverage5Start = -1;
-            int coverage3Start = -1;
-
-            if (currentStrand.equals(Strand.PLUS)) {
-                currentStart5 = mappedRead.getStartPos();
-                currentStop5 = mappedRead.getEndPos();
-                coverage5Start = currentStart5 - COVERAGE_SPAN / 2;
-            } else {
-                currentStart3 = mappedRead.getStartPos();
-                currentStop3 = mappedRead.getEndPos();                    
-                coverage3Start = currentStart3 - COVERAGE_SPAN / 2;
+            readStarts[noOfReads] = readStart;
+            readEnds[noOfReads] = readEnd;
+            readCounts[noOfReads] = count;
+            noOfReads++;
+        }
+        
+        
+        
+        /**
+         * call the buffered reads
+         * 
+         * @return this partition
+         */
+        @Override
+        public FeaturePartition call(){
+            for (int r = 0; r < noOfReads; r++) {
+                this.addRead(readStarts[r], readEnds[r], readCounts[r]);
             }
-
-
-            BufferedWriter bwFT = new BufferedWriter(new FileWriter(new File(featureOutFile)));
-            bwFT.write("ID\tChr\t \tStart\tStop\tLength\tCoverage\tDispersion\n");
-
-            Iterator itMR = mappedReads.iterator();
-            Boolean startNewFeature3 = false;
+            this.finish();
+            readStarts = null;
+            readEnds = null;
+            readCounts = null;
+            return this;
+        }
+        
+        
+        
+        /**
+         * add a read to the current feature, or start a new one
+         * 
+         * @param readStart
+         * @param readEnd
+         * @param count
+         */
+        void addRead(int readStart, int readEnd, int count){
+            if (strand == Strand.PLUS)
+                this.addRead5(readStart, readEnd, count);
+            else
+                this.addRead3(readStart, readEnd, count);
+        }
+        
+        
+        
+        private void addRead5(int readStart, int readEnd, int count){
+            
+            if (started == false) {
+                started = true;
+                start = readStart;
+                stop = readEnd;
+                coverage.reset(start);
+                coverage.add(readStart, readEnd, count);
+                return;
+            }
+            
             Boolean startNewFeature5 = false;
-            while (itMR.hasNext()) {
-                mappedRead = (MappedRead) itMR.next();
-                featureString = "";
-                for(String featureType: this.getFeatureTypes()){
-                    featureString = featureString.concat(findOverlappingFeature(mappedRead, featureType) + "\t");                    
+            if (readStart - start > separation) {
+                //logger.debug("read too far away. start new 5' feature");                                    
+                startNewFeature5 = true;
+            } else {
+                if (readStart < start) {
+                    //logger.debug("extend 5´ start from " + start + " to " + readStart);
+                    start = readStart;
                 }
-                featureStrings.add(featureString.substring(0, featureString.length()-1));
-                //logger.debug(mappedRead.toString());
-                if (mappedRead.getChr().equals(currentChr) == false || mappedRead.getStrand().equals(currentStrand) == false) {
-                    if (mappedRead.getChr().equals(currentChr) == false) {
-                        //logger.debug("different chr. start new feature");
-                    }
-                    if (mappedRead.getStrand().equals(currentStrand) == false) {
-                        logger.debug("different strand. start new feature");                            
-                    }
-                    currentStrand = mappedRead.getStrand();
-                    currentChr = mappedRead.getChr();
-                    if (currentStrand == Strand.PLUS) {
-                        startNewFeature3 = false;
-                        startNewFeature5 = false;
-                        currentStart5 = mappedRead.getStartPos();
-                        currentStop5 = mappedRead.getEndPos();
-                        coverage5Start = currentStart5 - COVERAGE_SPAN / 2;
-                        addCounts5(currentStart5 - coverage5Start, mappedRead.getEndPos() - coverage5Start, mappedRead.getCount());
-                    } else {
-                        startNewFeature3 = false;
-                        startNewFeature5 = false;
-                        currentStart3 = mappedRead.getStartPos();
-                        currentStop3 = mappedRead.getEndPos();
-                        coverage3Start = currentStart3 + COVERAGE_SPAN / 2;
-                        addCounts3(coverage3Start - mappedRead.getStartPos(), coverage3Start - mappedRead.getEndPos(), mappedRead.getCount());
-                    }
-
-                } else {
-                    switch (currentStrand) {
-                        case PLUS:
-                            if (mappedRead.getStartPos() - currentStart5 > separation) {
-                                //logger.debug("read too far away. start new 5' feature");                                    
-                                startNewFeature5 = true;
-                            } else {
-                                if (mappedRead.getStartPos() < currentStart5) {
-                                    //logger.debug("extend 5´ start from " + currentStart5 + " to " + mappedRead.getStartPos());
-                                    currentStart5 = mappedRead.getStartPos();
-                                    if( currentStart5 <= coverage5Start)
-                                        startNewFeature5 = true;
-                                }
-                                if (mappedRead.getEndPos() > currentStop5) {
-                                    //logger.debug("extend 5´ end from " + currentStop5 + " to " + mappedRead.getEndPos());
-                                    currentStop5 = mappedRead.getEndPos();
-                                    if( currentStop5 >= coverage5Start + COVERAGE_SPAN )
-                                        startNewFeature5 = true;
-                                }
-                                try {
-                                    //logger.debug(printCoverage5(currentStart5 - coverage5Start, mappedRead.getEndPos() - coverage5Start, "|"));
-                                    this.addCounts5(currentStart5 - coverage5Start, mappedRead.getEndPos() - coverage5Start, mappedRead.getCount());
-                                    //logger.debug(printCoverage5(currentStart5 - coverage5Start, mappedRead.getEndPos() - coverage5Start, "|"));
-                                } catch (ArrayIndexOutOfBoundsException exAB) {
-                                    logger.error("5' Array out of bounds");
-                                    throw new IOException("5' Array out of bounds");
-                                }
-                            }
-                            break;
-
-
-                        case MINUS:
-                            if ((mappedRead.getStartPos() - currentStart3 > separation) || (currentStop3 - mappedRead.getEndPos() > separation)) {
-                                //logger.debug("read too far away. start new 3' feature");
-                                startNewFeature3 = true;
-                            } else {
-                                //logger.debug("add read to existing feature");
-                                if (mappedRead.getStartPos() > currentStart3) {
-                                    //logger.debug("extend 3´ start from " + currentStart3 + " to " + mappedRead.getStartPos());
-                                    currentStart3 = mappedRead.getStartPos();
-                                    if(currentStart3 <= coverage3Start)
-                                        startNewFeature3 = true;
-                                }
-                                if (mappedRead.getEndPos() < currentStop3) {
-                                    //logger.debug("extend 3´ end from " + currentStop3 + " to " + mappedRead.getEndPos());
-                                    currentStop3 = mappedRead.getEndPos();
-                                    if(currentStop3 >= coverage3Start + COVERAGE_SPAN) 
-                                        startNewFeature3 = true;
-                                }
-                                try {
-                                    //logger.debug(printCoverage3(coverage3Start - currentStop3, coverage3Start - currentStart3, "|"));
-                                    this.addCounts3(coverage3Start - mappedRead.getStartPos(), coverage3Start - mappedRead.getEndPos(), mappedRead.getCount());
-                                    //logger.debug(printCoverage3(coverage3Start - currentStop3, coverage3Start - currentStart3, "|"));
-                                } catch (ArrayIndexOutOfBoundsException exAB) {
-                                    logger.error("3' Array out of bounds");
-                                    logger.error(mappedRead.toString());
-                                    logger.error(exAB);
-                                    throw new IOException("3' Array out of bounds" + "\n" + mappedRead.toString());
-                                }
-                            }
-                            break;
-
-
-                        case UNKNOWN:
-                            logger.error("no Strand information for read, cannot process ");
-                            logger.error(mappedRead.toString());
-                            break;
-
-                    }
-
+                if (readEnd > stop) {
+                    //logger.debug("extend 5´ end from " + stop + " to " + readEnd);
+                    stop = readEnd;
                 }
-
-                if (startNewFeature5) {
-                    if(currentStop5 - currentStart5 + 1 <= longestFeature 
-                            && currentStop5 - currentStart5 + 1>= shortestFeature 
-                            && countCoverage5(currentStart5 - coverage5Start, currentStop5 - coverage5Start) >= minCounts){
-                        bwFT.write(featureCount + "\t" + currentChr + "\t" + currentStrand + "\t" + currentStart5 + "\t" + currentStop5 + "\t"
-                                + (currentStop5 - currentStart5 + 1) + "\t" + this.countCoverage5(currentStart5 - coverage5Start, currentStop5 - coverage5Start)
-                                + "\t" + this.countDispersion5(currentStart5 - coverage5Start, currentStop5 - coverage5Start) + "\n");
-                        if(featureSet.doesRegionContainFeature(currentStart5, currentStop5, currentStrand, currentChr, bleed)==false){
-                            GFFEntry newEntry = new GFFEntry(
-                                    currentChr,
-                                    "srp",
-                                    "smallRNA",
-                                    currentStart5, 
-                                    currentStop5,
-                                    ".",
-                                    currentStrand.toString(),
-                                    "0",
-                                    "ID=" + hostCode  + "-" + Integer.toString(featureCount) + ":5|" + currentChr  + ":" + currentStart5+ "-" + currentStop5
-                                    );
-                            String featureSeq = genomeFasta.getSubSeq(currentChr, currentStrand, currentStart5, currentStop5);
-                            newEntry.setSequence(featureSeq);
-                            featureSet.addEntry(newEntry);
-                        }                            
-                    }
-
-                    currentStart5 = mappedRead.getStartPos();
-                    currentStop5 = mappedRead.getEndPos();
-
-                    coverage5Start = currentStart5 - COVERAGE_SPAN / 2;
-                    clearCoverage5();
-                    try {
-                        this.addCounts5(mappedRead.getStartPos() - coverage5Start, mappedRead.getEndPos() - coverage5Start, mappedRead.getCount());
-                    } catch (ArrayIndexOutOfBoundsException exAB) {
-                        logger.error("5' Array out of bounds when writing data");
-                        throw new IOException(STEP_ID_STRING + ": 5' Array out of bounds when writing data");
-                    }
-
-                    currentStrand = mappedRead.getStrand();
-                    currentChr = mappedRead.getChr();
-                    featureCount++;
-                    startNewFeature5 = false;
-
-                } else {                                         
-                    if (startNewFeature3 ) {
-                        if(currentStop3 - currentStart3 + 1<= longestFeature 
-                            && currentStop3 - currentStart3 + 1>= shortestFeature
-                            && countCoverage3(coverage3Start - currentStop3, coverage3Start - currentStart3) > minCounts){
-                            bwFT.write(featureCount + "\t" + currentChr + "\t" + currentStrand + "\t" + currentStart3 + "\t" + currentStop3 + "\t"
-                                    + (currentStop3 - currentStart3 + 1) + "\t" + this.countCoverage3(coverage3Start - currentStop3, coverage3Start - currentStart3)
-                                    + "\t" + this.countDispersion3(coverage3Start - currentStop3, coverage3Start - currentStart3) + "\n");
-                            if(featureSet.doesRegionContainFeature(currentStart3, currentStop3, currentStrand, currentChr, bleed)==false){
-     //                           GFFEntry newEntry = new GFFEntry(hostCode + "-" + Integer.toString(featureCount) + ":3|" + currentChr  + ":" + currentStart5+ "-" + currentStop5, currentStrand.toString(), currentChr, currentStart3, currentStop3);
-                                GFFEntry newEntry = new GFFEntry(
-                                        currentChr,
-                                        "srp",
-                                        "smallRNA",
-                                        currentStart5, 
-                                        currentStop5,
-                                        ".",
-                                        currentStrand.toString(),
-                                        "0",
-                                        "ID=" + hostCode + "-" + Integer.toString(featureCount) + ":3|" + currentChr  + ":" + currentStart5+ "-" + currentStop5
-                                        );
-                                String featureSeq = SimpleSeq.complement(genomeFasta.getSubSeq(currentChr, currentStrand, currentStart3, currentStop3));
-                                newEntry.setSequence(featureSeq);
-                                featureSet.addEntry(newEntry);                                    
-                            }
-
-                        }
-
-                        currentStart3 = mappedRead.getStartPos();
-                        currentStop3 = mappedRead.getEndPos();
-
-                        coverage3Start = currentStart3 + COVERAGE_SPAN / 2;
-                        clearCoverage3();
-                        try {
-                            this.addCounts3(coverage3Start - mappedRead.getStartPos(), coverage3Start - mappedRead.getEndPos(), mappedRead.getCount());
-                        } catch (ArrayIndexOutOfBoundsException exAB) {
-                            logger.error("3' Array out of bounds when writing data");
-                            throw new IOException(STEP_ID_STRING + ": 3' Array out of bounds when writing data");
-                        }
-                        currentStrand = mappedRead.getStrand();
-                        currentChr = mappedRead.getChr();                           
-                        featureCount++;
-                        startNewFeature3 = false;
-                    }
+                coverage.add(start, readEnd, count);
+            }
+            
+            if (startNewFeature5 == false)
+                return;
+            
+            this.callFeature5();
+            
+            start = readStart;
+            stop = readEnd;
+            coverage.reset(start);
+            coverage.add(readStart, readEnd, count);
+            
+        }
+        
+        
+        
+        /*
+            - strand coverage is counted one base further along than + strand 
+            coverage (start+1..end rather than start..end-1)
+        */
+        private void addRead3(int readStart, int readEnd, int count){
+            
+            if (started == false) {
+                started = true;
+                start = readStart;
+                stop = readEnd;
+                coverage.reset(start + 1);
+                coverage.add(readStart + 1, readEnd + 1, count);
+                return;
+            }
+            
+            if (strand != Strand.MINUS) {
+                logger.error("no Strand information for read, cannot process ");
+                logger.error(chr + ":" + readStart + "-" + readEnd);
+                return;
+            }
+            
+            Boolean startNewFeature3 = false;
+            if ((readStart - start > separation) || (stop - readEnd > separation)) {
+                //logger.debug("read too far away. start new 3' feature");
+                startNewFeature3 = true;
+            } else {
+                if (readStart > start) {
+                    //logger.debug("extend 3´ start from " + start + " to " + readStart);
+                    start = readStart;
                 }
-
+                if (readEnd < stop) {
+                    //logger.debug("extend 3´ end from " + stop + " to " + readEnd);
+                    stop = readEnd;
+                }
+                coverage.add(readStart + 1, readEnd + 1, count);
             }
-            bwFT.close();
-        } catch (IOException exIO) {
-            logger.error(exIO);
-            throw new IOException(STEP_ID_STRING + ": error writing feature details file <" + featureOutFile + ">");
+            
+            if (startNewFeature3 == false)
+                return;
+            
+            this.callFeature3();
+            
+            start = readStart;
+            stop = readEnd;
+            coverage.reset(start + 1);
+            coverage.add(readStart + 1, readEnd + 1, count);
+            
+        }
+        
+        
+        
+        /**
+         * record the current + strand feature if it passes the length and
+         * count filters. Either way it takes a feature number
+         */
+        private void callFeature5(){
+            if(stop - start + 1 <= longestFeature 
+                    && stop - start + 1>= shortestFeature 
+                    && countCoverage(coverage, start, stop) >= minCounts){
+                calledFeatures.add(new CalledFeature(noOfFeatures, start, stop, 
+                        countCoverage(coverage, start, stop), 
+                        countDispersion(coverage, start, stop)));
+            }
+            noOfFeatures++;
+        }
+        
+        
+        
+        /**
+         * record the current - strand feature if it passes the length and
+         * count filters. Either way it takes a feature number
+         */
+        private void callFeature3(){
+            if(stop - start + 1<= longestFeature 
+                && stop - start + 1>= shortestFeature
+                && countCoverage(coverage, start + 1, stop + 1) > minCounts){
+                calledFeatures.add(new CalledFeature(noOfFeatures, start, stop, 
+                        countCoverage(coverage, start + 1, stop + 1), 
+                        countDispersion(coverage, start + 1, stop + 1)));
+            }
+            noOfFeatures++;
+        }
+        
+        
+        
+        /**
+         * call the feature that was still being built when the reads ran out.
+         * Features are otherwise only called when a read starts the next one, 
+         * so without this the last feature on every chromosome and strand 
+         * would be lost
+         */
+        void finish(){
+            if (started == false)
+                return;
+            if (strand == Strand.PLUS)
+                this.callFeature5();
+            else if (strand == Strand.MINUS)
+                this.callFeature3();
+            started = false;
+        }
+        
+        
+        
+        /**
+         * forget the features that have been written
+         * 
+         * @return the number of features started since the last drain
+         */
+        int drainCalledFeatures(){
+            int drained = noOfFeatures;
+            noOfFeatures = 0;
+            calledFeatures.clear();
+            return drained;
+        }
+        
+        
+        
+        String getChr(){
+            return chr;
+        }
+        
+        
+        
+        Strand getStrand(){
+            return strand;
         }
-        return featureCount;
+        
+        
+        
+        ArrayList<CalledFeature> getCalledFeatures(){
+            return calledFeatures;
+        }
+        
     }
     
     
@@ -674,7 +1052,8 @@ public class StepAnalyzeSAMforStartPositions extends NGSStep implements NGSBase{
      * @return 
      */
     private int checkFeatureOverlap(MappedRead queryRead, String featureType, int bleed){
-        GFFEntry gffEntry = gffSet.findOverlappingFeature(queryRead, featureType, bleed);
+        GFFEntry gffEntry = gffIndex.findFeatureOverlappingRegion(featureType, queryRead.getChr(), queryRead.getStrand(),
+                queryRead.getStartPos(), queryRead.getEndPos(), bleed);
         if (gffEntry!=null)
             return gffEntry.getStart() - queryRead.getStartPos();
         else
@@ -694,7 +1073,8 @@ public class StepAnalyzeSAMforStartPositions extends NGSStep implements NGSBase{
      * @return 
      */
     private String findOverlappingFeature(MappedRead queryRead, String featureType){
-        GFFEntry gffEntry = gffSet.doesFeatureContainRegion(queryRead, featureType);
+        GFFEntry gffEntry = gffIndex.findFeatureContainingRegion(featureType, queryRead.getChr(), queryRead.getStrand(),
+                queryRead.getStartPos(), queryRead.getEndPos());
         if (gffEntry!=null)
             return Integer.toString(gffEntry.getStart() - queryRead.getStartPos()) + "\t" + queryRead.getCount();
         else
@@ -707,139 +1087,45 @@ public class StepAnalyzeSAMforStartPositions extends NGSStep implements NGSBase{
     
     
     /**
-     * calculate average count across the mapped region for + Strand
-     *
-     * @param start
-     * @param stop
-     * @return
-     */
-    private double countCoverage5(int start, int stop) {
-        int countTotal = 0;
-        for (int i = start; i < stop; i++) {
-            countTotal += coverage5[i];
-        }
-        return (double) countTotal / (double) (stop - start + 1);
-    }
-
-    /**
-     * add counts to 3' coverage
-     *
-     * @param start
-     * @param stop
-     * @param counts
-     */
-    private void addCounts3(int start, int stop, int counts) {
-        
-        for (int i = stop; i < start; i++) {
-            coverage3[i] += counts;
-        }
-        
-    }
-
-    /**
-     * add counts to 5' coverage
-     *
-     * @param start
-     * @param stop
-     * @param counts
-     */
-    private void addCounts5(int start, int stop, int counts) {
-        
-        for (int i = start; i < stop; i++) {
-            coverage5[i] += counts;
-        }
-        
-    }
-
-    /**
-     * calculate average count across the mapped region for - Strand
-     *
-     * @param start
-     * @param stop
-     * @return
-     */
-    private double countCoverage3(int start, int stop) {
-        int countTotal = 0;
-        for (int i = start; i < stop; i++) {
-            countTotal += coverage3[i];
-        }
-        return (double) countTotal / (double) (stop - start + 1);
-    }
-
-    /**
-     * return string showing coverage over specified 3' region
+     * calculate average count across the mapped region
      *
+     * @param coverage
      * @param start
-     * @param stop
+     * @param stop      exclusive
      * @return
      */
-    private String printCoverage3(int start, int stop, String delimiter) {
-        String coverageStr = "";
-        for (int i = start; i < stop; i++) {
-            coverageStr = coverageStr.concat((Integer.toString(coverage3[i])) + delimiter);
-        }
-        return coverageStr;
+    private static double countCoverage(CoverageBuffer coverage, int start, int stop) {
+        return (double) coverage.sum(start, stop) / (double) (stop - start + 1);
     }
 
     /**
-     * return string showing coverage over specified 3' region
+     * return string showing coverage over specified region
      *
+     * @param coverage
      * @param start
-     * @param stop
+     * @param stop      exclusive
      * @return
      */
-    private String printCoverage5(int start, int stop, String delimiter) {
+    private static String printCoverage(CoverageBuffer coverage, int start, int stop, String delimiter) {
         String coverageStr = "";
         for (int i = start; i < stop; i++) {
-            coverageStr = coverageStr.concat((Integer.toString(coverage5[i])) + delimiter);
+            coverageStr = coverageStr.concat((Integer.toString(coverage.get(i))) + delimiter);
         }
         return coverageStr;
     }
 
     /**
-     * reset the 3' coverage array
-     */
-    private void clearCoverage3() {
-        for (int i = 0; i < coverage3.length; i++) {
-            coverage3[i] = 0;
-        }        
-    }
-
-    /**
-     * estimate dispersion of counts across the feature for + strand
+     * estimate dispersion of counts across the feature
      *
+     * @param coverage
      * @param start
-     * @param stop
+     * @param stop      exclusive
      * @return
      */
-    private double countDispersion5(int start, int stop) {
+    private static double countDispersion(CoverageBuffer coverage, int start, int stop) {
         DescriptiveStatistics stats = new DescriptiveStatistics();
         for (int i = start; i < stop; i++) {
-            stats.addValue(coverage5[i]);
-        }
-        return stats.getStandardDeviation();
-    }
-
-    /**
-     * reset the 5' coverage array
-     */
-    private void clearCoverage5() {
-        for (int i = 0; i < coverage5.length; i++) {
-            coverage5[i] = 0;
-        }        
-    }
-
-    /**
-     * estimate dispersion of counts across the feature for - strand
-     *
-     * @param start
-     * @param stop
-     * @return
-     */
-    private double countDispersion3(int start, int stop) {
-        DescriptiveStatistics stats = new DescriptiveStatistics();
-        for (int i = start; i < stop; i++) {
-            stats.addValue(coverage3[i]);
+            stats.addValue(coverage.get(i));
         }
         return stats.getStandardDeviation();
     }
@@ -948,6 +1234,10 @@ public class StepAnalyzeSAMforStartPositions extends NGSStep implements NGSBase{
         configData.put(ID_MIN_COUNTS, 1000);
         configData.put(ID_SEPARATION, 10);
         configData.put(ID_FEATURE_TYPES, new ArrayList<>(Arrays.asList("mRNA", "CDS", "exon")));
+        configData.put(ID_POOL_SAMPLES, false);
+        configData.put(ID_MEMORY_BUDGET, 0);
+        configData.put(ID_SCRATCH_FOLDER, "");
+        configData.put(ID_STREAM_SORTED, true);
         
         return configData;
     }
@@ -956,6 +1246,96 @@ public class StepAnalyzeSAMforStartPositions extends NGSStep implements NGSBase{
 
 
 
+    /**
+     * 
+     * @return the memory the mapped reads can use, in bytes
+     */
+    private long getReadMemoryBudget(){
+        if(this.getMemoryBudgetMB() > 0)
+            return this.getMemoryBudgetMB() * 1024L * 1024L;
+        return Runtime.getRuntime().maxMemory() / 2;
+    }
+    
+    
+    
+    
+    /**
+     * @return the genome sequence, annotation and annotation index the step loads
+     */
+    @Override
+    public ArrayList<String> getReferenceKeys(){
+        return new ArrayList<>(Arrays.asList(
+                ReferenceRegistry.getGenomeKey(this.getReferenceGenome(), this.getGenomeFastaFile()),
+                ReferenceRegistry.getGFFKey(this.getReferenceGenome(), this.getAnnotationFile()),
+                ReferenceRegistry.getGFFIndexKey(this.getReferenceGenome(), this.getAnnotationFile())));
+    }
+
+    
+    
+    
+    /**
+     * let go of the genome sequence, annotation and annotation index
+     */
+    @Override
+    public void dropReferences(){
+        genomeFasta = null;
+        gffSet = new GFFSet();
+        gffIndex = null;
+    }
+    
+    
+    
+    
+    /**
+     * @return the genome fasta file for the reference genome
+     */
+    private String getGenomeFastaFile(){
+        String pathToFasta = stepInputData.getDataLocations().getGenomeRootFolder()
+                + FILESEPARATOR + this.getReferenceGenome() + FILESEPARATOR + ReferenceDataLocations.ID_REL_WHOLE_GENSEQ_PATH;
+        return this.cleanPath(pathToFasta + FILESEPARATOR + "genome.fa");
+    }
+    
+    
+    
+    
+    /**
+     * @return genes.gtf, or genes.gff if there is no gtf file
+     */
+    private String getAnnotationFile(){
+        String pathToAnnotation = stepInputData.getDataLocations().getGenomeRootFolder()
+                + FILESEPARATOR + this.getReferenceGenome() + ReferenceDataLocations.ID_GENE_ANNOTATION;
+        if (new File(pathToAnnotation + FILESEPARATOR + "genes.gtf").exists()) {
+            return pathToAnnotation + FILESEPARATOR + "genes.gtf";
+        } else if (new File(pathToAnnotation + FILESEPARATOR + "genes.gff").exists()) {
+            return pathToAnnotation + FILESEPARATOR + "genes.gff";
+        }
+        return "";
+    }
+    
+    
+    
+    
+    /**
+     * @return the file extensions this step reads
+     */
+    @Override
+    public ArrayList<String> getInputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(INFILE_EXTENSION));
+    }
+    
+    
+    
+    /**
+     * @return the file extensions this step writes
+     */
+    @Override
+    public ArrayList<String> getOutputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(POS_FILE_EXT, FEAT_FILE_EXT, 
+                ".gff_vs_feat.tsv", ".features.tsv", ".freq.tsv", ".fasta", ".pos.tsv"));
+    }
+    
+    
+    
     @Override
     public void verifyOutputData() {
         
@@ -1086,5 +1466,61 @@ public class StepAnalyzeSAMforStartPositions extends NGSStep implements NGSBase{
     public void setFeatureTypes(ArrayList<String> featureTypes) {
         this.featureTypes = featureTypes;
     }
+
+    /**
+     * @return true if the reads from all samples are pooled before calling features
+     */
+    public Boolean getPoolSamples() {
+        return poolSamples;
+    }
+
+    /**
+     * @param poolSamples true to pool the reads from all samples before calling features
+     */
+    public void setPoolSamples(Boolean poolSamples) {
+        this.poolSamples = poolSamples;
+    }
+
+    /**
+     * @return the memoryBudgetMB
+     */
+    public int getMemoryBudgetMB() {
+        return memoryBudgetMB;
+    }
+
+    /**
+     * @param memoryBudgetMB the memoryBudgetMB to set
+     */
+    public void setMemoryBudgetMB(int memoryBudgetMB) {
+        this.memoryBudgetMB = memoryBudgetMB;
+    }
+
+    /**
+     * @return the scratchFolder
+     */
+    public String getScratchFolder() {
+        return scratchFolder;
+    }
+
+    /**
+     * @param scratchFolder the scratchFolder to set
+     */
+    public void setScratchFolder(String scratchFolder) {
+        this.scratchFolder = scratchFolder;
+    }
+
+    /**
+     * @return true if coordinate sorted SAM files are called as they are read
+     */
+    public Boolean getStreamSortedInput() {
+        return streamSortedInput;
+    }
+
+    /**
+     * @param streamSortedInput true to call coordinate sorted SAM files as they are read
+     */
+    public void setStreamSortedInput(Boolean streamSortedInput) {
+        this.streamSortedInput = streamSortedInput;
+    }
     
 }
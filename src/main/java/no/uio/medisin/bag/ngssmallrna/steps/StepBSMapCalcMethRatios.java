@@ -5,12 +5,10 @@
  */
 package no.uio.medisin.bag.ngssmallrna.steps;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -339,7 +337,8 @@ public class StepBSMapCalcMethRatios extends NGSStep implements NGSBase{
                 
                 String pathToGenomeFA = this.cleanPath(stepInputData.getDataLocations().getGenomeRootFolder()
                         + FILESEPARATOR + this.getReferenceGenome() + FILESEPARATOR + ReferenceDataLocations.ID_REL_WHOLE_GENSEQ_FA);
-                cmd.add("-d " + pathToGenomeFA);
+                cmd.add("-d");
+                cmd.add(pathToGenomeFA);
                     
                 /**
                  * not sure about the best way to handle this.
@@ -350,17 +349,23 @@ public class StepBSMapCalcMethRatios extends NGSStep implements NGSBase{
                 String methOutFile = this.cleanPath(outFolder + FILESEPARATOR 
                         + sampleData.getFastqFile1().split("_")[0].trim()+ METHFILE_EXTENSION);
                 
-                cmd.add("-o " + methOutFile);
+                cmd.add("-o");
+                
+                cmd.add(methOutFile);
                 
                 if(this.getOutputWiggleFile()){
                     String wiggleFile = methOutFile.replace(METHFILE_EXTENSION, WIGGLEFILE_EXTENSION);
-                    cmd.add("-w " + wiggleFile);                
-                    cmd.add("-b " + this.getWiggleFileBinSize());                
+                    cmd.add("-w");
+                    cmd.add(wiggleFile);
+                    cmd.add("-b");
+                    cmd.add(String.valueOf(this.getWiggleFileBinSize()));
                 }
-                cmd.add("-c " + this.getProcessTheseChromosomes());
+                cmd.add("-c");
+                cmd.add(this.getProcessTheseChromosomes());
                 
                 if(this.getPathToSAMTools().isEmpty()==false)
-                    cmd.add("-s " + this.getPathToSAMTools());
+                    cmd.add("-s");
+                    cmd.add(this.getPathToSAMTools());
                 
                 
                 if(this.getOnlyProcessUniqueMappings())
@@ -382,38 +387,7 @@ public class StepBSMapCalcMethRatios extends NGSStep implements NGSBase{
                 
                                 
                 cmdCalcMethRatios = this.cleanPath(StringUtils.join(cmd, " "));
-                logger.info("methylratio command is: " + cmdCalcMethRatios);
-                Runtime rt = Runtime.getRuntime();
-                Process proc = rt.exec(cmdCalcMethRatios);
-                BufferedReader brAStdin = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-                BufferedReader brAStdErr = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-
-                String line = null;
-                logger.info("<OUTPUT>");
-                while ((line = brAStdin.readLine()) != null) {
-                    logger.info(line);
-                }
-                logger.info("</OUTPUT>");
-
-                logger.info("<ERROR>");
-                int skipCount = 0;
-                
-                ArrayList<String>  mapAbunStdErr;
-
-                mapAbunStdErr = new ArrayList<>();
-                while ((line = brAStdErr.readLine()) != null) {
-                        logger.info(line);
-                        mapAbunStdErr.add(line);
-                }
-                
-
-                logger.info("</ERROR>");
-
-                int exitVal = proc.waitFor();
-                logger.info("Process exitValue: " + exitVal);
-
-                brAStdin.close();
-                brAStdErr.close();
+                ArrayList<String> mapAbunStdErr = this.runProcess(STEP_ID_STRING + " methratio", cmd).getStderr();
                 logger.info(STEP_ID_STRING + ": done");
                 
                 String samAlnOutput = this.cleanPath(outFolder + FILESEPARATOR 
@@ -431,7 +405,7 @@ public class StepBSMapCalcMethRatios extends NGSStep implements NGSBase{
                 
                 
             }
-            catch(IOException | InterruptedException ex ){
+            catch(IOException ex ){
                 getLogger().info("error executing methratio program:\n" + ex.toString());
                 getLogger().error("error executing methratio program:\n" + ex.toString());
                 throw new IOException("error executing methratio program");
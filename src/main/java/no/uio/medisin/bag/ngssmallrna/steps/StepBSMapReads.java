@@ -5,12 +5,10 @@
  */
 package no.uio.medisin.bag.ngssmallrna.steps;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -411,230 +409,292 @@ public class StepBSMapReads extends NGSStep implements NGSBase{
         }
         
         
+        this.executeSamples(new SampleTask<Void>(){
+            @Override
+            public Void processSample(SampleDataEntry sampleData) throws IOException{
+                mapSample(sampleData);
+                return null;
+            }
+            
+            @Override
+            public ArrayList<String> getSampleInputFiles(SampleDataEntry sampleData){
+                ArrayList<String> inputFiles = new ArrayList<>();
+                inputFiles.add(getFastqInputFile(sampleData.getFastqFile1()));
+                if (sampleData.getFastqFile2() != null)
+                    inputFiles.add(getFastqInputFile(sampleData.getFastqFile2()));
+                return inputFiles;
+            }
+            
+            @Override
+            public ArrayList<String> getSampleOutputFiles(SampleDataEntry sampleData){
+                return new ArrayList<>(Arrays.asList(getSAMOutputFile(sampleData), getBSMapOutputFile(sampleData)));
+            }
+        });
+        
+        getLogger().info(STEP_ID_STRING + ": completed");
+    }
+    
+    
+    
+    
+    /**
+     * map the reads for a single sample
+     * 
+     * @param sampleData
+     * @throws IOException 
+     */
+    private void mapSample(SampleDataEntry sampleData) throws IOException{
+        
         String fastqFile1in = "";
         String fastqFile1out = "";
         String fastqFile2in = "";
         String fastqFile2out = "";
-        Iterator itSD = this.stepInputData.getSampleData().iterator();
-        while (itSD.hasNext()){
-            try{
-                SampleDataEntry sampleData = (SampleDataEntry)itSD.next();                
-                
-                String cmdBSMap = "";   
-                ArrayList<String> cmd = new ArrayList<>();
-                cmd.add(this.getPathToBSMap());
-                
+        try{
+            
+            String cmdBSMap = "";   
+            ArrayList<String> cmd = new ArrayList<>();
+            cmd.add(this.getPathToBSMap());
+            
+            if(this.trimAdapterSequence){
+                fastqFile1out = this.cleanPath(outFolder 
+                        + FILESEPARATOR + sampleData.getFastqFile1());
+                fastqFile1in = this.cleanPath(inFolder 
+                        + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION_TRIM));                
+            }else{
+                fastqFile1out = this.cleanPath(outFolder 
+                        + FILESEPARATOR + sampleData.getFastqFile1());
+                fastqFile1in = this.cleanPath(inFolder 
+                        + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION_NOTRIM));                
+            }
+            cmd.add("-a");
+            cmd.add(fastqFile1in);
+            if (sampleData.getFastqFile2() != null){
                 if(this.trimAdapterSequence){
-                    fastqFile1out = this.cleanPath(outFolder 
-                            + FILESEPARATOR + sampleData.getFastqFile1());
-                    fastqFile1in = this.cleanPath(inFolder 
-                            + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION_TRIM));                
+                    fastqFile2out = this.cleanPath(outFolder 
+                            + FILESEPARATOR + sampleData.getFastqFile2());
+                    fastqFile2in = this.cleanPath(inFolder 
+                            + FILESEPARATOR + sampleData.getFastqFile2().replace(".fastq", INFILE_EXTENSION_TRIM));                
                 }else{
-                    fastqFile1out = this.cleanPath(outFolder 
-                            + FILESEPARATOR + sampleData.getFastqFile1());
-                    fastqFile1in = this.cleanPath(inFolder 
-                            + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION_NOTRIM));                
-                }
-                cmd.add("-a " + fastqFile1in);
-                if (sampleData.getFastqFile2() != null){
-                    if(this.trimAdapterSequence){
-                        fastqFile2out = this.cleanPath(outFolder 
-                                + FILESEPARATOR + sampleData.getFastqFile2());
-                        fastqFile2in = this.cleanPath(inFolder 
-                                + FILESEPARATOR + sampleData.getFastqFile2().replace(".fastq", INFILE_EXTENSION_TRIM));                
-                    }else{
-                        fastqFile2out = this.cleanPath(outFolder 
-                                + FILESEPARATOR + sampleData.getFastqFile2());
-                        fastqFile2in = this.cleanPath(inFolder 
-                                + FILESEPARATOR + sampleData.getFastqFile2().replace(".fastq", INFILE_EXTENSION_NOTRIM));                
-                    }
-                    cmd.add("-b " + fastqFile2in);
+                    fastqFile2out = this.cleanPath(outFolder 
+                            + FILESEPARATOR + sampleData.getFastqFile2());
+                    fastqFile2in = this.cleanPath(inFolder 
+                            + FILESEPARATOR + sampleData.getFastqFile2().replace(".fastq", INFILE_EXTENSION_NOTRIM));                
                 }
+                cmd.add("-b");
+                cmd.add(fastqFile2in);
+            }
+            
+            String pathToGenomeFA = this.cleanPath(stepInputData.getDataLocations().getGenomeRootFolder()
+                    + FILESEPARATOR + this.getReferenceGenome() + FILESEPARATOR + ReferenceDataLocations.ID_REL_WHOLE_GENSEQ_FA);
+            cmd.add("-d");
+            cmd.add(pathToGenomeFA);
                 
-                String pathToGenomeFA = this.cleanPath(stepInputData.getDataLocations().getGenomeRootFolder()
-                        + FILESEPARATOR + this.getReferenceGenome() + FILESEPARATOR + ReferenceDataLocations.ID_REL_WHOLE_GENSEQ_FA);
-                cmd.add("-d " + pathToGenomeFA);
+            /**
+             * not sure about the best way to handle this.
+             * It seems that the files that come of the NSC sequences have a general format
+             * SAMPLENAME_SEQUENCERDATA1_SEQUENCEDATA_..., so we split at the first "_"
+             * 
+             */
+            String samAlnFile = this.getSAMOutputFile(sampleData);
+            cmd.add("-o");
+            cmd.add(samAlnFile);
+            
+            cmd.add("-s");
+            cmd.add(String.valueOf(this.getSeedSize()));
+            
+            /*  
+              if this value is between 0 and 1, it's interpreted as the mismatch rate w.r.t to the read length.
+              otherwise it's interpreted as the maximum number of mismatches allowed on a read, <=15.
+              example: 
+                -v 5 (max #mismatches = 5), 
+                -v 0.1 (max #mismatches = read_length * 10%)
+                default=0.08.
+            */
+            cmd.add("-v");
+            cmd.add(String.valueOf(this.getNoOfMismatches()));
+            
+            /*
+              using 3-nucleotide mapping approach. (default: off)
+            */
+            if(this.getThreeNucMapping())
+                cmd.add("-3");
+            
                     
-                /**
-                 * not sure about the best way to handle this.
-                 * It seems that the files that come of the NSC sequences have a general format
-                 * SAMPLENAME_SEQUENCERDATA1_SEQUENCEDATA_..., so we split at the first "_"
-                 * 
-                 */
-                String samAlnFile = this.cleanPath(outFolder + FILESEPARATOR 
-                        + sampleData.getFastqFile1().split("_")[0].trim()+".sam");
-                cmd.add("-o " + samAlnFile);
-                
-                cmd.add("-s " + this.getSeedSize());
-                
-                /*  
-                  if this value is between 0 and 1, it's interpreted as the mismatch rate w.r.t to the read length.
-                  otherwise it's interpreted as the maximum number of mismatches allowed on a read, <=15.
-                  example: 
-                    -v 5 (max #mismatches = 5), 
-                    -v 0.1 (max #mismatches = read_length * 10%)
-                    default=0.08.
-                */
-                cmd.add("-v " + this.getNoOfMismatches());
-                
-                /*
-                  using 3-nucleotide mapping approach. (default: off)
-                */
-                if(this.getThreeNucMapping())
-                    cmd.add("-3");
-                
-                        
-                /*
-                  gap size, BSMAP only allow 1 continuous gap (insertion or deletion) 
-                  with up to 3 nucleotides. default=0
-                  gaps will not be allowed within 6nt of the read edges.
-                  the number of mismatches of gapped algnment is calculated as #gap_size+#mismatches+1
-                */
-                cmd.add("-g " + this.getGapSize());
-                
-                /*
-                  set the cut-off ratio for over-represented kmers, default=1e-06
-                  e.g.: -k 1e-6 means the top 0.0001% over-represented kmer will be skipped in alignment
-                */
-                cmd.add("-k " + this.getKmerCutoffRatio());
-                
-                /*
-                  [0,1,2] how to report repeat hits, 0=none(unique hit/pair only); 
-                  1=random one; 2=all(large output file size), default=1.
-                */                
-                cmd.add("-r " + this.getReportRepeatsValue());
-
-                /*
-                  quality threshold in trimming 3'end of reads, 0-40, default=0. (no trim)
-                */
-                cmd.add("-q " + this.getQualityThresholdTrimValue());
-                
-                /*
-                  filter low-quality reads containing >n Ns, default=5
-                */
-                cmd.add("-f " + this.getLowQualityFilterValue());
-                
-                cmd.add("-p " + this.getNoOfThreads());
-                cmd.add("-x " + this.getMaxInsertSize());
-                cmd.add("-m " + this.getMinInsertSize());
-                
-                /*
-                  map the first N nucleotide of the read, default: 0 (map the whole read).
-                */
-                cmd.add("-L " + this.getMapFirstNucleotides());
-
-                /*
-                  index interval (1~16), meaning the reference genome will be indexed every Nbp, default=4. (WGBS mode)
-                  For RRBS mode, index_interval is fixed to 1bp and this command line option is neglected.
-                 larger index interval uses memory, and slightly reduces mapping sensitivity. (~0.5% difference)
-                 for human genome, -I 16 uses ~5GB, compared with ~9GB at the default -I 4.                
-                */
-                cmd.add("-I " + this.getGenomeIndexInterval());
-                
-                if(this.getTrimAdapterSequence()){
-                    for(String seq: this.getAdapterSequences()){
-                        cmd.add("-A " + seq);
-                    }
-                }
-                
-                if(this.getIncludeRefSeq())
-                    cmd.add("-R");
-                if(!this.getSkipSAMHeader())
-                    cmd.add("-H");
-                if(this.getReportUnmappedReads())
-                    cmd.add("-u");
-                
-                cmd.add("-B " + this.getStartAtThisRead());
-                cmd.add("-E " + this.getEndtAtThisRead());
-                cmd.add("-D " + this.getDigestionSite());
-                cmd.add("-S " + this.getRandomSeed());
-                
-                /*
-                    -n 0: only map to 2 forward strands, i.e. BSW(++) and BSC(-+) ("Lister protocol")
-                    for PE sequencing, map read#1 to ++ and -+, read#2 to +- and --.
-                    -n 1: map SE or PE reads to all 4 strands, i.e. ++, +-, -+, -- ("Cokus protocol")
-                    default: -n 0. Most bisulfite sequencing data is generated only from forward strands.
-                */
-                cmd.add("-n " + this.getMappingStrand());
-                
-                /*
-                  set the alignment information for the additional nucleotide transition. <str> is in the form of two different nucleotides,
-                  the first one in the reads could be mapped to the second one in the reference sequences.
-                  default: -M TC, corresponds to C=>U(T) transition in bisulfite conversion.
-                  example: -M GA could be used to detect to A=>I(G) transition in RNA editing.
-                */
-                cmd.add("-M " + this.getTransitionMap());
-                
-                /*
-                verbose level:  0=no message displayed (quiet mode); 
-                                1=major message (default); 
-                                2=detailed message                
-                */
-                cmd.add("-V " + this.getMessageLevel());
-                
-                /*
-                  still not sure how to handle these two parameters
-                    -w  <int>   max number of equal best hits to count, smaller will be faster, default=MAXHITS in makefile
-                    -z  <int>   base quality, default=33 [Illumina is using 64, Sanger Institute is using 33]
-                */                
-                                
-                cmdBSMap = this.cleanPath(StringUtils.join(cmd, " "));
-                logger.info("BSMap command is: " + cmdBSMap);
-                Runtime rt = Runtime.getRuntime();
-                Process proc = rt.exec(cmdBSMap);
-                BufferedReader brAStdin = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-                BufferedReader brAStdErr = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-
-                String line = null;
-                logger.info("<OUTPUT>");
-                while ((line = brAStdin.readLine()) != null) {
-                    logger.info(line);
-                }
-                logger.info("</OUTPUT>");
-
-                logger.info("<ERROR>");
-                int skipCount = 0;
-                
-                ArrayList<String>  mapAbunStdErr;
-
-                mapAbunStdErr = new ArrayList<>();
-                while ((line = brAStdErr.readLine()) != null) {
-                    mapAbunStdErr.add(line);
-                }
-                
-
-                logger.info("</ERROR>");
-
-                int exitVal = proc.waitFor();
-                logger.info("Process exitValue: " + exitVal);
-
-                brAStdin.close();
-                brAStdErr.close();
-                logger.info(STEP_ID_STRING + ": done");
-                
-                String samAlnOutput = this.cleanPath(outFolder + FILESEPARATOR 
-                    + sampleData.getFastqFile1().split("_")[0].trim()+".bsmap_output");
-                try(BufferedWriter bwAO = new BufferedWriter(new FileWriter(new File(samAlnOutput)))){
-                    for(String logString:mapAbunStdErr){
-                        bwAO.write(logString + "\n");
-                    }
+            /*
+              gap size, BSMAP only allow 1 continuous gap (insertion or deletion) 
+              with up to 3 nucleotides. default=0
+              gaps will not be allowed within 6nt of the read edges.
+              the number of mismatches of gapped algnment is calculated as #gap_size+#mismatches+1
+            */
+            cmd.add("-g");
+            cmd.add(String.valueOf(this.getGapSize()));
+            
+            /*
+              set the cut-off ratio for over-represented kmers, default=1e-06
+              e.g.: -k 1e-6 means the top 0.0001% over-represented kmer will be skipped in alignment
+            */
+            cmd.add("-k");
+            cmd.add(String.valueOf(this.getKmerCutoffRatio()));
+            
+            /*
+              [0,1,2] how to report repeat hits, 0=none(unique hit/pair only); 
+              1=random one; 2=all(large output file size), default=1.
+            */                
+            cmd.add("-r");
+            cmd.add(String.valueOf(this.getReportRepeatsValue()));
+
+            /*
+              quality threshold in trimming 3'end of reads, 0-40, default=0. (no trim)
+            */
+            cmd.add("-q");
+            cmd.add(String.valueOf(this.getQualityThresholdTrimValue()));
+            
+            /*
+              filter low-quality reads containing >n Ns, default=5
+            */
+            cmd.add("-f");
+            cmd.add(String.valueOf(this.getLowQualityFilterValue()));
+            
+            cmd.add("-p");
+            cmd.add(String.valueOf(this.getNoOfThreads()));
+            cmd.add("-x");
+            cmd.add(String.valueOf(this.getMaxInsertSize()));
+            cmd.add("-m");
+            cmd.add(String.valueOf(this.getMinInsertSize()));
+            
+            /*
+              map the first N nucleotide of the read, default: 0 (map the whole read).
+            */
+            cmd.add("-L");
+            cmd.add(String.valueOf(this.getMapFirstNucleotides()));
+
+            /*
+              index interval (1~16), meaning the reference genome will be indexed every Nbp, default=4. (WGBS mode)
+              For RRBS mode, index_interval is fixed to 1bp and this command line option is neglected.
+             larger index interval uses memory, and slightly reduces mapping sensitivity. (~0.5% difference)
+             for human genome, -I 16 uses ~5GB, compared with ~9GB at the default -I 4.                
+            */
+            cmd.add("-I");
+            cmd.add(String.valueOf(this.getGenomeIndexInterval()));
+            
+            if(this.getTrimAdapterSequence()){
+                for(String seq: this.getAdapterSequences()){
+                    cmd.add("-A");
+                    cmd.add(seq);
                 }
-                catch(IOException exIO){
-                    logger.error("error writing BSMap summary file <" + samAlnOutput +  ">");
-                    logger.info("error writing BSMap summary file <" + samAlnOutput +  ">");
-                    throw new IOException("error writing BSMap summary file <" + samAlnOutput +  ">" + exIO);
+            }
+            
+            if(this.getIncludeRefSeq())
+                cmd.add("-R");
+            if(!this.getSkipSAMHeader())
+                cmd.add("-H");
+            if(this.getReportUnmappedReads())
+                cmd.add("-u");
+            cmd.add("-B");
+            
+            cmd.add(String.valueOf(this.getStartAtThisRead()));
+            cmd.add("-E");
+            cmd.add(String.valueOf(this.getEndtAtThisRead()));
+            cmd.add("-D");
+            cmd.add(String.valueOf(this.getDigestionSite()));
+            cmd.add("-S");
+            cmd.add(String.valueOf(this.getRandomSeed()));
+            
+            /*
+                -n 0: only map to 2 forward strands, i.e. BSW(++) and BSC(-+) ("Lister protocol")
+                for PE sequencing, map read#1 to ++ and -+, read#2 to +- and --.
+                -n 1: map SE or PE reads to all 4 strands, i.e. ++, +-, -+, -- ("Cokus protocol")
+                default: -n 0. Most bisulfite sequencing data is generated only from forward strands.
+            */
+            cmd.add("-n");
+            cmd.add(String.valueOf(this.getMappingStrand()));
+            
+            /*
+              set the alignment information for the additional nucleotide transition. <str> is in the form of two different nucleotides,
+              the first one in the reads could be mapped to the second one in the reference sequences.
+              default: -M TC, corresponds to C=>U(T) transition in bisulfite conversion.
+              example: -M GA could be used to detect to A=>I(G) transition in RNA editing.
+            */
+            cmd.add("-M");
+            cmd.add(String.valueOf(this.getTransitionMap()));
+            
+            /*
+            verbose level:  0=no message displayed (quiet mode); 
+                            1=major message (default); 
+                            2=detailed message                
+            */
+            cmd.add("-V");
+            cmd.add(String.valueOf(this.getMessageLevel()));
+            
+            /*
+              still not sure how to handle these two parameters
+                -w  <int>   max number of equal best hits to count, smaller will be faster, default=MAXHITS in makefile
+                -z  <int>   base quality, default=33 [Illumina is using 64, Sanger Institute is using 33]
+            */                
+                            
+            cmdBSMap = this.cleanPath(StringUtils.join(cmd, " "));
+            ArrayList<String> mapAbunStdErr = this.runProcess(STEP_ID_STRING + " BSMap", cmd).getStderr();
+            logger.info(STEP_ID_STRING + ": done");
+            
+            String samAlnOutput = this.getBSMapOutputFile(sampleData);
+            try(BufferedWriter bwAO = new BufferedWriter(new FileWriter(new File(samAlnOutput)))){
+                for(String logString:mapAbunStdErr){
+                    bwAO.write(logString + "\n");
                 }
-                
-                
             }
-            catch(IOException | InterruptedException ex ){
-                getLogger().info("error executing bsmap command:\n" + ex.toString());
-                getLogger().error("error executing bsmap command:\n" + ex.toString());
-                throw new IOException("error executing bsmap command");
+            catch(IOException exIO){
+                logger.error("error writing BSMap summary file <" + samAlnOutput +  ">");
+                logger.info("error writing BSMap summary file <" + samAlnOutput +  ">");
+                throw new IOException("error writing BSMap summary file <" + samAlnOutput +  ">" + exIO);
             }
         }
+        catch(IOException ex ){
+            getLogger().info("error executing bsmap command:\n" + ex.toString());
+            getLogger().error("error executing bsmap command:\n" + ex.toString());
+            throw new IOException("error executing bsmap command");
+        }
         
-        getLogger().info(STEP_ID_STRING + ": completed");
+    }
+    
+    
+    
+    
+    /**
+     * 
+     * @param fastqFile
+     * @return the FASTQ file read by bsmap for this sample
+     */
+    private String getFastqInputFile(String fastqFile){
+        if(this.trimAdapterSequence)
+            return this.cleanPath(inFolder + FILESEPARATOR + fastqFile.replace(".fastq", INFILE_EXTENSION_TRIM));
+        return this.cleanPath(inFolder + FILESEPARATOR + fastqFile.replace(".fastq", INFILE_EXTENSION_NOTRIM));
+    }
+    
+    
+    
+    
+    /**
+     * not sure about the best way to handle this.
+     * It seems that the files that come of the NSC sequences have a general format
+     * SAMPLENAME_SEQUENCERDATA1_SEQUENCEDATA_..., so we split at the first "_"
+     * 
+     * @param sampleData
+     * @return the SAM file written by bsmap for this sample
+     */
+    private String getSAMOutputFile(SampleDataEntry sampleData){
+        return this.cleanPath(outFolder + FILESEPARATOR + sampleData.getFastqFile1().split("_")[0].trim()+".sam");
+    }
+    
+    
+    
+    
+    /**
+     * 
+     * @param sampleData
+     * @return the file the bsmap log for this sample is written to
+     */
+    private String getBSMapOutputFile(SampleDataEntry sampleData){
+        return this.cleanPath(outFolder + FILESEPARATOR + sampleData.getFastqFile1().split("_")[0].trim()+".bsmap_output");
     }
     
     
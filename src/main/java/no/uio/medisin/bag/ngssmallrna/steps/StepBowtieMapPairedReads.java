@@ -11,10 +11,10 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import no.uio.medisin.bag.ngssmallrna.pipeline.ProcessResult;
 import no.uio.medisin.bag.ngssmallrna.pipeline.ReferenceDataLocations;
 import no.uio.medisin.bag.ngssmallrna.pipeline.SampleDataEntry;
 import org.apache.commons.lang3.StringUtils;
@@ -296,56 +296,27 @@ public class StepBowtieMapPairedReads extends NGSStep implements NGSBase{
             cmd.add("-f");
             cmd.add(fastqTrimmedInputFile);
 
-            cmd.add("-v " + this.getAlignMode());
+            cmd.add("-v");
+            cmd.add(this.getAlignMode());
             cmd.add("--best");
-            cmd.add("-m 2");
+            cmd.add("-m");
+            cmd.add("2");
 
             String fastqAbundantAln = outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", FASTQ_ABUNALN_EXTENSION);
             String fastqAbundantUnAln = outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", FASTQ_ABUNUNALN_EXTENSION);
             String samAbundantAln = outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", SAM_ABUNALN_EXTENSION);
-            cmd.add("--al " + fastqAbundantAln);
-            cmd.add("--un " + fastqAbundantUnAln);
-            cmd.add("--sam " + samAbundantAln);
-            cmd.add("-p " + this.getNoOfThreads());
-            cmd.add("");
-
-            String cmdBowtieMapAbunReads = StringUtils.join(cmd, " ");
-            cmdBowtieMapAbunReads = cmdBowtieMapAbunReads.replace(FILESEPARATOR + FILESEPARATOR, FILESEPARATOR);
-            logger.info("Bowtie Map Abundant Reads command:\t" + cmdBowtieMapAbunReads);
-
-            Runtime rt = Runtime.getRuntime();
-            Process proc = rt.exec(cmdBowtieMapAbunReads);
-            BufferedReader brAStdin = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-            BufferedReader brAStdErr = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-
-            String line = null;
-            logger.info("<OUTPUT>");
-            while ((line = brAStdin.readLine()) != null) {
-                logger.info(line);
-            }
-            logger.info("</OUTPUT>");
-
-            logger.info("<ERROR>");
-            int skipCount = 0;
-            ArrayList<String> mapAbunStdErr = new ArrayList<>();
-            while ((line = brAStdErr.readLine()) != null) {
-                if (line.contains("Warning: Skipping") && line.contains("less than")) {
-                    skipCount++;
-                } else {
-                    logger.info(line);
-                    mapAbunStdErr.add(line);
-                }
-            }
-            
-            // need to parse the output from Bowtie to get the mapping summary
-            logger.info(skipCount + " lines were skipped because the read was too short");
-            logger.info("</ERROR>");
-
-            int exitVal = proc.waitFor();
-            logger.info("Process exitValue: " + exitVal);
-
-            brAStdin.close();
-            brAStdErr.close();
+            cmd.add("--al");
+            cmd.add(fastqAbundantAln);
+            cmd.add("--un");
+            cmd.add(fastqAbundantUnAln);
+            cmd.add("--sam");
+            cmd.add(samAbundantAln);
+            cmd.add("-p");
+            cmd.add(String.valueOf(this.getNoOfThreads()));
+
+            ProcessResult mapAbunResult = this.runProcess(STEP_ID_STRING + " Bowtie Map Abundant Reads", cmd, 
+                    StepBowtieMapSingleReads.SKIP_SHORT_READ_WARNINGS);
+            logger.info(mapAbunResult.getNoOfFilteredLines() + " lines were skipped because the read was too short");
         
     }
     
@@ -362,7 +333,7 @@ public class StepBowtieMapPairedReads extends NGSStep implements NGSBase{
         String pathToBowtieGenomeIndex = stepInputData.getDataLocations().getGenomeRootFolder()
                 + FILESEPARATOR + this.getReferenceGenome() + ReferenceDataLocations.ID_REL_BOWTIE_PATH;
                 
-        ArrayList cmd = new ArrayList<>();
+        ArrayList<String> cmd = new ArrayList<>();
         cmd.add(this.getMappingSoftware());
         cmd.add(pathToBowtieGenomeIndex);
 
@@ -371,53 +342,24 @@ public class StepBowtieMapPairedReads extends NGSStep implements NGSBase{
 
         cmd.add("-v" + this.getNoOfMismatches());
         cmd.add("--best");
-        cmd.add("-m 2");
+        cmd.add("-m");
+        cmd.add("2");
 
         fastqGenomeAln = outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", FASTQ_GENALN_EXTENSION);
         String fastqGenomeUnAln = outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", FASTQ_UNALN_EXTENSION);
         String samGenomeAln = outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", SAM_GENALN_EXTENSION);
-        cmd.add("--al " + fastqGenomeAln);
-        cmd.add("--un " + fastqGenomeUnAln);
-        cmd.add("--sam " + samGenomeAln);
-        cmd.add("-p " + this.getNoOfThreads());
-
-        String cmdBowtieMapGenomeReads = StringUtils.join(cmd, " ");
-        cmdBowtieMapGenomeReads = cmdBowtieMapGenomeReads.replace(FILESEPARATOR + FILESEPARATOR, FILESEPARATOR);
-        logger.info("Bowtie Map Genome Reads command:\t" + cmdBowtieMapGenomeReads);
-
-        Runtime rtGenMap = Runtime.getRuntime();
-        Process procGenMap = rtGenMap.exec(cmdBowtieMapGenomeReads);
-        BufferedReader brGStdin = new BufferedReader(new InputStreamReader(procGenMap.getInputStream()));
-        BufferedReader brGStdErr = new BufferedReader(new InputStreamReader(procGenMap.getErrorStream()));
-
-        String line = "";
-        String gLine = null;
-        logger.info("<OUTPUT>");
-        while ((gLine = brGStdin.readLine()) != null) {
-            logger.info(line);
-        }
-        logger.info("</OUTPUT>");
-
-        logger.info("<ERROR>");
-        int skipCount = 0;
-        ArrayList<String> mapGenStdErr = new ArrayList<>();
-        while ((line = brGStdErr.readLine()) != null) {
-            if (line.contains("Warning: Skipping") && line.contains("less than")) {
-                skipCount++;
-            } else {
-                logger.info(line);
-                mapGenStdErr.add(line);
-            }
-        }
-        // need to parse the output from Bowtie to get the mapping summary
-        logger.info(skipCount + " lines were skipped because the read was too short");
-        logger.info("</ERROR>");
-
-        int gExitVal = procGenMap.waitFor();
-        logger.info("Process exitValue: " + gExitVal);
-
-        brGStdin.close();
-        brGStdErr.close();
+        cmd.add("--al");
+        cmd.add(fastqGenomeAln);
+        cmd.add("--un");
+        cmd.add(fastqGenomeUnAln);
+        cmd.add("--sam");
+        cmd.add(samGenomeAln);
+        cmd.add("-p");
+        cmd.add(String.valueOf(this.getNoOfThreads()));
+
+        ProcessResult mapGenResult = this.runProcess(STEP_ID_STRING + " Bowtie Map Genome Reads", cmd, 
+                StepBowtieMapSingleReads.SKIP_SHORT_READ_WARNINGS);
+        logger.info(mapGenResult.getNoOfFilteredLines() + " lines were skipped because the read was too short");
 
         
     }
@@ -5,18 +5,20 @@
  */
 package no.uio.medisin.bag.ngssmallrna.steps;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import no.uio.medisin.bag.ngssmallrna.pipeline.MappingSummary;
+import no.uio.medisin.bag.ngssmallrna.pipeline.ProcessResult;
+import no.uio.medisin.bag.ngssmallrna.pipeline.ProcessRunner;
 import no.uio.medisin.bag.ngssmallrna.pipeline.ReferenceDataLocations;
 import no.uio.medisin.bag.ngssmallrna.pipeline.SampleDataEntry;
+import no.uio.medisin.bag.ngssmallrna.pipeline.UniqueSequenceDictionary;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 
@@ -26,6 +28,15 @@ import org.apache.logging.log4j.Logger;
  * Map reads to contaminants, RNA, Reference Genome and output in SAM format
  *
  * Input is a collapsed FASTA file
+ * 
+ * If there is more than one sample and mapUniqueSequences is true, the
+ * unique sequences from all the samples are mapped once and the results 
+ * are split back out to the samples (see UniqueSequenceDictionary)
+ * 
+ * The mapping summary (read counts and length distributions) is collected
+ * from the collapsed input and from bowtie's SAM output as it is written 
+ * (see MappingSummary). When the samples are mapped together, bowtie's 
+ * report is for the whole project and is written to the project summary
  *
  * @author sr
  */
@@ -40,6 +51,7 @@ public class StepBowtieMapSingleReads extends NGSStep implements NGSBase{
     private static final String ID_MISMATCHES                   = "noOfMismatches";
     private static final String ID_ALIGN_MODE                   = "alignmentMode";
     private static final String ID_THREADS                      = "noOfThreads";
+    private static final String ID_MAP_UNIQUE                   = "mapUniqueSequences";
 
     private static final String INFILE_EXTENSION                = ".trim.clp.trimmed.paired.fastq";
     private static final String FASTQ_ABUNALN_EXTENSION         = ".trim.clp.abun.fasta";
@@ -49,6 +61,8 @@ public class StepBowtieMapSingleReads extends NGSStep implements NGSBase{
     private static final String FASTQ_UNALN_EXTENSION           = ".trim.clp.unmap.fasta";
     private static final String SAM_GENALN_EXTENSION            = ".trim.clp.gen.sam";
     private static final String MAPPING_SUMMARY_EXTENSION       = ".trim.clp.gen.mapping.txt";
+    private static final String UNIQUE_FASTA_EXTENSION          = ".trim.clp.unique.fasta";
+    private static final String UNIQUE_COUNTS_EXTENSION         = ".trim.clp.unique.counts.tsv";
 
     private             String  mappingSoftware                 = "";
     private             String  AlignMode                       = "";
@@ -56,15 +70,15 @@ public class StepBowtieMapSingleReads extends NGSStep implements NGSBase{
     private             int     NoOfThreads                     = 4;
     private             String  rootDataFolder                  = "";
     private             String  ReferenceGenome                 = "";
+    private             Boolean mapUniqueSequences              = true;
     
-    private             String  fastqTrimmedInputFile           = "";
-    private             String  fastqAbundantAln                = "";
-    private             String  fastqAbundantUnAln              = "";
-    private             String  fastqGenomeAln                  = "";
-    private             String  fastqGenomeUnAln                = "";
-    
-    private  ArrayList<String>  mapGenStdErr;
-    private  ArrayList<String>  mapAbunStdErr;
+    /* bowtie writes a warning for every read that is too short, count these rather than log them */
+    static final ProcessRunner.LineFilter SKIP_SHORT_READ_WARNINGS = new ProcessRunner.LineFilter(){
+        @Override
+        public Boolean keepLine(String line){
+            return (line.contains("Warning: Skipping") && line.contains("less than")) == false;
+        }
+    };
     /**
      *
      * @param sid StepInputData
@@ -153,6 +167,8 @@ public class StepBowtieMapSingleReads extends NGSStep implements NGSBase{
         }
         this.setAlignMode((String) configData.get(ID_ALIGN_MODE));
         this.setMappingSoftware((String) configData.get(ID_SOFTWARE));
+        if(configData.get(ID_MAP_UNIQUE)!=null)
+            this.setMapUniqueSequences((Boolean) configData.get(ID_MAP_UNIQUE));
         
 
         logger.info("passed");
@@ -179,100 +195,19 @@ public class StepBowtieMapSingleReads extends NGSStep implements NGSBase{
         String mappingCmd = this.getMappingSoftware();
         logger.info("Mapping software is " + mappingCmd);
         
-        Iterator itSD = this.stepInputData.getSampleData().iterator();
-        while (itSD.hasNext()) {
-            ArrayList<String> cmd = new ArrayList<>();
-            try {
-                SampleDataEntry sampleData = (SampleDataEntry) itSD.next();
-
-                /*
-                bowtie -a -v 2 e_coli --suppress 1,5,6,7 -c ATGCATCATGCGCCA
-
-                use:
-                    -f input files are FASTA format
-
-                    -v option (which ignores quality values) since we are using FASTA files,
-                    --best (to order the matches)
-                    -m 2 because we only want reads that map to a unique location 
-                        (we allow 2, because some miRNAs have two locations)
-                    -p 4 (no of threads)
-                    --al aligned reads
-                    --un unaligned reads
-                    --sam SAM file name
-
-                 */
-                this.mapAbundantReads(sampleData);
-                this.mapReadsToGenome(sampleData);
-
-                /*
-                    write out mapping summary
-                */
-                String mappingOutputFile = outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", MAPPING_SUMMARY_EXTENSION);
-                BufferedWriter bwMO = new BufferedWriter(new FileWriter(new File(mappingOutputFile)));
-                for (String mapLine : mapGenStdErr) {
-                    bwMO.write(mapLine + "\n");
-                }
-                bwMO.write("\n\n" + "+" + StringUtils.repeat("-", 60) + "+" + "\n");
-                bwMO.write("original FASTQ source" + sampleData.getFastqFile1() + "\n");
-                bwMO.write(fastqTrimmedInputFile + "\n");
-                bwMO.write(fastqGenomeAln + "\n");
-                bwMO.write(fastqAbundantAln + "\n");
-                bwMO.write(fastqGenomeUnAln + "\n");
-
-                // Input 
-                int totalInputReads = 0;
-                String faLine = "";
-                BufferedReader brIR = new BufferedReader(new FileReader(new File(fastqTrimmedInputFile)));
-                while ((faLine = brIR.readLine()) != null) {
-                    totalInputReads += Integer.parseInt(faLine.substring(1).split("-")[1]);
-                    brIR.readLine();
-                }
-                brIR.close();
-                bwMO.write("total input reads = " + totalInputReads + "\n");
-
-                // Mapped
-                int totalMappedReads = 0;
-                faLine = "";
-                BufferedReader brMR = new BufferedReader(new FileReader(new File(fastqGenomeAln)));
-                while ((faLine = brMR.readLine()) != null) {
-                    totalMappedReads += Integer.parseInt(faLine.substring(1).split("-")[1]);
-                    brMR.readLine();
-                }
-                brMR.close();
-                bwMO.write("total mapped reads = " + totalMappedReads + "\n");
-
-                // Abundant
-                int totalAbundantReads = 0;
-                BufferedReader brAR = new BufferedReader(new FileReader(new File(fastqAbundantAln)));
-                while ((faLine = brAR.readLine()) != null) {
-                    totalAbundantReads += Integer.parseInt(faLine.substring(1).split("-")[1]);
-                    brAR.readLine();
-                }
-                brAR.close();
-                bwMO.write("total abundant reads = " + totalAbundantReads + "\n");
-
-                // Unmapped
-                int totalUnmappedReads = 0;
-                BufferedReader brUR = new BufferedReader(new FileReader(new File(fastqGenomeUnAln)));
-                while ((faLine = brUR.readLine()) != null) {
-                    totalUnmappedReads += Integer.parseInt(faLine.substring(1).split("-")[1]);
-                    brUR.readLine();
-                }
-                brUR.close();
-                bwMO.write("total unmapped reads = " + totalUnmappedReads + "\n");
-
-//                    bwMO.write("length filtered reads = " 
-//                            + (rawReadsIn - totalMappedReads - totalAbundantReads - totalUnmappedReads));
-                bwMO.write("\n\n" + "+" + StringUtils.repeat("-", 60) + "+" + "\n");
-
-                bwMO.close();
-            } catch (IOException | InterruptedException ex) {
-                logger.error("error executing Bowtie Mapping command\n");
-                logger.error(cmd);
-                logger.error(ex.toString());
-                throw new IOException(STEP_ID_STRING + ": \"error executing Bowtie Mapping command " + cmd);
-            }
+        if(this.getMapUniqueSequences() && this.stepInputData.getSampleData().size() > 1){
+            this.mapProjectSequences();
+            logger.info(STEP_ID_STRING + ": completed");
+            return;
         }
+        
+        this.executeSamples(new SampleTask<Void>(){
+            @Override
+            public Void processSample(SampleDataEntry sampleData) throws IOException{
+                mapSample(sampleData);
+                return null;
+            }
+        });
         logger.info(STEP_ID_STRING + ": completed");
 
     }
@@ -280,13 +215,210 @@ public class StepBowtieMapSingleReads extends NGSStep implements NGSBase{
     
     
     /**
-     * Maps input reads to the supplied reference abundant sequences
+     * map the reads for one sample.
+     * 
+     * bowtie -a -v 2 e_coli --suppress 1,5,6,7 -c ATGCATCATGCGCCA
+     *
+     * use:
+     *     -f input files are FASTA format
+     *
+     *     -v option (which ignores quality values) since we are using FASTA files,
+     *     --best (to order the matches)
+     *     -m 2 because we only want reads that map to a unique location 
+     *         (we allow 2, because some miRNAs have two locations)
+     *     -p 4 (no of threads)
+     *     --al aligned reads
+     *     --un unaligned reads
+     *     --sam SAM file name
+     * 
+     * @param sampleData
+     * @throws IOException 
+     */
+    private void mapSample(SampleDataEntry sampleData) throws IOException{
+        
+        try {
+            MappingSummary[] mappingSummary = {new MappingSummary()};
+            MappingRun mappingRun = new MappingRun(this.cleanPath(inFolder + FILESEPARATOR 
+                    + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION)), sampleData.getFastqFile1());
+            mappingSummary[0].addCollapsedFasta(mappingRun.trimmedInputFile);
+            this.mapAbundantReads(mappingRun, mappingSummary, null);
+            this.mapReadsToGenome(mappingRun, mappingSummary, null);
+
+            this.writeMappingSummary(sampleData, mappingRun, mappingSummary[0]);
+        } catch (IOException ex) {
+            logger.error("error executing Bowtie Mapping command\n");
+            logger.error(ex.toString());
+            throw new IOException(STEP_ID_STRING + ": \"error executing Bowtie Mapping command for sample " + sampleData.getFastqFile1());
+        }
+        
+    }
+
+    
+    
+    /**
+     * map the unique sequences from all the samples in one pass and then
+     * split the mapped and unmapped reads and the SAM files back out to 
+     * each sample. The per sample files have the same names and format as
+     * when the samples are mapped one at a time.
+     * 
+     * @throws IOException 
+     */
+    private void mapProjectSequences() throws IOException{
+        
+        String projectFastqName = stepInputData.getProjectID() + ".fastq";
+        ArrayList<SampleDataEntry> samples = this.stepInputData.getSampleData();
+        
+        MappingSummary[] sampleSummaries = new MappingSummary[samples.size()];
+        UniqueSequenceDictionary sequenceDictionary = new UniqueSequenceDictionary();
+        for(int s=0; s<samples.size(); s++){
+            sampleSummaries[s] = new MappingSummary();
+            sequenceDictionary.addSample(samples.get(s).getFastqFile1(), 
+                    this.cleanPath(inFolder + FILESEPARATOR + samples.get(s).getFastqFile1().replace(".fastq", INFILE_EXTENSION)), 
+                    sampleSummaries[s]);
+        }
+        sequenceDictionary.build();
+        
+        String uniqueFasta = this.cleanPath(outFolder + FILESEPARATOR + projectFastqName.replace(".fastq", UNIQUE_FASTA_EXTENSION));
+        sequenceDictionary.writeUniqueFasta(uniqueFasta);
+        sequenceDictionary.writeCountMatrix(this.cleanPath(outFolder + FILESEPARATOR + projectFastqName.replace(".fastq", UNIQUE_COUNTS_EXTENSION)));
+        
+        MappingRun projectRun = new MappingRun(uniqueFasta, projectFastqName);
+        try{
+            this.mapAbundantReads(projectRun, sampleSummaries, sequenceDictionary);
+            this.mapReadsToGenome(projectRun, sampleSummaries, sequenceDictionary);
+        }
+        catch(IOException ex){
+            logger.error("error executing Bowtie Mapping command\n");
+            logger.error(ex.toString());
+            throw new IOException(STEP_ID_STRING + ": \"error executing Bowtie Mapping command for project " + stepInputData.getProjectID());
+        }
+        
+        logger.info(STEP_ID_STRING + ": splitting mapped reads into " + samples.size() + " samples");
+        String[] fastaExtensions = {FASTQ_ABUNALN_EXTENSION, FASTQ_ABUNUNALN_EXTENSION, FASTQ_GENALN_EXTENSION, FASTQ_UNALN_EXTENSION};
+        for(String extension: fastaExtensions){
+            sequenceDictionary.splitFasta(this.getMappingOutputFile(projectFastqName, extension), this.getSampleMappingOutputFiles(extension));
+        }
+        String[] samExtensions = {SAM_ABUNALN_EXTENSION, SAM_GENALN_EXTENSION};
+        for(String extension: samExtensions){
+            sequenceDictionary.splitSAM(this.getMappingOutputFile(projectFastqName, extension), this.getSampleMappingOutputFiles(extension));
+        }
+        
+        /* bowtie only reports on the project sequences, so its report goes in the project summary */
+        String projectSummaryFile = this.getMappingOutputFile(projectFastqName, MAPPING_SUMMARY_EXTENSION);
+        try(BufferedWriter bwMO = new BufferedWriter(new FileWriter(new File(projectSummaryFile)))){
+            bwMO.write("bowtie output for the unique sequences from all the samples in project " + stepInputData.getProjectID() + "\n");
+            for (String mapLine : projectRun.genomeStdErr) {
+                bwMO.write(mapLine + "\n");
+            }
+        }
+        for(int s=0; s<samples.size(); s++){
+            SampleDataEntry sampleData = samples.get(s);
+            MappingRun sampleRun = new MappingRun(this.cleanPath(inFolder + FILESEPARATOR 
+                    + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION)), sampleData.getFastqFile1());
+            this.writeMappingSummary(sampleData, sampleRun, sampleSummaries[s]);
+        }
+        
+    }
+    
+    
+    
+    /**
+     * the files for one bowtie run (a sample, or the project sequences) and
+     * bowtie's report on the genome mapping. Kept per run rather than in the
+     * step so samples can be mapped at the same time
+     */
+    private class MappingRun{
+        final String                    fastqName;
+        final String                    trimmedInputFile;
+        final String                    abundantAln;
+        final String                    abundantUnAln;
+        final String                    genomeAln;
+        final String                    genomeUnAln;
+        ArrayList<String>               genomeStdErr        = new ArrayList<>();
+        
+        MappingRun(String inputFile, String fastqName){
+            this.fastqName = fastqName;
+            this.trimmedInputFile = inputFile;
+            this.abundantAln = getMappingOutputFile(fastqName, FASTQ_ABUNALN_EXTENSION);
+            this.abundantUnAln = getMappingOutputFile(fastqName, FASTQ_ABUNUNALN_EXTENSION);
+            this.genomeAln = getMappingOutputFile(fastqName, FASTQ_GENALN_EXTENSION);
+            this.genomeUnAln = getMappingOutputFile(fastqName, FASTQ_UNALN_EXTENSION);
+        }
+    }
+    
+    
+    
+    /**
+     * 
+     * @param fastqName
+     * @param extension
+     * @return the file in the output folder for this FASTQ name and extension
+     */
+    private String getMappingOutputFile(String fastqName, String extension){
+        return this.cleanPath(outFolder + FILESEPARATOR + fastqName.replace(".fastq", extension));
+    }
+    
+    
+    
+    /**
+     * 
+     * @param extension
+     * @return the output file with this extension for each sample
+     */
+    private ArrayList<String> getSampleMappingOutputFiles(String extension){
+        ArrayList<String> sampleFiles = new ArrayList<>();
+        for(SampleDataEntry sampleData: this.stepInputData.getSampleData()){
+            sampleFiles.add(this.getMappingOutputFile(sampleData.getFastqFile1(), extension));
+        }
+        return sampleFiles;
+    }
+    
+    
+    
+    /**
+     * write out mapping summary
      * 
      * @param sampleData
+     * @param mappingRun        the files the sample was mapped to
+     * @param mappingSummary    collected while the sample was mapped
+     * @throws IOException 
+     */
+    private void writeMappingSummary(SampleDataEntry sampleData, MappingRun mappingRun, MappingSummary mappingSummary) throws IOException{
+        
+        String mappingOutputFile = outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", MAPPING_SUMMARY_EXTENSION);
+        try(BufferedWriter bwMO = new BufferedWriter(new FileWriter(new File(mappingOutputFile)))){
+            if(this.getMapUniqueSequences() && this.stepInputData.getSampleData().size() > 1)
+                bwMO.write("the samples were mapped together, bowtie output for the project is in <" 
+                        + this.getMappingOutputFile(stepInputData.getProjectID() + ".fastq", MAPPING_SUMMARY_EXTENSION) + ">\n");
+            for (String mapLine : mappingRun.genomeStdErr) {
+                bwMO.write(mapLine + "\n");
+            }
+            bwMO.write("\n\n" + "+" + StringUtils.repeat("-", 60) + "+" + "\n");
+            bwMO.write("original FASTQ source" + sampleData.getFastqFile1() + "\n");
+            bwMO.write(mappingRun.trimmedInputFile + "\n");
+            bwMO.write(mappingRun.genomeAln + "\n");
+            bwMO.write(mappingRun.abundantAln + "\n");
+            bwMO.write(mappingRun.genomeUnAln + "\n");
+
+            mappingSummary.write(bwMO);
+
+            bwMO.write("\n\n" + "+" + StringUtils.repeat("-", 60) + "+" + "\n");
+        }
+        
+    }
+
+    
+    
+    /**
+     * Maps input reads to the supplied reference abundant sequences
+     * 
+     * @param mappingRun            the collapsed FASTA input and the output files
+     * @param mappingSummaries      abundant reads are added to these
+     * @param sequenceDictionary    if the input is the project sequences, otherwise null
      * @throws IOException
-     * @throws InterruptedException 
      */
-    private void mapAbundantReads(SampleDataEntry sampleData) throws IOException, InterruptedException{
+    private void mapAbundantReads(MappingRun mappingRun, MappingSummary[] mappingSummaries, 
+            UniqueSequenceDictionary sequenceDictionary) throws IOException{
         
         logger.info(STEP_ID_STRING + ": mapping abundant reads");
         String cmdBowtieMapAbunReads = "";        
@@ -301,61 +433,32 @@ public class StepBowtieMapSingleReads extends NGSStep implements NGSBase{
                     + FILESEPARATOR + this.getReferenceGenome() + FILESEPARATOR + ReferenceDataLocations.ID_REL_ABUN_DATA_PATH);
             cmd.add(pathToBowtieIndex);
 
-            fastqTrimmedInputFile = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION));
             cmd.add("-f");
-            cmd.add(fastqTrimmedInputFile);
+            cmd.add(mappingRun.trimmedInputFile);
 
             cmd.add("-" + this.getAlignMode());
             cmd.add("--best");
-            cmd.add("-m " + this.getNoOfMismatches());
-
-            fastqAbundantAln = this.cleanPath(outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", FASTQ_ABUNALN_EXTENSION));
-            fastqAbundantUnAln = this.cleanPath(outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", FASTQ_ABUNUNALN_EXTENSION));
-            String samAbundantAln = this.cleanPath(outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", SAM_ABUNALN_EXTENSION));
-            cmd.add("--al " + fastqAbundantAln);
-            cmd.add("--un " + fastqAbundantUnAln);
-            cmd.add("--sam " + samAbundantAln);
-            cmd.add("-p " + this.getNoOfThreads());
-            cmd.add("");
+            cmd.add("-m");
+            cmd.add(String.valueOf(this.getNoOfMismatches()));
+
+            String samAbundantAln = this.getMappingOutputFile(mappingRun.fastqName, SAM_ABUNALN_EXTENSION);
+            cmd.add("--al");
+            cmd.add(mappingRun.abundantAln);
+            cmd.add("--un");
+            cmd.add(mappingRun.abundantUnAln);
+            cmd.add("--sam");           // to stdout, see SAMWriter
+            cmd.add("-p");
+            cmd.add(String.valueOf(Math.min(this.getNoOfThreads(), this.getNoOfThreadsPerSample())));
 
             cmdBowtieMapAbunReads = this.cleanPath(StringUtils.join(cmd, " "));
-            logger.info("Bowtie Map Abundant Reads command:\t" + cmdBowtieMapAbunReads);
-
-            Runtime rt = Runtime.getRuntime();
-            Process proc = rt.exec(cmdBowtieMapAbunReads);
-            BufferedReader brAStdin = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-            BufferedReader brAStdErr = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-
-            String line = null;
-            logger.info("<OUTPUT>");
-            while ((line = brAStdin.readLine()) != null) {
-                logger.info(line);
-            }
-            logger.info("</OUTPUT>");
-
-            logger.info("<ERROR>");
-            int skipCount = 0;
-            mapAbunStdErr = new ArrayList<>();
-            while ((line = brAStdErr.readLine()) != null) {
-                if (line.contains("Warning: Skipping") && line.contains("less than")) {
-                    skipCount++;
-                } else {
-                    logger.info(line);
-                    mapAbunStdErr.add(line);
-                }
+            ProcessResult mapAbunResult;
+            try(MappingSummary.SAMWriter samWriter = new MappingSummary.SAMWriter(samAbundantAln, mappingSummaries, 
+                    sequenceDictionary, MappingSummary.ABUNDANT, -1)){
+                mapAbunResult = this.runProcess(STEP_ID_STRING + " Bowtie Map Abundant Reads", cmd, SKIP_SHORT_READ_WARNINGS, samWriter);
             }
-
-            // need to parse the output from Bowtie to get the mapping summary
-            logger.info(skipCount + " lines were skipped because the read was too short");
-            logger.info("</ERROR>");
-
-            int exitVal = proc.waitFor();
-            logger.info("Process exitValue: " + exitVal);
-
-            brAStdin.close();
-            brAStdErr.close();
+            logger.info(mapAbunResult.getNoOfFilteredLines() + " lines were skipped because the read was too short");
             logger.info(STEP_ID_STRING + ": done");
-        } catch (IOException | InterruptedException ex) {
+        } catch (IOException ex) {
             logger.error("error Bowtie Mapping abundant reads\n");
             logger.error(cmdBowtieMapAbunReads);
             logger.error(ex.toString());
@@ -368,11 +471,13 @@ public class StepBowtieMapSingleReads extends NGSStep implements NGSBase{
     /**
      * map reads that didnt map to Abundant query sequences to the specified reference genome
      * 
-     * @param sampleData
+     * @param mappingRun            the output files, bowtie's report is added to this
+     * @param mappingSummaries      mapped and unmapped reads are added to these
+     * @param sequenceDictionary    if the input is the project sequences, otherwise null
      * @throws IOException
-     * @throws InterruptedException 
      */
-    private void mapReadsToGenome(SampleDataEntry sampleData) throws IOException, InterruptedException{
+    private void mapReadsToGenome(MappingRun mappingRun, MappingSummary[] mappingSummaries, 
+            UniqueSequenceDictionary sequenceDictionary) throws IOException{
                  
         logger.info(STEP_ID_STRING + ": mapping reads to genome");
         String cmdBowtieMapGenomeReads = "";
@@ -380,62 +485,36 @@ public class StepBowtieMapSingleReads extends NGSStep implements NGSBase{
             String pathToBowtieGenomeIndex = this.cleanPath(stepInputData.getDataLocations().getGenomeRootFolder()
                     + FILESEPARATOR + this.getReferenceGenome() + FILESEPARATOR + ReferenceDataLocations.ID_REL_BOWTIE_PATH);
 
-            ArrayList cmd = new ArrayList<>();
+            ArrayList<String> cmd = new ArrayList<>();
             cmd.add(this.getMappingSoftware());
             cmd.add(pathToBowtieGenomeIndex);
 
             cmd.add("-f");
-            cmd.add(fastqAbundantUnAln);
+            cmd.add(mappingRun.abundantUnAln);
 
             cmd.add("-" + this.getAlignMode());
             cmd.add("--best");
-            cmd.add("-m " + this.getNoOfMismatches());
-
-            fastqGenomeAln = this.cleanPath(outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", FASTQ_GENALN_EXTENSION));
-            fastqGenomeUnAln = this.cleanPath(outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", FASTQ_UNALN_EXTENSION));
-            String samGenomeAln = this.cleanPath(outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", SAM_GENALN_EXTENSION));
-            cmd.add("--al " + fastqGenomeAln);
-            cmd.add("--un " + fastqGenomeUnAln);
-            cmd.add("--sam " + samGenomeAln);
-            cmd.add("-p " + this.getNoOfThreads());
+            cmd.add("-m");
+            cmd.add(String.valueOf(this.getNoOfMismatches()));
+
+            String samGenomeAln = this.getMappingOutputFile(mappingRun.fastqName, SAM_GENALN_EXTENSION);
+            cmd.add("--al");
+            cmd.add(mappingRun.genomeAln);
+            cmd.add("--un");
+            cmd.add(mappingRun.genomeUnAln);
+            cmd.add("--sam");           // to stdout, see SAMWriter
+            cmd.add("-p");
+            cmd.add(String.valueOf(Math.min(this.getNoOfThreads(), this.getNoOfThreadsPerSample())));
 
             cmdBowtieMapGenomeReads = this.cleanPath(StringUtils.join(cmd, " "));
-            logger.info("Bowtie Map Genome Reads command:\t" + cmdBowtieMapGenomeReads);
-
-            Runtime rtGenMap = Runtime.getRuntime();
-            Process procGenMap = rtGenMap.exec(cmdBowtieMapGenomeReads);
-            BufferedReader brGStdin = new BufferedReader(new InputStreamReader(procGenMap.getInputStream()));
-            BufferedReader brGStdErr = new BufferedReader(new InputStreamReader(procGenMap.getErrorStream()));
-
-            String line = "";
-            String gLine = null;
-            logger.info("<OUTPUT>");
-            while ((gLine = brGStdin.readLine()) != null) {
-                logger.info(line);
-            }
-            logger.info("</OUTPUT>");
-
-            logger.info("<ERROR>");
-            int skipCount = 0;
-            mapGenStdErr = new ArrayList<>();
-            while ((line = brGStdErr.readLine()) != null) {
-                if (line.contains("Warning: Skipping") && line.contains("less than")) {
-                    skipCount++;
-                } else {
-                    logger.info(line);
-                    mapGenStdErr.add(line);
-                }
+            ProcessResult mapGenResult;
+            try(MappingSummary.SAMWriter samWriter = new MappingSummary.SAMWriter(samGenomeAln, mappingSummaries, 
+                    sequenceDictionary, MappingSummary.MAPPED, MappingSummary.UNMAPPED)){
+                mapGenResult = this.runProcess(STEP_ID_STRING + " Bowtie Map Genome Reads", cmd, SKIP_SHORT_READ_WARNINGS, samWriter);
             }
-            // need to parse the output from Bowtie to get the mapping summary
-            logger.info(skipCount + " lines were skipped because the read was too short");
-            logger.info("</ERROR>");
-
-            int gExitVal = procGenMap.waitFor();
-            logger.info("Process exitValue: " + gExitVal);
-
-            brGStdin.close();
-            brGStdErr.close();
-        } catch (IOException | InterruptedException ex) {
+            mappingRun.genomeStdErr = mapGenResult.getStderr();
+            logger.info(mapGenResult.getNoOfFilteredLines() + " lines were skipped because the read was too short");
+        } catch (IOException ex) {
             logger.error("error Bowtie Mapping genome reads\n");
             logger.error(cmdBowtieMapGenomeReads);
             logger.error(ex.toString());
@@ -536,6 +615,7 @@ public class StepBowtieMapSingleReads extends NGSStep implements NGSBase{
         configData.put(ID_REF_GENOME, "hsa");
         configData.put(ID_MISMATCHES, 2);
         configData.put(ID_ALIGN_MODE, "v");
+        configData.put(ID_MAP_UNIQUE, true);
 
         return configData;
     }
@@ -545,6 +625,28 @@ public class StepBowtieMapSingleReads extends NGSStep implements NGSBase{
     
     
     
+    /**
+     * @return the file extensions this step reads
+     */
+    @Override
+    public ArrayList<String> getInputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(INFILE_EXTENSION));
+    }
+    
+    
+    
+    /**
+     * @return the file extensions this step writes
+     */
+    @Override
+    public ArrayList<String> getOutputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(FASTQ_ABUNALN_EXTENSION, FASTQ_ABUNUNALN_EXTENSION, SAM_ABUNALN_EXTENSION, 
+                FASTQ_GENALN_EXTENSION, FASTQ_UNALN_EXTENSION, SAM_GENALN_EXTENSION, MAPPING_SUMMARY_EXTENSION,
+                UNIQUE_FASTA_EXTENSION, UNIQUE_COUNTS_EXTENSION));
+    }
+    
+    
+    
     @Override
     public void verifyOutputData() {
 
@@ -633,4 +735,18 @@ public class StepBowtieMapSingleReads extends NGSStep implements NGSBase{
     public void setRootDataFolder(String rootDataFolder) {
         this.rootDataFolder = rootDataFolder;
     }
+
+    /**
+     * @return true if the project's unique sequences are mapped once
+     */
+    public Boolean getMapUniqueSequences() {
+        return mapUniqueSequences;
+    }
+
+    /**
+     * @param mapUniqueSequences the mapUniqueSequences to set
+     */
+    public void setMapUniqueSequences(Boolean mapUniqueSequences) {
+        this.mapUniqueSequences = mapUniqueSequences;
+    }
 }
@@ -5,10 +5,8 @@
  */
 package no.uio.medisin.bag.ngssmallrna.steps;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -141,39 +139,17 @@ public class StepCleanUp extends NGSStep implements NGSBase{
                     ArrayList<String> cmd = new ArrayList<>();
                     cmd.add(this.getUnzipSoftware());
                     cmd.add(f.toString());
-                    cmd.add("-p " + this.getNoOfThreads());
+                    cmd.add("-p");
+                    cmd.add(String.valueOf(this.getNoOfThreads()));
 
                     /*
                     pigz -p 4 -d /data/ngsdata/project1/sra_data.fastq.gz 
                     */      
 
                     cmdZip = this.cleanPath(StringUtils.join(cmd, " "));
-                    logger.info("pigz zip command:\t" + cmdZip);
-
-                    Runtime rt = Runtime.getRuntime();
-                    Process proc = rt.exec(cmdZip);
-                    BufferedReader brStdin  = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-                    BufferedReader brStdErr = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-
-                        String line = null;
-                        logger.info("<OUTPUT>");
-                        while ( (line = brStdin.readLine()) != null)
-                            logger.info(line);
-                        logger.info("</OUTPUT>");
-
-                        logger.info("<ERROR>");
-                        while ( (line = brStdErr.readLine()) != null)
-                            logger.info(line);
-                        logger.info("</ERROR>");
-
-
-                    int exitVal = proc.waitFor();            
-                    logger.info("Process exitValue: " + exitVal);   
-
-                    brStdin.close();
-                    brStdErr.close();
+                    this.runProcess(STEP_ID_STRING + " pigz zip", cmd);
                 }
-                catch(IOException|InterruptedException ex){
+                catch(IOException ex){
                     logger.error("error executing pigz unzip command\n" + cmdZip);
                     logger.error(ex.toString());
                     throw new IOException(STEP_ID_STRING + ": error executing pigz unzip command" + cmdZip);
@@ -224,6 +200,18 @@ public class StepCleanUp extends NGSStep implements NGSBase{
     
     
 
+    /**
+     * CleanUp searches the whole project folder, so it has to run on its own
+     * 
+     * @return 
+     */
+    @Override
+    public Boolean isPipelineBarrier(){
+        return true;
+    }
+    
+    
+    
     @Override
     public void verifyOutputData(){
         
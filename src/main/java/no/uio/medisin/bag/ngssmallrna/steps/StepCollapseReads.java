@@ -5,13 +5,13 @@
  */
 package no.uio.medisin.bag.ngssmallrna.steps;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import no.uio.medisin.bag.ngssmallrna.pipeline.ReadCollapser;
 import no.uio.medisin.bag.ngssmallrna.pipeline.SampleDataEntry;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
@@ -25,6 +25,13 @@ import org.apache.logging.log4j.Logger;
  *  1. Convert FASTQ files in input list to an equivalent set of FASTA files.
  *  2. Count up duplicate reads and store this information in the header line 
  * 
+ *  By default this is done in a single pass with a ReadCollapser. Set 
+ *  nativeCollapse to false to run fastq_to_fasta and fastx_collapser instead
+ * 
+ *  The ReadCollapser keeps each sample within memoryBudgetMB, spilling to
+ *  scratchFolder if the library has too many unique sequences. If no budget 
+ *  is given, half of the heap is shared between the sample workers
+ * 
  * @author sr
  */
 
@@ -35,6 +42,9 @@ public class StepCollapseReads extends NGSStep implements NGSBase {
     public static final String          STEP_ID_STRING          = "CollapseReads";
     private static final String         ID_Q2A_SOFTWARE         = "fastq2fastaLocation";   
     private static final String         ID_COLLAPSE_SOFTWARE    = "fastxCollapserLocation";   
+    private static final String         ID_NATIVE_COLLAPSE      = "nativeCollapse";
+    private static final String         ID_MEMORY_BUDGET        = "memoryBudgetMB";
+    private static final String         ID_SCRATCH_FOLDER       = "scratchFolder";
     
     
     private static final String         INFILE_EXTENSION        = ".trim.fastq";
@@ -43,6 +53,9 @@ public class StepCollapseReads extends NGSStep implements NGSBase {
     
     private String                      fastq2fasta_software    = "";
     private String                      collapseFastaSoftware   = "";
+    private Boolean                     nativeCollapse          = true;
+    private int                         memoryBudgetMB          = 0;
+    private String                      scratchFolder           = "";
     
     
     
@@ -72,13 +85,43 @@ public class StepCollapseReads extends NGSStep implements NGSBase {
 
         logger.info(STEP_ID_STRING + ": verify configuration data");
     
+        if(configData.get(ID_NATIVE_COLLAPSE)!=null){
+            String nativeCollapseValue = configData.get(ID_NATIVE_COLLAPSE).toString().trim();
+            if(nativeCollapseValue.equalsIgnoreCase("true") == false && nativeCollapseValue.equalsIgnoreCase("false") == false){
+                logger.error(ID_NATIVE_COLLAPSE + " <" + configData.get(ID_NATIVE_COLLAPSE) + "> must be true or false");
+                throw new IllegalArgumentException(ID_NATIVE_COLLAPSE + " <" + configData.get(ID_NATIVE_COLLAPSE) + "> must be true or false");
+            }
+            this.setNativeCollapse(Boolean.parseBoolean(nativeCollapseValue));
+        }
+        
+        if(configData.get(ID_MEMORY_BUDGET)!=null){
+            try{
+                this.setMemoryBudgetMB((Integer) configData.get(ID_MEMORY_BUDGET));
+            }
+            catch(NumberFormatException|ClassCastException exNm){
+                logger.error(ID_MEMORY_BUDGET + " <" + configData.get(ID_MEMORY_BUDGET) + "> is not an integer");
+                throw new NumberFormatException(ID_MEMORY_BUDGET + " <" + configData.get(ID_MEMORY_BUDGET) + "> is not an integer");
+            }
+            if(this.getMemoryBudgetMB() < 0){
+                logger.error(ID_MEMORY_BUDGET + " <" + configData.get(ID_MEMORY_BUDGET) + "> must be 0 or greater");
+                throw new IllegalArgumentException(ID_MEMORY_BUDGET + " <" + configData.get(ID_MEMORY_BUDGET) + "> must be 0 or greater");
+            }
+        }
+        if(configData.get(ID_SCRATCH_FOLDER)!=null)
+            this.setScratchFolder((String) configData.get(ID_SCRATCH_FOLDER));
+        
+        if(this.getNativeCollapse()){
+            logger.info("passed");
+            return;
+        }
+        
         if(configData.get(ID_Q2A_SOFTWARE)==null) {
-            logger.error("<" + configData.get(ID_Q2A_SOFTWARE) + "> : Missing Definition in Configuration File");
-            throw new NullPointerException("<" + configData.get(ID_Q2A_SOFTWARE) + "> : Missing Definition in Configuration File");
+            logger.error("<" + ID_Q2A_SOFTWARE + "> : Missing Definition in Configuration File");
+            throw new NullPointerException("<" + ID_Q2A_SOFTWARE + "> : Missing Definition in Configuration File");
         }
         if(configData.get(ID_COLLAPSE_SOFTWARE)==null) {
-            logger.error("<" + configData.get(ID_COLLAPSE_SOFTWARE) + "> : Missing Definition in Configuration File");
-            throw new NullPointerException("<" + configData.get(ID_COLLAPSE_SOFTWARE) + "> : Missing Definition in Configuration File");
+            logger.error("<" + ID_COLLAPSE_SOFTWARE + "> : Missing Definition in Configuration File");
+            throw new NullPointerException("<" + ID_COLLAPSE_SOFTWARE + "> : Missing Definition in Configuration File");
         }
         
         this.setFastq2fasta_software((String) configData.get(ID_Q2A_SOFTWARE));
@@ -94,125 +137,171 @@ public class StepCollapseReads extends NGSStep implements NGSBase {
     public void execute() throws IOException{
         this.setPaths();
         
+        Boolean f = new File(outFolder).mkdir(); 
+        if (f) logger.info("created output folder <" + outFolder + "> for results" );
+        
+        this.executeSamples(new SampleTask<Void>(){
+            @Override
+            public Void processSample(SampleDataEntry sampleData) throws IOException{
+                if(getNativeCollapse())
+                    collapseSample(sampleData);
+                else
+                    collapseSampleWithFastx(sampleData);
+                return null;
+            }
+            
+            @Override
+            public ArrayList<String> getSampleInputFiles(SampleDataEntry sampleData){
+                return new ArrayList<>(Arrays.asList(getFastqInputFile(sampleData)));
+            }
+            
+            @Override
+            public ArrayList<String> getSampleOutputFiles(SampleDataEntry sampleData){
+                return new ArrayList<>(Arrays.asList(getCollapsedOutputFile(sampleData)));
+            }
+        });
+        
+        logger.info(STEP_ID_STRING + ": completed");
+        
+    }
+    
+    
+    
+    
+    /**
+     * count the identical reads in the trimmed FASTQ file and write them
+     * straight to the collapsed FASTA file
+     * 
+     * @param sampleData
+     * @throws IOException 
+     */
+    private void collapseSample(SampleDataEntry sampleData) throws IOException{
+        
+        String fastqInputFile = getFastqInputFile(sampleData);
+        String clpOutputFile = getCollapsedOutputFile(sampleData);
+        ReadCollapser readCollapser = new ReadCollapser();
+        readCollapser.setMemoryBudget(this.getSampleMemoryBudget());
+        readCollapser.setNoOfReaderThreads(this.getNoOfThreadsPerSample());
+        readCollapser.setScratchFolder(this.getScratchFolder().isEmpty() ? outFolder : this.cleanPath(this.getScratchFolder()));
+        try{
+            readCollapser.collapse(fastqInputFile, clpOutputFile);
+        }
+        catch(IOException exIO){
+            logger.error(STEP_ID_STRING + ": error collapsing reads in <" + fastqInputFile + ">\n" + exIO);
+            throw new IOException(STEP_ID_STRING + ": error collapsing reads in <" + fastqInputFile + ">", exIO);
+        }
+        
+    }
+    
+    
+    
+    
+    /**
+     * 
+     * @return the memory each sample can use for counting, in bytes
+     */
+    private long getSampleMemoryBudget(){
+        if(this.getMemoryBudgetMB() > 0)
+            return this.getMemoryBudgetMB() * 1024L * 1024L;
+        return Runtime.getRuntime().maxMemory() / 2 / Math.max(1, this.getNoOfSampleWorkers());
+    }
+    
+    
+    
+    
+    /**
+     * collapse a sample with fastq_to_fasta and fastx_collapser
+     * 
+     * @param sampleData
+     * @throws IOException 
+     */
+    private void collapseSampleWithFastx(SampleDataEntry sampleData) throws IOException{
+        
         String cmdFQ2FA = "";
         String cmdClp = "";
         
-        String fastqInputFile = "";
-        String fastaOutputFile = "";
-        String clpOutputFile = ""; 
-        Iterator itSD = this.stepInputData.getSampleData().iterator();
-        while (itSD.hasNext()){
-            SampleDataEntry sampleData = (SampleDataEntry)itSD.next();
-            try{
-                Boolean f = new File(outFolder).mkdir(); 
-                if (f) logger.info("created output folder <" + outFolder + "> for results" );
- 
-                /*
-                    fastq_to_fasta -i 1000.fastq -o 1000.fasta -Q33
-                */                      
-                ArrayList<String> cmdQ2A = new ArrayList<>();
-                cmdQ2A.add(this.getFastq2fasta_software());
+        String fastaOutputFile = outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", FASTA_OUTFILE_EXTENSION);
+        if(getFastqInputFile(sampleData).endsWith(GZIP_EXTENSION)){
+            logger.error(STEP_ID_STRING + ": fastq_to_fasta can't read gzipped input <" + getFastqInputFile(sampleData) + ">, use " + ID_NATIVE_COLLAPSE);
+            throw new IOException(STEP_ID_STRING + ": fastq_to_fasta can't read gzipped input <" + getFastqInputFile(sampleData) + ">, use " + ID_NATIVE_COLLAPSE);
+        }
+        try{
+            /*
+                fastq_to_fasta -i 1000.fastq -o 1000.fasta -Q33
+            */                      
+            ArrayList<String> cmdQ2A = new ArrayList<>();
+            cmdQ2A.add(this.getFastq2fasta_software());
 
-                fastqInputFile = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION));
-                cmdQ2A.add("-i");
-                cmdQ2A.add(fastqInputFile);
+            cmdQ2A.add("-i");
+            cmdQ2A.add(getFastqInputFile(sampleData));
 
-                cmdQ2A.add("-o");
+            cmdQ2A.add("-o");
+            cmdQ2A.add(fastaOutputFile);
 
-                fastaOutputFile = outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", FASTA_OUTFILE_EXTENSION);
-                cmdQ2A.add(fastaOutputFile);
-                
-                cmdQ2A.add("-Q33");
+            cmdQ2A.add("-Q33");
 
 
-                cmdFQ2FA = this.cleanPath(StringUtils.join(cmdQ2A, " "));
-                logger.info("Fastq2Fasta command:\t" + cmdFQ2FA);
-                Runtime rt = Runtime.getRuntime();
-                Process proc = rt.exec(cmdFQ2FA);
-                BufferedReader brStdin  = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-                BufferedReader brStdErr = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-                
-                    String line = null;
-                    logger.info("<OUTPUT>");
-                    while ( (line = brStdin.readLine()) != null)
-                        logger.info(line);
-                    logger.info("</OUTPUT>");
-
-                    logger.info("<ERROR>");
-                    while ( (line = brStdErr.readLine()) != null)
-                        logger.info(line);
-                    logger.info("</ERROR>");
-
+            cmdFQ2FA = this.cleanPath(StringUtils.join(cmdQ2A, " "));
+            this.runProcess(STEP_ID_STRING + " Fastq2Fasta", cmdQ2A);
+        }
+        catch(IOException exIO){
+            logger.error("error executing Fastq2Fasta command\n");
+            logger.error("CMD is " + cmdFQ2FA);
+            throw new IOException(STEP_ID_STRING + ": error executing Fastq2Fasta command " + cmdFQ2FA);
+        }
+        
+        
+        
+            /*
+                fastx_collapse -i 1000.fastq -o 1000.fasta -Q33
+            */                      
+        try{
+            ArrayList<String> cmd2 = new ArrayList<>();
+            cmd2.add(this.getCollapseFastaSoftware());
 
-                    int exitVal = proc.waitFor();            
-                    System.out.println("Process exitValue: " + exitVal);            
+            cmd2.add("-i");
+            cmd2.add(fastaOutputFile);
 
-                brStdin.close();
-                brStdErr.close();
-            }
-            catch(IOException|InterruptedException exIE){
-                logger.error("error executing Fastq2Fasta command\n");
-                logger.error("CMD is " + cmdFQ2FA);
-                throw new IOException(STEP_ID_STRING + ": error executing Fastq2Fasta command " + cmdFQ2FA);
-            }
-            
+            cmd2.add("-o");
+            cmd2.add(getCollapsedOutputFile(sampleData));
             
-            
-                /*
-                    fastx_collapse -i 1000.fastq -o 1000.fasta -Q33
-                */                      
-            try{
-                ArrayList<String> cmd2 = new ArrayList<>();
-                cmd2.add(this.getCollapseFastaSoftware());
 
-                String fastaInputFile = fastaOutputFile;
-                cmd2.add("-i");
-                cmd2.add(fastaInputFile);
-
-                cmd2.add("-o");
-
-                clpOutputFile = outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", CLP_OUTFILE_EXTENSION);
-                cmd2.add(clpOutputFile);
-                
-
-                cmdClp = this.cleanPath(StringUtils.join(cmd2, " "));
-                logger.info("Collapse fasta command:\t" + cmdClp);
-
-                Runtime rtClp = Runtime.getRuntime();
-                Process procClp = rtClp.exec(cmdClp);
-                BufferedReader brStdinClp  = new BufferedReader(new InputStreamReader(procClp.getInputStream()));
-                BufferedReader brStdErrClp = new BufferedReader(new InputStreamReader(procClp.getErrorStream()));
-                
-                String line = null;
-                logger.info("<OUTPUT>");
-                while ( (line = brStdinClp.readLine()) != null)
-                    logger.info(line);
-                logger.info("</OUTPUT>");
-                
-                logger.info("<ERROR>");
-                while ( (line = brStdErrClp.readLine()) != null)
-                    logger.info(line);
-                logger.info("</ERROR>");
-                
-                
-                int exitValclp = procClp.waitFor();            
-                System.out.println("Process exitValue: " + exitValclp);            
-            
-                brStdinClp.close();
-                brStdErrClp.close();
-            
-            }
-            catch(IOException|InterruptedException exIE){
-                logger.error("error executing Collapse Fasta command\n");
-                logger.error("CMD is " + cmdClp);
-                throw new IOException(STEP_ID_STRING + ": error executing Collapse Fasta command " + cmdClp);
-             }
-        }
+            cmdClp = this.cleanPath(StringUtils.join(cmd2, " "));
+            this.runProcess(STEP_ID_STRING + " Collapse fasta", cmd2);
         
-        logger.info(STEP_ID_STRING + ": completed");
+        }
+        catch(IOException exIO){
+            logger.error("error executing Collapse Fasta command\n");
+            logger.error("CMD is " + cmdClp);
+            throw new IOException(STEP_ID_STRING + ": error executing Collapse Fasta command " + cmdClp);
+         }
         
     }
     
+    
+    
+    
+    /**
+     * 
+     * @param sampleData
+     * @return the trimmed FASTQ file for this sample, which may be gzipped
+     */
+    private String getFastqInputFile(SampleDataEntry sampleData){
+        return this.findFastqFile(this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION)));
+    }
+    
+    
+    
+    
+    /**
+     * 
+     * @param sampleData
+     * @return the collapsed FASTA file for this sample
+     */
+    private String getCollapsedOutputFile(SampleDataEntry sampleData){
+        return this.cleanPath(outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", CLP_OUTFILE_EXTENSION));
+    }
+    
 
     
     /**
@@ -225,13 +314,13 @@ public class StepCollapseReads extends NGSStep implements NGSBase {
         this.setPaths();
                 
         // does software exist?
-        if(new File(this.getFastq2fasta_software()).exists() == false){
+        if(this.getNativeCollapse() == false && new File(this.getFastq2fasta_software()).exists() == false){
             logger.error(STEP_ID_STRING + ": fastq2fasta software not found at location < " + this.getFastq2fasta_software() +">");
             throw new IOException(STEP_ID_STRING + ": fastq2fasta software not found at location < " + this.getFastq2fasta_software() +">");
         }
-        if(new File(this.getCollapseFastaSoftware()).exists() == false){
-            logger.error(STEP_ID_STRING + ": fastq2fasta software not found at location < " + this.getCollapseFastaSoftware() +">");
-            throw new IOException(STEP_ID_STRING + ": fastq2fasta software not found at location < " + this.getCollapseFastaSoftware() +">");
+        if(this.getNativeCollapse() == false && new File(this.getCollapseFastaSoftware()).exists() == false){
+            logger.error(STEP_ID_STRING + ": fastx_collapser software not found at location < " + this.getCollapseFastaSoftware() +">");
+            throw new IOException(STEP_ID_STRING + ": fastx_collapser software not found at location < " + this.getCollapseFastaSoftware() +">");
         }
         
         // check the data files
@@ -246,7 +335,7 @@ public class StepCollapseReads extends NGSStep implements NGSBase {
             }
             String fastqFile1 = inFolder + NGSStep.FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION);
             
-            if ((new File(fastqFile1)).exists()==false){
+            if ((new File(this.findFastqFile(fastqFile1))).exists()==false){
                 logger.error(STEP_ID_STRING + ": fastq File1 <" 
                   + fastqFile1 + "> does not exist");
                 throw new IOException(STEP_ID_STRING + " : fastq File1 <" 
@@ -267,7 +356,7 @@ public class StepCollapseReads extends NGSStep implements NGSBase {
             if (sampleData.getFastqFile2()==null) continue;
             String fastqFile2 = inFolder + NGSStep.FILESEPARATOR + sampleData.getFastqFile2().replace(".fastq", INFILE_EXTENSION);
             
-            if ((new File(fastqFile2)).exists()==false){
+            if ((new File(this.findFastqFile(fastqFile2))).exists()==false){
                 logger.error(STEP_ID_STRING + " : fastq File2 <" 
                   + fastqFile2 + "> does not exist");
                 throw new IOException(STEP_ID_STRING + " : fastq File2 <" 
@@ -288,6 +377,26 @@ public class StepCollapseReads extends NGSStep implements NGSBase {
 
     }
     
+    /**
+     * @return the file extensions this step reads
+     */
+    @Override
+    public ArrayList<String> getInputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(INFILE_EXTENSION));
+    }
+    
+    
+    
+    /**
+     * @return the file extensions this step writes
+     */
+    @Override
+    public ArrayList<String> getOutputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(FASTA_OUTFILE_EXTENSION, CLP_OUTFILE_EXTENSION));
+    }
+    
+    
+    
     @Override
     public void verifyOutputData(){
         
@@ -309,6 +418,9 @@ public class StepCollapseReads extends NGSStep implements NGSBase {
         
         HashMap configData = new HashMap();
         
+        configData.put(ID_NATIVE_COLLAPSE, true);
+        configData.put(ID_MEMORY_BUDGET, 4096);
+        configData.put(ID_SCRATCH_FOLDER, "/tmp");
         configData.put(ID_Q2A_SOFTWARE, "/usr/local/bin/fastq_to_fasta");
         configData.put(ID_COLLAPSE_SOFTWARE, "/usr/local/bin/fastx_collapser");
         
@@ -346,4 +458,46 @@ public class StepCollapseReads extends NGSStep implements NGSBase {
     public void setCollapseFastaSoftware(String collapseFastaSoftware) {
         this.collapseFastaSoftware = collapseFastaSoftware;
     }
+
+    /**
+     * @return true if the reads are collapsed without calling fastx
+     */
+    public Boolean getNativeCollapse() {
+        return nativeCollapse;
+    }
+
+    /**
+     * @param nativeCollapse the nativeCollapse to set
+     */
+    public void setNativeCollapse(Boolean nativeCollapse) {
+        this.nativeCollapse = nativeCollapse;
+    }
+
+    /**
+     * @return the memory budget for each sample, 0 means use half the heap
+     */
+    public int getMemoryBudgetMB() {
+        return memoryBudgetMB;
+    }
+
+    /**
+     * @param memoryBudgetMB the memoryBudgetMB to set
+     */
+    public void setMemoryBudgetMB(int memoryBudgetMB) {
+        this.memoryBudgetMB = memoryBudgetMB;
+    }
+
+    /**
+     * @return the folder for temporary files, empty means the output folder
+     */
+    public String getScratchFolder() {
+        return scratchFolder;
+    }
+
+    /**
+     * @param scratchFolder the scratchFolder to set
+     */
+    public void setScratchFolder(String scratchFolder) {
+        this.scratchFolder = scratchFolder;
+    }
 }
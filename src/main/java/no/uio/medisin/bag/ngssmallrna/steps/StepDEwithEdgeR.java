@@ -11,7 +11,6 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -23,6 +22,7 @@ import java.util.Random;
 
 import no.uio.medisin.bag.core.MiRNAFeature;
 import no.uio.medisin.bag.core.MirFeatureSet;
+import no.uio.medisin.bag.ngssmallrna.pipeline.ReferenceRegistry;
 import no.uio.medisin.bag.ngssmallrna.pipeline.SampleDataEntry;
 import org.apache.commons.lang3.StringUtils;
 
@@ -164,10 +164,9 @@ public class StepDEwithEdgeR extends NGSStep implements NGSBase{
         Boolean fA = new File(outFolder).mkdir();       
         if (fA) logger.info("created output folder <" + outFolder + "> for results" );
         
-        String gffFileMirBase = this.cleanPath(stepInputData.getDataLocations().getMirbaseFolder() 
-                + FILESEPARATOR + this.getMiRBaseRelease() + FILESEPARATOR + this.getReferenceGenome() + ".gff3");
+        String gffFileMirBase = this.getMiRBaseGFFFile();
         String faFileMirBase = gffFileMirBase.replace("gff3", "mature.fa");
-        miRBaseMiRNAList.loadMiRBaseData(this.getReferenceGenome(), gffFileMirBase, faFileMirBase);
+        miRBaseMiRNAList = this.getReferenceRegistry().getMiRBaseData(this.getReferenceGenome(), this.getMiRBaseRelease(), gffFileMirBase, faFileMirBase);
 
         logger.info("Merging Count Files");
         String headerLine = "name";
@@ -391,34 +390,9 @@ public class StepDEwithEdgeR extends NGSStep implements NGSBase{
         cmd.add(rScriptFilename);
 
 
-        String cmdRunRScript = StringUtils.join(cmd, " ");
-        cmdRunRScript = cmdRunRScript.replace(FILESEPARATOR + FILESEPARATOR, FILESEPARATOR);
-        logger.info("Rscript command:\t" + cmdRunRScript);
-
+        String cmdRunRScript = this.cleanPath(StringUtils.join(cmd, " "));
         try{
-            Runtime rt = Runtime.getRuntime();
-            Process proc = rt.exec(cmdRunRScript);
-            BufferedReader brAStdin  = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-            BufferedReader brAStdErr = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-
-                String line = null;
-                logger.info("<OUTPUT>");
-                while ((line = brAStdin.readLine()) != null)
-                    logger.info(line);
-                logger.info("</OUTPUT>");
-
-                logger.info("<ERROR>");
-                while ( (line = brAStdErr.readLine()) != null){
-                    logger.info(line);
-                }
-                // need to parse the output from Bowtie to get the mapping summary
-                logger.info("</ERROR>");
-
-                int exitVal = proc.waitFor();            
-                logger.info("Process exitValue: " + exitVal);   
-
-            brAStdin.close();
-            brAStdErr.close();        
+            this.runProcess(STEP_ID_STRING + " Rscript", cmd);
         }
         catch(IOException exIO){
             logger.info("error executing RScript command\n" + cmdRunRScript);
@@ -426,11 +400,6 @@ public class StepDEwithEdgeR extends NGSStep implements NGSBase{
             throw new IOException(STEP_ID_STRING + ": error executing RScript command\n" + cmdRunRScript);
             
         }
-        catch(InterruptedException exIE){
-            logger.info("error executing RScript command\n" + exIE);            
-            logger.info(exIE);
-            throw new IOException(STEP_ID_STRING + ": error executing RScript command\n" + cmdRunRScript);
-        }
     }
     
     
@@ -504,6 +473,60 @@ public class StepDEwithEdgeR extends NGSStep implements NGSBase{
     
     
     
+    /**
+     * @return the miRBase release the step loads
+     */
+    @Override
+    public ArrayList<String> getReferenceKeys(){
+        return new ArrayList<>(Arrays.asList(ReferenceRegistry.getMiRBaseKey(this.getReferenceGenome(), this.getMiRBaseRelease(), this.getMiRBaseGFFFile())));
+    }
+
+    
+    
+    
+    /**
+     * let go of the miRBase release
+     */
+    @Override
+    public void dropReferences(){
+        miRBaseMiRNAList = new MirFeatureSet();
+    }
+    
+    
+    
+    
+    /**
+     * @return the miRBase GFF file for the reference genome
+     */
+    private String getMiRBaseGFFFile(){
+        return this.cleanPath(stepInputData.getDataLocations().getMirbaseFolder() 
+                + FILESEPARATOR + this.getMiRBaseRelease() + FILESEPARATOR + this.getReferenceGenome() + ".gff3");
+    }
+    
+    
+    
+    
+    /**
+     * @return the file extensions this step reads
+     */
+    @Override
+    public ArrayList<String> getInputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(MIR_COUNTS_EXTENSION));
+    }
+    
+    
+    
+    /**
+     * @return the file extensions this step writes
+     */
+    @Override
+    public ArrayList<String> getOutputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(GROUPS_FILE_EXTENSION, DE_RESULTS_EXTENSION, DE_SUMMARY_COUNTS_EXTENSION, DE_SUMMARY_EXTENSION,
+                DE_MDS_PLOT_EXTENSION + "png", DE_BCV_PLOT_EXTENSION + "png", DE_SMEAR_PLOT_EXTENSION + "png", ".merged.mirna_counts.tsv", ".R"));
+    }
+    
+    
+    
     @Override
     public void verifyOutputData(){
         
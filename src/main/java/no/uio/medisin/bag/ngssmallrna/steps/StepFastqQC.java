@@ -5,15 +5,17 @@
  */
 package no.uio.medisin.bag.ngssmallrna.steps;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import no.uio.medisin.bag.ngssmallrna.pipeline.FastqQC;
+import no.uio.medisin.bag.ngssmallrna.pipeline.FastqQCStats;
 import no.uio.medisin.bag.ngssmallrna.pipeline.SampleDataEntry;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 
 import org.apache.logging.log4j.Logger;
@@ -22,237 +24,326 @@ import org.apache.logging.log4j.Logger;
 
 
 /**
- *  Adapter Trimming Step
+ *  FASTQ QC Step
  *  perform QC of FASTQ file list.
- * 
- *   Input is a FASTQ file
- *   Output is a quality report
- * 
- * 
+ *
+ *   Input is a FASTQ file, which may be gzipped
+ *   Output is a quality report for each FASTQ file, with per base quality
+ *   and composition, N content, read length and GC distributions,
+ *   overrepresented sequences and k-mers
+ *
+ *   Each file is read once, with noOfThreads workers collecting statistics
+ *   for separate chunks of reads. Set noOfSampleReads to only look at the
+ *   start of each file
+ *
+ *
  * @author sr
  */
 
 public class StepFastqQC extends NGSStep implements NGSBase{
-    
+
     static Logger                       logger = LogManager.getLogger();
-    
+
     public static final String          STEP_ID_STRING          = "FastqQC";
-    private static final String         ID_SOFTWARE             = "unzipSoftware";    
     private static final String         ID_THREADS              = "noOfThreads";
-    
-    private static final String         INFILE_EXTENSION         = ".fastq.gz";
-    private static final String         OUTFILE_EXTENSION        = ".fastq";
-    
-    private int                         noOfSampleReads         = 100000;
-    private String                      unzipSoftware           = "";
+    private static final String         ID_SAMPLE_READS         = "noOfSampleReads";
+
+    private static final String         INFILE_EXTENSION         = ".fastq";
+    private static final String         OUTFILE_EXTENSION        = ".qc.txt";
+
+    private int                         noOfThreads             = 4;
+    private int                         noOfSampleReads         = 0;
+
 
-    
 
     /**
-     * 
+     *
      * @param sid StepInputData
-     * 
+     *
      */
     public StepFastqQC(StepInputData sid){
        stepInputData = sid;
     }
-    
-    
-    
+
+
+
     /**
      * This parses out the hashmap containing the run parameters for this step
-     * 
+     *
      * @param configData
-     * @throws Exception 
+     * @throws Exception
      */
     @Override
     public void parseConfigurationData(HashMap configData) throws Exception{
 
         logger.info(STEP_ID_STRING + ": verify configuration data");
-        
-        if(configData.get(ID_SOFTWARE)==null) {
-            logger.error("<" + configData.get(ID_SOFTWARE) + "> : Missing Definition in Configuration File");
-            throw new NullPointerException("<" + configData.get(ID_SOFTWARE) + "> : Missing Definition in Configuration File");
-        }
+
         if(configData.get(ID_THREADS)==null) {
-            logger.error("<" + configData.get(ID_THREADS) + "> : Missing Definition in Configuration File");
-            throw new NullPointerException("<" + configData.get(ID_THREADS) + "> : Missing Definition in Configuration File");
+            logger.error("<" + ID_THREADS + "> : Missing Definition in Configuration File");
+            throw new NullPointerException("<" + ID_THREADS + "> : Missing Definition in Configuration File");
+        }
+
+        try{
+            this.setNoOfThreads((Integer) configData.get(ID_THREADS));
         }
-        
-        
-        
-        this.setUnzipSoftware((String) configData.get(ID_SOFTWARE));
- 
+        catch(NumberFormatException|ClassCastException exNm){
+            logger.error(ID_THREADS + " <" + configData.get(ID_THREADS) + "> is not an integer");
+            throw new NumberFormatException(ID_THREADS + " <" + configData.get(ID_THREADS) + "> is not an integer");
+        }
+        if(this.getNoOfThreads() <= 0){
+            logger.error(ID_THREADS + " <" + configData.get(ID_THREADS) + "> must be positive");
+            throw new IllegalArgumentException(ID_THREADS + " <" + configData.get(ID_THREADS) + "> must be positive");
+        }
+
+        if(configData.get(ID_SAMPLE_READS)!=null){
+            try{
+                this.setNoOfSampleReads((Integer) configData.get(ID_SAMPLE_READS));
+            }
+            catch(NumberFormatException|ClassCastException exNm){
+                logger.error(ID_SAMPLE_READS + " <" + configData.get(ID_SAMPLE_READS) + "> is not an integer");
+                throw new NumberFormatException(ID_SAMPLE_READS + " <" + configData.get(ID_SAMPLE_READS) + "> is not an integer");
+            }
+            if(this.getNoOfSampleReads() < 0){
+                logger.error(ID_SAMPLE_READS + " <" + configData.get(ID_SAMPLE_READS) + "> must be 0 or greater");
+                throw new IllegalArgumentException(ID_SAMPLE_READS + " <" + configData.get(ID_SAMPLE_READS) + "> must be 0 or greater");
+            }
+        }
+
         logger.info("passed");
     }
-    
-    
-    
+
+
+
     /**
-     * unzip specified file types
-     * 
-     * @throws IOException 
+     * write a QC report for each FASTQ file
+     *
+     * @throws IOException
      */
     @Override
     public void execute() throws IOException{
-        /*
-            sample unzip command       
-            pigz -p 4 -d /data/ngsdata/project1/sra_data.fastq.gz     
-        */
-        logger.info(STEP_ID_STRING + ": execute step");        
-        
-        String fastqFile1in = "";
-        String fastqFile1out = "";
-        String fastqFile2in = "";
-        String fastqFile2out = "";
-        Iterator itSD = this.stepInputData.getSampleData().iterator();
-        while (itSD.hasNext()){
-            try{
-                SampleDataEntry sampleData = (SampleDataEntry)itSD.next();                
-                
-                fastqFile1out = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile1());
-                fastqFile1in = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION));
-                
-                if (sampleData.getFastqFile2() == null) continue;
-                                
+
+        logger.info(STEP_ID_STRING + ": execute step");
+        this.setPaths();
+
+        Boolean f = new File(outFolder).mkdir();
+        if (f) logger.info("created output folder <" + outFolder + "> for results" );
+
+        this.executeSamples(new SampleTask<Void>(){
+            @Override
+            public Void processSample(SampleDataEntry sampleData) throws IOException{
+                qcFastqFile(sampleData.getFastqFile1());
+                if (sampleData.getFastqFile2() != null)
+                    qcFastqFile(sampleData.getFastqFile2());
+                return null;
             }
-            catch(Exception ex){
-                logger.error("error executing pigz unzip command");
-                throw new IOException("error executing pigz unzip command");
+
+            @Override
+            public ArrayList<String> getSampleInputFiles(SampleDataEntry sampleData){
+                ArrayList<String> inputFiles = new ArrayList<>(Arrays.asList(getFastqInputFile(sampleData.getFastqFile1())));
+                if (sampleData.getFastqFile2() != null)
+                    inputFiles.add(getFastqInputFile(sampleData.getFastqFile2()));
+                return inputFiles;
             }
-        }
-        
+
+            @Override
+            public ArrayList<String> getSampleOutputFiles(SampleDataEntry sampleData){
+                ArrayList<String> outputFiles = new ArrayList<>(Arrays.asList(getReportFile(sampleData.getFastqFile1())));
+                if (sampleData.getFastqFile2() != null)
+                    outputFiles.add(getReportFile(sampleData.getFastqFile2()));
+                return outputFiles;
+            }
+        });
+
         logger.info(STEP_ID_STRING + ": completed");
     }
-    
-    
-    
-            
+
+
+
+
+    /**
+     * collect the statistics for a FASTQ file and write the report
+     *
+     * @param fastqFile     the FASTQ file name from the sample data
+     * @throws IOException
+     */
+    private void qcFastqFile(String fastqFile) throws IOException{
+
+        String fastqInputFile = this.getFastqInputFile(fastqFile);
+        String reportFile = this.getReportFile(fastqFile);
+
+        FastqQC fastqQC = new FastqQC(Math.max(1, this.getNoOfThreads() / Math.max(1, this.getNoOfSampleWorkers())));
+        fastqQC.setMaxNoOfReads(this.getNoOfSampleReads());
+        FastqQCStats stats;
+        try{
+            stats = fastqQC.analyze(fastqInputFile);
+        }
+        catch(IOException exIO){
+            logger.error(STEP_ID_STRING + ": error reading <" + fastqInputFile + ">\n" + exIO);
+            throw new IOException(STEP_ID_STRING + ": error reading <" + fastqInputFile + ">", exIO);
+        }
+
+        try(BufferedWriter bwRP = new BufferedWriter(new FileWriter(new File(reportFile)))){
+            stats.writeReport(bwRP, new File(fastqInputFile).getName());
+        }
+        catch(IOException exIO){
+            logger.error(STEP_ID_STRING + ": error writing QC report <" + reportFile + ">\n" + exIO);
+            throw new IOException(STEP_ID_STRING + ": error writing QC report <" + reportFile + ">", exIO);
+        }
+        logger.info(STEP_ID_STRING + ": wrote QC report <" + reportFile + ">");
+
+    }
+
+
+
+
+    /**
+     *
+     * @param fastqFile
+     * @return the FASTQ file in the input folder, which may be gzipped
+     */
+    private String getFastqInputFile(String fastqFile){
+        return this.findFastqFile(this.cleanPath(inFolder + FILESEPARATOR + fastqFile));
+    }
+
+
+
+
+    /**
+     *
+     * @param fastqFile
+     * @return the QC report for this FASTQ file
+     */
+    private String getReportFile(String fastqFile){
+        return this.cleanPath(outFolder + FILESEPARATOR + fastqFile.replace(INFILE_EXTENSION, OUTFILE_EXTENSION));
+    }
+
+
+
+
     /**
      * this should be called prior to executing the step.
-     * check unzip software exists and input files are available
-     * 
+     * check the input files are available
+     *
      * @throws IOException
      */
     @Override
     public void verifyInputData() throws IOException{
-        
-        logger.info("verify input data");        
+
+        logger.info("verify input data");
         this.setPaths();
-        
-        if(new File(this.getUnzipSoftware()).exists() == false){
-            logger.error("unzip software not found at location < " + this.getUnzipSoftware() +">");
-            throw new IOException("unzip software not found at location < " + this.getUnzipSoftware() +">");
-        }
-                
-                
-                            
+
         // check the data files
-        String fastqFile1in = "";
-        String fastqFile1out = "";
         Iterator itSD = this.stepInputData.getSampleData().iterator();
         while (itSD.hasNext()){
             SampleDataEntry sampleData = (SampleDataEntry)itSD.next();
-            
+
             //Fastq 1
             if (sampleData.getFastqFile1()==null) {
-                logger.error("no Fastq1 file specified");
-                throw new IOException("no Fastq1 file specified");
-            }
-            
-            fastqFile1out = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile1());
-            fastqFile1in = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION));
-            String fastqFile1 = inFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION);
-            if (new File(fastqFile1in).exists()==false && new File(fastqFile1out).exists()==false){
-                logger.error(STEP_ID_STRING + ": fastq 1 Files <" + fastqFile1in + "> & <" + fastqFile1out + "> do not exist");
-                throw new IOException(STEP_ID_STRING + ": fastq 2 Files <" + fastqFile1in + "> & <" + fastqFile1out + "> do not exist");
+                logger.error(STEP_ID_STRING + ": no Fastq1 file specified");
+                throw new IOException(STEP_ID_STRING + ": no Fastq1 file specified");
             }
-            if (fastqFile1.toUpperCase().endsWith(INFILE_EXTENSION.toUpperCase())==false)
-            {
-                logger.info(STEP_ID_STRING + ": incorrect file extension for input file <" 
-                  + fastqFile1 + ">. should have <" + INFILE_EXTENSION + "> as extension");
-                throw new IOException(STEP_ID_STRING + ": incorrect file extension for input file <" 
-                  + fastqFile1 + ">.  \n" 
-                  + "should have <" + INFILE_EXTENSION + "> as extension");
+            String fastqFile1 = this.getFastqInputFile(sampleData.getFastqFile1());
+            if (new File(fastqFile1).exists()==false){
+                logger.error(STEP_ID_STRING + ": fastq File1 <" + fastqFile1 + "> does not exist");
+                throw new IOException(STEP_ID_STRING + ": fastq File1 <" + fastqFile1 + "> does not exist");
             }
-            
-            
+
             //Fastq 2
             if (sampleData.getFastqFile2()==null) continue;
-            String fastqFile2in = "";
-            String fastqFile2out = "";
-            fastqFile2in = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile2().replace(".fastq", INFILE_EXTENSION));
-            fastqFile2out = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile2());
-
-            
-            if ((new File(fastqFile2in)).exists()==false && (new File(fastqFile2in)).exists()==false){
-                logger.error(STEP_ID_STRING + ": fastq 2 Files <" + fastqFile2in + "> & <" + fastqFile2out + "> do not exist");
-                throw new IOException(STEP_ID_STRING + ": fastq 2 Files <" + fastqFile2in + "> & <" + fastqFile2out + "> do not exist");
-            }
-            if (fastqFile2in.toUpperCase().endsWith(INFILE_EXTENSION.toUpperCase())==false)
-            {
-                logger.error(STEP_ID_STRING + ": incorrect file extension for fastq file 2 <" 
-                  + fastqFile2in + ">. should have <" + INFILE_EXTENSION + "> as extension");
-                throw new IOException(STEP_ID_STRING + ": incorrect file extension for fastq file 2 <" 
-                  + fastqFile2in + ">. \n" 
-                  + "should have <" + INFILE_EXTENSION + "> as extension");
+            String fastqFile2 = this.getFastqInputFile(sampleData.getFastqFile2());
+            if (new File(fastqFile2).exists()==false){
+                logger.error(STEP_ID_STRING + ": fastq File2 <" + fastqFile2 + "> does not exist");
+                throw new IOException(STEP_ID_STRING + ": fastq File2 <" + fastqFile2 + "> does not exist");
             }
-                        
-            
+
         }
 
     }
-    
-    
-    
+
+
+
+    /**
+     * @return the file extensions this step reads
+     */
+    @Override
+    public ArrayList<String> getInputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(INFILE_EXTENSION));
+    }
+
+
+
+    /**
+     * @return the file extensions this step writes
+     */
+    @Override
+    public ArrayList<String> getOutputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(OUTFILE_EXTENSION));
+    }
+
+
+
     @Override
     public void verifyOutputData(){
         logger.info("no output verification required");
     }
-    
-    
-    
+
+
+
     /**
-     * generate sample configuration data so the user can see what can be 
-     * specified 
-     * 
-     * @return 
+     * generate sample configuration data so the user can see what can be
+     * specified
+     *
+     * @return
      */
     @Override
     public HashMap generateExampleConfigurationData() {
 
         logger.info(STEP_ID_STRING + ": generate example configuration data");
-        
+
         HashMap<String, Object> configData = new HashMap();
-        
-        configData.put(ID_SOFTWARE, "/usr/local/pigz");
+
         configData.put(ID_THREADS, 4);
-        
+        configData.put(ID_SAMPLE_READS, 0);
+
         return configData;
-        
+
+    }
+
+
+
+
+
+
+    /**
+     * @return the number of threads
+     */
+    public int getNoOfThreads() {
+        return noOfThreads;
     }
 
-    
-    
-    
-    
-    
     /**
-     * @return the unzipSoftware
+     * @param noOfThreads the noOfThreads to set
      */
-    public String getUnzipSoftware() {
-        return unzipSoftware;
+    public void setNoOfThreads(int noOfThreads) {
+        this.noOfThreads = noOfThreads;
     }
 
     /**
-     * @param unzipSoftware the unzipSoftware to set
+     * @return the number of reads to look at in each file, 0 means all of them
      */
-    public void setUnzipSoftware(String unzipSoftware) {
-        this.unzipSoftware = unzipSoftware;
+    public int getNoOfSampleReads() {
+        return noOfSampleReads;
     }
-    
-    
-    
-    
-    
+
+    /**
+     * @param noOfSampleReads the noOfSampleReads to set
+     */
+    public void setNoOfSampleReads(int noOfSampleReads) {
+        this.noOfSampleReads = noOfSampleReads;
+    }
+
+
+
+
+
 }
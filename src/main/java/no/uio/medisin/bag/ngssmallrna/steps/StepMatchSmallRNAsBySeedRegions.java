@@ -20,7 +20,9 @@ import no.uio.medisin.bag.core.GFFSet;
 import no.uio.medisin.bag.core.MiRNAFeature;
 import no.uio.medisin.bag.core.MirFeatureSet;
 import no.uio.medisin.bag.ngssmallrna.pipeline.ReferenceDataLocations;
-import no.uio.medisin.bag.core.SAMEntry;
+import no.uio.medisin.bag.ngssmallrna.pipeline.ReferenceRegistry;
+import no.uio.medisin.bag.ngssmallrna.pipeline.SAMRecord;
+import no.uio.medisin.bag.ngssmallrna.pipeline.SAMRecordReader;
 import no.uio.medisin.bag.ngssmallrna.pipeline.TargetScanMirFamilyList;
 import no.uio.medisin.bag.ngssmallrna.pipeline.TargetScanPredictedTargetList;
 import org.apache.commons.lang3.StringUtils;
@@ -61,6 +63,10 @@ public class StepMatchSmallRNAsBySeedRegions extends NGSStep implements NGSBase{
     static Logger                       logger = LogManager.getLogger();
     
     public static final String          STEP_ID_STRING          = "MatchSmallRNAsBySeedRegions";
+    
+    /* seed region MD patterns, see parseSAMFile */
+    private static final Pattern        MD_PATTERN_FIRST_MISMATCH   = Pattern.compile("(^(0)(\\w))|((^7-9)(\\w))");
+    private static final Pattern        MD_PATTERN                  = Pattern.compile("(^(1)(\\d)(\\w))|(^[7-9](\\w))");
     private static final String         ID_MIRBASE_VERSION      = "mirbaseVersion";
     private static final String         ID_REF_GENOME           = "host";
     private static final String         ID_QUERY_GENOME         = "query";    
@@ -211,13 +217,12 @@ public class StepMatchSmallRNAsBySeedRegions extends NGSStep implements NGSBase{
         */
         
         
-        String gffFileMirBase = this.cleanPath(stepInputData.getDataLocations().getMirbaseFolder() 
-                + FILESEPARATOR + this.getMiRBaseRelease() + FILESEPARATOR + this.getReferenceGenome() + ".gff3");
+        String gffFileMirBase = this.getMiRBaseGFFFile();
         String faFileMirBase = gffFileMirBase.replace("gff3", "mature.fa");
         logger.info("loading miRBase Data");
         logger.info("-- GFF file is <" + gffFileMirBase + ">");
         logger.info("-- FA  file is<" + faFileMirBase + ">");
-        mirBaseSet.loadMiRBaseData(this.getReferenceGenome(), gffFileMirBase, faFileMirBase);
+        mirBaseSet = this.getReferenceRegistry().getMiRBaseData(this.getReferenceGenome(), this.getMiRBaseRelease(), gffFileMirBase, faFileMirBase);
         logger.info("read " + mirBaseSet.getNumberOfEntries() + " entries");
         logger.info("--");
         
@@ -226,7 +231,7 @@ public class StepMatchSmallRNAsBySeedRegions extends NGSStep implements NGSBase{
         String targetScanFamily = this.cleanPath(stepInputData.getDataLocations().getTargetscanFolder()
                 + FILESEPARATOR + ReferenceDataLocations.ID_TSCAN_MIRFAMILY_FILE);
         logger.info("-- miR Family file is + <" + targetScanFamily + ">");
-        tScanMirFamilies.loadConservedFamilyList(targetScanFamily);
+        tScanMirFamilies.loadConservedFamilyList(targetScanFamily, stepInputData.getDataLocations().getSnapshotFolder());
         logger.info("read " + tScanMirFamilies.getNumberOfEntries() + " entries");
         logger.info("--");
         
@@ -234,7 +239,7 @@ public class StepMatchSmallRNAsBySeedRegions extends NGSStep implements NGSBase{
         String targetScanPrediction = this.cleanPath(stepInputData.getDataLocations().getTargetscanFolder()
                 + FILESEPARATOR + ReferenceDataLocations.ID_TSCAN_PREDICTIONS_FILE);
         logger.info("-- Predicted Target Data file is + <" + targetScanPrediction + ">");
-        tscanPredictedTargets.loadPredictedTargetInfo(targetScanPrediction);
+        tscanPredictedTargets.loadPredictedTargetInfo(targetScanPrediction, stepInputData.getDataLocations().getSnapshotFolder());
         logger.info("read " + tscanPredictedTargets.getNumberOfEntries() + " entries");
         logger.info("--\n");
         
@@ -275,33 +280,31 @@ public class StepMatchSmallRNAsBySeedRegions extends NGSStep implements NGSBase{
         this.setHostVersusQuerySAMFile( this.cleanPath(this.inFolder 
                 + FILESEPARATOR + stepInputData.getProjectID() + "." 
                 + this.getQueryGenome() + "_vs_" + this.getReferenceGenome() + ".sam"));
-        String SAMLine = "";
+        SAMRecord samRecord = new SAMRecord();
         int queryRefMatches = 0;
         int queryHits = 0;
-        try(BufferedReader brSM = new BufferedReader(new FileReader(new File(this.getHostVersusQuerySAMFile())))){
-            while((SAMLine=brSM.readLine())!=null){
-                if(SAMEntry.isHeaderLine(SAMLine)) continue;
-                SAMEntry samEntry  = new SAMEntry(SAMLine);
-                if(samEntry.getFlags()==0 || samEntry.getFlags()==16){
-                    String qFeatureID = samEntry.getqName().split("\\|")[0].trim();
-                    String mdString = samEntry.getTagValue("MD");
+        try(SAMRecordReader samReader = new SAMRecordReader(this.getHostVersusQuerySAMFile())){
+            while(samReader.next(samRecord)){
+                if(samRecord.isHeader()) continue;
+                int flags = samRecord.getFlags();
+                if(flags==0 || flags==16){
+                    String mdString = samRecord.getTagValue("MD");
+                    if(mdString == null) continue;
+                    String qFeatureID = samRecord.getQName().split("\\|")[0].trim();
                     /*
                         MD:Z:15G2T4 ok
                         MD:Z:4T1A13 not ok
                         MD:Z:0C13A7 ok (first base doesnt matter)
                     */
                     // is first char a '0'?
-                    Pattern mdPattern;
                     Matcher match;
                     String querySeed="";
                     if (mdString.startsWith("0")){
                         //logger.info("-- first character is '0'");
-                        mdPattern = Pattern.compile("(^(0)(\\w))|((^7-9)(\\w))");
-                        match = mdPattern.matcher(mdString);
+                        match = MD_PATTERN_FIRST_MISMATCH.matcher(mdString);
                     }else{
 //                        mdPattern = Pattern.compile("^[(1)(\\d)]|[(7-9)](\\w)");
-                        mdPattern = Pattern.compile("(^(1)(\\d)(\\w))|(^[7-9](\\w))");
-                        match = mdPattern.matcher(mdString);
+                        match = MD_PATTERN.matcher(mdString);
                     }
                     if (match.find()){
                         // find the entry in the QueryFeature list
@@ -374,9 +377,9 @@ public class StepMatchSmallRNAsBySeedRegions extends NGSStep implements NGSBase{
             logger.info("found " + queryHits + " query smallRNAs with matching seeds");
             logger.info("and a total of " +  queryRefMatches + " seed matches");
         }
-        catch(IOException exIO){
+        catch(IOException | NumberFormatException | ArrayIndexOutOfBoundsException exIO){
             logger.error("error parsing SAM file <" + this.getHostVersusQuerySAMFile() + ">");
-            logger.error("error occurred on line " + SAMLine);
+            logger.error("error occurred on line " + samRecord);
             logger.error(exIO);
             throw new IOException("error parsing SAM file <" 
                     + this.getHostVersusQuerySAMFile() + ">\nsee log file for details");
@@ -575,6 +578,41 @@ public class StepMatchSmallRNAsBySeedRegions extends NGSStep implements NGSBase{
     
     
     
+    /**
+     * @return the miRBase release the step loads
+     */
+    @Override
+    public ArrayList<String> getReferenceKeys(){
+        ArrayList<String> keys = new ArrayList<>();
+        keys.add(ReferenceRegistry.getMiRBaseKey(this.getReferenceGenome(), this.getMiRBaseRelease(), this.getMiRBaseGFFFile()));
+        return keys;
+    }
+
+    
+    
+    
+    /**
+     * let go of the miRBase release
+     */
+    @Override
+    public void dropReferences(){
+        mirBaseSet = new MirFeatureSet();
+    }
+    
+    
+    
+    
+    /**
+     * @return the miRBase GFF file for the reference genome
+     */
+    private String getMiRBaseGFFFile(){
+        return this.cleanPath(stepInputData.getDataLocations().getMirbaseFolder() 
+                + FILESEPARATOR + this.getMiRBaseRelease() + FILESEPARATOR + this.getReferenceGenome() + ".gff3");
+    }
+    
+    
+    
+    
     @Override
     public void verifyOutputData(){
         logger.info("no output verification required");
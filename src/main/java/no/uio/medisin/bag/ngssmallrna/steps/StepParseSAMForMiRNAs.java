@@ -5,21 +5,23 @@
  */
 package no.uio.medisin.bag.ngssmallrna.steps;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import no.uio.medisin.bag.core.IsomiRSet;
 import no.uio.medisin.bag.core.MiRNAFeature;
 import no.uio.medisin.bag.core.MirFeatureSet;
+import no.uio.medisin.bag.ngssmallrna.pipeline.IsomiRCounts;
+import no.uio.medisin.bag.ngssmallrna.pipeline.MiRNAFeatureIndex;
+import no.uio.medisin.bag.ngssmallrna.pipeline.ParallelSAMReader;
+import no.uio.medisin.bag.ngssmallrna.pipeline.ReferenceRegistry;
+import no.uio.medisin.bag.ngssmallrna.pipeline.SAMRecord;
 import no.uio.medisin.bag.ngssmallrna.pipeline.SampleDataEntry;
 
 import org.apache.logging.log4j.LogManager;
@@ -33,6 +35,15 @@ import org.apache.logging.log4j.Logger;
  * 
  *   Input is a SAM file
  * 
+ *   Each SAM file is read in chunks on several threads. The miRNA hits in
+ *   each chunk are counted by isomiR and the counts are merged in file order,
+ *   so reads are not kept in memory
+ * 
+ *   bleed, baselinePercent and mirbaseVersion can each be given as a list.
+ *   Every combination is then evaluated in the same pass over each SAM file,
+ *   and the results for each combination are written to a subfolder named
+ *   mirbase<version>_bleed<bleed>_baseline<baselinePercent>
+ * 
  * @author sr
  */
 
@@ -53,15 +64,56 @@ public class StepParseSAMForMiRNAs extends NGSStep implements NGSBase{
     private static final String     ISOMIR_PRETTY_EXTENSION         = ".trim.clp.gen.iso_pretty.tsv";
     private static final String     MIRCOUNTS_EXTENSION             = ".trim.clp.gen.mircounts.tsv";
 
-    private List<MiRNAFeature>      miRNAHitList;
-    private ArrayList<IsomiRSet>    isomiRList;
     MirFeatureSet                   mirBaseSet                      = new MirFeatureSet();           
+    MiRNAFeatureIndex               mirBaseIndex                    = null;
     
-    private int                     locationBleed                   = 2;
+    private ArrayList<Integer>      locationBleeds                  = new ArrayList<>(Arrays.asList(2));
     private Boolean                 analyzeIsomirs                  = false;
-    private int                     miRBaseRelease                  = 20;
+    private ArrayList<Integer>      miRBaseReleases                 = new ArrayList<>(Arrays.asList(20));
     private String                  referenceGenome                 = "";
-    private int                     baselinePercent                 = 5;
+    private ArrayList<Integer>      baselinePercents                = new ArrayList<>(Arrays.asList(5));
+    
+    private ArrayList<MiRBaseRelease>   mirBaseData                 = new ArrayList<>();
+    
+    
+    
+    /**
+     * a miRBase release and its index
+     */
+    private static class MiRBaseRelease{
+        final int                   release;
+        final MirFeatureSet         mirBaseSet;
+        final MiRNAFeatureIndex     mirBaseIndex;
+        
+        MiRBaseRelease(int release, MirFeatureSet mirBaseSet){
+            this.release = release;
+            this.mirBaseSet = mirBaseSet;
+            this.mirBaseIndex = new MiRNAFeatureIndex(mirBaseSet.getMiRBaseMiRNAList());
+        }
+    }
+    
+    
+    
+    /**
+     * the counts and miRNA hits for one chunk of a SAM file. The hits are
+     * counted separately for each miRBase release and bleed
+     */
+    private static class SAMHits{
+        final int[]                 matchCount5;
+        final int[]                 matchCount3;
+        int                         preMatchCount5                  = 0;
+        int                         preMatchCount3                  = 0;
+        int                         totalCounts                     = 0;
+        final IsomiRCounts[]        isomiRCounts;
+        
+        SAMHits(int noOfCountSettings){
+            matchCount5 = new int[noOfCountSettings];
+            matchCount3 = new int[noOfCountSettings];
+            isomiRCounts = new IsomiRCounts[noOfCountSettings];
+            for(int c=0; c<noOfCountSettings; c++)
+                isomiRCounts[c] = new IsomiRCounts();
+        }
+    }
     
     /**
      * 
@@ -111,42 +163,30 @@ public class StepParseSAMForMiRNAs extends NGSStep implements NGSBase{
         
 
       
-        try{
-            this.setMiRBaseRelease((Integer) configData.get(ID_MIRBASE_VERSION));
-        }
-        catch(Exception exNm){
-            logger.error(ID_MIRBASE_VERSION + " <" + configData.get(ID_MIRBASE_VERSION) + "> is not an integer");
-            throw new NumberFormatException(ID_MIRBASE_VERSION + " <" + configData.get(ID_MIRBASE_VERSION) + "> is not an integer");
-        }        
-        if (this.getMiRBaseRelease() <= 0){
-            logger.error(ID_MIRBASE_VERSION + " <" + configData.get(ID_MIRBASE_VERSION) + "> must be positive integer");
-            throw new IllegalArgumentException(ID_MIRBASE_VERSION + " <" + configData.get(ID_MIRBASE_VERSION) + "> must be positive integer");
+        this.setMiRBaseReleases(this.parseIntegerValues(configData, ID_MIRBASE_VERSION));
+        for(int miRBaseRelease: this.getMiRBaseReleases()){
+            if (miRBaseRelease <= 0){
+                logger.error(ID_MIRBASE_VERSION + " <" + configData.get(ID_MIRBASE_VERSION) + "> must be positive integer");
+                throw new IllegalArgumentException(ID_MIRBASE_VERSION + " <" + configData.get(ID_MIRBASE_VERSION) + "> must be positive integer");
+            }
         }
 
         
-        try{
-            this.setBaselinePercent((Integer) configData.get(ID_BASELINE));
-        }
-        catch(Exception exNm){
-            logger.error(ID_BASELINE + " <" + configData.get(ID_BASELINE) + "> is not an integer");
-            throw new NumberFormatException(ID_BASELINE + " <" + configData.get(ID_BASELINE) + "> is not an integer");
-        }        
-        if (this.getBaselinePercent() <= 0){
-            logger.error(ID_BASELINE + " <" + configData.get(ID_BASELINE) + "> must be an integer between 0 and 100");
-            throw new IllegalArgumentException(ID_BASELINE + " <" + configData.get(ID_BASELINE) + "> must be an integer between 0 and 100");
+        this.setBaselinePercents(this.parseIntegerValues(configData, ID_BASELINE));
+        for(int baselinePercent: this.getBaselinePercents()){
+            if (baselinePercent <= 0){
+                logger.error(ID_BASELINE + " <" + configData.get(ID_BASELINE) + "> must be an integer between 0 and 100");
+                throw new IllegalArgumentException(ID_BASELINE + " <" + configData.get(ID_BASELINE) + "> must be an integer between 0 and 100");
+            }
         }
 
-        try{
-            this.setLocationBleed((Integer) configData.get(ID_BLEED));
+        this.setLocationBleeds(this.parseIntegerValues(configData, ID_BLEED));
+        for(int locationBleed: this.getLocationBleeds()){
+            if (locationBleed <= 0 ){
+                logger.error(ID_BLEED + " <" + configData.get(ID_BLEED) + "> must be > 0 ");
+                throw new IllegalArgumentException(ID_BLEED + " <" + configData.get(ID_BLEED) + "> must be > 0 ");
+            }        
         }
-        catch(Exception exNm){
-            logger.error(ID_BLEED + " <" + ID_BLEED + "> is not an integer");
-            throw new NumberFormatException(ID_BLEED + " <" + ID_BLEED + "> is not an integer");
-        }        
-        if (this.getLocationBleed() <= 0 ){
-            logger.error(ID_BLEED + " <" + configData.get(ID_BLEED) + "> must be > 0 ");
-            throw new IllegalArgumentException(ID_BLEED + " <" + configData.get(ID_BLEED) + "> must be > 0 ");
-        }        
 
         this.setReferenceGenome((String) configData.get(ID_REF_GENOME));
         if(this.getReferenceGenome().length() !=3 ){
@@ -168,6 +208,43 @@ public class StepParseSAMForMiRNAs extends NGSStep implements NGSBase{
     
     
     
+    
+    /**
+     * a parameter that can be swept can be a single integer or a list of integers
+     * 
+     * @param configData
+     * @param key
+     * @return the values
+     * @throws NumberFormatException if a value is not an integer
+     */
+    private ArrayList<Integer> parseIntegerValues(HashMap configData, String key){
+        
+        Object value = configData.get(key);
+        ArrayList<Integer> values = new ArrayList<>();
+        try{
+            if(value instanceof List){
+                for(Object listValue: (List) value){
+                    values.add((Integer) listValue);
+                }
+            }
+            else{
+                values.add((Integer) value);
+            }
+        }
+        catch(ClassCastException exCC){
+            logger.error(key + " <" + value + "> is not an integer or a list of integers");
+            throw new NumberFormatException(key + " <" + value + "> is not an integer or a list of integers");
+        }
+        if(values.isEmpty()){
+            logger.error(key + " <" + value + "> is an empty list");
+            throw new IllegalArgumentException(key + " <" + value + "> is an empty list");
+        }
+        return values;
+        
+    }
+    
+    
+    
     /**
      * count up reads that overlap features specified in the GFF file
      * 
@@ -179,197 +256,380 @@ public class StepParseSAMForMiRNAs extends NGSStep implements NGSBase{
         logger.info(STEP_ID_STRING + ": execute");                
         
     
-        String gffFileMirBase = this.cleanPath(stepInputData.getDataLocations().getMirbaseFolder() 
-                + FILESEPARATOR + this.getMiRBaseRelease() + FILESEPARATOR + this.getReferenceGenome() + ".gff3");
-        String faFileMirBase = gffFileMirBase.replace("gff3", "mature.fa");
-        mirBaseSet.loadMiRBaseData(this.getReferenceGenome(), gffFileMirBase, faFileMirBase);
+        mirBaseData.clear();
+        for(int miRBaseRelease: this.getMiRBaseReleases()){
+            String gffFileMirBase = this.getMiRBaseGFFFile(miRBaseRelease);
+            String faFileMirBase = gffFileMirBase.replace("gff3", "mature.fa");
+            MirFeatureSet releaseSet = this.getReferenceRegistry().getMiRBaseData(this.getReferenceGenome(), miRBaseRelease, gffFileMirBase, faFileMirBase);
+            mirBaseData.add(new MiRBaseRelease(miRBaseRelease, releaseSet));
+        }
+        mirBaseSet = mirBaseData.get(0).mirBaseSet;
+        mirBaseIndex = mirBaseData.get(0).mirBaseIndex;
         
         Boolean fA = new File(outFolder).mkdir();       
         if (fA) logger.info("created output folder <" + outFolder + "> for results" );
-        String samLine = null;
-        String samInputFile = "";
-        Iterator itSD = this.stepInputData.getSampleData().iterator();
-        int bleed = this.getLocationBleed();
-        while (itSD.hasNext()){
-            try{
-                
-                SampleDataEntry sampleData = (SampleDataEntry)itSD.next();
-                
-                samInputFile = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION));
-                logger.info(sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION));
-                int matchCount5 = 0;
-                int matchCount3 = 0;
-                int preMatchCount5 = 0;
-                int preMatchCount3 = 0;
-                int totalCounts = 0;
-                samLine = null;
-                BufferedReader brSAM = new BufferedReader(new FileReader(new File(samInputFile)));
-                    isomiRList = new ArrayList<>();
-                    miRNAHitList = new ArrayList<>();
-                    while((samLine=brSAM.readLine())!= null){
-                        /*
-                            1   QNAME	   Query template NAME
-                            2   FLAG	   bitwise FLAG
-                            3   RNAME	   Reference sequence NAME
-                            4   POS	   1-based leftmost mapping POSition
-                            5   MAPQ	   MAPping Quality
-                            6   CIGAR	   CIGAR string
-                            7   RNEXT	   Ref. name of the mate/next read
-                            8   PNEXT	   Position of the mate/next read
-                            9   TLEN	   observed Template LENgth
-                            10  SEQ	   segment SEQuence
-                            11  QUAL	   ASCII of Phred-scaled base QUALity+33
-                        
-                        */
-                        if(samLine.startsWith("@")) continue;
-                        
-                        totalCounts += Integer.parseInt(samLine.split("\t")[0].split("-")[1]);
-                        if(samLine.split("\t")[1].equals("16") || samLine.split("\t")[1].equals("0")){
-                            String strand = "";
-                            if (samLine.split("\t")[1].equals("16")) {
-                                strand = "-";
-                                preMatchCount3++;
-                            }
-                            else{
-                                strand = "+";
-                                preMatchCount5++;
-                            }
-                            
-                            int startPos = Integer.parseInt(samLine.split("\t")[3]);
-                            String cigarStr = samLine.split("\t")[5].replace("M", "").trim();
-                            int endPos = startPos + Integer.parseInt(cigarStr);
-                            String chr = samLine.split("\t")[2].trim();
-                            String mdString = samLine.split("\t")[12];
-                            
-                            MiRNAFeature miRNAFeature = this.doesReadOverlapKnownMiRNA(startPos, endPos, chr, strand, bleed);
-                            if (miRNAFeature != null){
-                                MiRNAFeature miRNAHit = new MiRNAFeature(miRNAFeature);
-                                //logger.debug(miRNAHit.getName());
-                                String name = samLine.split("\t")[0];
-                                String sequence = samLine.split("\t")[9];
-                                if(miRNAHitList.contains(miRNAHit)){ 
-                                    miRNAHitList.get(miRNAHitList.indexOf(miRNAHit)).addIsomiR(name, startPos, cigarStr, mdString, sequence);
-                                }
-                                else{
-                                    miRNAHit.addIsomiR(name, startPos, cigarStr, mdString, sequence);
-                                    miRNAHitList.add(miRNAHit);
-                                }
-                                    
-                                if(strand.equals("+")) matchCount5++;
-                                else matchCount3++;
-                                List<String> mutations = new ArrayList<>();
-                                Matcher match = Pattern.compile("[0-9]+|[a-z]+|[A-Z]+").matcher(samLine.split("\t")[12].split(":")[2]);
-                                String outputString = samLine.split("\t")[0] + ":" + startPos + ":" + endPos + ":[" + chr + "]:" + samLine.split("\t")[12] + ": ";
-                                while (match.find()) {
-                                    mutations.add(match.group());
-                                    outputString = outputString.concat(match.group() + "|");
-                                }
-                                
-                            }
-                            
-                            
-                            
-                            
-                        }
-                    }
-                    logger.info("  total mapped counts = " + totalCounts);
-                    /*
-                        the following is rather approximate.
-                        apparently, for 5,000,000 reads, the lowest detectable by qPCR is 50. so, we divide total counts by 100000
-                        there has to be a better way....
-                    */
-                    Double minCountsForSingleFeature = (double) totalCounts /100000.0; // <= this is rather approximate
-                    logger.info((matchCount5 + matchCount3) + " reads (" + matchCount5 + " 5'" + "/" + matchCount3 + " 3' ) were mapped");
-                    
-                    if(analyzeIsomirs){
-                        logger.info("  calculate isomiR dispersions");
-                        for(MiRNAFeature miRHit: miRNAHitList){
-                            if (miRHit.getTotalCounts() > minCountsForSingleFeature.intValue()){
-                                ArrayList isomirPtsAsHash = miRHit.characterizeIsomiRs(this.getBaselinePercent());
-                                this.isomiRList.add(new IsomiRSet(miRHit.getMimatID(), sampleData.getNote(), sampleData.getFastqFile1().replace(".fastq", ""), isomirPtsAsHash));
-                            }
-                        }
-
-
-
-                        logger.info("  write isomiRs");
-
-                        String  isoDetailsFile = outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", ISOMIR_SUMMARY_EXTENSION);
-                        String  isoPrettyFile  = outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", ISOMIR_PRETTY_EXTENSION);
-
-                        BufferedWriter brDetails = new BufferedWriter(new FileWriter(new File(isoDetailsFile)));
-                        BufferedWriter brPretty  = new BufferedWriter(new FileWriter(new File(isoPrettyFile)));
-                            for(MiRNAFeature miRHit: this.miRNAHitList){
-                                if (miRHit.getTotalCounts() > minCountsForSingleFeature.intValue()){
-                                    logger.debug(miRHit.getName());
-                                    brDetails.write(miRHit.reportIsomiRs(this.getBaselinePercent(), minCountsForSingleFeature.intValue()));
-                                    brPretty.write(miRHit.prettyReportIsomiRs(this.getBaselinePercent(), minCountsForSingleFeature.intValue()));
-                                }
-                            }
-                        brPretty.close();
-                        brDetails.close();
+        if(this.isSweep()){
+            logger.info("evaluating " + this.getNoOfCountSettings() * baselinePercents.size() + " configurations in each pass");
+            for(int setting=0; setting<this.getNoOfCountSettings() * baselinePercents.size(); setting++){
+                new File(this.getSettingFolder(setting)).mkdir();
+            }
+        }
+
+        this.executeSamples(new SampleTask<ArrayList<ArrayList<IsomiRSet>>>(){
+            @Override
+            public ArrayList<ArrayList<IsomiRSet>> processSample(SampleDataEntry sampleData) throws IOException{
+                return parseSAMFile(sampleData);
+            }
+            
+            @Override
+            public void mergeSampleResults(ArrayList<ArrayList<ArrayList<IsomiRSet>>> sampleResults) throws IOException{
+                if(analyzeIsomirs == false) return;
+                for(int setting=0; setting<getNoOfCountSettings() * baselinePercents.size(); setting++){
+                    ArrayList<ArrayList<IsomiRSet>> settingResults = new ArrayList<>();
+                    for(ArrayList<ArrayList<IsomiRSet>> sampleResult: sampleResults){
+                        settingResults.add(sampleResult.get(setting));
                     }
-                    
-                    logger.info("  write miRNA counts");
-
-                    String  miRCountsFile  = outFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", MIRCOUNTS_EXTENSION);
-                    
-                    BufferedWriter brCounts  = new BufferedWriter(new FileWriter(new File(miRCountsFile)));
-                        for(MiRNAFeature miR: this.mirBaseSet.getMiRBaseMiRNAList()){
-                            if(miRNAHitList.contains(miR)){
-                                for(MiRNAFeature miRHit: this.miRNAHitList){
-                                    if(miRHit.equals(miR)){
-                                        brCounts.write(miR.getMimatID() + ":" + miR.getName() + "\t" + miRHit.getTotalCounts() + "\n");
-                                        break;
-                                    }
-                                }
-                            }
-                            else{
-                                brCounts.write(miR.getMimatID() + ":" + miR.getName() + "\t" + 0 + "\n");                                
-                            }
-                        }
-                    brCounts.close();
-                    
-                brSAM.close();
-                logger.info("  completed processing SAM file\n\n");
+                    writeDispersions(getSettingFolder(setting), settingResults);
+                }
+            }
+        });
+        logger.info(STEP_ID_STRING + ": completed");
+        
+        
+    }
+    
+    
+    
+    
+    /**
+     * parse the SAM file for a single sample and write the per sample
+     * miRNA counts and isomiR reports for each configuration. All state is 
+     * local so that samples can be processed concurrently
+     * 
+     * @param sampleData
+     * @return the isomiR dispersions for this sample, for each configuration
+     * @throws IOException 
+     */
+    private ArrayList<ArrayList<IsomiRSet>> parseSAMFile(SampleDataEntry sampleData) throws IOException{
+        
+        String samInputFile = "";
+        final int noOfCountSettings = this.getNoOfCountSettings();
+        try{
+            
+            samInputFile = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION));
+            logger.info(sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION));
+            
+            ParallelSAMReader samReader = new ParallelSAMReader(samInputFile, this.getNoOfThreadsPerSample());
+            ArrayList<SAMHits> chunkHits = samReader.process(new ParallelSAMReader.ChunkTask<SAMHits>(){
+                @Override
+                public SAMHits newAccumulator(){
+                    return new SAMHits(noOfCountSettings);
+                }
                 
+                @Override
+                public void addRecord(SAMHits samHits, SAMRecord samRecord){
+                    addSAMRecord(samHits, samRecord);
+                }
+            });
+            
+            SAMHits sampleHits = new SAMHits(noOfCountSettings);
+            for(SAMHits samHits: chunkHits){
+                sampleHits.preMatchCount5 += samHits.preMatchCount5;
+                sampleHits.preMatchCount3 += samHits.preMatchCount3;
+                sampleHits.totalCounts += samHits.totalCounts;
+                for(int c=0; c<noOfCountSettings; c++){
+                    sampleHits.matchCount5[c] += samHits.matchCount5[c];
+                    sampleHits.matchCount3[c] += samHits.matchCount3[c];
+                    sampleHits.isomiRCounts[c].merge(samHits.isomiRCounts[c]);
+                }
+            }
+            chunkHits.clear();
+            logger.info("  total mapped counts = " + sampleHits.totalCounts);
+            
+            /*
+                the following is rather approximate.
+                apparently, for 5,000,000 reads, the lowest detectable by qPCR is 50. so, we divide total counts by 100000
+                there has to be a better way....
+            */
+            Double minCountsForSingleFeature = (double) sampleHits.totalCounts /100000.0; // <= this is rather approximate
+            
+            ArrayList<ArrayList<IsomiRSet>> isomiRLists = new ArrayList<>();
+            for(int setting=0; setting<noOfCountSettings * baselinePercents.size(); setting++){
+                int c = setting / baselinePercents.size();
+                if(this.isSweep())
+                    logger.info("  configuration <" + this.getSettingName(setting) + ">");
+                logger.info((sampleHits.matchCount5[c] + sampleHits.matchCount3[c]) + " reads (" + sampleHits.matchCount5[c] + " 5'" 
+                        + "/" + sampleHits.matchCount3[c] + " 3' ) were mapped");
+                isomiRLists.add(this.writeSampleResults(sampleData, this.getSettingFolder(setting), 
+                        mirBaseData.get(c / locationBleeds.size()).mirBaseSet, sampleHits.isomiRCounts[c], 
+                        baselinePercents.get(setting % baselinePercents.size()), minCountsForSingleFeature));
+            }
                 
+            logger.info("  completed processing SAM file\n\n");
+            return isomiRLists;
+
+        }
+        catch(IOException ex){
+            logger.error("error processing sample <" + samInputFile + ">\n" + ex.toString());
+            throw new IOException(STEP_ID_STRING + ": error processing sample <" + samInputFile + ">", ex);
+        }
+        
+    }
+    
+    
+    
+    
+    /**
+     * write the miRNA counts and isomiR reports for one sample and configuration
+     * 
+     * @param sampleData
+     * @param folder
+     * @param releaseSet            the miRBase release the counts are for
+     * @param isomiRCounts
+     * @param baselinePercent
+     * @param minCountsForSingleFeature
+     * @return the isomiR dispersions
+     * @throws IOException 
+     */
+    private ArrayList<IsomiRSet> writeSampleResults(SampleDataEntry sampleData, String folder, MirFeatureSet releaseSet, 
+            IsomiRCounts isomiRCounts, int baselinePercent, Double minCountsForSingleFeature) throws IOException{
+        
+        ArrayList<IsomiRSet> isomiRList = new ArrayList<>();
+        if(analyzeIsomirs){
+            logger.info("  calculate isomiR dispersions for " + isomiRCounts.getNoOfIsomiRs() + " isomiRs");
+            ArrayList<MiRNAFeature> miRNAHitList = new ArrayList<>();
+            for(String mimatID: isomiRCounts.getMimatIDs()){
+                if (isomiRCounts.getTotalCounts(mimatID) > minCountsForSingleFeature.intValue()){
+                    miRNAHitList.add(isomiRCounts.getMiRNAFeature(mimatID));
+                }
             }
-            catch(IOException ex){
-                logger.error("error processing sample <" + samInputFile + ">\n" + ex.toString());
-                throw new IOException(STEP_ID_STRING + ": error processing sample <" + samInputFile + ">");
+            for(MiRNAFeature miRHit: miRNAHitList){
+                ArrayList isomirPtsAsHash = miRHit.characterizeIsomiRs(baselinePercent);
+                isomiRList.add(new IsomiRSet(miRHit.getMimatID(), sampleData.getNote(), sampleData.getFastqFile1().replace(".fastq", ""), isomirPtsAsHash));
             }
-            catch(ArrayIndexOutOfBoundsException exBnd){
-                logger.error("error parsing line " + samLine);
-                logger.error(exBnd);
-                throw new IOException(STEP_ID_STRING + ": error processing sample <" + samInputFile + ">: samLine was \n" + samLine);
+
+
+
+            logger.info("  write isomiRs");
+
+            String  isoDetailsFile = folder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", ISOMIR_SUMMARY_EXTENSION);
+            String  isoPrettyFile  = folder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", ISOMIR_PRETTY_EXTENSION);
+
+            BufferedWriter brDetails = new BufferedWriter(new FileWriter(new File(isoDetailsFile)));
+            BufferedWriter brPretty  = new BufferedWriter(new FileWriter(new File(isoPrettyFile)));
+                for(MiRNAFeature miRHit: miRNAHitList){
+                    logger.debug(miRHit.getName());
+                    brDetails.write(miRHit.reportIsomiRs(baselinePercent, minCountsForSingleFeature.intValue()));
+                    brPretty.write(miRHit.prettyReportIsomiRs(baselinePercent, minCountsForSingleFeature.intValue()));
+                }
+            brPretty.close();
+            brDetails.close();
+        }
+
+        logger.info("  write miRNA counts");
+
+        String  miRCountsFile  = folder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", MIRCOUNTS_EXTENSION);
+
+        BufferedWriter brCounts  = new BufferedWriter(new FileWriter(new File(miRCountsFile)));
+            for(MiRNAFeature miR: releaseSet.getMiRBaseMiRNAList()){
+                brCounts.write(miR.getMimatID() + ":" + miR.getName() + "\t" + isomiRCounts.getTotalCounts(miR.getMimatID()) + "\n");
+            }
+        brCounts.close();
+        return isomiRList;
+        
+    }
+    
+    
+    
+    
+    /**
+     * count a SAM line and record it if it matches a miRBase entry, for each
+     * miRBase release and bleed. This is called from several threads, each 
+     * with its own SAMHits
+     * 
+     * @param samHits
+     * @param samRecord
+     */
+    private void addSAMRecord(SAMHits samHits, SAMRecord samRecord){
+        
+        if(samRecord.isHeader()) return;
+
+        int readCount = samRecord.getQNameCount();
+        samHits.totalCounts += readCount;
+        int flags = samRecord.getFlags();
+        if(flags != 16 && flags != 0) return;
+        
+        String strand = "";
+        if (flags == 16) {
+            strand = "-";
+            samHits.preMatchCount3++;
+        }
+        else{
+            strand = "+";
+            samHits.preMatchCount5++;
+        }
+
+        int startPos = samRecord.getPos();
+        int endPos = samRecord.getEndPos();
+        String chr = samRecord.getRName();
+
+        String readName = null;
+        String mdString = null;
+        String sequence = null;
+        int c = 0;
+        for(MiRBaseRelease release: mirBaseData){
+            for(int bleed: locationBleeds){
+                MiRNAFeature miRNAFeature = release.mirBaseIndex.findOverlappingFeature(startPos, endPos, chr, strand, bleed);
+                if (miRNAFeature != null){
+                    if(readName == null){
+                        readName = samRecord.getQName();
+                        mdString = samRecord.getField(12);
+                        sequence = samRecord.getSequence();
+                    }
+                    samHits.isomiRCounts[c].add(miRNAFeature, readName, readCount, startPos, endPos, mdString, sequence);
+                    if(strand.equals("+")) samHits.matchCount5[c]++;
+                    else samHits.matchCount3[c]++;
+                }
+                c++;
             }
         }
         
-        if(analyzeIsomirs){
-            String dispersionFile   = outFolder + FILESEPARATOR + stepInputData.getProjectID() + ".disp.tsv";
-            String summaryFile      = outFolder + FILESEPARATOR + stepInputData.getProjectID() + ".disp.summary.tsv";
-            logger.info("write dispersions to file <" + dispersionFile + ">");
-            try{
-                BufferedWriter bwDp = new BufferedWriter(new FileWriter(new File(dispersionFile)));
-                BufferedWriter bwSm = new BufferedWriter(new FileWriter(new File(summaryFile)));   
-                    bwSm.write(IsomiRSet.printSummaryHeader());
+    }
+    
+    
+    
+    
+    /**
+     * @return true if more than one configuration is evaluated
+     */
+    private Boolean isSweep(){
+        return miRBaseReleases.size() * locationBleeds.size() * baselinePercents.size() > 1;
+    }
+    
+    
+    
+    
+    /**
+     * reads are counted for each miRBase release and bleed, the baseline only
+     * changes the isomiR reports
+     * 
+     * @return the number of miRBase release and bleed combinations
+     */
+    private int getNoOfCountSettings(){
+        return miRBaseReleases.size() * locationBleeds.size();
+    }
+    
+    
+    
+    
+    /**
+     * configurations are numbered by release, then bleed, then baseline
+     * 
+     * @param setting
+     * @return e.g. mirbase20_bleed2_baseline5
+     */
+    private String getSettingName(int setting){
+        int noOfBaselines = baselinePercents.size();
+        int noOfBleeds = locationBleeds.size();
+        return "mirbase" + miRBaseReleases.get(setting / (noOfBaselines * noOfBleeds))
+                + "_bleed" + locationBleeds.get((setting / noOfBaselines) % noOfBleeds)
+                + "_baseline" + baselinePercents.get(setting % noOfBaselines);
+    }
+    
+    
+    
+    
+    /**
+     * the first configuration (the first value of each parameter) is
+     * written to the output folder, as it is without a sweep, so the steps
+     * that read this step's output still find it. The other configurations 
+     * of a sweep get a subfolder each
+     * 
+     * @param setting
+     * @return the output folder for the configuration
+     */
+    private String getSettingFolder(int setting){
+        if(this.isSweep() == false || setting == 0)
+            return outFolder;
+        return this.cleanPath(outFolder + FILESEPARATOR + this.getSettingName(setting));
+    }
+    
+    
+    
+    
+    /**
+     * @return the miRBase releases the step loads
+     */
+    @Override
+    public ArrayList<String> getReferenceKeys(){
+        ArrayList<String> keys = new ArrayList<>();
+        for(int miRBaseRelease: this.getMiRBaseReleases()){
+            keys.add(ReferenceRegistry.getMiRBaseKey(this.getReferenceGenome(), miRBaseRelease, this.getMiRBaseGFFFile(miRBaseRelease)));
+        }
+        return keys;
+    }
+
+    
+    
+    
+    /**
+     * let go of the miRBase releases and their indexes
+     */
+    @Override
+    public void dropReferences(){
+        mirBaseData.clear();
+        mirBaseSet = new MirFeatureSet();
+        mirBaseIndex = null;
+    }
+    
+    
+    
+    
+    /**
+     * @param miRBaseRelease
+     * @return the miRBase GFF file for the reference genome
+     */
+    private String getMiRBaseGFFFile(int miRBaseRelease){
+        return this.cleanPath(stepInputData.getDataLocations().getMirbaseFolder() 
+                + FILESEPARATOR + miRBaseRelease + FILESEPARATOR + this.getReferenceGenome() + ".gff3");
+    }
+    
+    
+    
+    
+    /**
+     * write the isomiR dispersions for all samples to the project files.
+     * 
+     * Every sample is written. Before samples were run in parallel the list
+     * was reset for each sample, so these files only held the last sample
+     * 
+     * @param folder
+     * @param sampleIsomiRLists the isomiR dispersions for each sample, in sample order
+     * @throws IOException 
+     */
+    private void writeDispersions(String folder, ArrayList<ArrayList<IsomiRSet>> sampleIsomiRLists) throws IOException{
+        
+        String dispersionFile   = folder + FILESEPARATOR + stepInputData.getProjectID() + ".disp.tsv";
+        String summaryFile      = folder + FILESEPARATOR + stepInputData.getProjectID() + ".disp.summary.tsv";
+        logger.info("write dispersions to file <" + dispersionFile + ">");
+        try{
+            BufferedWriter bwDp = new BufferedWriter(new FileWriter(new File(dispersionFile)));
+            BufferedWriter bwSm = new BufferedWriter(new FileWriter(new File(summaryFile)));   
+                bwSm.write(IsomiRSet.printSummaryHeader());
+                for(ArrayList<IsomiRSet> isomiRList: sampleIsomiRLists){
                     for(IsomiRSet isomiRset: isomiRList){
                         isomiRset.calcDistParameters();
                         bwSm.write(isomiRset.printSummary());
                         bwDp.write(isomiRset.tabReportIsomiRSet());                
                     }
-                bwSm.close();
-                bwDp.close();
-            }
-            catch(IOException exIO){
-                logger.info("error writing isomiR dispersion File <" + dispersionFile + ">\n" + exIO);
-                throw new IOException(STEP_ID_STRING + "error writing isomiR dispersion File <" + dispersionFile + ">");
-            }
-           
+                }
+            bwSm.close();
+            bwDp.close();
+        }
+        catch(IOException exIO){
+            logger.info("error writing isomiR dispersion File <" + dispersionFile + ">\n" + exIO);
+            throw new IOException(STEP_ID_STRING + "error writing isomiR dispersion File <" + dispersionFile + ">");
         }
-        logger.info(STEP_ID_STRING + ": completed");
-        
         
     }
     
@@ -379,6 +639,9 @@ public class StepParseSAMForMiRNAs extends NGSStep implements NGSBase{
     /**
      * Does the read sufficiently overlap a defined miRNA entry?
      * 
+     * Uses the miRBase index, so this is a binary search rather than a 
+     * scan of every miRBase entry
+     * 
      * @param start
      * @param stop
      * @param chr
@@ -390,23 +653,9 @@ public class StepParseSAMForMiRNAs extends NGSStep implements NGSBase{
      */
     public MiRNAFeature doesReadOverlapKnownMiRNA(int start, int stop, String chr, String strand, int bleed){
         
-        for(MiRNAFeature miRBaseEntry: this.mirBaseSet.getMiRBaseMiRNAList()){
-            if (miRBaseEntry.chromosomeMatch(chr)){
-                if(strand.equals(miRBaseEntry.getStrand())){
-                    
-                    if( java.lang.Math.abs(start - miRBaseEntry.getStartPos()) <= bleed){
-
-                        if( java.lang.Math.abs(stop - miRBaseEntry.getEndPos()) <= bleed){
-                            return miRBaseEntry;
-                        }
-
-                    }
-
-                }
-            }
-        }
-        
-        return null;
+        if(mirBaseIndex == null)
+            mirBaseIndex = new MiRNAFeatureIndex(this.mirBaseSet.getMiRBaseMiRNAList());
+        return mirBaseIndex.findOverlappingFeature(start, stop, chr, strand, bleed);
         
     }
     
@@ -422,26 +671,27 @@ public class StepParseSAMForMiRNAs extends NGSStep implements NGSBase{
         
         logger.info("verify input data");        
         this.setPaths();
-        String gffFileMirBase = this.cleanPath(stepInputData.getDataLocations().getMirbaseFolder() 
-                + FILESEPARATOR + this.getMiRBaseRelease() + FILESEPARATOR + this.getReferenceGenome() + ".gff3");
-        
-        if (new File(gffFileMirBase).exists()==false){
-            logger.error("no annotation file was found for mirBase HOST:<" 
-                    + this.getReferenceGenome() + "> VERSION: <"+ this.getMiRBaseRelease() + "> at location <" 
-                    + gffFileMirBase + ">");
-            throw new IOException("no annotation file was found for mirBase HOST:<" 
-                    + this.getReferenceGenome() + "> VERSION: <"+ this.getMiRBaseRelease() + "> at location <" 
-                    + gffFileMirBase + ">");
-        }
-                
-        String faFileMirBase = gffFileMirBase.replace("gff3", "mature.fa");
-        if (new File(gffFileMirBase).exists()==false){
-            logger.error("no fasta file was found for mirBase HOST:<" 
-                    + this.getReferenceGenome() + "> VERSION: <"+ this.getMiRBaseRelease() + "> at location <" 
-                    + faFileMirBase + ">");
-            throw new IOException("no fasta file was found for mirBase HOST:<" 
-                    + this.getReferenceGenome() + "> VERSION: <"+ this.getMiRBaseRelease() + "> at location <" 
-                    + faFileMirBase + ">");
+        for(int miRBaseRelease: this.getMiRBaseReleases()){
+            String gffFileMirBase = this.getMiRBaseGFFFile(miRBaseRelease);
+
+            if (new File(gffFileMirBase).exists()==false){
+                logger.error("no annotation file was found for mirBase HOST:<" 
+                        + this.getReferenceGenome() + "> VERSION: <"+ miRBaseRelease + "> at location <" 
+                        + gffFileMirBase + ">");
+                throw new IOException("no annotation file was found for mirBase HOST:<" 
+                        + this.getReferenceGenome() + "> VERSION: <"+ miRBaseRelease + "> at location <" 
+                        + gffFileMirBase + ">");
+            }
+
+            String faFileMirBase = gffFileMirBase.replace("gff3", "mature.fa");
+            if (new File(faFileMirBase).exists()==false){
+                logger.error("no fasta file was found for mirBase HOST:<" 
+                        + this.getReferenceGenome() + "> VERSION: <"+ miRBaseRelease + "> at location <" 
+                        + faFileMirBase + ">");
+                throw new IOException("no fasta file was found for mirBase HOST:<" 
+                        + this.getReferenceGenome() + "> VERSION: <"+ miRBaseRelease + "> at location <" 
+                        + faFileMirBase + ">");
+            }
         }
                 
         // check the SAM files exist
@@ -495,23 +745,77 @@ public class StepParseSAMForMiRNAs extends NGSStep implements NGSBase{
 
 
 
+    /**
+     * @return the file extensions this step reads
+     */
+    @Override
+    public ArrayList<String> getInputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(INFILE_EXTENSION));
+    }
+    
+    
+    
+    /**
+     * @return the file extensions this step writes
+     */
+    @Override
+    public ArrayList<String> getOutputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(ISOMIR_SUMMARY_EXTENSION, ISOMIR_PRETTY_EXTENSION, MIRCOUNTS_EXTENSION, 
+                ".disp.tsv", ".disp.summary.tsv"));
+    }
+    
+    
+    
+    /**
+     * includes the files in the subfolders of a sweep, so a resumed run 
+     * notices when any of the configurations is missing
+     * 
+     * @return the files written by this step that currently exist
+     */
+    @Override
+    public ArrayList<String> getStepOutputFiles(){
+        ArrayList<String> outputFiles = super.getStepOutputFiles();
+        if(this.isSweep() == false)
+            return outputFiles;
+        for(int setting=1; setting<this.getNoOfCountSettings() * baselinePercents.size(); setting++){
+            outputFiles.addAll(this.getStepOutputFiles(this.getOutputFolder() + FILESEPARATOR + this.getSettingName(setting)));
+        }
+        return outputFiles;
+    }
+    
+    
+    
     @Override
     public void verifyOutputData(){
         
     }
 
     /**
-     * @return the locationBleed
+     * @return the first locationBleed
      */
     public int getLocationBleed() {
-        return locationBleed;
+        return locationBleeds.get(0);
     }
 
     /**
      * @param locationBleed the locationBleed to set
      */
     public void setLocationBleed(int locationBleed) {
-        this.locationBleed = locationBleed;
+        this.locationBleeds = new ArrayList<>(Arrays.asList(locationBleed));
+    }
+
+    /**
+     * @return the locationBleeds
+     */
+    public ArrayList<Integer> getLocationBleeds() {
+        return locationBleeds;
+    }
+
+    /**
+     * @param locationBleeds the locationBleeds to set
+     */
+    public void setLocationBleeds(ArrayList<Integer> locationBleeds) {
+        this.locationBleeds = locationBleeds;
     }
 
     /**
@@ -529,17 +833,31 @@ public class StepParseSAMForMiRNAs extends NGSStep implements NGSBase{
     }
 
     /**
-     * @return the miRBaseRelease
+     * @return the first miRBaseRelease
      */
     public int getMiRBaseRelease() {
-        return miRBaseRelease;
+        return miRBaseReleases.get(0);
     }
 
     /**
      * @param miRBaseRelease the miRBaseRelease to set
      */
     public void setMiRBaseRelease(int miRBaseRelease) {
-        this.miRBaseRelease = miRBaseRelease;
+        this.miRBaseReleases = new ArrayList<>(Arrays.asList(miRBaseRelease));
+    }
+
+    /**
+     * @return the miRBaseReleases
+     */
+    public ArrayList<Integer> getMiRBaseReleases() {
+        return miRBaseReleases;
+    }
+
+    /**
+     * @param miRBaseReleases the miRBaseReleases to set
+     */
+    public void setMiRBaseReleases(ArrayList<Integer> miRBaseReleases) {
+        this.miRBaseReleases = miRBaseReleases;
     }
 
     /**
@@ -557,16 +875,30 @@ public class StepParseSAMForMiRNAs extends NGSStep implements NGSBase{
     }
 
     /**
-     * @return the baselinePercent
+     * @return the first baselinePercent
      */
     public int getBaselinePercent() {
-        return baselinePercent;
+        return baselinePercents.get(0);
     }
 
     /**
      * @param baselinePercent the baselinePercent to set
      */
     public void setBaselinePercent(int baselinePercent) {
-        this.baselinePercent = baselinePercent;
+        this.baselinePercents = new ArrayList<>(Arrays.asList(baselinePercent));
+    }
+
+    /**
+     * @return the baselinePercents
+     */
+    public ArrayList<Integer> getBaselinePercents() {
+        return baselinePercents;
+    }
+
+    /**
+     * @param baselinePercents the baselinePercents to set
+     */
+    public void setBaselinePercents(ArrayList<Integer> baselinePercents) {
+        this.baselinePercents = baselinePercents;
     }
 }
@@ -5,11 +5,10 @@
  */
 package no.uio.medisin.bag.ngssmallrna.steps;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import no.uio.medisin.bag.ngssmallrna.pipeline.SampleDataEntry;
@@ -172,12 +171,15 @@ public class StepSingleTrimAdapters extends NGSStep implements NGSBase{
             try{
                 SampleDataEntry sampleData = (SampleDataEntry)itSD.next();
                 ArrayList<String> cmd = new ArrayList<>();
-                cmd.add("java -jar");
+                cmd.add("java");
+                cmd.add("-jar");
                 cmd.add(this.getTrimSoftware());
                 cmd.add("SE");
                 cmd.add("-phred64");
-                cmd.add("-threads " + this.getNoOfThreads());
-                cmd.add(inFolder + FILESEPARATOR + sampleData.getFastqFile1());
+                cmd.add("-threads");
+                cmd.add(String.valueOf(this.getNoOfThreads()));
+                // trimmomatic reads gzipped FASTQ, so there is no need to unzip it first
+                cmd.add(this.findFastqFile(this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile1())));
 
                 Boolean f = new File(outFolder).mkdir();       
                 if (f) logger.info("created output folder <" + outFolder + "> for results" );
@@ -203,32 +205,9 @@ public class StepSingleTrimAdapters extends NGSStep implements NGSBase{
                 */      
 
                 cmdTrimAdapters = this.cleanPath(StringUtils.join(cmd, " "));
-                logger.info("Adapter Trim command:\t" + cmdTrimAdapters);
-
-                Runtime rt = Runtime.getRuntime();
-                Process proc = rt.exec(cmdTrimAdapters);
-                BufferedReader brStdin  = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-                BufferedReader brStdErr = new BufferedReader(new InputStreamReader(proc.getErrorStream()));
-                
-                    String line = null;
-                    logger.info("<OUTPUT>");
-                    while ( (line = brStdin.readLine()) != null)
-                        logger.info(line);
-                    logger.info("</OUTPUT>");
-
-                    logger.info("<ERROR>");
-                    while ( (line = brStdErr.readLine()) != null)
-                        logger.info(line);
-                    logger.info("</ERROR>");
-                
-                
-                int exitVal = proc.waitFor();            
-                logger.info("Process exitValue: " + exitVal);   
-                
-                brStdin.close();
-                brStdErr.close();
+                this.runProcess(STEP_ID_STRING + " Adapter Trim", cmd);
             }
-            catch(IOException|InterruptedException ex){
+            catch(IOException ex){
                 logger.error("error executing AdapterTrimming command\n" + ex.toString());
                 throw new IOException(STEP_ID_STRING + "error executing AdapterTrimming command " + cmdTrimAdapters);
             }
@@ -273,7 +252,7 @@ public class StepSingleTrimAdapters extends NGSStep implements NGSBase{
                 throw new IOException(STEP_ID_STRING + " :no Fastq1 file specified");
             }
             
-            if ((new File(this.cleanPath(fastqFile1))).exists()==false){
+            if ((new File(this.findFastqFile(this.cleanPath(fastqFile1)))).exists()==false){
                 logger.error("AdapterTrimming: fastq File1 <" 
                   + fastqFile1 + "> does not exist");
                 throw new IOException("AdapterTrimming: fastq File1 <" 
@@ -293,6 +272,26 @@ public class StepSingleTrimAdapters extends NGSStep implements NGSBase{
 
 
     
+    /**
+     * @return the file extensions this step reads
+     */
+    @Override
+    public ArrayList<String> getInputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(INFILE_EXTENSION));
+    }
+    
+    
+    
+    /**
+     * @return the file extensions this step writes
+     */
+    @Override
+    public ArrayList<String> getOutputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(OUTFILE_EXTENSION));
+    }
+    
+    
+    
     @Override
     public void verifyOutputData(){
         
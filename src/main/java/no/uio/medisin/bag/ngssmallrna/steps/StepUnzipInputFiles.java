@@ -5,11 +5,10 @@
  */
 package no.uio.medisin.bag.ngssmallrna.steps;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import no.uio.medisin.bag.ngssmallrna.pipeline.SampleDataEntry;
@@ -28,6 +27,9 @@ import org.apache.logging.log4j.Logger;
  *   Input is a zipped FASTQ file
  *   Output is a unzipped FASTQ file
  * 
+ *   SingleReadAdapterTrim and CollapseReads read gzipped FASTQ directly, 
+ *   so this step can be left out if nothing else needs the unzipped files
+ * 
  * 
  * @author sr
  */
@@ -101,7 +103,8 @@ public class StepUnzipInputFiles extends NGSStep implements NGSBase{
     
     
     /**
-     * unzip specified file types
+     * unzip specified file types. Samples are unzipped in parallel when
+     * noOfSampleWorkers is set, and pigz gets its share of the threads
      * 
      * @throws IOException 
      */
@@ -113,108 +116,57 @@ public class StepUnzipInputFiles extends NGSStep implements NGSBase{
         */
         logger.info(STEP_ID_STRING + ": execute step");        
         
-        String fastqFile1in = "";
-        String fastqFile1out = "";
-        String fastqFile2in = "";
-        String fastqFile2out = "";
-        Iterator itSD = this.stepInputData.getSampleData().iterator();
-        while (itSD.hasNext()){
-            try{
-                SampleDataEntry sampleData = (SampleDataEntry)itSD.next();                
-                
-                fastqFile1out = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile1());
-                fastqFile1in = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile1().replace(".fastq", INFILE_EXTENSION));
-                if(new File(fastqFile1out).exists()==false){
-                                
-                    ArrayList<String> cmd1 = new ArrayList<>();
-                    cmd1.add(this.getUnzipSoftware());
-                    cmd1.add("-d");
-                    cmd1.add(fastqFile1in);
-                    cmd1.add("-p " + this.getNoOfThreads());
-
-                    String cmdUnzip = StringUtils.join(cmd1, " ");
-                    cmdUnzip = cmdUnzip.replace(FILESEPARATOR + FILESEPARATOR, FILESEPARATOR);
-                    logger.info(STEP_ID_STRING + " fastq1 unzip command:\t" + cmdUnzip);
-
-                    Runtime rt1 = Runtime.getRuntime();
-                    Process proc1 = rt1.exec(cmdUnzip);
-                    BufferedReader brStdin1  = new BufferedReader(new InputStreamReader(proc1.getInputStream()));
-                    BufferedReader brStdErr1 = new BufferedReader(new InputStreamReader(proc1.getErrorStream()));
-
-                        String line1 = null;
-                        logger.info("<OUTPUT>");
-                        while ( (line1 = brStdin1.readLine()) != null)
-                            logger.info(line1);
-                        logger.info("</OUTPUT>");
-
-                        logger.info("<ERROR>");
-                        while ( (line1 = brStdErr1.readLine()) != null)
-                            logger.info(line1);
-                        logger.info("</ERROR>");                
-
-                    int exitVal = proc1.waitFor();            
-                    logger.info("Process1 exitValue: " + exitVal);   
-
-                    brStdin1.close();
-                    brStdErr1.close();
+        this.executeSamples(new SampleTask<Void>(){
+            @Override
+            public Void processSample(SampleDataEntry sampleData) throws IOException{
+                try{
+                    unzipFastqFile(sampleData.getFastqFile1(), "fastq1");
+                    if (sampleData.getFastqFile2() != null)
+                        unzipFastqFile(sampleData.getFastqFile2(), "fastq2");
                 }
-                else{               
-                    logger.info("fastq file 1 <" + this.cleanPath(fastqFile1out) + "> exists. Skipping");
+                catch(IOException exIO){
+                    logger.error("error executing pigz unzip command");
+                    throw new IOException(STEP_ID_STRING + ": error executing pigz unzip command", exIO);
                 }
-                
-                if (sampleData.getFastqFile2() == null) continue;
-                fastqFile2in = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile2().replace(".fastq", INFILE_EXTENSION));
-                fastqFile2out = this.cleanPath(inFolder + FILESEPARATOR + sampleData.getFastqFile2());
-                if(new File(fastqFile2out).exists()==false){
-            
-                    ArrayList<String> cmd2 = new ArrayList<>();
-                    cmd2.add(this.getUnzipSoftware());
-                    cmd2.add("-d");
-                    cmd2.add(fastqFile2in);
-                    cmd2.add("-p " + this.getNoOfThreads());
-
-                    String cmdUnzip2 = StringUtils.join(cmd2, " ");
-                    cmdUnzip2 = cmdUnzip2.replace(FILESEPARATOR + FILESEPARATOR, FILESEPARATOR);
-                    logger.info(STEP_ID_STRING + " fastq2 unzip command:\t" + cmdUnzip2);
-
-                    Runtime rt2 = Runtime.getRuntime();
-                    Process proc2 = rt2.exec(cmdUnzip2);
-                    BufferedReader brStdin2  = new BufferedReader(new InputStreamReader(proc2.getInputStream()));
-                    BufferedReader brStdErr2 = new BufferedReader(new InputStreamReader(proc2.getErrorStream()));
-
-                        String line2 = null;
-                        logger.info("<OUTPUT>");
-                        while ( (line2 = brStdin2.readLine()) != null)
-                            logger.info(line2);
-                        logger.info("</OUTPUT>");
-
-                        logger.info("<ERROR>");
-                        while ( (line2 = brStdErr2.readLine()) != null)
-                            logger.info(line2);
-                        logger.info("</ERROR>");                
-
-                    int exitVal2 = proc2.waitFor();            
-                    logger.info("Process2 exitValue: " + exitVal2);   
-
-                    brStdin2.close();
-                    brStdErr2.close();
-                }
-                else{               
-                    logger.info("fastq file 2 <" + this.cleanPath(fastqFile2out) + "> exists. Skipping");
-                }
-                                
+                return null;
             }
-            catch(InterruptedException ex){
-                logger.error("error executing pigz unzip command");
-                throw new IOException("error executing pigz unzip command");
-            }
-        }
+        });
         
         logger.info(STEP_ID_STRING + ": completed");
     }
     
     
     
+    
+    /**
+     * unzip one FASTQ file, unless the unzipped file is already there
+     * 
+     * @param fastqFile     the name of the unzipped file
+     * @param fastqLabel    identifies the file in the log
+     * @throws IOException 
+     */
+    private void unzipFastqFile(String fastqFile, String fastqLabel) throws IOException{
+        
+        String fastqFileOut = this.cleanPath(inFolder + FILESEPARATOR + fastqFile);
+        String fastqFileIn = this.cleanPath(inFolder + FILESEPARATOR + fastqFile.replace(".fastq", INFILE_EXTENSION));
+        if(new File(fastqFileOut).exists()){
+            logger.info(fastqLabel + " file <" + fastqFileOut + "> exists. Skipping");
+            return;
+        }
+        
+        ArrayList<String> cmd = new ArrayList<>();
+        cmd.add(this.getUnzipSoftware());
+        cmd.add("-d");
+        cmd.add(fastqFileIn);
+        cmd.add("-p");
+        cmd.add(String.valueOf(Math.min(this.getNoOfThreads(), this.getNoOfThreadsPerSample())));
+
+        this.runProcess(STEP_ID_STRING + " " + fastqLabel + " unzip", cmd);
+        
+    }
+    
+    
+    
             
     /**
      * this should be called prior to executing the step.
@@ -293,6 +245,38 @@ public class StepUnzipInputFiles extends NGSStep implements NGSBase{
     
     
     
+    /**
+     * @return the file extensions this step reads
+     */
+    @Override
+    public ArrayList<String> getInputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(INFILE_EXTENSION));
+    }
+    
+    
+    
+    /**
+     * @return the file extensions this step writes
+     */
+    @Override
+    public ArrayList<String> getOutputFileExtensions(){
+        return new ArrayList<>(Arrays.asList(OUTFILE_EXTENSION));
+    }
+    
+    
+    
+    /**
+     * pigz unzips the files in place, so the output ends up in the input folder
+     * 
+     * @return 
+     */
+    @Override
+    public String getOutputFolder(){
+        return stepInputData.getInputFolder();
+    }
+    
+    
+    
     @Override
     public void verifyOutputData(){
         logger.info("no output verification required");
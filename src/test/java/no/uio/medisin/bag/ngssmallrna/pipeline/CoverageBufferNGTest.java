@@ -0,0 +1,137 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import junit.framework.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * checks the buffer at the edges of the region, when it grows in either
+ * direction, and across resets
+ *
+ * @author sr
+ */
+public class CoverageBufferNGTest {
+
+    public CoverageBufferNGTest() {
+    }
+
+    @Test
+    public void testEmpty() {
+        CoverageBuffer coverage = new CoverageBuffer();
+        Assert.assertEquals(0, coverage.get(0));
+        Assert.assertEquals(0, coverage.get(-5));
+        Assert.assertEquals(0, coverage.sum(0, 1000));
+        coverage.reset(1000);
+        Assert.assertEquals(0, coverage.get(1000));
+        Assert.assertEquals(0, coverage.sum(1000, 1000));
+    }
+
+    /**
+     * from is counted and to isn't, and overlapping reads add up
+     */
+    @Test
+    public void testBoundaries() {
+        CoverageBuffer coverage = new CoverageBuffer();
+        coverage.reset(100);
+        coverage.add(100, 122, 3);
+        coverage.add(121, 130, 2);
+        Assert.assertEquals(0, coverage.get(99));
+        Assert.assertEquals(3, coverage.get(100));
+        Assert.assertEquals(5, coverage.get(121));
+        Assert.assertEquals(2, coverage.get(122));
+        Assert.assertEquals(2, coverage.get(129));
+        Assert.assertEquals(0, coverage.get(130));
+        Assert.assertEquals(22 * 3 + 9 * 2, coverage.sum(90, 140));
+        Assert.assertEquals(0, coverage.get(100 + coverage.getCapacity() + 10));
+    }
+
+    /**
+     * a read that starts before the origin moves the origin down and keeps
+     * what was already added
+     */
+    @Test
+    public void testReadBeforeOrigin() {
+        CoverageBuffer coverage = new CoverageBuffer();
+        coverage.reset(1000);
+        coverage.add(1000, 1020, 4);
+        coverage.add(990, 1005, 1);
+        Assert.assertEquals(1, coverage.get(990));
+        Assert.assertEquals(5, coverage.get(1004));
+        Assert.assertEquals(4, coverage.get(1005));
+        Assert.assertEquals(0, coverage.get(989));
+
+        /* far enough back that the arrays have to grow */
+        int from = 1000 - 2 * coverage.getCapacity();
+        coverage.add(from, 999, 1);
+        Assert.assertEquals(2, coverage.get(995));
+        Assert.assertEquals(4, coverage.get(1019));
+        Assert.assertEquals(1, coverage.get(from));
+        Assert.assertEquals(0, coverage.get(from - 1));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRegionTooLong() {
+        CoverageBuffer coverage = new CoverageBuffer();
+        coverage.reset(0);
+        coverage.add(0, 10, 1);
+        coverage.add(Integer.MAX_VALUE - 5, Integer.MAX_VALUE, 1);
+    }
+
+    /**
+     * nothing from before a reset is seen, and the arrays are reused
+     */
+    @Test
+    public void testReset() {
+        CoverageBuffer coverage = new CoverageBuffer();
+        coverage.reset(1000);
+        coverage.add(1000, 1100, 7);
+        Assert.assertEquals(7, coverage.get(1050));
+        int capacity = coverage.getCapacity();
+
+        coverage.reset(1000);
+        Assert.assertEquals(0, coverage.get(1050));
+        Assert.assertEquals(0, coverage.sum(1000, 1100));
+        coverage.add(1040, 1060, 2);
+        Assert.assertEquals(2, coverage.get(1050));
+        Assert.assertEquals(0, coverage.get(1039));
+        Assert.assertEquals(0, coverage.get(1060));
+        Assert.assertEquals(capacity, coverage.getCapacity());
+
+        coverage.add(1060, 1060, 5);
+        Assert.assertEquals(0, coverage.get(1060));
+    }
+
+    /**
+     * growing a long feature read by read doubles the arrays rather than
+     * growing them for every read
+     */
+    @Test
+    public void testGrowth() {
+        CoverageBuffer coverage = new CoverageBuffer();
+        coverage.reset(1);
+        int noOfGrowths = 0;
+        int capacity = coverage.getCapacity();
+        for(int p=1; p<1000000; p+=10){
+            coverage.add(p, p + 22, 1);
+            if(coverage.getCapacity() != capacity){
+                Assert.assertTrue(coverage.getCapacity() >= 2 * capacity);
+                capacity = coverage.getCapacity();
+                noOfGrowths++;
+            }
+        }
+        Assert.assertTrue(noOfGrowths < 20);
+        Assert.assertEquals(2, coverage.get(500005));
+        Assert.assertEquals(3, coverage.get(500021));
+        Assert.assertEquals(10, coverage.sum(1, 11));
+
+        coverage.reset(5000);
+        coverage.add(100, 200, 1);
+        Assert.assertEquals(1, coverage.get(150));
+        Assert.assertEquals(0, coverage.get(5000));
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * checks that statistics merged from parts of a file match the statistics
+ * for the whole file, and that the overrepresented sequence counts stay
+ * inside the reported error bound
+ *
+ * @author sr
+ */
+public class FastqQCStatsNGTest {
+
+    private static ArrayList<FastqRecord>       records;
+    private static HashMap<String, Long>        sequenceCounts;
+
+    public FastqQCStatsNGTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Random random = new Random(9);
+        String[] abundant = {"TGAGGTAGTAGGTTGTATAGTT", "TAGCTTATCAGACTGATGTTGA", "AACCCGTAGATCCGAACTTGTG"};
+        records = new ArrayList<>();
+        sequenceCounts = new HashMap<>();
+        for(int r=0; r<20000; r++){
+            String sequence;
+            if(random.nextInt(4) == 0)
+                sequence = abundant[random.nextInt(abundant.length)];
+            else{
+                StringBuilder randomSequence = new StringBuilder();
+                int length = 15 + random.nextInt(60);
+                for(int b=0; b<length; b++)
+                    randomSequence.append("ACGTN".charAt(random.nextInt(random.nextInt(50) == 0 ? 5 : 4)));
+                sequence = randomSequence.toString();
+            }
+            StringBuilder quality = new StringBuilder();
+            for(int b=0; b<sequence.length(); b++)
+                quality.append((char) ('#' + random.nextInt(40)));
+            records.add(new FastqRecord("@read" + r, sequence, quality.toString()));
+
+            String counted = sequence.length() > 50 ? sequence.substring(0, 50) : sequence;
+            Long count = sequenceCounts.get(counted);
+            sequenceCounts.put(counted, count == null ? 1 : count + 1);
+        }
+    }
+
+    private static FastqQCStats collect(int from, int to, int maxNoOfSequences){
+        FastqQCStats stats = new FastqQCStats(maxNoOfSequences);
+        for(int r=from; r<to; r++)
+            stats.add(records.get(r));
+        return stats;
+    }
+
+    private static String report(FastqQCStats stats) throws IOException{
+        StringWriter writer = new StringWriter();
+        stats.writeReport(writer, "reads.fastq");
+        return writer.toString();
+    }
+
+    /**
+     * with room for every sequence, merged parts give the same report as
+     * the whole file
+     */
+    @Test
+    public void testMerge() throws IOException {
+        FastqQCStats whole = collect(0, records.size(), records.size());
+        FastqQCStats merged = new FastqQCStats(records.size());
+        for(int part=0; part<4; part++)
+            merged.merge(collect(part * records.size() / 4, (part + 1) * records.size() / 4, records.size()));
+
+        Assert.assertEquals(records.size(), merged.getNoOfReads());
+        Assert.assertEquals(whole.getNoOfBases(), merged.getNoOfBases());
+        Assert.assertEquals(0, merged.getSequenceCountError());
+        Assert.assertEquals(report(whole), report(merged));
+        Assert.assertTrue(report(whole).contains("Encoding\tPhred+33\n"));
+    }
+
+    /**
+     * with only a few candidates kept, every sequence more frequent than
+     * the error bound is found, and no count is off by more than the bound
+     */
+    @Test
+    public void testOverrepresentedBound() {
+        FastqQCStats single = collect(0, records.size(), 50);
+        FastqQCStats merged = new FastqQCStats(50);
+        for(int part=0; part<4; part++)
+            merged.merge(collect(part * records.size() / 4, (part + 1) * records.size() / 4, 50));
+
+        for(FastqQCStats stats: new FastqQCStats[]{single, merged}){
+            HashMap<String, Long> reported = new HashMap<>();
+            for(Map.Entry<String, long[]> entry: stats.getOverrepresentedSequences())
+                reported.put(entry.getKey(), entry.getValue()[0]);
+            Assert.assertEquals(3, reported.size());
+            long error = stats.getSequenceCountError();
+            for(Map.Entry<String, Long> sequence: sequenceCounts.entrySet()){
+                long trueCount = sequence.getValue();
+                if(trueCount > error + 1)
+                    Assert.assertTrue(sequence.getKey(), reported.containsKey(sequence.getKey()));
+                if(reported.containsKey(sequence.getKey())){
+                    long count = reported.get(sequence.getKey());
+                    Assert.assertTrue(count <= trueCount);
+                    Assert.assertTrue(count >= trueCount - error);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPhredOffset() {
+        FastqQCStats stats = new FastqQCStats(10);
+        Assert.assertEquals(33, stats.getPhredOffset());
+        stats.add(new FastqRecord("@read", "ACGT", "hhBh"));
+        Assert.assertEquals(64, stats.getPhredOffset());
+        stats.add(new FastqRecord("@read", "ACGT", "II?I"));
+        Assert.assertEquals(33, stats.getPhredOffset());
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import junit.framework.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * reads the same records from plain, gzip, multi-member gzip and BGZF
+ * files, with the line ends and blank lines the parser has to cope with
+ *
+ * @author sr
+ */
+public class FastqReaderNGTest {
+
+    private static final int            NO_OF_RECORDS               = 30000;    // several parser batches
+
+    private static File                 fastqFolder;
+    private static ArrayList<FastqRecord>   records;
+
+    public FastqReaderNGTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        fastqFolder = Files.createTempDirectory("fastq").toFile();
+        Random random = new Random(8);
+        records = new ArrayList<>();
+        for(int r=0; r<NO_OF_RECORDS; r++){
+            StringBuilder sequence = new StringBuilder();
+            StringBuilder quality = new StringBuilder();
+            int length = 15 + random.nextInt(40);
+            for(int b=0; b<length; b++){
+                sequence.append("ACGTN".charAt(random.nextInt(5)));
+                quality.append((char) ('!' + random.nextInt(40)));
+            }
+            records.add(new FastqRecord("@read" + r + " 1:N:0:ATCACG", sequence.toString(), quality.toString()));
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        for(File file: fastqFolder.listFiles())
+            file.delete();
+        fastqFolder.delete();
+    }
+
+    /**
+     * @param lineEnd
+     * @param blankLines    put an empty line between some records
+     * @return the records as FASTQ, without a line end after the last one
+     */
+    private static byte[] fastqText(String lineEnd, Boolean blankLines){
+        StringBuilder fastq = new StringBuilder();
+        for(int r=0; r<records.size(); r++){
+            FastqRecord record = records.get(r);
+            if(r > 0)
+                fastq.append(lineEnd);
+            if(blankLines && r % 1000 == 0)
+                fastq.append(lineEnd);
+            fastq.append(record.getHeader()).append(lineEnd).append(record.getSequence()).append(lineEnd)
+                    .append("+").append(lineEnd).append(record.getQuality());
+        }
+        return fastq.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static File writeFile(String name, byte[] data) throws IOException{
+        File file = new File(fastqFolder, name);
+        try(OutputStream osFQ = new FileOutputStream(file)){
+            osFQ.write(data);
+        }
+        return file;
+    }
+
+    private static byte[] gzip(byte[] data, int from, int to) throws IOException{
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try(GZIPOutputStream gzOut = new GZIPOutputStream(compressed)){
+            gzOut.write(data, from, to - from);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * write BGZF blocks the way bgzip does, ending with the empty block
+     */
+    private static byte[] bgzf(byte[] data) throws IOException{
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        for(int from=0; from<=data.length; from+=60000){
+            int to = Math.min(from + 60000, data.length);
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflater.setInput(data, from, to - from);
+            deflater.finish();
+            byte[] deflated = new byte[to - from + 1024];
+            int deflatedLength = deflater.deflate(deflated);
+            deflater.end();
+            CRC32 crc32 = new CRC32();
+            crc32.update(data, from, to - from);
+
+            int blockSize = 18 + deflatedLength + 8;
+            compressed.write(new byte[]{0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+                    (byte) (blockSize - 1), (byte) ((blockSize - 1) >> 8)});
+            compressed.write(deflated, 0, deflatedLength);
+            writeIntLE(compressed, (int) crc32.getValue());
+            writeIntLE(compressed, to - from);
+            if(to == data.length)
+                break;
+        }
+        compressed.write(new byte[]{0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0,
+                3, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+        return compressed.toByteArray();
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value){
+        for(int b=0; b<4; b++)
+            out.write(value >> (8 * b));
+    }
+
+    private static void checkRecords(File fastqFile, int noOfThreads) throws IOException{
+        try(FastqReader fastqReader = new FastqReader(fastqFile.getPath(), noOfThreads)){
+            for(FastqRecord expected: records){
+                FastqRecord record = fastqReader.next();
+                Assert.assertNotNull(fastqFile.getName(), record);
+                Assert.assertEquals(expected.getHeader(), record.getHeader());
+                Assert.assertEquals(expected.getSequence(), record.getSequence());
+                Assert.assertEquals(expected.getQuality(), record.getQuality());
+            }
+            Assert.assertNull(fastqReader.next());
+            Assert.assertEquals(records.size(), fastqReader.getNoOfRecords());
+        }
+    }
+
+    @Test
+    public void testPlain() throws IOException {
+        checkRecords(writeFile("plain.fastq", fastqText("\n", false)), 1);
+        checkRecords(writeFile("crlf.fastq", fastqText("\r\n", false)), 4);
+        checkRecords(writeFile("blank.fastq", fastqText("\n", true)), 2);
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+        byte[] fastq = fastqText("\n", false);
+        checkRecords(writeFile("single.fastq.gz", gzip(fastq, 0, fastq.length)), 2);
+
+        ByteArrayOutputStream members = new ByteArrayOutputStream();
+        members.write(gzip(fastq, 0, fastq.length / 3));
+        members.write(gzip(fastq, fastq.length / 3, fastq.length));
+        checkRecords(writeFile("members.fastq.gz", members.toByteArray()), 2);
+    }
+
+    @Test
+    public void testBGZF() throws IOException {
+        byte[] bgzfFile = bgzf(fastqText("\n", false));
+        checkRecords(writeFile("bgzf.fastq.gz", bgzfFile), 1);
+        checkRecords(writeFile("bgzf4.fastq.gz", bgzfFile), 4);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testTruncatedRecord() throws IOException {
+        byte[] fastq = fastqText("\n", false);
+        File truncated = writeFile("truncated.fastq", Arrays.copyOf(fastq, fastq.length - 60));
+        try(FastqReader fastqReader = new FastqReader(truncated.getPath(), 2)){
+            while(fastqReader.next() != null){
+            }
+        }
+    }
+
+}
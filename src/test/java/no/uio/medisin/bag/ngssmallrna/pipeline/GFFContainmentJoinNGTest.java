@@ -0,0 +1,102 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import junit.framework.Assert;
+import no.uio.medisin.bag.core.GFFEntry;
+import org.testng.annotations.Test;
+
+/**
+ * checks which pairs the sweep join finds at the ends of an entry and on
+ * each strand, and that they come out in nested loop order
+ *
+ * @author sr
+ */
+public class GFFContainmentJoinNGTest {
+
+    public GFFContainmentJoinNGTest() {
+    }
+
+    private static GFFEntry entry(String type, String chr, int start, int stop, String strand){
+        return new GFFEntry(chr, "test", type, start, stop, ".", strand, ".", "ID=" + type);
+    }
+
+    private static String join(ArrayList<GFFEntry> gffEntries, ArrayList<GFFEntry> features, int noOfThreads) throws IOException{
+        StringBuilder pairs = new StringBuilder();
+        for(int[] pair: new GFFContainmentJoin(gffEntries, features, noOfThreads).join())
+            pairs.append(pair[0]).append(':').append(pair[1]).append(' ');
+        return pairs.toString().trim();
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        ArrayList<GFFEntry> gffEntries = new ArrayList<>();
+        gffEntries.add(entry("gene", "chr1", 1, 1000, "+"));
+        Assert.assertEquals("", join(new ArrayList<GFFEntry>(), new ArrayList<GFFEntry>(), 1));
+        Assert.assertEquals("", join(gffEntries, new ArrayList<GFFEntry>(), 2));
+        Assert.assertEquals("", join(new ArrayList<GFFEntry>(), gffEntries, 2));
+    }
+
+    /**
+     * a feature the same as the entry, or touching either end from inside,
+     * is contained; one base past either end isn't
+     */
+    @Test
+    public void testBoundaries() throws IOException {
+        ArrayList<GFFEntry> gffEntries = new ArrayList<>();
+        gffEntries.add(entry("gene", "chr1", 100, 200, "+"));
+        ArrayList<GFFEntry> features = new ArrayList<>();
+        features.add(entry("smallRNA", "chr1", 100, 200, "+"));
+        features.add(entry("smallRNA", "chr1", 100, 120, "+"));
+        features.add(entry("smallRNA", "chr1", 180, 200, "+"));
+        features.add(entry("smallRNA", "chr1", 99, 120, "+"));
+        features.add(entry("smallRNA", "chr1", 180, 201, "+"));
+        features.add(entry("smallRNA", "chr1", 200, 200, "+"));
+        Assert.assertEquals("0:0 0:1 0:2 0:5", join(gffEntries, features, 1));
+    }
+
+    /**
+     * entries and features on different strands or chromosomes never pair
+     */
+    @Test
+    public void testStrandsAndChromosomes() throws IOException {
+        ArrayList<GFFEntry> gffEntries = new ArrayList<>();
+        gffEntries.add(entry("gene", "chr1", 1, 1000, "+"));
+        gffEntries.add(entry("gene", "chr1", 1, 1000, "-"));
+        gffEntries.add(entry("gene", "chr2", 1, 1000, "-"));
+        ArrayList<GFFEntry> features = new ArrayList<>();
+        features.add(entry("smallRNA", "chr1", 10, 30, "-"));
+        features.add(entry("smallRNA", "chr2", 10, 30, "+"));
+        features.add(entry("smallRNA", "chr3", 10, 30, "+"));
+        features.add(entry("smallRNA", "chr1", 10, 30, "+"));
+        features.add(entry("smallRNA", "chr2", 10, 30, "-"));
+        for(int noOfThreads: new int[]{1, 4})
+            Assert.assertEquals("0:3 1:0 2:4", join(gffEntries, features, noOfThreads));
+    }
+
+    /**
+     * nested entries, and features listed out of start order, still come
+     * out ordered by entry then feature
+     */
+    @Test
+    public void testNestedLoopOrder() throws IOException {
+        ArrayList<GFFEntry> gffEntries = new ArrayList<>();
+        gffEntries.add(entry("exon", "chr2", 500, 600, "+"));
+        gffEntries.add(entry("gene", "chr1", 1, 5000, "+"));
+        gffEntries.add(entry("gene", "chr2", 1, 5000, "+"));
+        gffEntries.add(entry("exon", "chr1", 400, 700, "+"));
+        ArrayList<GFFEntry> features = new ArrayList<>();
+        features.add(entry("smallRNA", "chr1", 4000, 4020, "+"));
+        features.add(entry("smallRNA", "chr2", 550, 570, "+"));
+        features.add(entry("smallRNA", "chr1", 450, 470, "+"));
+        features.add(entry("smallRNA", "chr2", 10, 30, "+"));
+        for(int noOfThreads: new int[]{1, 4})
+            Assert.assertEquals("0:1 1:0 1:2 2:1 2:3 3:2", join(gffEntries, features, noOfThreads));
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.util.ArrayList;
+import junit.framework.Assert;
+import no.uio.medisin.bag.core.GFFEntry;
+import no.uio.medisin.bag.core.Strand;
+import org.testng.annotations.Test;
+
+/**
+ * checks the GFF index lookups at the ends of an entry, on each strand,
+ * and which entry is returned when several match
+ *
+ * @author sr
+ */
+public class GFFIntervalIndexNGTest {
+
+    public GFFIntervalIndexNGTest() {
+    }
+
+    private static GFFEntry entry(String type, String chr, int start, int stop, String strand, String id){
+        return new GFFEntry(chr, "test", type, start, stop, ".", strand, ".", "ID=" + id);
+    }
+
+    private static GFFIntervalIndex index(GFFEntry... gffEntries){
+        ArrayList<GFFEntry> entries = new ArrayList<>();
+        for(GFFEntry gffEntry: gffEntries)
+            entries.add(gffEntry);
+        return new GFFIntervalIndex(entries);
+    }
+
+    /**
+     * coordinates are inclusive, and type, chromosome and strand have to match
+     */
+    @Test
+    public void testContainingBoundaries() {
+        GFFEntry gene = entry("gene", "chr1", 100, 200, "+", "gene");
+        GFFIntervalIndex gffIndex = index(gene);
+        Assert.assertSame(gene, gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.PLUS, 100, 200));
+        Assert.assertSame(gene, gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.PLUS, 200, 200));
+        Assert.assertNull(gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.PLUS, 99, 150));
+        Assert.assertNull(gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.PLUS, 150, 201));
+        Assert.assertNull(gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.MINUS, 120, 130));
+        Assert.assertNull(gffIndex.findFeatureContainingRegion("exon", "chr1", Strand.PLUS, 120, 130));
+        Assert.assertNull(gffIndex.findFeatureContainingRegion("gene", "1", Strand.PLUS, 120, 130));
+    }
+
+    /**
+     * both strands of the same region are kept apart
+     */
+    @Test
+    public void testStrands() {
+        GFFEntry plus = entry("gene", "chr1", 100, 200, "+", "plus");
+        GFFEntry minus = entry("gene", "chr1", 150, 250, "-", "minus");
+        GFFIntervalIndex gffIndex = index(plus, minus);
+        Assert.assertSame(plus, gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.PLUS, 160, 170));
+        Assert.assertSame(minus, gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.MINUS, 160, 170));
+        Assert.assertNull(gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.PLUS, 210, 220));
+        Assert.assertSame(minus, gffIndex.findFeatureOverlappingRegion("gene", "chr1", Strand.MINUS, 120, 150, 0));
+        Assert.assertNull(gffIndex.findFeatureOverlappingRegion("gene", "chr1", Strand.MINUS, 120, 149, 0));
+    }
+
+    /**
+     * bleed widens the region by exactly that many bases on each side
+     */
+    @Test
+    public void testBleed() {
+        GFFEntry smallRNA = entry("smallRNA", "chr1", 100, 200, "+", "smallRNA");
+        GFFIntervalIndex gffIndex = index(smallRNA);
+        Assert.assertSame(smallRNA, gffIndex.findFeatureOverlappingRegion("smallRNA", "chr1", Strand.PLUS, 205, 210, 5));
+        Assert.assertNull(gffIndex.findFeatureOverlappingRegion("smallRNA", "chr1", Strand.PLUS, 205, 210, 4));
+        Assert.assertSame(smallRNA, gffIndex.findFeatureOverlappingRegion("smallRNA", "chr1", Strand.PLUS, 90, 95, 5));
+        Assert.assertNull(gffIndex.findFeatureOverlappingRegion("smallRNA", "chr1", Strand.PLUS, 90, 95, 4));
+
+        Assert.assertTrue(gffIndex.doesRegionContainFeature(105, 195, Strand.PLUS, "chr1", 5));
+        Assert.assertFalse(gffIndex.doesRegionContainFeature(105, 195, Strand.PLUS, "chr1", 4));
+        Assert.assertFalse(gffIndex.doesRegionContainFeature(105, 195, Strand.MINUS, "chr1", 5));
+        Assert.assertTrue(gffIndex.doesRegionContainFeature(100, 200, Strand.PLUS, "chr1", 0));
+    }
+
+    /**
+     * a long entry early in a chromosome is still found past many short
+     * entries that start after it
+     */
+    @Test
+    public void testLongEntry() {
+        ArrayList<GFFEntry> entries = new ArrayList<>();
+        for(int e=0; e<100; e++)
+            entries.add(entry("gene", "chr1", 1000 * e + 10, 1000 * e + 30, "+", "short" + e));
+        GFFEntry longGene = entry("gene", "chr1", 5, 95000, "+", "long");
+        entries.add(longGene);
+        GFFIntervalIndex gffIndex = new GFFIntervalIndex(entries);
+        Assert.assertSame(longGene, gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.PLUS, 50500, 50600));
+        Assert.assertSame(entries.get(50), gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.PLUS, 50015, 50020));
+        Assert.assertNull(gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.PLUS, 94990, 95010));
+    }
+
+    /**
+     * when several entries match, the first in the list is returned, and
+     * added entries come after the ones the index was built with
+     */
+    @Test
+    public void testFirstEntryWins() {
+        GFFEntry second = entry("gene", "chr1", 100, 300, "+", "second");
+        GFFEntry first = entry("gene", "chr1", 150, 250, "+", "first");
+        GFFIntervalIndex gffIndex = index(first, second);
+        Assert.assertSame(first, gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.PLUS, 160, 170));
+        Assert.assertSame(second, gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.PLUS, 120, 170));
+
+        GFFEntry added = entry("gene", "chr1", 1, 1000, "+", "added");
+        gffIndex.addEntry(added);
+        Assert.assertEquals(3, gffIndex.getNoOfEntries());
+        Assert.assertSame(first, gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.PLUS, 160, 170));
+        Assert.assertSame(added, gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.PLUS, 50, 170));
+        Assert.assertSame(added, gffIndex.findFeatureOverlappingRegion("gene", "chr1", Strand.PLUS, 900, 950, 0));
+    }
+
+    @Test
+    public void testEmptyIndex() {
+        GFFIntervalIndex gffIndex = new GFFIntervalIndex(new ArrayList<GFFEntry>());
+        Assert.assertEquals(0, gffIndex.getNoOfEntries());
+        Assert.assertNull(gffIndex.findFeatureContainingRegion("gene", "chr1", Strand.PLUS, 10, 20));
+        Assert.assertNull(gffIndex.findFeatureOverlappingRegion("gene", "chr1", Strand.PLUS, 10, 20, 5));
+        Assert.assertFalse(gffIndex.doesRegionContainFeature(10, 20, Strand.PLUS, "chr1", 5));
+        gffIndex.addEntry(entry("smallRNA", "chr1", 12, 18, "+", "added"));
+        Assert.assertNotNull(gffIndex.findFeatureContainingRegion("smallRNA", "chr1", Strand.PLUS, 13, 17));
+        Assert.assertTrue(gffIndex.doesRegionContainFeature(10, 20, Strand.PLUS, "chr1", 0));
+        Assert.assertFalse(gffIndex.doesRegionContainFeature(10, 20, Strand.MINUS, "chr1", 0));
+    }
+
+}
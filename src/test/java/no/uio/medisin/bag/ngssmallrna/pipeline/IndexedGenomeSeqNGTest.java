@@ -0,0 +1,100 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.Assert;
+import no.uio.medisin.bag.core.Strand;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * checks sub-sequences from the indexed genome against the same FASTA
+ * read into memory, the way GenomeSeq holds it (1-based, inclusive)
+ *
+ * @author sr
+ */
+public class IndexedGenomeSeqNGTest {
+
+    private static File                                 fastaFile;
+    private static LinkedHashMap<String, String>        chromosomes;
+
+    public IndexedGenomeSeqNGTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Random random = new Random(19);
+        chromosomes = new LinkedHashMap<>();
+        chromosomes.put("chr1", randomSequence(random, 1000));
+        chromosomes.put("chr2", randomSequence(random, 60));        // exactly one line
+        chromosomes.put("chrM", randomSequence(random, 61));        // one base on the last line
+        chromosomes.put("chrUn_gl000220", randomSequence(random, 7));
+
+        fastaFile = File.createTempFile("genome", ".fa");
+        try(BufferedWriter bwFA = new BufferedWriter(new FileWriter(fastaFile))){
+            for(Map.Entry<String, String> chromosome: chromosomes.entrySet()){
+                bwFA.write(">" + chromosome.getKey() + " description\n");
+                String sequence = chromosome.getValue();
+                for(int b=0; b<sequence.length(); b+=60)
+                    bwFA.write(sequence.substring(b, Math.min(b + 60, sequence.length())) + "\n");
+            }
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        new File(fastaFile.getPath() + IndexedGenomeSeq.INDEX_EXTENSION).delete();
+        fastaFile.delete();
+    }
+
+    private static String randomSequence(Random random, int length){
+        StringBuilder sequence = new StringBuilder(length);
+        for(int b=0; b<length; b++)
+            sequence.append("ACGTacgtN".charAt(random.nextInt(9)));
+        return sequence.toString();
+    }
+
+    /**
+     * every region of every chromosome, built index then the .fai it wrote
+     */
+    @Test
+    public void testGetSubSeq() throws IOException {
+        for(int pass=0; pass<2; pass++){
+            IndexedGenomeSeq genome = new IndexedGenomeSeq(fastaFile.getPath());
+            Assert.assertEquals(chromosomes.size(), genome.getNoOfChr());
+            Random random = new Random(pass);
+            for(Map.Entry<String, String> chromosome: chromosomes.entrySet()){
+                String sequence = chromosome.getValue();
+                for(int r=0; r<500; r++){
+                    int start = 1 + random.nextInt(sequence.length());
+                    int stop = start + random.nextInt(sequence.length() - start + 1);
+                    Assert.assertEquals(sequence.substring(start - 1, stop),
+                            genome.getSubSeq(chromosome.getKey(), Strand.PLUS, start, stop));
+                }
+                Assert.assertEquals(sequence, genome.getSubSeq(chromosome.getKey(), Strand.MINUS, 1, sequence.length()));
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRegionOutsideChromosome() throws IOException {
+        new IndexedGenomeSeq(fastaFile.getPath()).getSubSeq("chr2", Strand.PLUS, 50, 61);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownChromosome() throws IOException {
+        new IndexedGenomeSeq(fastaFile.getPath()).getSubSeq("chr3", Strand.PLUS, 1, 10);
+    }
+
+}
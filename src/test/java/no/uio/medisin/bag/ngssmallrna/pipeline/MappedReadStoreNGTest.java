@@ -0,0 +1,176 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import junit.framework.Assert;
+import no.uio.medisin.bag.core.Strand;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * checks the sort order at its edges (chromosome names, strands,
+ * negative and large positions), and that reads spilled to runs and
+ * merged come back in the same order as reads kept in memory
+ *
+ * @author sr
+ */
+public class MappedReadStoreNGTest {
+
+    private static File                 scratchFolder;
+
+    public MappedReadStoreNGTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        scratchFolder = Files.createTempDirectory("reads").toFile();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        scratchFolder.delete();
+    }
+
+    /**
+     * a read as chromosome, strand, start, end, count
+     */
+    private static class Read{
+        final String    chr;
+        final Strand    strand;
+        final int       start;
+        final int       end;
+        final int       count;
+
+        Read(String chr, Strand strand, int start, int end, int count){
+            this.chr = chr;
+            this.strand = strand;
+            this.start = start;
+            this.end = end;
+            this.count = count;
+        }
+    }
+
+    private static ArrayList<Read> readAll(MappedReadStore readStore) throws IOException{
+        ArrayList<Read> reads = new ArrayList<>();
+        try(MappedReadStore.Reader reader = readStore.getSortedReader()){
+            while(reader.next())
+                reads.add(new Read(reader.getChr(), reader.getStrand(), reader.getStartPos(), reader.getEndPos(), reader.getCount()));
+        }
+        return reads;
+    }
+
+    private static String describe(ArrayList<Read> reads){
+        StringBuilder description = new StringBuilder();
+        for(Read read: reads)
+            description.append(read.chr).append(read.strand == Strand.PLUS ? "+" : read.strand == Strand.MINUS ? "-" : ".")
+                    .append(read.start).append('/').append(read.end).append('x').append(read.count).append(' ');
+        return description.toString().trim();
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        MappedReadStore readStore = new MappedReadStore();
+        readStore.setMemoryBudget(28 * 1024);
+        readStore.setScratchFolder(scratchFolder.getPath());
+        Assert.assertTrue(readAll(readStore).isEmpty());
+        Assert.assertEquals(0, readStore.getNoOfReads());
+        Assert.assertEquals(0, readStore.getNoOfRuns());
+    }
+
+    /**
+     * chromosomes by name, then plus, minus and unknown strand, then start,
+     * end and count. Negative and very large positions sort as numbers
+     */
+    @Test
+    public void testSortOrder() throws IOException {
+        MappedReadStore readStore = new MappedReadStore();
+        readStore.add("chr2", Strand.PLUS, 100, 122, 1);
+        readStore.add("chr10", Strand.UNKNOWN, 5, 25, 1);
+        readStore.add("chr10", Strand.MINUS, 7, 30, 1);
+        readStore.add("chr10", Strand.PLUS, Integer.MAX_VALUE - 30, Integer.MAX_VALUE, 1);
+        readStore.add("chr10", Strand.PLUS, -20, 2, 1);
+        readStore.add("chr2", Strand.PLUS, 100, 121, 3);
+        readStore.add("chr2", Strand.PLUS, 100, 121, 2);
+        readStore.add("chr10", Strand.PLUS, 0, 22, 1);
+        Assert.assertEquals("chr10+-20/2x1 chr10+0/22x1 chr10+" + (Integer.MAX_VALUE - 30) + "/" + Integer.MAX_VALUE + "x1"
+                + " chr10-7/30x1 chr10.5/25x1 chr2+100/121x2 chr2+100/121x3 chr2+100/122x1", describe(readAll(readStore)));
+    }
+
+    /**
+     * reads written to runs, including a chromosome only seen after the
+     * first runs, come back in the same order as reads kept in memory
+     */
+    @Test
+    public void testSpilledRuns() throws IOException {
+        MappedReadStore inMemoryStore = new MappedReadStore();
+        MappedReadStore spillingStore = new MappedReadStore();
+        spillingStore.setMemoryBudget(28 * 1024);
+        spillingStore.setScratchFolder(scratchFolder.getPath());
+        for(int r=0; r<3000; r++){
+            String chr = r < 2048 ? (r % 2 == 0 ? "chr2" : "chr1") : "chrM";
+            Strand strand = r % 3 == 0 ? Strand.MINUS : Strand.PLUS;
+            inMemoryStore.add(chr, strand, 5000 - r, 5022 - r, 1 + r % 4);
+            spillingStore.add(chr, strand, 5000 - r, 5022 - r, 1 + r % 4);
+        }
+        Assert.assertEquals(0, inMemoryStore.getNoOfRuns());
+        Assert.assertEquals(2, spillingStore.getNoOfRuns());
+        Assert.assertEquals(3000, spillingStore.getNoOfReads());
+
+        ArrayList<Read> inMemory = readAll(inMemoryStore);
+        ArrayList<Read> spilled = readAll(spillingStore);
+        Assert.assertEquals(3000, spilled.size());
+        Assert.assertEquals(describe(inMemory), describe(spilled));
+        Assert.assertEquals("chr1", spilled.get(0).chr);
+        Assert.assertEquals(Strand.PLUS, spilled.get(0).strand);
+        Assert.assertEquals(5000 - 2047, spilled.get(0).start);
+        Assert.assertEquals("chrM", spilled.get(2999).chr);
+        Assert.assertEquals(Strand.MINUS, spilled.get(2999).strand);
+
+        spillingStore.clear();
+        Assert.assertEquals(0, spillingStore.getNoOfRuns());
+        Assert.assertEquals(0, scratchFolder.list().length);
+        Assert.assertTrue(readAll(spillingStore).isEmpty());
+    }
+
+    @Test
+    public void testAddAll() throws IOException {
+        MappedReadStore chunkStore = new MappedReadStore();
+        chunkStore.add("chr2", Strand.PLUS, 100, 122, 5);
+        chunkStore.add("chr1", Strand.MINUS, 50, 70, 1);
+        MappedReadStore readStore = new MappedReadStore();
+        readStore.add("chr3", Strand.PLUS, 10, 30, 2);
+        readStore.addAll(chunkStore);
+
+        ArrayList<Read> sorted = readAll(readStore);
+        Assert.assertEquals(3, sorted.size());
+        Assert.assertEquals("chr1", sorted.get(0).chr);
+        Assert.assertEquals(Strand.MINUS, sorted.get(0).strand);
+        Assert.assertEquals("chr2", sorted.get(1).chr);
+        Assert.assertEquals(5, sorted.get(1).count);
+        Assert.assertEquals("chr3", sorted.get(2).chr);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testAddAllSpilled() throws IOException {
+        MappedReadStore spilledStore = new MappedReadStore();
+        spilledStore.setMemoryBudget(28 * 1024);
+        spilledStore.setScratchFolder(scratchFolder.getPath());
+        try{
+            for(int r=0; r<1500; r++)
+                spilledStore.add("chr1", Strand.PLUS, r, r + 20, 1);
+            new MappedReadStore().addAll(spilledStore);
+        }
+        finally{
+            spilledStore.clear();
+        }
+    }
+
+}
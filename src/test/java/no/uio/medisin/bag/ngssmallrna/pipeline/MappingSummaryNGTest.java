@@ -0,0 +1,180 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import junit.framework.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * feeds bowtie style SAM lines through the SAMWriter and checks the SAM
+ * file it writes and the counts it collects, for a single sample and for
+ * project sequences split back out to the samples. The input counts come
+ * from the collapsed FASTA
+ *
+ * @author sr
+ */
+public class MappingSummaryNGTest {
+
+    private static final String[]               SAM_LINES   = {
+        "@HD\tVN:1.0\tSO:unsorted",
+        "@SQ\tSN:chr1\tLN:1000",
+        "read1-10\t0\tchr1\t100\t255\t22M\t*\t0\t0\tTGAGGTAGTAGGTTGTATAGTT\tIIIIIIIIIIIIIIIIIIIIII\tXA:i:0",
+        "read1-10\t16\tchr1\t500\t255\t22M\t*\t0\t0\tAACTATACAACCTACTACCTCA\tIIIIIIIIIIIIIIIIIIIIII\tXA:i:0",
+        "read2-3\t4\t*\t0\t0\t*\t*\t0\t0\tACGTACGTACGTACGTACGT\tIIIIIIIIIIIIIIIIIIII\tXM:i:0",
+        "read3-5\t0\tchr1\t700\t255\t22M\t*\t0\t0\tTAGCTTATCAGACTGATGTTGA\tIIIIIIIIIIIIIIIIIIIIII",
+    };
+
+    private ArrayList<File>                     tempFiles;
+
+    public MappingSummaryNGTest() {
+    }
+
+    @BeforeMethod
+    public void setUpMethod() throws Exception {
+        tempFiles = new ArrayList<>();
+    }
+
+    @AfterMethod
+    public void tearDownMethod() throws Exception {
+        for(File tempFile: tempFiles)
+            tempFile.delete();
+    }
+
+    private File tempFile(String suffix) throws IOException{
+        File tempFile = File.createTempFile("summary", suffix);
+        tempFiles.add(tempFile);
+        return tempFile;
+    }
+
+    private static ArrayList<String> readLines(File file) throws IOException{
+        ArrayList<String> lines = new ArrayList<>();
+        try(BufferedReader brIn = new BufferedReader(new FileReader(file))){
+            String line;
+            while((line = brIn.readLine()) != null)
+                lines.add(line);
+        }
+        return lines;
+    }
+
+    private File writeFasta(String[] lines) throws IOException{
+        File fastaFile = this.tempFile(".fa");
+        try(BufferedWriter bwFA = new BufferedWriter(new FileWriter(fastaFile))){
+            for(String line: lines)
+                bwFA.write(line + "\n");
+        }
+        return fastaFile;
+    }
+
+    /**
+     * read4 was too short for bowtie, so it is only in the collapsed input
+     */
+    @Test
+    public void testSingleSample() throws IOException {
+        File samFile = this.tempFile(".sam");
+        MappingSummary summary = new MappingSummary();
+        summary.addCollapsedFasta(this.writeFasta(new String[]{
+            ">read1-10", "TGAGGTAGTAGGTTGTATAGTT", ">read2-3", "ACGTACGTACGTACGTACGT",
+            ">read3-5", "TAGCTTATCAGACTGATGTTGA", ">read4-7", "ACGTAC"}).getPath());
+        try(MappingSummary.SAMWriter samWriter = new MappingSummary.SAMWriter(samFile.getPath(),
+                new MappingSummary[]{summary}, null, MappingSummary.MAPPED, MappingSummary.UNMAPPED)){
+            for(String samLine: SAM_LINES)
+                samWriter.handleLine(samLine);
+        }
+        Assert.assertEquals(Arrays.asList(SAM_LINES), readLines(samFile));
+
+        Assert.assertEquals(25, summary.getTotal(MappingSummary.INPUT));
+        Assert.assertEquals(15, summary.getTotal(MappingSummary.MAPPED));
+        Assert.assertEquals(3, summary.getTotal(MappingSummary.UNMAPPED));
+        Assert.assertEquals(0, summary.getTotal(MappingSummary.ABUNDANT));
+        Assert.assertEquals(15, summary.getLengthCounts(MappingSummary.MAPPED)[22]);
+        Assert.assertEquals(3, summary.getLengthCounts(MappingSummary.UNMAPPED)[20]);
+        Assert.assertEquals(15, summary.getLengthCounts(MappingSummary.INPUT)[22]);
+        Assert.assertEquals(3, summary.getLengthCounts(MappingSummary.INPUT)[20]);
+        Assert.assertEquals(7, summary.getLengthCounts(MappingSummary.INPUT)[6]);
+
+        StringWriter writer = new StringWriter();
+        summary.write(writer);
+        String report = writer.toString();
+        Assert.assertTrue(report.startsWith("total input reads = 25\ntotal mapped reads = 15\n"
+                + "total abundant reads = 0\ntotal unmapped reads = 3\n"));
+        Assert.assertTrue(report.contains("\n6\t7\t0\t0\t0\n"));
+        Assert.assertTrue(report.contains("\n20\t3\t0\t0\t3\n"));
+        Assert.assertTrue(report.contains("\n22\t15\t0\t15\t0\n"));
+    }
+
+    @Test
+    public void testUnalignedNotCounted() throws IOException {
+        MappingSummary summary = new MappingSummary();
+        try(MappingSummary.SAMWriter samWriter = new MappingSummary.SAMWriter(this.tempFile(".sam").getPath(),
+                new MappingSummary[]{summary}, null, MappingSummary.ABUNDANT, -1)){
+            for(String samLine: SAM_LINES)
+                samWriter.handleLine(samLine);
+        }
+        Assert.assertEquals(15, summary.getTotal(MappingSummary.ABUNDANT));
+        Assert.assertEquals(0, summary.getTotal(MappingSummary.INPUT));
+        Assert.assertEquals(0, summary.getTotal(MappingSummary.UNMAPPED));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testCollapsedFastaWithoutCount() throws IOException {
+        new MappingSummary().addCollapsedFasta(this.writeFasta(new String[]{">read1", "ACGT"}).getPath());
+    }
+
+    /**
+     * project sequences are counted in each sample with the sample's count
+     */
+    @Test
+    public void testProjectSequences() throws IOException {
+        UniqueSequenceDictionary dictionary = new UniqueSequenceDictionary();
+        String[][] samples = {
+            {">a-4", "TGAGGTAGTAGGTTGTATAGTT", ">b-2", "ACGTACGTACGTACGTACGT"},
+            {">c-6", "TGAGGTAGTAGGTTGTATAGTT"},
+        };
+        MappingSummary[] summaries = {new MappingSummary(), new MappingSummary()};
+        for(int s=0; s<samples.length; s++){
+            dictionary.addSample("sample" + s, this.writeFasta(samples[s]).getPath(), summaries[s]);
+        }
+        dictionary.build();
+        File projectFasta = this.tempFile(".fa");
+        dictionary.writeUniqueFasta(projectFasta.getPath());
+        ArrayList<String> projectLines = readLines(projectFasta);
+        String mappedRead = projectLines.get(projectLines.indexOf("TGAGGTAGTAGGTTGTATAGTT") - 1).substring(1);
+        String unmappedRead = projectLines.get(projectLines.indexOf("ACGTACGTACGTACGTACGT") - 1).substring(1);
+
+        try(MappingSummary.SAMWriter samWriter = new MappingSummary.SAMWriter(this.tempFile(".sam").getPath(),
+                summaries, dictionary, MappingSummary.MAPPED, MappingSummary.UNMAPPED)){
+            samWriter.handleLine("@HD\tVN:1.0");
+            samWriter.handleLine(mappedRead + "\t0\tchr1\t100\t255\t22M\t*\t0\t0\tTGAGGTAGTAGGTTGTATAGTT\t*");
+            samWriter.handleLine(unmappedRead + "\t4\t*\t0\t0\t*\t*\t0\t0\tACGTACGTACGTACGTACGT\t*");
+        }
+        Assert.assertEquals(4, summaries[0].getTotal(MappingSummary.MAPPED));
+        Assert.assertEquals(2, summaries[0].getTotal(MappingSummary.UNMAPPED));
+        Assert.assertEquals(6, summaries[0].getTotal(MappingSummary.INPUT));
+        Assert.assertEquals(6, summaries[1].getTotal(MappingSummary.MAPPED));
+        Assert.assertEquals(0, summaries[1].getTotal(MappingSummary.UNMAPPED));
+        Assert.assertEquals(6, summaries[1].getTotal(MappingSummary.INPUT));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testReadWithoutCount() throws IOException {
+        try(MappingSummary.SAMWriter samWriter = new MappingSummary.SAMWriter(this.tempFile(".sam").getPath(),
+                new MappingSummary[]{new MappingSummary()}, null, MappingSummary.MAPPED, MappingSummary.UNMAPPED)){
+            samWriter.handleLine("read1\t0\tchr1\t100\t255\t4M\t*\t0\t0\tACGT\t*");
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import junit.framework.Assert;
+import no.uio.medisin.bag.core.MiRNAFeature;
+import no.uio.medisin.bag.core.MirFeatureSet;
+import org.testng.annotations.Test;
+
+/**
+ * checks the index at the edges of the bleed window, on each strand, and
+ * which entry is returned when entries are close enough to both match
+ *
+ * @author sr
+ */
+public class MiRNAFeatureIndexNGTest {
+
+    public MiRNAFeatureIndexNGTest() {
+    }
+
+    /**
+     * write a miRBase release in the GFF3 and FASTA formats miRBase
+     * distributes, and load it the way the steps do
+     *
+     * @param entries   chromosome, strand, start, end for each miRNA
+     */
+    private static ArrayList<MiRNAFeature> loadMiRBase(Object[][] entries) throws IOException{
+        File gffFile = File.createTempFile("hsa", ".gff3");
+        File faFile = File.createTempFile("mature", ".fasta");
+        try{
+            try(BufferedWriter bwGF = new BufferedWriter(new FileWriter(gffFile));
+                    BufferedWriter bwFA = new BufferedWriter(new FileWriter(faFile))){
+                bwGF.write("##gff-version 3\n");
+                for(int m=0; m<entries.length; m++){
+                    int start = (Integer) entries[m][2];
+                    int end = (Integer) entries[m][3];
+                    String mimatID = "MIMAT" + String.format("%07d", m);
+                    String precursorID = "MI" + String.format("%07d", m);
+                    bwGF.write(entries[m][0] + "\t.\tmiRNA_primary_transcript\t" + (start - 20) + "\t" + (end + 40) + "\t.\t" + entries[m][1]
+                            + "\t.\tID=" + precursorID + ";Alias=" + precursorID + ";Name=hsa-mir-" + m + "\n");
+                    bwGF.write(entries[m][0] + "\t.\tmiRNA\t" + start + "\t" + end + "\t.\t" + entries[m][1]
+                            + "\t.\tID=" + mimatID + ";Alias=" + mimatID + ";Name=hsa-miR-" + m + "-5p;Derives_from=" + precursorID + "\n");
+                    StringBuilder sequence = new StringBuilder();
+                    for(int b=start; b<=end; b++)
+                        sequence.append("ACGU".charAt(b % 4));
+                    bwFA.write(">hsa-miR-" + m + "-5p " + mimatID + " Homo sapiens miR-" + m + "-5p\n" + sequence + "\n");
+                }
+            }
+            MirFeatureSet mirBaseSet = new MirFeatureSet();
+            mirBaseSet.loadMiRBaseData("hsa", gffFile.getPath(), faFile.getPath());
+            return mirBaseSet.getMiRBaseMiRNAList();
+        }
+        finally{
+            gffFile.delete();
+            faFile.delete();
+        }
+    }
+
+    /**
+     * both the start and the end have to be within bleed
+     */
+    @Test
+    public void testBleedWindow() throws IOException {
+        ArrayList<MiRNAFeature> miRBaseList = loadMiRBase(new Object[][]{{"chr1", "+", 1000, 1021}});
+        Assert.assertEquals(1, miRBaseList.size());
+        MiRNAFeature miRNA = miRBaseList.get(0);
+        MiRNAFeatureIndex mirBaseIndex = new MiRNAFeatureIndex(miRBaseList);
+        Assert.assertEquals(1, mirBaseIndex.getNoOfFeatures());
+
+        Assert.assertSame(miRNA, mirBaseIndex.findOverlappingFeature(1000, 1021, "chr1", "+", 0));
+        Assert.assertSame(miRNA, mirBaseIndex.findOverlappingFeature(998, 1023, "chr1", "+", 2));
+        Assert.assertSame(miRNA, mirBaseIndex.findOverlappingFeature(1002, 1019, "chr1", "+", 2));
+        Assert.assertNull(mirBaseIndex.findOverlappingFeature(997, 1021, "chr1", "+", 2));
+        Assert.assertNull(mirBaseIndex.findOverlappingFeature(1000, 1024, "chr1", "+", 2));
+        Assert.assertNull(mirBaseIndex.findOverlappingFeature(1001, 1021, "chr1", "+", 0));
+        Assert.assertNull(mirBaseIndex.findOverlappingFeature(1000, 1021, "chr2", "+", 2));
+    }
+
+    /**
+     * the same coordinates on the two strands are different miRNAs
+     */
+    @Test
+    public void testStrands() throws IOException {
+        ArrayList<MiRNAFeature> miRBaseList = loadMiRBase(new Object[][]{
+            {"chr1", "+", 1000, 1021},
+            {"chr1", "-", 1000, 1021},
+        });
+        MiRNAFeatureIndex mirBaseIndex = new MiRNAFeatureIndex(miRBaseList);
+        Assert.assertSame(miRBaseList.get(0), mirBaseIndex.findOverlappingFeature(1000, 1021, "chr1", "+", 1));
+        Assert.assertSame(miRBaseList.get(1), mirBaseIndex.findOverlappingFeature(1000, 1021, "chr1", "-", 1));
+        Assert.assertNull(mirBaseIndex.findOverlappingFeature(1000, 1021, "chr1", ".", 1));
+    }
+
+    /**
+     * when two entries both match, the first in the miRBase list wins,
+     * even if it starts later
+     */
+    @Test
+    public void testFirstEntryWins() throws IOException {
+        ArrayList<MiRNAFeature> miRBaseList = loadMiRBase(new Object[][]{
+            {"chr2", "+", 5003, 5024},
+            {"chr2", "+", 5000, 5022},
+            {"chr2", "+", 4990, 5011},
+        });
+        MiRNAFeatureIndex mirBaseIndex = new MiRNAFeatureIndex(miRBaseList);
+        Assert.assertSame(miRBaseList.get(0), mirBaseIndex.findOverlappingFeature(5001, 5023, "chr2", "+", 2));
+        Assert.assertSame(miRBaseList.get(1), mirBaseIndex.findOverlappingFeature(5000, 5022, "chr2", "+", 1));
+        Assert.assertSame(miRBaseList.get(2), mirBaseIndex.findOverlappingFeature(4990, 5011, "chr2", "+", 3));
+    }
+
+    @Test
+    public void testEmptyIndex() {
+        MiRNAFeatureIndex mirBaseIndex = new MiRNAFeatureIndex(new ArrayList<MiRNAFeature>());
+        Assert.assertEquals(0, mirBaseIndex.getNoOfFeatures());
+        Assert.assertNull(mirBaseIndex.findOverlappingFeature(1000, 1021, "chr1", "+", 2));
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import junit.framework.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * checks that reading a SAM file in chunks on several threads gives every
+ * line exactly once, in file order, whatever the chunk size
+ *
+ * @author sr
+ */
+public class ParallelSAMReaderNGTest {
+
+    private static File                 samFile;
+    private static ArrayList<String>    lines;
+
+    public ParallelSAMReaderNGTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Random random = new Random(13);
+        lines = new ArrayList<>();
+        lines.add("@HD\tVN:1.0\tSO:unsorted");
+        lines.add("@SQ\tSN:chr1\tLN:248956422");
+        for(int l=0; l<20000; l++){
+            StringBuilder sequence = new StringBuilder();
+            int length = 15 + random.nextInt(20);
+            for(int b=0; b<length; b++)
+                sequence.append("ACGT".charAt(random.nextInt(4)));
+            lines.add(l + "-" + (1 + random.nextInt(100)) + "\t" + (random.nextBoolean() ? 0 : 16) + "\tchr" + (1 + random.nextInt(22))
+                    + "\t" + (1 + random.nextInt(1000000)) + "\t255\t" + length + "M\t*\t0\t0\t" + sequence + "\t*\tXA:i:0\tMD:Z:" + length);
+        }
+
+        samFile = File.createTempFile("reads", ".sam");
+        try(BufferedWriter bwSAM = new BufferedWriter(new FileWriter(samFile))){
+            for(String line: lines)
+                bwSAM.write(line + "\n");
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        samFile.delete();
+    }
+
+    /**
+     * collects the lines of a chunk
+     */
+    private static final ParallelSAMReader.ChunkTask<ArrayList<String>> COLLECT_LINES = new ParallelSAMReader.ChunkTask<ArrayList<String>>(){
+        @Override
+        public ArrayList<String> newAccumulator(){
+            return new ArrayList<>();
+        }
+
+        @Override
+        public void addRecord(ArrayList<String> accumulator, SAMRecord samRecord){
+            accumulator.add(samRecord.toString());
+        }
+    };
+
+    @Test
+    public void testChunksInFileOrder() throws IOException {
+        for(int noOfThreads: new int[]{1, 3, 8}){
+            for(long minChunkSize: new long[]{1, 37, 4096, 16L * 1024 * 1024}){
+                ParallelSAMReader samReader = new ParallelSAMReader(samFile.getPath(), noOfThreads);
+                samReader.setMinChunkSize(minChunkSize);
+                ArrayList<ArrayList<String>> chunks = samReader.process(COLLECT_LINES);
+                if(noOfThreads > 1 && minChunkSize < 4096)
+                    Assert.assertTrue(chunks.size() > 1);
+
+                ArrayList<String> merged = new ArrayList<>();
+                for(ArrayList<String> chunk: chunks)
+                    merged.addAll(chunk);
+                Assert.assertEquals(lines, merged);
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testBadLine() throws IOException {
+        new ParallelSAMReader(samFile.getPath(), 4).process(new ParallelSAMReader.ChunkTask<int[]>(){
+            @Override
+            public int[] newAccumulator(){
+                return new int[1];
+            }
+
+            @Override
+            public void addRecord(int[] accumulator, SAMRecord samRecord){
+                if(samRecord.isHeader() == false)
+                    accumulator[0] += samRecord.getFlags() + Integer.parseInt(samRecord.getField(SAMRecord.QUAL));
+            }
+        });
+    }
+
+}
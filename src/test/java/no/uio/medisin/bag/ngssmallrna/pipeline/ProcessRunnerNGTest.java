@@ -0,0 +1,115 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.IOException;
+import java.util.Arrays;
+import junit.framework.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * runs a few standard unix programs through ProcessRunner
+ *
+ * @author sr
+ */
+public class ProcessRunnerNGTest {
+
+    public ProcessRunnerNGTest() {
+    }
+
+    /**
+     * stdout and stderr are kept apart, and a failing program is reported
+     * through its exit code rather than an exception
+     */
+    @Test
+    public void testOutputAndExitCode() throws IOException {
+        ProcessResult seqResult = new ProcessRunner("seq", Arrays.asList("seq", "1", "3")).run();
+        Assert.assertEquals(0, seqResult.getExitCode());
+        Assert.assertEquals(Arrays.asList("1", "2", "3"), seqResult.getStdout());
+        Assert.assertTrue(seqResult.getStderr().isEmpty());
+        Assert.assertFalse(seqResult.getTimedOut());
+
+        ProcessResult lsResult = new ProcessRunner("ls", Arrays.asList("ls", "/no/such/folder")).run();
+        Assert.assertTrue(lsResult.getExitCode() != 0);
+        Assert.assertTrue(lsResult.getStdout().isEmpty());
+        Assert.assertFalse(lsResult.getStderr().isEmpty());
+    }
+
+    /**
+     * lines the filter drops are counted but not stored
+     */
+    @Test
+    public void testLineFilter() throws IOException {
+        ProcessRunner seqRunner = new ProcessRunner("seq", Arrays.asList("seq", "1", "100"));
+        seqRunner.setLineFilter(new ProcessRunner.LineFilter(){
+            @Override
+            public Boolean keepLine(String line){
+                return line.endsWith("0");
+            }
+        });
+        ProcessResult seqResult = seqRunner.run();
+        Assert.assertEquals(10, seqResult.getStdout().size());
+        Assert.assertEquals("100", seqResult.getStdout().get(9));
+        Assert.assertEquals(90, seqResult.getNoOfFilteredLines());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testMissingProgram() throws IOException {
+        new ProcessRunner("missing", Arrays.asList("no-such-program-here")).run();
+    }
+
+    /**
+     * only the last lines are kept, unless the limit is 0
+     */
+    @Test
+    public void testOutputTail() throws IOException {
+        ProcessRunner seqRunner = new ProcessRunner("seq", Arrays.asList("seq", "1", "1000"));
+        seqRunner.setMaxOutputLines(10);
+        ProcessResult seqResult = seqRunner.run();
+        Assert.assertEquals(0, seqResult.getExitCode());
+        Assert.assertEquals(10, seqResult.getStdout().size());
+        Assert.assertEquals("991", seqResult.getStdout().get(0));
+        Assert.assertEquals("1000", seqResult.getStdout().get(9));
+
+        seqRunner.setMaxOutputLines(0);
+        Assert.assertEquals(1000, seqRunner.run().getStdout().size());
+    }
+
+    /**
+     * a program that runs over the timeout is killed and reported, and
+     * one that ignores SIGTERM is killed too
+     */
+    @Test
+    public void testTimeout() {
+        ProcessRunner sleepRunner = new ProcessRunner("sleep", Arrays.asList("sleep", "60"));
+        sleepRunner.setTimeout(1);
+        long startTime = System.currentTimeMillis();
+        try{
+            sleepRunner.run();
+            Assert.fail("sleep should have timed out");
+        }
+        catch(IOException exTimeout){
+            Assert.assertTrue(exTimeout.getMessage().contains("did not finish"));
+        }
+        Assert.assertTrue(System.currentTimeMillis() - startTime < 30000);
+    }
+
+    @Test
+    public void testTimeoutIgnoringTerm() {
+        ProcessRunner trapRunner = new ProcessRunner("trap", Arrays.asList("sh", "-c", "trap '' TERM; exec sleep 60"));
+        trapRunner.setTimeout(1);
+        long startTime = System.currentTimeMillis();
+        try{
+            trapRunner.run();
+            Assert.fail("the program should have timed out");
+        }
+        catch(IOException exTimeout){
+            Assert.assertTrue(exTimeout.getMessage().contains("did not finish"));
+        }
+        Assert.assertTrue(System.currentTimeMillis() - startTime < 40000);
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import junit.framework.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * checks the collapsed FASTA for an empty file, a few hand written reads,
+ * and a library big enough to be spilled to scratch runs
+ *
+ * @author sr
+ */
+public class ReadCollapserNGTest {
+
+    private File                            scratchFolder;
+
+    public ReadCollapserNGTest() {
+    }
+
+    @BeforeMethod
+    public void setUpMethod() throws Exception {
+        scratchFolder = Files.createTempDirectory("collapse").toFile();
+    }
+
+    @AfterMethod
+    public void tearDownMethod() throws Exception {
+        for(File file: scratchFolder.listFiles())
+            file.delete();
+        scratchFolder.delete();
+    }
+
+    private File writeFastq(String... sequences) throws IOException{
+        File fastqFile = new File(scratchFolder, "reads.fastq");
+        try(BufferedWriter bwFQ = new BufferedWriter(new FileWriter(fastqFile))){
+            for(int r=0; r<sequences.length; r++){
+                bwFQ.write("@read" + r + "\n" + sequences[r] + "\n+\n");
+                for(int b=0; b<sequences[r].length(); b++)
+                    bwFQ.write('I');
+                bwFQ.write("\n");
+            }
+        }
+        return fastqFile;
+    }
+
+    private ArrayList<String> collapse(ReadCollapser readCollapser, File fastqFile, String fastaName) throws IOException{
+        File fastaFile = new File(scratchFolder, fastaName);
+        readCollapser.collapse(fastqFile.getPath(), fastaFile.getPath());
+        return new ArrayList<>(Files.readAllLines(fastaFile.toPath(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        ReadCollapser readCollapser = new ReadCollapser();
+        Assert.assertTrue(collapse(readCollapser, writeFastq(), "empty.fa").isEmpty());
+        Assert.assertEquals(0, readCollapser.getNoOfReads());
+        Assert.assertEquals(0, readCollapser.getNoOfUniqueReads());
+    }
+
+    /**
+     * ranked by count, reads with an N dropped, and the same sequence
+     * with a different length is a different sequence
+     */
+    @Test
+    public void testCounts() throws IOException {
+        File fastqFile = writeFastq(
+                "TGAGGTAGTAGGTTGTATAGTT", "TAGCTTATCAGACTGATGTTGA", "TGAGGTAGTAGGTTGTATAGTT",
+                "TGAGGTAGTAGGTTGTATAGT", "TGAGGTAGTANGTTGTATAGTT", "TGAGGTAGTAGGTTGTATAGTT",
+                "TAGCTTATCAGACTGATGTTGA");
+        ReadCollapser readCollapser = new ReadCollapser();
+        Assert.assertEquals(Arrays.asList(
+                ">1-3", "TGAGGTAGTAGGTTGTATAGTT",
+                ">2-2", "TAGCTTATCAGACTGATGTTGA",
+                ">3-1", "TGAGGTAGTAGGTTGTATAGT"), collapse(readCollapser, fastqFile, "reads.fa"));
+        Assert.assertEquals(7, readCollapser.getNoOfReads());
+        Assert.assertEquals(1, readCollapser.getNoOfDiscardedReads());
+        Assert.assertEquals(3, readCollapser.getNoOfUniqueReads());
+    }
+
+    /**
+     * the counts only fit in memory with scratch runs, and two large
+     * groups of sequences share a count, so the order within a count has
+     * to come out the same both ways
+     */
+    @Test
+    public void testSpilledRunsMatchInMemory() throws IOException {
+        String[] sequences = new String[200000];
+        for(int r=0; r<sequences.length; r++){
+            int id = r % 60000;
+            StringBuilder sequence = new StringBuilder();
+            long bits = id * 2654435761L;
+            for(int b=0; b<18 + id % 5; b++, bits >>>= 2)
+                sequence.append("ACGT".charAt((int) (bits & 3)));
+            if(r % 1000 == 999)
+                sequence.setCharAt(5, 'N');
+            sequences[r] = sequence.toString();
+        }
+        File fastqFile = writeFastq(sequences);
+
+        ReadCollapser inMemoryCollapser = new ReadCollapser();
+        ArrayList<String> inMemoryLines = collapse(inMemoryCollapser, fastqFile, "inMemory.fa");
+        Assert.assertEquals(0, inMemoryCollapser.getNoOfRuns());
+        Assert.assertEquals(200, inMemoryCollapser.getNoOfDiscardedReads());
+
+        ReadCollapser spillingCollapser = new ReadCollapser();
+        spillingCollapser.setMemoryBudget(64 * 1024);
+        spillingCollapser.setScratchFolder(scratchFolder.getPath());
+        ArrayList<String> spilledLines = collapse(spillingCollapser, fastqFile, "spilled.fa");
+        Assert.assertTrue(spillingCollapser.getNoOfRuns() > 2);
+        Assert.assertEquals(inMemoryCollapser.getNoOfUniqueReads(), spillingCollapser.getNoOfUniqueReads());
+        Assert.assertEquals(inMemoryLines, spilledLines);
+        Assert.assertEquals(">1-4", inMemoryLines.get(0));
+        Assert.assertEquals(3, scratchFolder.list().length);        // the runs were deleted
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * checks references are loaded once, shared, and dropped after the last
+ * step that reserved them
+ *
+ * @author sr
+ */
+public class ReferenceRegistryNGTest {
+
+    public ReferenceRegistryNGTest() {
+    }
+
+    /**
+     * counts how often it is called
+     */
+    private static class CountingLoader implements ReferenceRegistry.Loader<Object>{
+        final AtomicInteger             noOfLoads                   = new AtomicInteger();
+
+        @Override
+        public Object load() throws IOException{
+            noOfLoads.incrementAndGet();
+            try{
+                Thread.sleep(20);
+            }
+            catch(InterruptedException exIE){
+                Thread.currentThread().interrupt();
+            }
+            return new Object();
+        }
+    }
+
+    @Test
+    public void testLoadedOnce() throws Exception {
+        final ReferenceRegistry referenceRegistry = new ReferenceRegistry();
+        final String genomeKey = ReferenceRegistry.getGenomeKey("hsa", "/refs/hsa/genome.fa");
+        final CountingLoader loader = new CountingLoader();
+
+        ExecutorService steps = Executors.newFixedThreadPool(8);
+        try{
+            ArrayList<Future<Object>> references = new ArrayList<>();
+            for(int s=0; s<16; s++){
+                references.add(steps.submit(new Callable<Object>(){
+                    @Override
+                    public Object call() throws IOException{
+                        return referenceRegistry.get(genomeKey, loader);
+                    }
+                }));
+            }
+            Object first = references.get(0).get();
+            for(Future<Object> reference: references)
+                Assert.assertSame(first, reference.get());
+        }
+        finally{
+            steps.shutdown();
+        }
+        Assert.assertEquals(1, loader.noOfLoads.get());
+        Assert.assertEquals(1, referenceRegistry.getNoOfReferences());
+
+        CountingLoader gffLoader = new CountingLoader();
+        referenceRegistry.get(ReferenceRegistry.getGFFKey("hsa", "/refs/hsa/genes.gff3"), gffLoader);
+        Assert.assertEquals(1, gffLoader.noOfLoads.get());
+        Assert.assertEquals(2, referenceRegistry.getNoOfReferences());
+    }
+
+    @Test
+    public void testReleasedAfterLastStep() throws IOException {
+        ReferenceRegistry referenceRegistry = new ReferenceRegistry();
+        String miRBaseKey = ReferenceRegistry.getMiRBaseKey("hsa", 20, "/refs/mirbase/20/hsa.gff3");
+        String genomeKey = ReferenceRegistry.getGenomeKey("hsa", "/refs/hsa/genome.fa");
+        ArrayList<String> step1Keys = new ArrayList<>(Arrays.asList(miRBaseKey));
+        ArrayList<String> step2Keys = new ArrayList<>(Arrays.asList(miRBaseKey));
+        referenceRegistry.reserve(step1Keys);
+        referenceRegistry.reserve(step2Keys);
+
+        CountingLoader loader = new CountingLoader();
+        Object miRBaseData = referenceRegistry.get(miRBaseKey, loader);
+        referenceRegistry.get(genomeKey, new CountingLoader());
+        Assert.assertEquals(2, referenceRegistry.getNoOfReferences());
+
+        referenceRegistry.release(step1Keys);
+        Assert.assertEquals(2, referenceRegistry.getNoOfReferences());
+        Assert.assertSame(miRBaseData, referenceRegistry.get(miRBaseKey, loader));
+        Assert.assertEquals(1, loader.noOfLoads.get());
+
+        /* the genome was never reserved, so it is kept */
+        referenceRegistry.release(step2Keys);
+        referenceRegistry.release(new ArrayList<>(Arrays.asList(genomeKey)));
+        Assert.assertEquals(1, referenceRegistry.getNoOfReferences());
+
+        Assert.assertNotSame(miRBaseData, referenceRegistry.get(miRBaseKey, loader));
+        Assert.assertEquals(2, loader.noOfLoads.get());
+    }
+
+    @Test
+    public void testFailedLoadIsRetried() throws IOException {
+        ReferenceRegistry referenceRegistry = new ReferenceRegistry();
+        String gffKey = ReferenceRegistry.getGFFKey("hsa", "/refs/hsa/genes.gff3");
+        try{
+            referenceRegistry.get(gffKey, new ReferenceRegistry.Loader<Object>(){
+                @Override
+                public Object load() throws IOException{
+                    throw new IOException("can't read <genes.gff3>");
+                }
+            });
+            Assert.fail("the load should have failed");
+        }
+        catch(IOException exIO){
+            Assert.assertEquals(0, referenceRegistry.getNoOfReferences());
+        }
+        CountingLoader loader = new CountingLoader();
+        Assert.assertNotNull(referenceRegistry.get(gffKey, loader));
+        Assert.assertEquals(1, loader.noOfLoads.get());
+    }
+
+}
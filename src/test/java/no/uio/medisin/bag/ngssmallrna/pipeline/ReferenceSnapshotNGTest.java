@@ -0,0 +1,198 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+import junit.framework.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * checks a table read back from a snapshot is the same as the one parsed
+ * from the text, and that the snapshot follows changes to the source
+ *
+ * @author sr
+ */
+public class ReferenceSnapshotNGTest {
+
+    private File                        referenceFolder;
+    private File                        snapshotFolder;
+    private File                        sourceFile;
+
+    public ReferenceSnapshotNGTest() {
+    }
+
+    @BeforeMethod
+    public void setUpMethod() throws Exception {
+        referenceFolder = Files.createTempDirectory("reference").toFile();
+        snapshotFolder = new File(referenceFolder, "snapshots");
+        sourceFile = new File(referenceFolder, "Predicted_Targets_Info.txt");
+    }
+
+    @AfterMethod
+    public void tearDownMethod() throws Exception {
+        if(snapshotFolder.isDirectory()){
+            for(File file: snapshotFolder.listFiles())
+                file.delete();
+        }
+        snapshotFolder.delete();
+        for(File file: referenceFolder.listFiles())
+            file.delete();
+        referenceFolder.delete();
+    }
+
+    /**
+     * a table like the TargetScan files: repeated IDs, integer columns,
+     * numbers that aren't plain ints and rows with missing trailing fields
+     */
+    private ArrayList<String[]> writeSource(long seed) throws IOException{
+        Random random = new Random(seed);
+        String[] oddValues = {"007", "-0", "+5", "2147483648", "1.5", "", " 12 ", "NA"};
+        ArrayList<String[]> rows = new ArrayList<>();
+        try(BufferedWriter bwTable = new BufferedWriter(new FileWriter(sourceFile))){
+            bwTable.write("miR Family\tGene ID\tGene Symbol\tTranscript ID\tSpecies ID\tUTR start\tUTR end\tSite type\n");
+            for(int r=0; r<5000; r++){
+                String[] fields = {
+                    "miR-" + random.nextInt(50) + "-5p",
+                    "ENSG" + String.format("%011d", random.nextInt(300)),
+                    "GENE" + random.nextInt(300),
+                    "ENST" + String.format("%011d", random.nextInt(600)),
+                    Integer.toString(9606),
+                    Integer.toString(random.nextInt(100000) - 50),
+                    r == 4000 ? oddValues[random.nextInt(oddValues.length)] : Integer.toString(random.nextInt(100000)),
+                    Integer.toString(random.nextInt(4) + 1)
+                };
+                int noOfFields = r % 97 == 0 ? 7 : fields.length;
+                StringBuilder line = new StringBuilder();
+                for(int f=0; f<noOfFields; f++)
+                    line.append(f == 0 ? "" : "\t").append(fields[f]);
+                if(r % 101 == 0)
+                    line.append("\t\t");
+                bwTable.write(line + "\n");
+
+                String[] expected = line.toString().split("\t");
+                for(int f=0; f<expected.length; f++)
+                    expected[f] = expected[f].trim();
+                rows.add(expected);
+            }
+        }
+        return rows;
+    }
+
+    private static void checkTable(ArrayList<String[]> rows, ReferenceTable table){
+        Assert.assertEquals(rows.size(), table.getNoOfRows());
+        for(int r=0; r<rows.size(); r++){
+            String[] fields = rows.get(r);
+            Assert.assertEquals(fields.length, table.getNoOfFields(r));
+            for(int f=0; f<fields.length; f++){
+                Assert.assertEquals(fields[f], table.getString(r, f));
+                if(table.getColumnType(f) == ReferenceTable.INT_COLUMN)
+                    Assert.assertEquals(Integer.parseInt(fields[f]), table.getInt(r, f));
+            }
+        }
+    }
+
+    private File snapshotFile(){
+        return new File(snapshotFolder, sourceFile.getName() + ReferenceSnapshot.SNAPSHOT_EXTENSION);
+    }
+
+    @Test
+    public void testSnapshotMatchesText() throws IOException {
+        ArrayList<String[]> rows = this.writeSource(18);
+
+        ReferenceTable parsed = new ReferenceSnapshot(sourceFile.getPath(), snapshotFolder.getPath()).loadTable();
+        checkTable(rows, parsed);
+        Assert.assertTrue(this.snapshotFile().exists());
+        Assert.assertEquals(ReferenceTable.INT_COLUMN, parsed.getColumnType(5));
+        Assert.assertEquals(ReferenceTable.STRING_COLUMN, parsed.getColumnType(0));
+
+        long snapshotTime = this.snapshotFile().lastModified();
+        ReferenceTable fromSnapshot = new ReferenceSnapshot(sourceFile.getPath(), snapshotFolder.getPath()).loadTable();
+        checkTable(rows, fromSnapshot);
+        Assert.assertEquals(snapshotTime, this.snapshotFile().lastModified());
+        for(int c=0; c<parsed.getNoOfColumns(); c++)
+            Assert.assertEquals(parsed.getColumnType(c), fromSnapshot.getColumnType(c));
+    }
+
+    @Test
+    public void testSourceChanges() throws IOException {
+        this.writeSource(18);
+        new ReferenceSnapshot(sourceFile.getPath(), snapshotFolder.getPath()).loadTable();
+
+        /* same content, new time: the snapshot is kept */
+        ArrayList<String[]> rows = this.writeSource(18);
+        sourceFile.setLastModified(sourceFile.lastModified() + 5000);
+        checkTable(rows, new ReferenceSnapshot(sourceFile.getPath(), snapshotFolder.getPath()).loadTable());
+
+        /* new content: the snapshot is rebuilt */
+        rows = this.writeSource(19);
+        sourceFile.setLastModified(sourceFile.lastModified() + 10000);
+        checkTable(rows, new ReferenceSnapshot(sourceFile.getPath(), snapshotFolder.getPath()).loadTable());
+        checkTable(rows, new ReferenceSnapshot(sourceFile.getPath(), snapshotFolder.getPath()).loadTable());
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws IOException {
+        ArrayList<String[]> rows = this.writeSource(18);
+        new ReferenceSnapshot(sourceFile.getPath(), snapshotFolder.getPath()).loadTable();
+        try(RandomAccessFile raf = new RandomAccessFile(this.snapshotFile(), "rw")){
+            raf.setLength(raf.length() / 2);
+        }
+        checkTable(rows, new ReferenceSnapshot(sourceFile.getPath(), snapshotFolder.getPath()).loadTable());
+        checkTable(rows, new ReferenceSnapshot(sourceFile.getPath(), snapshotFolder.getPath()).loadTable());
+    }
+
+    @Test
+    public void testSnapshotBesideSource() throws IOException {
+        ArrayList<String[]> rows = this.writeSource(18);
+        checkTable(rows, new ReferenceSnapshot(sourceFile.getPath(), null).loadTable());
+        File snapshotFile = new File(sourceFile.getPath() + ReferenceSnapshot.SNAPSHOT_EXTENSION);
+        Assert.assertTrue(snapshotFile.exists());
+
+        long snapshotTime = snapshotFile.lastModified();
+        checkTable(rows, new ReferenceSnapshot(sourceFile.getPath(), null).loadTable());
+        Assert.assertEquals(snapshotTime, snapshotFile.lastModified());
+    }
+
+    @Test
+    public void testSnapshotNotWritable() throws IOException {
+        ArrayList<String[]> rows = this.writeSource(18);
+        /* a file where the snapshot folder should be, so it can't be created */
+        Assert.assertTrue(snapshotFolder.createNewFile());
+        checkTable(rows, new ReferenceSnapshot(sourceFile.getPath(), snapshotFolder.getPath()).loadTable());
+        checkTable(rows, new ReferenceSnapshot(sourceFile.getPath(), snapshotFolder.getPath()).loadTable());
+        Assert.assertTrue(snapshotFolder.isFile());
+    }
+
+    @Test
+    public void testMissingField() throws IOException {
+        this.writeSource(18);
+        ReferenceTable table = new ReferenceSnapshot(sourceFile.getPath(), snapshotFolder.getPath()).loadTable();
+        try{
+            table.getString(0, 7);
+            Assert.fail("row 0 has no column 7");
+        }
+        catch(IllegalArgumentException ex){
+            Assert.assertEquals("no column 7 in row 0, the row has 7 fields", ex.getMessage());
+        }
+        try{
+            table.getInt(5000, 0);
+            Assert.fail("the table has no row 5000");
+        }
+        catch(IllegalArgumentException ex){
+            Assert.assertEquals("no row 5000 (column 0), the table has 5000 rows", ex.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import junit.framework.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * checks when a recorded task is up to date, including after the
+ * manifest is read back from disk
+ *
+ * @author sr
+ */
+public class RunManifestNGTest {
+
+    private File                        projectFolder;
+    private String                      manifestFile;
+    private String                      inputFile;
+    private String                      outputFile;
+    private HashMap<String, Object>     configData;
+
+    public RunManifestNGTest() {
+    }
+
+    @BeforeMethod
+    public void setUpMethod() throws Exception {
+        projectFolder = Files.createTempDirectory("manifest").toFile();
+        manifestFile = new File(projectFolder, "run.manifest").getPath();
+        inputFile = new File(projectFolder, "sample.fastq.gz").getPath();
+        outputFile = new File(projectFolder, "sample.trim.fastq").getPath();
+        writeFile(inputFile, "@read1\nACGT\n+\nIIII\n");
+        writeFile(outputFile, "trimmed\n");
+        configData = new HashMap<>();
+        configData.put("adapterSequence", "TGGAATTCTCGGGTGCCAAGG");
+        configData.put("noOfThreads", 4);
+    }
+
+    @AfterMethod
+    public void tearDownMethod() throws Exception {
+        for(File file: projectFolder.listFiles())
+            file.delete();
+        projectFolder.delete();
+    }
+
+    private static void writeFile(String path, String text) throws IOException{
+        try(BufferedWriter bwFile = new BufferedWriter(new FileWriter(path))){
+            bwFile.write(text);
+        }
+    }
+
+    /**
+     * change a file without changing its size, with a new modification time
+     */
+    private static void rewriteFile(String path, String text) throws IOException{
+        long modified = new File(path).lastModified();
+        writeFile(path, text);
+        new File(path).setLastModified(modified + 2000);
+    }
+
+    private String recordTask(RunManifest runManifest) throws IOException{
+        String fingerprint = runManifest.fingerprint(new ArrayList<>(Arrays.asList("Trim")), configData, new ArrayList<>(Arrays.asList(inputFile)));
+        runManifest.record("Trim:sample", fingerprint, new ArrayList<>(Arrays.asList(outputFile)));
+        return fingerprint;
+    }
+
+    @Test
+    public void testUpToDateAfterReload() throws IOException {
+        RunManifest runManifest = new RunManifest(manifestFile, true);
+        runManifest.load();
+        String fingerprint = this.recordTask(runManifest);
+        Assert.assertTrue(runManifest.isUpToDate("Trim:sample", fingerprint));
+        Assert.assertFalse(runManifest.isUpToDate("Trim:other", fingerprint));
+
+        RunManifest reloaded = new RunManifest(manifestFile, true);
+        reloaded.load();
+        Assert.assertEquals(fingerprint, reloaded.fingerprint(new ArrayList<>(Arrays.asList("Trim")), configData, new ArrayList<>(Arrays.asList(inputFile))));
+        Assert.assertTrue(reloaded.isUpToDate("Trim:sample", fingerprint));
+    }
+
+    @Test
+    public void testChangedInputsAndConfiguration() throws IOException {
+        RunManifest runManifest = new RunManifest(manifestFile, true);
+        String fingerprint = this.recordTask(runManifest);
+
+        configData.put("noOfThreads", 8);
+        Assert.assertFalse(fingerprint.equals(runManifest.fingerprint(new ArrayList<>(Arrays.asList("Trim")), configData, new ArrayList<>(Arrays.asList(inputFile)))));
+        configData.put("noOfThreads", 4);
+        Assert.assertEquals(fingerprint, runManifest.fingerprint(new ArrayList<>(Arrays.asList("Trim")), configData, new ArrayList<>(Arrays.asList(inputFile))));
+
+        rewriteFile(inputFile, "@read1\nACGA\n+\nIIII\n");
+        Assert.assertFalse(fingerprint.equals(runManifest.fingerprint(new ArrayList<>(Arrays.asList("Trim")), configData, new ArrayList<>(Arrays.asList(inputFile)))));
+    }
+
+    @Test
+    public void testChangedOrMissingOutput() throws IOException {
+        RunManifest runManifest = new RunManifest(manifestFile, true);
+        String fingerprint = this.recordTask(runManifest);
+
+        rewriteFile(outputFile, "trimmeD\n");
+        Assert.assertFalse(runManifest.isUpToDate("Trim:sample", fingerprint));
+
+        fingerprint = this.recordTask(runManifest);
+        Assert.assertTrue(runManifest.isUpToDate("Trim:sample", fingerprint));
+        new File(outputFile).delete();
+        Assert.assertFalse(runManifest.isUpToDate("Trim:sample", fingerprint));
+    }
+
+    @Test
+    public void testInvalidateAndNoResume() throws IOException {
+        RunManifest runManifest = new RunManifest(manifestFile, true);
+        String fingerprint = this.recordTask(runManifest);
+        runManifest.invalidate("Trim:sample");
+        Assert.assertFalse(runManifest.isUpToDate("Trim:sample", fingerprint));
+
+        RunManifest reloaded = new RunManifest(manifestFile, true);
+        reloaded.load();
+        Assert.assertFalse(reloaded.isUpToDate("Trim:sample", fingerprint));
+
+        fingerprint = this.recordTask(reloaded);
+        RunManifest noResume = new RunManifest(manifestFile, false);
+        noResume.load();
+        Assert.assertFalse(noResume.isUpToDate("Trim:sample", fingerprint));
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import junit.framework.Assert;
+import no.uio.medisin.bag.core.Strand;
+import org.testng.annotations.Test;
+
+/**
+ * checks the fields SAMRecord parses against the String split the steps
+ * used before, and that SAMRecordReader gives back every line
+ *
+ * @author sr
+ */
+public class SAMRecordNGTest {
+
+    public SAMRecordNGTest() {
+    }
+
+    private static String samLine(String name, int flag, String chr, int pos, String cigar, String seq, String tags){
+        return name + "\t" + flag + "\t" + chr + "\t" + pos + "\t255\t" + cigar + "\t*\t0\t0\t" + seq + "\tIIIIIIIIIIIIIIIIIIIIII\t" + tags;
+    }
+
+    @Test
+    public void testFields() {
+        SAMRecord samRecord = new SAMRecord();
+        samRecord.set(samLine("1-3452", 0, "chr1", 1000, "22M", "TGAGGTAGTAGGTTGTATAGTT", "XA:i:0\tMD:Z:22\tNM:i:0"));
+        Assert.assertFalse(samRecord.isHeader());
+        Assert.assertTrue(samRecord.isMapped());
+        Assert.assertEquals(Strand.PLUS, samRecord.getStrand());
+        Assert.assertEquals(1000, samRecord.getPos());
+        Assert.assertEquals(1022, samRecord.getEndPos());
+        Assert.assertEquals(3452, samRecord.getQNameCount());
+        Assert.assertEquals("chr1", samRecord.getRName());
+        Assert.assertEquals(22, samRecord.getSequenceLength());
+        Assert.assertEquals("22", samRecord.getTagValue("MD"));
+        Assert.assertEquals("0", samRecord.getTagValue("NM"));
+        Assert.assertNull(samRecord.getTagValue("XM"));
+
+        samRecord.set(samLine("2-1", 16, "chr2", 5, "22M", "*", ""));
+        Assert.assertEquals(Strand.MINUS, samRecord.getStrand());
+        Assert.assertEquals("chr2", samRecord.getRName());
+        Assert.assertEquals(0, samRecord.getSequenceLength());
+
+        samRecord.set(samLine("3-1", 4, "*", 0, "*", "*", ""));
+        Assert.assertFalse(samRecord.isMapped());
+
+        samRecord.set("@SQ\tSN:chr1\tLN:248956422");
+        Assert.assertTrue(samRecord.isHeader());
+    }
+
+    /**
+     * for plain matches the end is the one the steps calculated as
+     * POS + the number in the CIGAR. Only reference bases count otherwise
+     */
+    @Test
+    public void testEndPos() {
+        SAMRecord samRecord = new SAMRecord();
+        String[] cigars         = {"22M",   "1M",   "10M2I10M", "10M3D12M", "5S17M",    "3H10M100N9M",  "11=1X10=", "2S18M2S"};
+        int[] referenceLengths  = {22,      1,      20,         25,         17,         119,            22,         18};
+        for(int c=0; c<cigars.length; c++){
+            samRecord.set(samLine("1-1", 0, "chr1", 77, cigars[c], "TGAGGTAGTAGGTTGTATAGTT", ""));
+            Assert.assertEquals(cigars[c], referenceLengths[c], samRecord.getReferenceLength());
+            Assert.assertEquals(cigars[c], 77 + referenceLengths[c], samRecord.getEndPos());
+            if(cigars[c].matches("[0-9]+M"))
+                Assert.assertEquals(77 + Integer.parseInt(cigars[c].replace("M", "")), samRecord.getEndPos());
+        }
+    }
+
+    @Test(expectedExceptions = NumberFormatException.class)
+    public void testQNameWithoutCount() {
+        SAMRecord samRecord = new SAMRecord();
+        samRecord.set(samLine("read", 0, "chr1", 1, "22M", "TGAGGTAGTAGGTTGTATAGTT", ""));
+        samRecord.getQNameCount();
+    }
+
+    /**
+     * lines longer than the buffer, CRLF line ends and no line break at
+     * the end of the file
+     */
+    @Test
+    public void testReader() throws IOException {
+        StringBuilder longSequence = new StringBuilder();
+        for(int b=0; b<3 * 1024 * 1024; b++)
+            longSequence.append("ACGT".charAt(b % 4));
+
+        ArrayList<String> lines = new ArrayList<>();
+        lines.add("@HD\tVN:1.0");
+        for(int l=0; l<1000; l++)
+            lines.add(samLine(l + "-" + (l + 1), l % 2 == 0 ? 0 : 16, "chr" + (l % 3), l + 1, "22M", "TGAGGTAGTAGGTTGTATAGTT", "MD:Z:22"));
+        lines.add(samLine("long-1", 0, "chrM", 1, longSequence.length() + "M", longSequence.toString(), "MD:Z:" + longSequence.length()));
+        lines.add(samLine("last-7", 0, "chrM", 9, "22M", "TGAGGTAGTAGGTTGTATAGTT", "MD:Z:22"));
+
+        StringBuilder samText = new StringBuilder();
+        for(int l=0; l<lines.size(); l++){
+            samText.append(lines.get(l));
+            if(l < lines.size() - 1)
+                samText.append(l % 2 == 0 ? "\r\n" : "\n");
+        }
+
+        SAMRecord samRecord = new SAMRecord();
+        try(SAMRecordReader samReader = new SAMRecordReader(new ByteArrayInputStream(samText.toString().getBytes(StandardCharsets.ISO_8859_1)))){
+            for(String line: lines){
+                Assert.assertTrue(samReader.next(samRecord));
+                Assert.assertEquals(line, samRecord.toString());
+                if(samRecord.isHeader())
+                    continue;
+                String[] fields = line.split("\t");
+                Assert.assertEquals(fields.length, samRecord.getNoOfFields());
+                Assert.assertEquals(fields[2], samRecord.getRName());
+                Assert.assertEquals(Integer.parseInt(fields[3]), samRecord.getPos());
+                Assert.assertEquals(Integer.parseInt(fields[3]) + Integer.parseInt(fields[5].replace("M", "")), samRecord.getEndPos());
+                Assert.assertEquals(fields[9].length(), samRecord.getSequenceLength());
+            }
+            Assert.assertFalse(samReader.next(samRecord));
+            Assert.assertEquals(lines.size(), samReader.getNoOfLines());
+        }
+    }
+
+}
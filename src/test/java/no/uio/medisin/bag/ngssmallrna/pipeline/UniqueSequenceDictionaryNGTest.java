@@ -0,0 +1,226 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package no.uio.medisin.bag.ngssmallrna.pipeline;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import junit.framework.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * builds a dictionary from a few collapsed samples, with shared sequences
+ * and sequences with an N, and checks the project FASTA, the count matrix
+ * and the files split back out to the samples
+ *
+ * @author sr
+ */
+public class UniqueSequenceDictionaryNGTest {
+
+    private ArrayList<File>                     tempFiles;
+    private ArrayList<LinkedHashMap<String, Integer>> samples;
+    private UniqueSequenceDictionary            dictionary;
+
+    public UniqueSequenceDictionaryNGTest() {
+    }
+
+    @BeforeMethod
+    public void setUpMethod() throws Exception {
+        tempFiles = new ArrayList<>();
+        samples = new ArrayList<>();
+        samples.add(sample("ACGT", 5, "TTTT", 3, "ACNGT", 2));
+        samples.add(sample("ACGT", 7, "GGGG", 1));
+        samples.add(sample("TTTT", 4, "ACNGT", 6, "CCCCAAAA", 9));
+
+        dictionary = new UniqueSequenceDictionary();
+        for(int s=0; s<samples.size(); s++){
+            File fastaFile = this.tempFile(".fa");
+            try(BufferedWriter bwFA = new BufferedWriter(new FileWriter(fastaFile))){
+                int r = 1;
+                for(Map.Entry<String, Integer> read: samples.get(s).entrySet())
+                    bwFA.write(">s" + s + "r" + r++ + "-" + read.getValue() + "\n" + read.getKey() + "\n");
+            }
+            dictionary.addSample("sample" + s, fastaFile.getPath());
+        }
+        dictionary.build();
+    }
+
+    @AfterMethod
+    public void tearDownMethod() throws Exception {
+        for(File tempFile: tempFiles)
+            tempFile.delete();
+    }
+
+    private static LinkedHashMap<String, Integer> sample(Object... reads){
+        LinkedHashMap<String, Integer> sample = new LinkedHashMap<>();
+        for(int r=0; r<reads.length; r+=2)
+            sample.put((String) reads[r], (Integer) reads[r + 1]);
+        return sample;
+    }
+
+    private File tempFile(String suffix) throws IOException{
+        File tempFile = File.createTempFile("dictionary", suffix);
+        tempFiles.add(tempFile);
+        return tempFile;
+    }
+
+    /**
+     * @return sequence -> count from a FASTA with name-count headers
+     */
+    private static HashMap<String, Integer> readFasta(File fastaFile, HashMap<String, Integer> ids) throws IOException{
+        HashMap<String, Integer> counts = new HashMap<>();
+        try(BufferedReader brFA = new BufferedReader(new FileReader(fastaFile))){
+            String headerLine;
+            while((headerLine = brFA.readLine()) != null){
+                String sequence = brFA.readLine();
+                String[] name = headerLine.substring(1).split("-");
+                Assert.assertNull(counts.put(sequence, Integer.parseInt(name[1])));
+                if(ids != null)
+                    ids.put(sequence, Integer.parseInt(name[0]));
+            }
+        }
+        return counts;
+    }
+
+    private HashMap<String, Integer> writeProjectFasta(File projectFasta) throws IOException{
+        dictionary.writeUniqueFasta(projectFasta.getPath());
+        HashMap<String, Integer> ids = new HashMap<>();
+        readFasta(projectFasta, ids);
+        return ids;
+    }
+
+    @Test
+    public void testUniqueFasta() throws IOException {
+        Assert.assertEquals(5, dictionary.getNoOfSequences());
+        Assert.assertEquals(8, dictionary.getNoOfEntries());
+        Assert.assertEquals(3, dictionary.getSampleNames().size());
+
+        File projectFasta = this.tempFile(".fa");
+        dictionary.writeUniqueFasta(projectFasta.getPath());
+        HashMap<String, Integer> ids = new HashMap<>();
+        HashMap<String, Integer> totals = readFasta(projectFasta, ids);
+        HashMap<String, Integer> expected = new HashMap<>();
+        for(LinkedHashMap<String, Integer> sample: samples)
+            for(Map.Entry<String, Integer> read: sample.entrySet())
+                expected.put(read.getKey(), read.getValue() + (expected.containsKey(read.getKey()) ? expected.get(read.getKey()) : 0));
+        Assert.assertEquals(expected, totals);
+        Assert.assertEquals(5, new HashSet<>(ids.values()).size());
+    }
+
+    @Test
+    public void testCountMatrix() throws IOException {
+        HashMap<String, Integer> ids = this.writeProjectFasta(this.tempFile(".fa"));
+        File countFile = this.tempFile(".tsv");
+        dictionary.writeCountMatrix(countFile.getPath());
+
+        HashMap<String, Integer> cells = new HashMap<>();
+        try(BufferedReader brCM = new BufferedReader(new FileReader(countFile))){
+            Assert.assertEquals("id\tsample\tcount", brCM.readLine());
+            String line;
+            while((line = brCM.readLine()) != null){
+                String[] fields = line.split("\t");
+                Assert.assertNull(cells.put(fields[0] + "\t" + fields[1], Integer.parseInt(fields[2])));
+            }
+        }
+        HashMap<String, Integer> expected = new HashMap<>();
+        for(int s=0; s<samples.size(); s++)
+            for(Map.Entry<String, Integer> read: samples.get(s).entrySet())
+                expected.put(ids.get(read.getKey()) + "\tsample" + s, read.getValue());
+        Assert.assertEquals(expected, cells);
+    }
+
+    @Test
+    public void testSplitFasta() throws IOException {
+        File projectFasta = this.tempFile(".fa");
+        this.writeProjectFasta(projectFasta);
+        ArrayList<String> sampleFiles = new ArrayList<>();
+        for(int s=0; s<samples.size(); s++)
+            sampleFiles.add(this.tempFile(".fa").getPath());
+
+        long[] noOfReads = dictionary.splitFasta(projectFasta.getPath(), sampleFiles);
+        for(int s=0; s<samples.size(); s++){
+            Assert.assertEquals(new HashMap<>(samples.get(s)), readFasta(new File(sampleFiles.get(s)), null));
+            long total = 0;
+            for(int count: samples.get(s).values())
+                total += count;
+            Assert.assertEquals(total, noOfReads[s]);
+        }
+    }
+
+    @Test
+    public void testSplitSAM() throws IOException {
+        HashMap<String, Integer> ids = this.writeProjectFasta(this.tempFile(".fa"));
+        File projectSAM = this.tempFile(".sam");
+        try(BufferedWriter bwSAM = new BufferedWriter(new FileWriter(projectSAM))){
+            bwSAM.write("@HD\tVN:1.0\n");
+            bwSAM.write(ids.get("ACGT") + "-12\t0\tchr1\t100\t255\t4M\t*\t0\t0\tACGT\t*\n");
+            bwSAM.write(ids.get("CCCCAAAA") + "-9\t16\tchr2\t200\t255\t8M\t*\t0\t0\tCCCCAAAA\t*\n");
+            bwSAM.write(ids.get("ACGT") + "-12\t0\tchr3\t300\t255\t4M\t*\t0\t0\tACGT\t*\n");
+        }
+        ArrayList<String> sampleFiles = new ArrayList<>();
+        for(int s=0; s<samples.size(); s++)
+            sampleFiles.add(this.tempFile(".sam").getPath());
+
+        dictionary.splitSAM(projectSAM.getPath(), sampleFiles);
+        String[][] expected = {
+            {"@HD\tVN:1.0",
+             ids.get("ACGT") + "-5\t0\tchr1\t100\t255\t4M\t*\t0\t0\tACGT\t*",
+             ids.get("ACGT") + "-5\t0\tchr3\t300\t255\t4M\t*\t0\t0\tACGT\t*"},
+            {"@HD\tVN:1.0",
+             ids.get("ACGT") + "-7\t0\tchr1\t100\t255\t4M\t*\t0\t0\tACGT\t*",
+             ids.get("ACGT") + "-7\t0\tchr3\t300\t255\t4M\t*\t0\t0\tACGT\t*"},
+            {"@HD\tVN:1.0",
+             ids.get("CCCCAAAA") + "-9\t16\tchr2\t200\t255\t8M\t*\t0\t0\tCCCCAAAA\t*"},
+        };
+        for(int s=0; s<samples.size(); s++){
+            ArrayList<String> lines = new ArrayList<>();
+            try(BufferedReader brSAM = new BufferedReader(new FileReader(sampleFiles.get(s)))){
+                String line;
+                while((line = brSAM.readLine()) != null)
+                    lines.add(line);
+            }
+            Assert.assertEquals(Arrays.asList(expected[s]), lines);
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testReadNotInProject() throws IOException {
+        File projectFasta = this.tempFile(".fa");
+        try(BufferedWriter bwFA = new BufferedWriter(new FileWriter(projectFasta))){
+            bwFA.write(">5-1\nACGT\n");
+        }
+        ArrayList<String> sampleFiles = new ArrayList<>();
+        for(int s=0; s<samples.size(); s++)
+            sampleFiles.add(this.tempFile(".fa").getPath());
+        dictionary.splitFasta(projectFasta.getPath(), sampleFiles);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testHeaderWithoutCount() throws IOException {
+        File fastaFile = this.tempFile(".fa");
+        try(BufferedWriter bwFA = new BufferedWriter(new FileWriter(fastaFile))){
+            bwFA.write(">read1\nACGT\n");
+        }
+        new UniqueSequenceDictionary().addSample("bad", fastaFile.getPath());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testAddSampleAfterBuild() throws IOException {
+        dictionary.addSample("late", tempFiles.get(0).getPath());
+    }
+
+}